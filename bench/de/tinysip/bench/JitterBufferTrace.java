@@ -0,0 +1,169 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.bench;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import de.tinysip.rtp.JitterBuffer;
+import de.tinysip.rtp.PacketLossConcealment;
+import de.tinysip.rtp.RtpEngine;
+import de.tinysip.rtp.RtpPacket;
+import de.tinysip.rtp.RtpStream;
+
+/**
+ * Plays synthetic network traces through a JitterBuffer over loopback. For every trace a stream of 20 ms G.711 frames is sent from a plain DatagramChannel to
+ * a RtpStream, each packet delayed or dropped as the trace says, and a playout thread pulls a frame from the JitterBuffer every 20 ms. The frames carry their
+ * sequence number, so the playout can check that it never goes backwards. Prints the statistics of the buffer for every trace.
+ * <p>
+ * Usage: <code>java de.tinysip.bench.JitterBufferTrace [seconds per trace]</code>
+ *
+ */
+public class JitterBufferTrace {
+	private static final int FRAME = 160;
+	private static final int FRAME_MS = 20;
+	private static final int PORT = 21000;
+
+	/**
+	 * What happens to every packet of a trace.
+	 */
+	private static abstract class Trace {
+		final String name;
+		final Random random = new Random(42);
+
+		Trace(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return the network delay of packet i in ms, or -1 to drop it
+		 */
+		abstract int delay(int i);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+		Trace[] traces = { new Trace("clean") {
+			int delay(int i) {
+				return 0;
+			}
+		}, new Trace("5% random loss") {
+			int delay(int i) {
+				return random.nextInt(100) < 5 ? -1 : 0;
+			}
+		}, new Trace("bursts of 10 lost every 2 s") {
+			int delay(int i) {
+				return i % 100 >= 50 && i % 100 < 60 ? -1 : 0;
+			}
+		}, new Trace("0-40 ms jitter") {
+			int delay(int i) {
+				return random.nextInt(41);
+			}
+		}, new Trace("10% reordered by 50 ms") {
+			int delay(int i) {
+				return random.nextInt(100) < 10 ? 50 : 0;
+			}
+		}, new Trace("300 ms delay spike after 2 s") {
+			int delay(int i) {
+				// The spike drains at one frame per packet, as from a queue.
+				int spike = 300 - (i - 100) * FRAME_MS / 2;
+				return i >= 100 && spike > 0 ? spike : 0;
+			}
+		} };
+
+		RtpEngine engine = new RtpEngine(1);
+		for (int t = 0; t < traces.length; t++)
+			run(engine, traces[t], PORT + 4 * t, seconds * 1000 / FRAME_MS);
+		engine.shutdown();
+		System.exit(0);
+	}
+
+	private static void run(RtpEngine engine, Trace trace, int port, int packets) throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		final JitterBuffer jitterBuffer = new JitterBuffer(8000, 20, 400);
+		// Repeats the previous frame, marked so that the playout can tell.
+		jitterBuffer.setPacketLossConcealment(new PacketLossConcealment() {
+			public int conceal(byte[] previous, int previousLength, byte[] frame, int offset, int count) {
+				System.arraycopy(previous, 0, frame, offset, previousLength);
+				if (previousLength > 4)
+					frame[offset + 4] = 1;
+				return previousLength;
+			}
+		});
+		RtpStream stream = engine.openStream(loopback, port, port + 1, loopback, port + 2, port + 3, 0, 8000, "trace@loopback", jitterBuffer);
+
+		// Send times in capture order, then sorted: packets delayed past their successors arrive out of order.
+		long[] schedule = new long[packets];
+		int count = 0;
+		for (int i = 0; i < packets; i++) {
+			int delay = trace.delay(i);
+			if (delay >= 0)
+				schedule[count++] = (long) (i * FRAME_MS + delay) << 20 | i;
+		}
+		Arrays.sort(schedule, 0, count);
+
+		final int[] playout = new int[4];
+		ScheduledExecutorService player = Executors.newSingleThreadScheduledExecutor();
+		player.scheduleAtFixedRate(new Runnable() {
+			private final byte[] frame = new byte[1500];
+			private int last = -1;
+
+			public void run() {
+				int length = jitterBuffer.get(frame, 0);
+				if (length < 5)
+					return;
+				if (frame[4] == 1) {
+					playout[1]++;
+					return;
+				}
+				int sequence = ByteBuffer.wrap(frame).getInt(0);
+				if (sequence <= last)
+					playout[2]++;
+				last = sequence;
+				playout[0]++;
+			}
+		}, 0, FRAME_MS, TimeUnit.MILLISECONDS);
+
+		DatagramChannel channel = DatagramChannel.open();
+		InetSocketAddress target = new InetSocketAddress(loopback, port);
+		ByteBuffer packet = ByteBuffer.allocate(RtpPacket.HEADER_LENGTH + FRAME);
+		long start = System.nanoTime();
+		for (int n = 0; n < count; n++) {
+			int i = (int) (schedule[n] & 0xfffff);
+			long sendAt = start + (schedule[n] >> 20) * 1000000L;
+			while (System.nanoTime() < sendAt)
+				LockSupport.parkNanos(sendAt - System.nanoTime());
+			RtpPacket.putHeader(packet, 0, i == 0, 1000 + i, 12345 + i * FRAME, 0x1234);
+			packet.putInt(i);
+			packet.put((byte) 0);
+			packet.position(packet.limit());
+			packet.flip();
+			channel.send(packet, target);
+		}
+		// Let the buffer play out.
+		Thread.sleep(600);
+		player.shutdown();
+		player.awaitTermination(1, TimeUnit.SECONDS);
+		channel.close();
+		stream.close();
+
+		System.out.println(trace.name + ": sent " + count + "/" + packets + ", played " + playout[0] + ", concealed " + playout[1] + ", out of order "
+				+ playout[2]);
+		System.out.println("\t" + jitterBuffer);
+	}
+}
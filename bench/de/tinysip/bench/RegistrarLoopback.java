@@ -0,0 +1,183 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.bench;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
+import javax.sip.header.AuthorizationHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ToHeader;
+import javax.sip.header.WWWAuthenticateHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import de.tinysip.sip.AuthorizationDigest;
+import de.tinysip.sip.LocalSipProfile;
+import de.tinysip.sip.RegistrationManager;
+import de.tinysip.sip.SipEngine;
+
+/**
+ * Keeps many accounts registered with a RegistrationManager against a digest-authenticating registrar over loopback. The registrar grants a short expiry, so
+ * that the accounts refresh several times during the run, and changes its nonce every minute, so that some refreshes are challenged again. Prints every 5
+ * seconds how many accounts are registered, how many REGISTERs are outstanding and queued, and how many REGISTERs and 401s the registrar saw per second.
+ * <p>
+ * Usage: <code>java de.tinysip.bench.RegistrarLoopback [accounts] [max outstanding] [granted expiry] [seconds]</code>
+ *
+ */
+public class RegistrarLoopback {
+	private static final String REALM = "loopback";
+
+	/**
+	 * A registrar accepting every user whose password is its user name reversed.
+	 */
+	private static class Registrar implements SipListener {
+		private final SipProvider sipProvider;
+		private final MessageFactory messageFactory;
+		private final HeaderFactory headerFactory;
+		private final int expires;
+		private volatile String nonce = Long.toHexString(System.nanoTime());
+		private volatile long nonceTime = System.currentTimeMillis();
+		final AtomicInteger registers = new AtomicInteger();
+		final AtomicInteger challenges = new AtomicInteger();
+
+		Registrar(int port, int expires) throws Exception {
+			this.expires = expires;
+			SipFactory sipFactory = SipFactory.getInstance();
+			Properties properties = new Properties();
+			properties.setProperty("javax.sip.STACK_NAME", "registrar");
+			SipStack sipStack = sipFactory.createSipStack(properties);
+			messageFactory = sipFactory.createMessageFactory();
+			headerFactory = sipFactory.createHeaderFactory();
+			ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", port, ListeningPoint.UDP);
+			sipProvider = sipStack.createSipProvider(listeningPoint);
+			sipProvider.addSipListener(this);
+		}
+
+		public void processRequest(RequestEvent requestEvent) {
+			Request request = requestEvent.getRequest();
+			if (!request.getMethod().equals(Request.REGISTER))
+				return;
+			registers.incrementAndGet();
+			if (System.currentTimeMillis() - nonceTime > 60000) {
+				nonce = Long.toHexString(System.nanoTime());
+				nonceTime = System.currentTimeMillis();
+			}
+
+			try {
+				ServerTransaction serverTransaction = requestEvent.getServerTransaction();
+				if (serverTransaction == null)
+					serverTransaction = sipProvider.getNewServerTransaction(request);
+
+				String user = ((SipURI) ((ToHeader) request.getHeader(ToHeader.NAME)).getAddress().getURI()).getUser();
+				AuthorizationHeader auth = (AuthorizationHeader) request.getHeader(AuthorizationHeader.NAME);
+				if (auth == null
+						|| !nonce.equals(auth.getNonce())
+						|| !AuthorizationDigest.getDigest(user, REALM, password(user), Request.REGISTER, auth.getURI().toString(), nonce).equals(
+								auth.getResponse())) {
+					challenges.incrementAndGet();
+					Response response = messageFactory.createResponse(Response.UNAUTHORIZED, request);
+					WWWAuthenticateHeader challenge = headerFactory.createWWWAuthenticateHeader("Digest");
+					challenge.setRealm(REALM);
+					challenge.setNonce(nonce);
+					challenge.setAlgorithm("MD5");
+					response.addHeader(challenge);
+					serverTransaction.sendResponse(response);
+					return;
+				}
+
+				Response response = messageFactory.createResponse(Response.OK, request);
+				ContactHeader contact = (ContactHeader) request.getHeader(ContactHeader.NAME);
+				if (contact != null && contact.getAddress() != null && contact.getExpires() != 0) {
+					contact = (ContactHeader) contact.clone();
+					contact.setExpires(contact.getExpires() > 0 ? Math.min(contact.getExpires(), expires) : expires);
+					response.addHeader(contact);
+				}
+				serverTransaction.sendResponse(response);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		public void processResponse(ResponseEvent responseEvent) {
+		}
+
+		public void processTimeout(TimeoutEvent timeoutEvent) {
+		}
+
+		public void processIOException(IOExceptionEvent exceptionEvent) {
+		}
+
+		public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+		}
+
+		public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+		}
+	}
+
+	private static String password(String user) {
+		return new StringBuilder(user).reverse().toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int maxOutstanding = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int expires = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 120;
+
+		// REGISTERs go to port 5060 of the domain.
+		Registrar registrar = new Registrar(5060, expires);
+		SipEngine sipEngine = new SipEngine("127.0.0.1", 15060);
+		RegistrationManager registrationManager = new RegistrationManager(sipEngine, maxOutstanding);
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < accounts; i++) {
+			String user = "user" + i;
+			LocalSipProfile localSipProfile = new LocalSipProfile(user, "127.0.0.1", password(user));
+			registrationManager.add(localSipProfile);
+		}
+
+		int lastRegisters = 0, lastChallenges = 0, peakRegisters = 0;
+		long allRegistered = -1;
+		for (int t = 5; t <= seconds; t += 5) {
+			Thread.sleep(start + t * 1000L - System.currentTimeMillis());
+			int registers = registrar.registers.get(), challenges = registrar.challenges.get();
+			int perSecond = (registers - lastRegisters) / 5;
+			peakRegisters = Math.max(peakRegisters, perSecond);
+			if (allRegistered < 0 && registrationManager.getRegisteredCount() == accounts)
+				allRegistered = System.currentTimeMillis() - start;
+			System.out.println(t + " s: registered " + registrationManager.getRegisteredCount() + "/" + accounts + ", outstanding "
+					+ registrationManager.getOutstandingCount() + ", queued " + registrationManager.getPendingCount() + ", REGISTER/s " + perSecond
+					+ ", 401/s " + (challenges - lastChallenges) / 5);
+			lastRegisters = registers;
+			lastChallenges = challenges;
+		}
+		System.out.println("all registered after " + allRegistered + " ms, " + registrar.registers.get() + " REGISTERs, " + registrar.challenges.get()
+				+ " challenged, " + registrationManager.getRequestCount() + " registrations and refreshes, peak " + peakRegisters + " REGISTER/s");
+
+		registrationManager.close();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.tinysip.rtp.RtpEngine;
+import de.tinysip.rtp.RtpListener;
+import de.tinysip.rtp.RtpPacket;
+import de.tinysip.rtp.RtpStream;
+
+/**
+ * Runs many G.711 calls over loopback through one RtpEngine: every call is a pair of streams sending 160 byte frames to each other every 20 ms. Prints the
+ * packets sent, received and lost, the jitter and round trip time taken from RTCP, the CPU time of the engine threads and the heap allocated per packet.
+ * <p>
+ * Usage: <code>java de.tinysip.bench.RtpLoopback [calls] [threads] [seconds]</code>. Run it for more than 5 s to see RTCP round trip times.
+ *
+ */
+public class RtpLoopback implements RtpListener {
+	private static final int FRAME = 160;
+	private static final int PCMU = 0;
+	private static final int BASE_PORT = 20000;
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong payloadErrors = new AtomicLong();
+	private final AtomicLong byes = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+		new RtpLoopback().run(calls, threads, seconds);
+		System.exit(0);
+	}
+
+	private void run(int calls, int threads, int seconds) throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		RtpEngine engine = new RtpEngine(threads);
+		final RtpStream[] streams = new RtpStream[2 * calls];
+		for (int i = 0; i < calls; i++) {
+			int port = BASE_PORT + 4 * i;
+			streams[2 * i] = engine.openStream(loopback, port, port + 1, loopback, port + 2, port + 3, PCMU, 8000, "a" + i + "@loopback", this);
+			streams[2 * i + 1] = engine.openStream(loopback, port + 2, port + 3, loopback, port, port + 1, PCMU, 8000, "b" + i + "@loopback", this);
+		}
+		System.out.println(calls + " calls, " + threads + " engine threads, " + seconds + " s");
+
+		// One sender thread stands in for the audio sources of all calls.
+		final byte[] frame = new byte[FRAME];
+		for (int i = 0; i < FRAME; i++)
+			frame[i] = (byte) i;
+		ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor();
+		sender.scheduleAtFixedRate(new Runnable() {
+			private boolean first = true;
+
+			public void run() {
+				for (RtpStream stream : streams)
+					stream.send(frame, 0, FRAME, FRAME, first);
+				first = false;
+			}
+		}, 0, 20, TimeUnit.MILLISECONDS);
+
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		long cpuBefore = engineCpuTime(threadMXBean);
+		long allocatedBefore = allocatedBytes();
+		long receivedBefore = received.get();
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long cpu = engineCpuTime(threadMXBean) - cpuBefore;
+		long allocated = allocatedBytes() - allocatedBefore;
+		long packets = received.get() - receivedBefore;
+		long elapsed = System.nanoTime() - start;
+		sender.shutdown();
+		sender.awaitTermination(1, TimeUnit.SECONDS);
+		// The last packets and reports.
+		Thread.sleep(200);
+
+		long sent = 0, lost = 0, dropped = 0;
+		int maxJitter = 0, rttSum = 0, rttCount = 0;
+		for (RtpStream stream : streams) {
+			sent += stream.getPacketsSent();
+			lost += stream.getPacketsLost();
+			dropped += stream.getPacketsDropped();
+			maxJitter = Math.max(maxJitter, stream.getJitter());
+			if (stream.getRoundTripTime() >= 0) {
+				rttSum += stream.getRoundTripTime();
+				rttCount++;
+			}
+		}
+		System.out.println("sent " + sent + "\treceived " + received.get() + "\tlost " + lost + "\tdropped " + dropped + "\tbad payloads " + payloadErrors.get());
+		System.out.println("max jitter " + maxJitter * 1000 / 8000 + " ms\tstreams with RTT " + rttCount + "/" + streams.length + "\tmean RTT "
+				+ (rttCount == 0 ? 0 : rttSum / rttCount) + " ms");
+		System.out.println("engine CPU " + 100 * cpu / elapsed + "% of one core\t" + (packets == 0 ? 0 : cpu / packets) + " ns per received packet\t"
+				+ (allocated < 0 || packets == 0 ? "?" : String.valueOf(allocated / packets)) + " bytes allocated per packet\tpooled buffers "
+				+ engine.getBufferPool().getSize());
+
+		// One side hangs up first, so that the other still receives its BYE.
+		for (int i = 0; i < calls; i++)
+			streams[2 * i].close();
+		Thread.sleep(200);
+		System.out.println("BYEs received " + byes.get() + "/" + calls);
+		engine.shutdown();
+	}
+
+	private static long engineCpuTime(ThreadMXBean threadMXBean) {
+		long total = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (thread.getName().startsWith("RtpEngine-"))
+				total += threadMXBean.getThreadCpuTime(thread.getId());
+		return total;
+	}
+
+	/**
+	 * @return the bytes allocated by all threads so far, if the VM can tell
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if (!(threadMXBean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		long total = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			total += ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(thread.getId());
+		return total;
+	}
+
+	public void rtpReceived(RtpStream stream, ByteBuffer packet) {
+		received.incrementAndGet();
+		int offset = RtpPacket.getPayloadOffset(packet);
+		if (RtpPacket.getPayloadLength(packet) != FRAME || packet.get(offset + FRAME - 1) != (byte) (FRAME - 1))
+			payloadErrors.incrementAndGet();
+	}
+
+	public void byeReceived(RtpStream stream) {
+		byes.incrementAndGet();
+	}
+}
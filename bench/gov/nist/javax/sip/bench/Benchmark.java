@@ -0,0 +1,176 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/**
+ * A single micro benchmark. Subclasses implement {@link #operation(int)}; the harness calls it
+ * in a tight loop, first for a warmup period so the JIT settles, then for a number of timed
+ * iterations, and reports the mean time per operation with its spread across iterations.
+ * On VMs that count the bytes allocated by each thread (HotSpot), the bytes allocated per
+ * operation during the timed iterations are reported as well.
+ * <p>
+ * Whatever the operation returns is folded into {@link #sink} so the JIT cannot prove the work
+ * useless and drop it.
+ *
+ * @version 1.2
+ *
+ */
+public abstract class Benchmark {
+
+    /**
+     * Results of every operation end up here. Never read, only there to keep the work alive.
+     */
+    public static volatile int sink;
+
+    // com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long), null if not available.
+    private static final Method allocatedBytes;
+
+    static {
+        Method method = null;
+        try {
+            method = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", new Class<?>[] { long.class });
+        } catch (Throwable ex) {
+            // Not a HotSpot VM.
+        }
+        allocatedBytes = method;
+    }
+
+    private final String name;
+
+    // Operations run by the last call to loop().
+    private long ops;
+
+    private double bytesPerOperation = -1;
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the bytes allocated per operation in the timed iterations of the last
+     *         measurement, or -1 if the VM does not tell.
+     */
+    public double getBytesPerOperation() {
+        return bytesPerOperation;
+    }
+
+    private static long allocatedBytes() {
+        if (allocatedBytes == null)
+            return -1;
+        try {
+            Long bytes = (Long) allocatedBytes.invoke(ManagementFactory.getThreadMXBean(),
+                    new Object[] { Long.valueOf(Thread.currentThread().getId()) });
+            return bytes.longValue();
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Called once before the warmup.
+     */
+    protected void setUp() throws Exception {
+    }
+
+    /**
+     * Called once after the last timed iteration.
+     */
+    protected void tearDown() throws Exception {
+    }
+
+    /**
+     * The operation to measure.
+     *
+     * @param i -- invocation counter, handy to cycle through a corpus.
+     * @return anything derived from the work done.
+     */
+    protected abstract Object operation(int i) throws Exception;
+
+    /**
+     * Run the operation repeatedly for the given time.
+     *
+     * @return nanoseconds per operation.
+     */
+    private double loop(long millis) throws Exception {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long ops = 0;
+        int hash = 0;
+        long start = System.nanoTime();
+        long now;
+        do {
+            // Check the clock every 64 operations only.
+            for (int j = 0; j < 64; j++, ops++) {
+                Object result = operation((int) ops);
+                if (result != null)
+                    hash += System.identityHashCode(result);
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink += hash;
+        this.ops = ops;
+        return (double) (now - start) / ops;
+    }
+
+    /**
+     * Measure this benchmark.
+     *
+     * @param warmupMillis -- time to run before measuring.
+     * @param iterations -- number of timed iterations.
+     * @param iterationMillis -- duration of each timed iteration.
+     * @return nanoseconds per operation of each iteration.
+     */
+    public double[] measure(long warmupMillis, int iterations, long iterationMillis)
+            throws Exception {
+        setUp();
+        try {
+            loop(warmupMillis);
+            double[] results = new double[iterations];
+            long totalOps = 0;
+            long bytesBefore = allocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                results[i] = loop(iterationMillis);
+                totalOps += ops;
+            }
+            long bytesAfter = allocatedBytes();
+            bytesPerOperation = bytesBefore < 0 || bytesAfter < 0 ? -1
+                    : (double) (bytesAfter - bytesBefore) / totalOps;
+            return results;
+        } finally {
+            tearDown();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the benchmarks and prints one line per benchmark with the mean time per operation, the
+ * 99.9% confidence half width across iterations, the throughput and the bytes allocated per
+ * operation (where the VM can tell).
+ * <p>
+ * Usage: <code>java gov.nist.javax.sip.bench.BenchmarkRunner [-w warmupMillis]
+ * [-i iterations] [-t iterationMillis] [-check] [filter ...]</code>
+ * <p>
+ * Only benchmarks whose name contains one of the filters are run (all of them if no filter is
+ * given). <code>-check</code> runs each selected operation once over the corpus without timing,
+ * which is a quick way to make sure a change did not break the corpus.
+ *
+ * @version 1.2
+ *
+ */
+public class BenchmarkRunner {
+
+    // Student t quantile for a two sided 99.9% interval, indexed by degrees of freedom (1-10).
+    private static final double[] T_999 = { 0, 636.6, 31.6, 12.9, 8.61, 6.87, 5.96, 5.41,
+            5.04, 4.78, 4.59 };
+
+    public static List<Benchmark> allBenchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.addAll(ParserBenchmarks.benchmarks());
+        benchmarks.addAll(MessageBenchmarks.benchmarks());
+        benchmarks.addAll(StackBenchmarks.benchmarks());
+        benchmarks.addAll(StunBenchmarks.benchmarks());
+        return benchmarks;
+    }
+
+    private static boolean selected(String name, List<String> filters) {
+        if (filters.isEmpty())
+            return true;
+        for (int i = 0; i < filters.size(); i++) {
+            if (name.indexOf(filters.get(i)) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    private static String pad(String s, int width) {
+        StringBuffer buffer = new StringBuffer(s).append(' ');
+        while (buffer.length() < width)
+            buffer.append(' ');
+        return buffer.toString();
+    }
+
+    private static String format(double value) {
+        if (value >= 100)
+            return String.valueOf(Math.round(value));
+        return String.valueOf(Math.round(value * 10) / 10.0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long warmupMillis = 2000;
+        int iterations = 5;
+        long iterationMillis = 1000;
+        boolean check = false;
+        List<String> filters = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-w"))
+                warmupMillis = Long.parseLong(args[++i]);
+            else if (args[i].equals("-i"))
+                iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-t"))
+                iterationMillis = Long.parseLong(args[++i]);
+            else if (args[i].equals("-check"))
+                check = true;
+            else
+                filters.add(args[i]);
+        }
+
+        List<Benchmark> benchmarks = allBenchmarks();
+        if (!check)
+            System.out.println(pad("Benchmark", 40) + pad("ns/op", 12) + pad("error", 12)
+                    + pad("ops/s", 12) + "B/op");
+        for (int i = 0; i < benchmarks.size(); i++) {
+            Benchmark benchmark = benchmarks.get(i);
+            if (!selected(benchmark.getName(), filters))
+                continue;
+            if (check) {
+                benchmark.setUp();
+                try {
+                    for (int n = 0; n < 100; n++)
+                        benchmark.operation(n);
+                } finally {
+                    benchmark.tearDown();
+                }
+                System.out.println(benchmark.getName() + " OK");
+                continue;
+            }
+
+            double[] results = benchmark.measure(warmupMillis, iterations, iterationMillis);
+            double mean = 0;
+            for (int j = 0; j < results.length; j++)
+                mean += results[j];
+            mean /= results.length;
+            double error = 0;
+            if (results.length > 1) {
+                double variance = 0;
+                for (int j = 0; j < results.length; j++)
+                    variance += (results[j] - mean) * (results[j] - mean);
+                variance /= results.length - 1;
+                double t = results.length - 1 < T_999.length ? T_999[results.length - 1] : 3.29;
+                error = t * Math.sqrt(variance / results.length);
+            }
+            double bytes = benchmark.getBytesPerOperation();
+            System.out.println(pad(benchmark.getName(), 40) + pad(format(mean), 12)
+                    + pad(format(error), 12) + pad(String.valueOf(Math.round(1e9 / mean)), 12)
+                    + (bytes < 0 ? "-" : format(bytes)));
+        }
+        // Stack benchmarks leave timer threads behind.
+        System.exit(0);
+    }
+}
@@ -0,0 +1,313 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.bench;
+
+/**
+ * Messages, headers, URIs and session descriptions used by the benchmarks. They are modelled on
+ * traffic captured from common user agents, proxies and PBXs (soft phones behind NAT, an IMS
+ * style registrar, a presence server) rather than on the minimal messages of the RFCs, so header
+ * counts, parameter lists and body sizes are representative of what the stack sees in the field.
+ * <p>
+ * Content-Length is computed when the corpus is built, so bodies can be edited freely.
+ *
+ * @version 1.2
+ *
+ */
+public final class Corpus {
+
+    private Corpus() {
+    }
+
+    private static String message(String headers, String body) {
+        return headers + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+    }
+
+    public static final String SDP_AUDIO = "v=0\r\n"
+            + "o=alice 2890844526 2890844527 IN IP4 192.168.1.34\r\n"
+            + "s=Talk\r\n"
+            + "c=IN IP4 192.168.1.34\r\n"
+            + "t=0 0\r\n"
+            + "a=rtcp-xr:rcvr-rtt=all:10000 stat-summary=loss,dup,jitt,TTL voip-metrics\r\n"
+            + "m=audio 7078 RTP/AVP 96 97 98 0 8 18 101 99 100\r\n"
+            + "a=rtpmap:96 opus/48000/2\r\n"
+            + "a=fmtp:96 useinbandfec=1\r\n"
+            + "a=rtpmap:97 speex/16000\r\n"
+            + "a=fmtp:97 vbr=on\r\n"
+            + "a=rtpmap:98 speex/8000\r\n"
+            + "a=fmtp:98 vbr=on\r\n"
+            + "a=fmtp:18 annexb=yes\r\n"
+            + "a=rtpmap:101 telephone-event/48000\r\n"
+            + "a=rtpmap:99 telephone-event/16000\r\n"
+            + "a=rtpmap:100 telephone-event/8000\r\n"
+            + "a=rtcp-fb:* trr-int 1000\r\n"
+            + "a=rtcp-fb:* ccm tmmbr\r\n";
+
+    public static final String SDP_ANSWER = "v=0\r\n"
+            + "o=root 1372290591 1372290591 IN IP4 203.0.113.10\r\n"
+            + "s=Asterisk PBX 13.18.3\r\n"
+            + "c=IN IP4 203.0.113.10\r\n"
+            + "t=0 0\r\n"
+            + "m=audio 17276 RTP/AVP 0 101\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n"
+            + "a=rtpmap:101 telephone-event/8000\r\n"
+            + "a=fmtp:101 0-16\r\n"
+            + "a=ptime:20\r\n"
+            + "a=maxptime:150\r\n"
+            + "a=sendrecv\r\n";
+
+    public static final String SDP_VIDEO = "v=0\r\n"
+            + "o=- 3710604898417546434 2 IN IP4 198.51.100.7\r\n"
+            + "s=-\r\n"
+            + "c=IN IP4 198.51.100.7\r\n"
+            + "b=AS:2048\r\n"
+            + "t=0 0\r\n"
+            + "m=audio 49170 RTP/AVP 111 9 0 8 101\r\n"
+            + "a=rtcp:49171 IN IP4 198.51.100.7\r\n"
+            + "a=rtpmap:111 opus/48000/2\r\n"
+            + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+            + "a=rtpmap:9 G722/8000\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n"
+            + "a=rtpmap:8 PCMA/8000\r\n"
+            + "a=rtpmap:101 telephone-event/8000\r\n"
+            + "a=sendrecv\r\n"
+            + "m=video 51372 RTP/AVP 96 97\r\n"
+            + "b=TIAS:1920000\r\n"
+            + "a=rtcp:51373 IN IP4 198.51.100.7\r\n"
+            + "a=rtpmap:96 VP8/90000\r\n"
+            + "a=rtpmap:97 H264/90000\r\n"
+            + "a=fmtp:97 profile-level-id=42e01f;packetization-mode=1\r\n"
+            + "a=rtcp-fb:96 nack\r\n"
+            + "a=rtcp-fb:96 nack pli\r\n"
+            + "a=rtcp-fb:96 ccm fir\r\n"
+            + "a=rtcp-fb:97 nack pli\r\n"
+            + "a=sendrecv\r\n";
+
+    public static final String INVITE = message("INVITE sip:bob@biloxi.example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 192.168.1.34:5060;branch=z9hG4bK.Ue2Lpl~Ml;rport\r\n"
+            + "From: \"Alice\" <sip:alice@atlanta.example.com>;tag=Ry7BLcpYo\r\n"
+            + "To: <sip:bob@biloxi.example.com>\r\n"
+            + "CSeq: 20 INVITE\r\n"
+            + "Call-ID: tVnzwAQzOq\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Supported: replaces, outbound, gruu, timer\r\n"
+            + "Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, NOTIFY, MESSAGE, SUBSCRIBE, INFO, PRACK, UPDATE\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Contact: <sip:alice@192.168.1.34;transport=udp>;+sip.instance=\"<urn:uuid:5c2d4d2c-9ae9-4fdd-8b9a-2b2b0a6e8a1e>\"\r\n"
+            + "Session-Expires: 1800\r\n"
+            + "User-Agent: Linphone/3.12.0 (belle-sip/1.6.3)\r\n", SDP_AUDIO);
+
+    public static final String TRYING = message("SIP/2.0 100 Trying\r\n"
+            + "Via: SIP/2.0/UDP 192.168.1.34:5060;branch=z9hG4bK.Ue2Lpl~Ml;rport=5060;received=198.51.100.23\r\n"
+            + "From: \"Alice\" <sip:alice@atlanta.example.com>;tag=Ry7BLcpYo\r\n"
+            + "To: <sip:bob@biloxi.example.com>\r\n"
+            + "Call-ID: tVnzwAQzOq\r\n"
+            + "CSeq: 20 INVITE\r\n"
+            + "Server: Asterisk PBX 13.18.3\r\n", "");
+
+    public static final String RINGING = message("SIP/2.0 180 Ringing\r\n"
+            + "Via: SIP/2.0/UDP 192.168.1.34:5060;branch=z9hG4bK.Ue2Lpl~Ml;rport=5060;received=198.51.100.23\r\n"
+            + "Record-Route: <sip:203.0.113.2;lr;ftag=Ry7BLcpYo;did=3b1.cd2f8e82>\r\n"
+            + "Record-Route: <sip:203.0.113.1;lr=on;ftag=Ry7BLcpYo>\r\n"
+            + "From: \"Alice\" <sip:alice@atlanta.example.com>;tag=Ry7BLcpYo\r\n"
+            + "To: <sip:bob@biloxi.example.com>;tag=as1d0e3e2f\r\n"
+            + "Call-ID: tVnzwAQzOq\r\n"
+            + "CSeq: 20 INVITE\r\n"
+            + "Server: Asterisk PBX 13.18.3\r\n"
+            + "Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, SUBSCRIBE, NOTIFY, INFO, PUBLISH, MESSAGE\r\n"
+            + "Supported: replaces, timer\r\n"
+            + "Contact: <sip:bob@203.0.113.10:5060>\r\n", "");
+
+    public static final String OK_INVITE = message("SIP/2.0 200 OK\r\n"
+            + "Via: SIP/2.0/UDP 192.168.1.34:5060;branch=z9hG4bK.Ue2Lpl~Ml;rport=5060;received=198.51.100.23\r\n"
+            + "Record-Route: <sip:203.0.113.2;lr;ftag=Ry7BLcpYo;did=3b1.cd2f8e82>\r\n"
+            + "Record-Route: <sip:203.0.113.1;lr=on;ftag=Ry7BLcpYo>\r\n"
+            + "From: \"Alice\" <sip:alice@atlanta.example.com>;tag=Ry7BLcpYo\r\n"
+            + "To: <sip:bob@biloxi.example.com>;tag=as1d0e3e2f\r\n"
+            + "Call-ID: tVnzwAQzOq\r\n"
+            + "CSeq: 20 INVITE\r\n"
+            + "Server: Asterisk PBX 13.18.3\r\n"
+            + "Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, SUBSCRIBE, NOTIFY, INFO, PUBLISH, MESSAGE\r\n"
+            + "Supported: replaces, timer\r\n"
+            + "Session-Expires: 1800;refresher=uac\r\n"
+            + "Require: timer\r\n"
+            + "Contact: <sip:bob@203.0.113.10:5060>\r\n"
+            + "Content-Type: application/sdp\r\n", SDP_ANSWER);
+
+    public static final String ACK = message("ACK sip:bob@203.0.113.10:5060 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 192.168.1.34:5060;rport;branch=z9hG4bK.JrUpt2yZ3\r\n"
+            + "Route: <sip:203.0.113.1;lr=on;ftag=Ry7BLcpYo>\r\n"
+            + "Route: <sip:203.0.113.2;lr;ftag=Ry7BLcpYo;did=3b1.cd2f8e82>\r\n"
+            + "From: \"Alice\" <sip:alice@atlanta.example.com>;tag=Ry7BLcpYo\r\n"
+            + "To: <sip:bob@biloxi.example.com>;tag=as1d0e3e2f\r\n"
+            + "CSeq: 20 ACK\r\n"
+            + "Call-ID: tVnzwAQzOq\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "User-Agent: Linphone/3.12.0 (belle-sip/1.6.3)\r\n", "");
+
+    public static final String BYE = message("BYE sip:bob@203.0.113.10:5060 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 192.168.1.34:5060;rport;branch=z9hG4bK.8mVP2e0yF\r\n"
+            + "Route: <sip:203.0.113.1;lr=on;ftag=Ry7BLcpYo>\r\n"
+            + "Route: <sip:203.0.113.2;lr;ftag=Ry7BLcpYo;did=3b1.cd2f8e82>\r\n"
+            + "From: \"Alice\" <sip:alice@atlanta.example.com>;tag=Ry7BLcpYo\r\n"
+            + "To: <sip:bob@biloxi.example.com>;tag=as1d0e3e2f\r\n"
+            + "CSeq: 21 BYE\r\n"
+            + "Call-ID: tVnzwAQzOq\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "User-Agent: Linphone/3.12.0 (belle-sip/1.6.3)\r\n", "");
+
+    public static final String REGISTER = message("REGISTER sip:ims.example.net SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.15:49152;branch=z9hG4bK1766823713;rport\r\n"
+            + "From: <sip:+15551234567@ims.example.net>;tag=2079212218\r\n"
+            + "To: <sip:+15551234567@ims.example.net>\r\n"
+            + "Call-ID: 1597236918@10.0.0.15\r\n"
+            + "CSeq: 2 REGISTER\r\n"
+            + "Contact: <sip:+15551234567@10.0.0.15:49152;line=ah8ro2s>;reg-id=1;+sip.instance=\"<urn:uuid:00000000-0000-1000-8000-000A95A0E128>\";expires=600\r\n"
+            + "Authorization: Digest username=\"+15551234567\", realm=\"ims.example.net\", nonce=\"7c1f8f2a1e3b4c5d6e7f8a9b0c1d2e3f\", uri=\"sip:ims.example.net\", response=\"1b2c3d4e5f60718293a4b5c6d7e8f901\", algorithm=MD5, cnonce=\"0a4f113b\", qop=auth, nc=00000001\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "User-Agent: Yealink SIP-T46S 66.84.0.15\r\n"
+            + "Expires: 600\r\n"
+            + "Allow: INVITE, ACK, BYE, CANCEL, OPTIONS, INFO, MESSAGE, SUBSCRIBE, NOTIFY, PRACK, UPDATE, REFER\r\n"
+            + "Supported: path, gruu, outbound\r\n", "");
+
+    public static final String UNAUTHORIZED = message("SIP/2.0 401 Unauthorized\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.15:49152;branch=z9hG4bK1766823713;rport=49152;received=198.51.100.99\r\n"
+            + "From: <sip:+15551234567@ims.example.net>;tag=2079212218\r\n"
+            + "To: <sip:+15551234567@ims.example.net>;tag=a6a1c5f60faecf035a1ae5b6e96e979a-2b74\r\n"
+            + "Call-ID: 1597236918@10.0.0.15\r\n"
+            + "CSeq: 1 REGISTER\r\n"
+            + "WWW-Authenticate: Digest realm=\"ims.example.net\", nonce=\"7c1f8f2a1e3b4c5d6e7f8a9b0c1d2e3f\", opaque=\"5ccc069c403ebaf9f0171e9517f40e41\", algorithm=MD5, qop=\"auth\"\r\n"
+            + "Server: kamailio (5.1.2 (x86_64/linux))\r\n", "");
+
+    public static final String SUBSCRIBE = message("SUBSCRIBE sip:carol@chicago.example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/TCP 192.168.1.34:5060;branch=z9hG4bK.b9d4a6f1;rport\r\n"
+            + "From: \"Alice\" <sip:alice@atlanta.example.com>;tag=xfg9\r\n"
+            + "To: <sip:carol@chicago.example.com>\r\n"
+            + "Call-ID: 2010128@192.168.1.34\r\n"
+            + "CSeq: 1 SUBSCRIBE\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Event: presence\r\n"
+            + "Accept: application/pidf+xml, application/xpidf+xml\r\n"
+            + "Contact: <sip:alice@192.168.1.34;transport=tcp>\r\n"
+            + "Expires: 3600\r\n"
+            + "User-Agent: Linphone/3.12.0 (belle-sip/1.6.3)\r\n", "");
+
+    public static final String NOTIFY = message("NOTIFY sip:alice@192.168.1.34;transport=tcp SIP/2.0\r\n"
+            + "Via: SIP/2.0/TCP 203.0.113.30:5060;branch=z9hG4bK-d8754z-9d12a1b3a1c8a1e5-1---d8754z-\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "From: <sip:carol@chicago.example.com>;tag=ffd2\r\n"
+            + "To: \"Alice\" <sip:alice@atlanta.example.com>;tag=xfg9\r\n"
+            + "Call-ID: 2010128@192.168.1.34\r\n"
+            + "CSeq: 2 NOTIFY\r\n"
+            + "Contact: <sip:carol@203.0.113.30:5060;transport=tcp>\r\n"
+            + "Event: presence\r\n"
+            + "Subscription-State: active;expires=3599\r\n"
+            + "Content-Type: application/pidf+xml\r\n",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n"
+            + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\" entity=\"sip:carol@chicago.example.com\">\r\n"
+            + "  <tuple id=\"t4109\">\r\n"
+            + "    <status><basic>open</basic></status>\r\n"
+            + "    <contact priority=\"0.8\">sip:carol@203.0.113.30</contact>\r\n"
+            + "    <note>Available</note>\r\n"
+            + "  </tuple>\r\n"
+            + "</presence>\r\n");
+
+    public static final String OPTIONS = message("OPTIONS sip:203.0.113.1 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.15:49152;branch=z9hG4bK3612906201;rport\r\n"
+            + "From: <sip:+15551234567@ims.example.net>;tag=2119377410\r\n"
+            + "To: <sip:203.0.113.1>\r\n"
+            + "Call-ID: 1108473452@10.0.0.15\r\n"
+            + "CSeq: 1 OPTIONS\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Accept: application/sdp\r\n"
+            + "User-Agent: Yealink SIP-T46S 66.84.0.15\r\n", "");
+
+    public static final String MESSAGE = message("MESSAGE sip:bob@biloxi.example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 192.168.1.34:5060;branch=z9hG4bK.dT4aB7kq1;rport\r\n"
+            + "From: \"Alice\" <sip:alice@atlanta.example.com>;tag=L7m1n2k\r\n"
+            + "To: <sip:bob@biloxi.example.com>\r\n"
+            + "CSeq: 20 MESSAGE\r\n"
+            + "Call-ID: rAvUyO2Ksf\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Date: Thu, 21 Feb 2002 13:02:03 GMT\r\n"
+            + "User-Agent: Linphone/3.12.0 (belle-sip/1.6.3)\r\n",
+            "Running late, start without me.");
+
+    /**
+     * Every message of the corpus.
+     */
+    public static final String[] MESSAGES = { INVITE, TRYING, RINGING, OK_INVITE, ACK, BYE,
+            REGISTER, UNAUTHORIZED, SUBSCRIBE, NOTIFY, OPTIONS, MESSAGE };
+
+    public static final String[] MESSAGE_NAMES = { "INVITE", "100", "180", "200-INVITE", "ACK",
+            "BYE", "REGISTER", "401", "SUBSCRIBE", "NOTIFY", "OPTIONS", "MESSAGE" };
+
+    /**
+     * Header name and value pairs for the header factory.
+     */
+    public static final String[][] HEADERS = {
+            { "Via", "SIP/2.0/UDP 192.168.1.34:5060;branch=z9hG4bK.Ue2Lpl~Ml;rport=5060;received=198.51.100.23" },
+            { "From", "\"Alice\" <sip:alice@atlanta.example.com>;tag=Ry7BLcpYo" },
+            { "To", "<sip:bob@biloxi.example.com>;tag=as1d0e3e2f" },
+            { "Call-ID", "a84b4c76e66710@pc33.atlanta.example.com" },
+            { "CSeq", "314159 INVITE" },
+            { "Max-Forwards", "70" },
+            { "Contact", "<sip:+15551234567@10.0.0.15:49152;line=ah8ro2s>;reg-id=1;expires=600" },
+            { "Record-Route", "<sip:203.0.113.2;lr;ftag=Ry7BLcpYo;did=3b1.cd2f8e82>" },
+            { "Route", "<sip:203.0.113.1;lr=on;ftag=Ry7BLcpYo>" },
+            { "Content-Type", "application/sdp" },
+            { "Expires", "3600" },
+            { "User-Agent", "Linphone/3.12.0 (belle-sip/1.6.3)" },
+            { "Authorization", "Digest username=\"+15551234567\", realm=\"ims.example.net\", nonce=\"7c1f8f2a1e3b4c5d6e7f8a9b0c1d2e3f\", uri=\"sip:ims.example.net\", response=\"1b2c3d4e5f60718293a4b5c6d7e8f901\", algorithm=MD5, cnonce=\"0a4f113b\", qop=auth, nc=00000001" },
+            { "WWW-Authenticate", "Digest realm=\"ims.example.net\", nonce=\"7c1f8f2a1e3b4c5d6e7f8a9b0c1d2e3f\", opaque=\"5ccc069c403ebaf9f0171e9517f40e41\", algorithm=MD5, qop=\"auth\"" },
+            { "Subscription-State", "active;expires=3599" },
+            { "Event", "presence" } };
+
+    /**
+     * URIs for the address factory.
+     */
+    public static final String[] URIS = {
+            "sip:alice@atlanta.example.com",
+            "sip:bob@203.0.113.10:5060",
+            "sip:alice@192.168.1.34;transport=udp",
+            "sip:203.0.113.2;lr;ftag=Ry7BLcpYo;did=3b1.cd2f8e82",
+            "sip:+15551234567@ims.example.net;user=phone",
+            "sip:+15551234567@10.0.0.15:49152;line=ah8ro2s",
+            "sips:carol@chicago.example.com;maddr=239.255.255.1;ttl=15",
+            "sip:alice@[2001:db8::10]:5070;transport=tcp",
+            "sip:voicemail@biloxi.example.com?Subject=Call%20me&Priority=urgent",
+            "tel:+1-201-555-0123;phone-context=example.com" };
+
+    /**
+     * Session descriptions for the SDP parser.
+     */
+    public static final String[] SDPS = { SDP_AUDIO, SDP_ANSWER, SDP_VIDEO };
+
+    public static final String[] SDP_NAMES = { "offer-audio", "answer-audio", "offer-video" };
+}
@@ -0,0 +1,281 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.bench;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.Address;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * Measures the heap held by confirmed dialogs. Two stacks set up calls to each other over
+ * loopback UDP (INVITE, 200, ACK) and keep them up; once the transactions are over (64*T1) the
+ * heap growth is divided by the number of dialogs. This is done with
+ * gov.nist.javax.sip.COMPACT_CONFIRMED_DIALOGS off and then on.
+ * <p>
+ * Usage: <code>java gov.nist.javax.sip.bench.DialogFootprint [calls]</code>. Run it with a
+ * heap large enough for the uncompacted dialogs, for example -Xmx512m for 10000 calls.
+ *
+ * @version 1.2
+ *
+ */
+public class DialogFootprint {
+
+    private static final int UAC_PORT = 15101;
+
+    private static final int UAS_PORT = 15102;
+
+    // Calls being set up at any one time.
+    private static final int WINDOW = 100;
+
+    public static void main(String[] args) {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        try {
+            measure(calls, false);
+            measure(calls, true);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            // The stack threads would keep the VM alive.
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Collect until the used heap stops shrinking: SipStackImpl has a finalizer, so a stopped
+     * stack takes more than one collection to go away.
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 20; i++) {
+            System.gc();
+            System.runFinalization();
+            Thread.sleep(100);
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used)
+                break;
+            used = now;
+        }
+        return used;
+    }
+
+    /**
+     * Set up the calls and print the heap used per dialog once the transactions are over.
+     */
+    private static void measure(int calls, boolean compact) throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        // Fresh ports: the sockets of the stacks of the previous run may linger.
+        int offset = compact ? 2 : 0;
+        Agent uac = new Agent(sipFactory, "uac", UAC_PORT + offset, compact);
+        Agent uas = new Agent(sipFactory, "uas", UAS_PORT + offset, compact);
+        long before = usedHeap();
+
+        for (int i = 0; i < calls; i++)
+            uac.call(uas);
+        uac.window.acquire(WINDOW);
+        // The last ACKs may still be on their way.
+        for (int i = 0; i < 50 && uas.confirmed.get() < calls - uac.failed.get(); i++)
+            Thread.sleep(100);
+
+        // 64*T1: the transactions are gone and the dialogs have been compacted.
+        Thread.sleep(64 * SIPTransactionStack.BASE_TIMER_INTERVAL + 5000);
+        long after = usedHeap();
+        int dialogs = uac.sipStack.getMetrics().getDialogCount()
+                + uas.sipStack.getMetrics().getDialogCount();
+        System.out.println("COMPACT_CONFIRMED_DIALOGS=" + compact + "\tdialogs " + dialogs
+                + "\tfailed calls " + uac.failed.get() + "\tbytes per dialog "
+                + (after - before) / dialogs);
+        uac.stop();
+        uas.stop();
+        sipFactory.resetFactory();
+    }
+
+    /**
+     * A user agent that calls the other one or answers with 200.
+     */
+    static class Agent implements SipListener {
+
+        final Semaphore window = new Semaphore(WINDOW);
+
+        final AtomicInteger confirmed = new AtomicInteger();
+
+        // Calls lost to the odd dropped datagram.
+        final AtomicInteger failed = new AtomicInteger();
+
+        // Keeps the dialogs alive the way a real application would.
+        final List<Dialog> dialogs = new ArrayList<Dialog>();
+
+        private final SipStackImpl sipStack;
+
+        private final SipProvider sipProvider;
+
+        private final int port;
+
+        private final AddressFactory addressFactory;
+
+        private final HeaderFactory headerFactory;
+
+        private final MessageFactory messageFactory;
+
+        private final ContactHeader contact;
+
+        Agent(SipFactory sipFactory, String name, int port, boolean compact) throws Exception {
+            Properties properties = new Properties();
+            properties.setProperty("javax.sip.STACK_NAME", name + (compact ? "-compact" : ""));
+            properties.setProperty("gov.nist.javax.sip.COMPACT_CONFIRMED_DIALOGS", String
+                    .valueOf(compact));
+            this.sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+            this.port = port;
+            this.addressFactory = sipFactory.createAddressFactory();
+            this.headerFactory = sipFactory.createHeaderFactory();
+            this.messageFactory = sipFactory.createMessageFactory();
+            ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", port,
+                    ListeningPoint.UDP);
+            this.sipProvider = sipStack.createSipProvider(listeningPoint);
+            this.sipProvider.addSipListener(this);
+            SipURI contactUri = addressFactory.createSipURI(name, "127.0.0.1");
+            contactUri.setPort(port);
+            this.contact = headerFactory.createContactHeader(addressFactory
+                    .createAddress(contactUri));
+        }
+
+        void call(Agent callee) throws Exception {
+            window.acquire();
+            SipURI requestUri = addressFactory.createSipURI("callee", "127.0.0.1");
+            requestUri.setPort(callee.port);
+            Address from = addressFactory.createAddress("\"Caller\" <sip:caller@example.com>");
+            Address to = addressFactory.createAddress("<sip:callee@example.com>");
+            CallIdHeader callId = sipProvider.getNewCallId();
+            List<ViaHeader> vias = new ArrayList<ViaHeader>();
+            vias.add(headerFactory.createViaHeader("127.0.0.1", port, ListeningPoint.UDP, null));
+            Request invite = messageFactory.createRequest(requestUri, Request.INVITE, callId,
+                    headerFactory.createCSeqHeader(1L, Request.INVITE), headerFactory
+                            .createFromHeader(from, Long.toHexString(System.nanoTime())),
+                    headerFactory.createToHeader(to, null), vias, headerFactory
+                            .createMaxForwardsHeader(70));
+            invite.addHeader(contact);
+            ClientTransaction ct = sipProvider.getNewClientTransaction(invite);
+            ct.sendRequest();
+        }
+
+        public void processRequest(RequestEvent requestEvent) {
+            Request request = requestEvent.getRequest();
+            try {
+                if (request.getMethod().equals(Request.INVITE)) {
+                    ServerTransaction st = sipProvider.getNewServerTransaction(request);
+                    Response ok = messageFactory.createResponse(Response.OK, request);
+                    ((ToHeader) ok.getHeader(ToHeader.NAME)).setTag(Long.toHexString(System
+                            .nanoTime()));
+                    ok.addHeader(contact);
+                    synchronized (dialogs) {
+                        dialogs.add(st.getDialog());
+                    }
+                    st.sendResponse(ok);
+                } else if (request.getMethod().equals(Request.ACK)) {
+                    confirmed.incrementAndGet();
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        public void processResponse(ResponseEvent responseEvent) {
+            Response response = responseEvent.getResponse();
+            CSeqHeader cseq = (CSeqHeader) response.getHeader(CSeqHeader.NAME);
+            if (response.getStatusCode() != Response.OK
+                    || !cseq.getMethod().equals(Request.INVITE))
+                return;
+            try {
+                Dialog dialog = responseEvent.getDialog();
+                dialog.sendAck(dialog.createAck(cseq.getSeqNumber()));
+                if (responseEvent.getClientTransaction() != null) {
+                    synchronized (dialogs) {
+                        dialogs.add(dialog);
+                    }
+                    window.release();
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            if (timeoutEvent.getClientTransaction() != null) {
+                failed.incrementAndGet();
+                window.release();
+            }
+        }
+
+        public void processIOException(IOExceptionEvent exceptionEvent) {
+            System.out.println("I/O error " + exceptionEvent.getHost());
+        }
+
+        public void processTransactionTerminated(TransactionTerminatedEvent event) {
+        }
+
+        public void processDialogTerminated(DialogTerminatedEvent event) {
+        }
+
+        void stop() {
+            sipStack.stop();
+        }
+    }
+}
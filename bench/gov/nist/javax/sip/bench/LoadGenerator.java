@@ -0,0 +1,613 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.bench;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.RequestTemplate;
+import gov.nist.javax.sip.stack.LatencyHistogram;
+import gov.nist.javax.sip.stack.StackMetrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.Address;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.EventHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.SubscriptionStateHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * A load generator in the spirit of SIPp. A client stack runs scripted scenarios against a
+ * server stack at a target rate and reports, every second, the scenarios started and completed
+ * per second, the scenarios in progress, failures and retransmissions, and at the end the
+ * latency percentiles of every transaction (request sent to final response received).
+ * <p>
+ * The scenarios are
+ * <ul>
+ * <li>register: REGISTER, 200</li>
+ * <li>call: INVITE, 200, ACK, then after the hold time BYE, 200</li>
+ * <li>message: MESSAGE, 200</li>
+ * <li>subscribe: SUBSCRIBE, 200, and from the server NOTIFY (terminated), 200</li>
+ * <li>mixed: the four of them in turn</li>
+ * </ul>
+ * A scenario fails on a final response other than 2xx or on a transaction timeout. When the
+ * number of scenarios in progress reaches the limit, no new ones are started until some
+ * complete; these are reported as "limited" and mean that the target rate was not reached.
+ * <p>
+ * By default both stacks run in this VM and talk over loopback. With -role uac or -role uas
+ * the two sides can run in separate VMs (or on separate boxes, with -host and -peer).
+ * <p>
+ * The client stamps its requests out of a RequestTemplate per method; with -factory it builds
+ * every request through the message and header factories instead.
+ * <p>
+ * With -work the server listener spends that many milliseconds on every request before it
+ * answers, like an application waiting on a database, so that a high enough rate overloads
+ * it. -overload turns on the overload control of the server stack
+ * (gov.nist.javax.sip.OVERLOAD_CONTROL), which then answers part of the new calls with 503.
+ * <p>
+ * Usage: <code>java gov.nist.javax.sip.bench.LoadGenerator [-s scenario] [-r rate]
+ * [-d seconds] [-l limit] [-hold millis] [-t udp|tcp] [-role both|uac|uas] [-host address]
+ * [-peer address] [-port port] [-factory] [-work millis] [-overload]</code>
+ *
+ * @version 1.2
+ *
+ */
+public class LoadGenerator {
+
+    static final String[] SCENARIOS = { "register", "call", "message", "subscribe" };
+
+    private static final String USER = "load";
+
+    public static void main(String[] args) throws Exception {
+        String scenario = "call";
+        int rate = 100;
+        int seconds = 10;
+        int limit = 5000;
+        long hold = 0;
+        String transport = ListeningPoint.UDP;
+        String role = "both";
+        String host = "127.0.0.1";
+        String peer = null;
+        int port = 15110;
+        boolean templates = true;
+        long work = 0;
+        boolean overload = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-s"))
+                scenario = args[++i];
+            else if (args[i].equals("-r"))
+                rate = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-d"))
+                seconds = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-l"))
+                limit = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-hold"))
+                hold = Long.parseLong(args[++i]);
+            else if (args[i].equals("-t"))
+                transport = args[++i].toLowerCase();
+            else if (args[i].equals("-role"))
+                role = args[++i];
+            else if (args[i].equals("-host"))
+                host = args[++i];
+            else if (args[i].equals("-peer"))
+                peer = args[++i];
+            else if (args[i].equals("-port"))
+                port = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-factory"))
+                templates = false;
+            else if (args[i].equals("-work"))
+                work = Long.parseLong(args[++i]);
+            else if (args[i].equals("-overload"))
+                overload = true;
+            else
+                throw new IllegalArgumentException("unknown option " + args[i]);
+        }
+        if (peer == null)
+            peer = host;
+
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        Agent uas = null;
+        if (!role.equals("uac")) {
+            uas = new Agent(sipFactory, "uas", host, port + 1, transport, hold, overload);
+            uas.work = work;
+        }
+        if (role.equals("uas")) {
+            System.out.println("uas listening on " + host + ":" + (port + 1) + "/" + transport);
+            // Runs until killed.
+            Thread.sleep(Long.MAX_VALUE);
+        }
+        Agent uac = new Agent(sipFactory, "uac", host, port, transport, hold, false);
+        uac.peerHost = peer;
+        uac.peerPort = port + 1;
+        uac.templates = templates;
+
+        run(uac, uas, scenario, rate, seconds, limit);
+        System.exit(uac.failed.get() == 0 ? 0 : 1);
+    }
+
+    /**
+     * Start scenarios at the given rate for the given time, then wait for those in progress
+     * and print the report.
+     */
+    static void run(Agent uac, Agent uas, String scenario, int rate, int seconds, int limit)
+            throws Exception {
+        System.out.println("scenario " + scenario + ", " + rate + "/s for " + seconds
+                + " s, limit " + limit + ", " + uac.transport + ", requests from "
+                + (uac.templates ? "templates" : "the factories"));
+        System.out.println("time\tstarted/s\tcompleted/s\tin progress\tfailed\tlimited"
+                + "\tretransmissions");
+        uac.limit = new Semaphore(limit);
+        long interval = 1000000000L / rate;
+        long start = System.nanoTime();
+        long nextReport = start + 1000000000L;
+        long end = start + seconds * 1000000000L;
+        int lastStarted = 0, lastCompleted = 0, limited = 0, n = 0;
+        for (long next = start; next < end; next += interval) {
+            long now;
+            while ((now = System.nanoTime()) < next)
+                LockSupport.parkNanos(next - now);
+            String name = scenario.equals("mixed") ? SCENARIOS[n % SCENARIOS.length] : scenario;
+            if (uac.limit.tryAcquire()) {
+                n++;
+                uac.start(name);
+            } else {
+                limited++;
+            }
+            if (now >= nextReport) {
+                int started = uac.started.get(), completed = uac.completed.get();
+                report((now - start) / 1000000000L, started - lastStarted, completed
+                        - lastCompleted, started - completed, uac.failed.get(), limited,
+                        retransmissions(uac, uas));
+                lastStarted = started;
+                lastCompleted = completed;
+                nextReport += 1000000000L;
+            }
+        }
+
+        // Let the scenarios in progress finish: at most 64*T1 for a transaction timeout.
+        long deadline = System.nanoTime() + 40000000000L;
+        while (uac.started.get() > uac.completed.get() && System.nanoTime() < deadline)
+            Thread.sleep(100);
+        long elapsed = System.nanoTime() - start;
+        report(elapsed / 1000000000L, uac.started.get() - lastStarted, uac.completed.get()
+                - lastCompleted, uac.started.get() - uac.completed.get(), uac.failed.get(),
+                limited, retransmissions(uac, uas));
+
+        System.out.println();
+        System.out.println(uac.completed.get() + " of " + uac.started.get()
+                + " scenarios completed (" + uac.failed.get() + " failed) in "
+                + elapsed / 1000000 + " ms, " + uac.completed.get() * 1000000000L
+                / (end - start) + " per second at the target rate");
+        System.out.println("transaction\tcount\tp50 us\tp90 us\tp99 us\tp99.9 us\tmax us");
+        printLatencies(uac.latencies);
+        if (uas != null)
+            printLatencies(uas.latencies);
+        printStack("uac", uac.sipStack.getMetrics());
+        if (uas != null)
+            printStack("uas", uas.sipStack.getMetrics());
+    }
+
+    private static void printStack(String name, StackMetrics metrics) {
+        System.out.println(name + ": " + metrics.getRequestRetransmissions()
+                + " request and " + metrics.getResponseRetransmissions()
+                + " response retransmissions, timeouts B " + metrics.getTimerBTimeouts() + " F "
+                + metrics.getTimerFTimeouts() + " H " + metrics.getTimerHTimeouts()
+                + ", overload rejections " + metrics.getOverloadRejections());
+    }
+
+    private static long retransmissions(Agent uac, Agent uas) {
+        long retransmissions = retransmissions(uac.sipStack.getMetrics());
+        if (uas != null)
+            retransmissions += retransmissions(uas.sipStack.getMetrics());
+        return retransmissions;
+    }
+
+    private static long retransmissions(StackMetrics metrics) {
+        return metrics.getRequestRetransmissions() + metrics.getResponseRetransmissions();
+    }
+
+    private static void report(long second, int started, int completed, int inProgress,
+            int failed, int limited, long retransmissions) {
+        System.out.println(second + "\t" + started + "\t\t" + completed + "\t\t" + inProgress
+                + "\t\t" + failed + "\t" + limited + "\t" + retransmissions);
+    }
+
+    private static void printLatencies(Map<String, LatencyHistogram> latencies) {
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0)
+                continue;
+            System.out.println(entry.getKey() + "\t" + histogram.getCount() + "\t"
+                    + histogram.getValueAtQuantile(0.5) + "\t"
+                    + histogram.getValueAtQuantile(0.9) + "\t"
+                    + histogram.getValueAtQuantile(0.99) + "\t"
+                    + histogram.getValueAtQuantile(0.999) + "\t" + histogram.getMax());
+        }
+    }
+
+    /**
+     * One running scenario: the application data of its transactions and dialog.
+     */
+    static class Scenario {
+
+        final String name;
+
+        // Transactions of the scenario still to complete.
+        final AtomicInteger pending = new AtomicInteger();
+
+        volatile long sent;
+
+        volatile boolean failed;
+
+        Scenario(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * A user agent: the client side starts the scenarios, the server side answers them.
+     */
+    static class Agent implements SipListener {
+
+        final AtomicInteger started = new AtomicInteger();
+
+        final AtomicInteger completed = new AtomicInteger();
+
+        final AtomicInteger failed = new AtomicInteger();
+
+        // Transaction latencies by method, in microseconds.
+        final Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+
+        final SipStackImpl sipStack;
+
+        final String transport;
+
+        Semaphore limit;
+
+        String peerHost;
+
+        int peerPort;
+
+        // Stamp requests from templates rather than build them through the factories.
+        boolean templates;
+
+        // Time (ms) the listener spends on every request.
+        long work;
+
+        private final SipProvider sipProvider;
+
+        private final String host;
+
+        private final int port;
+
+        private final long hold;
+
+        private final AddressFactory addressFactory;
+
+        private final HeaderFactory headerFactory;
+
+        private final MessageFactory messageFactory;
+
+        private final ContactHeader contact;
+
+        private final AtomicLong tags = new AtomicLong();
+
+        private final Map<String, RequestTemplate> requestTemplates = new ConcurrentHashMap<String, RequestTemplate>();
+
+        // The scenario of every client transaction in progress.
+        private final Map<ClientTransaction, Scenario> scenarios = new ConcurrentHashMap<ClientTransaction, Scenario>();
+
+        private ScheduledExecutorService scheduler;
+
+        Agent(SipFactory sipFactory, String name, String host, int port, String transport,
+                long hold, boolean overload) throws Exception {
+            Properties properties = new Properties();
+            properties.setProperty("javax.sip.STACK_NAME", "load-" + name);
+            // Room for every transaction of a long run at a high rate.
+            properties.setProperty("gov.nist.javax.sip.MAX_SERVER_TRANSACTIONS", "100000");
+            properties.setProperty("gov.nist.javax.sip.MAX_CLIENT_TRANSACTIONS", "100000");
+            if (overload)
+                properties.setProperty("gov.nist.javax.sip.OVERLOAD_CONTROL", "true");
+            this.sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+            this.host = host;
+            this.port = port;
+            this.transport = transport;
+            this.hold = hold;
+            this.addressFactory = sipFactory.createAddressFactory();
+            this.headerFactory = sipFactory.createHeaderFactory();
+            this.messageFactory = sipFactory.createMessageFactory();
+            ListeningPoint listeningPoint = sipStack.createListeningPoint(host, port, transport);
+            this.sipProvider = sipStack.createSipProvider(listeningPoint);
+            this.sipProvider.addSipListener(this);
+            SipURI contactUri = addressFactory.createSipURI(name, host);
+            contactUri.setPort(port);
+            contactUri.setTransportParam(transport);
+            this.contact = headerFactory.createContactHeader(addressFactory
+                    .createAddress(contactUri));
+            for (String method : new String[] { Request.REGISTER, Request.INVITE, Request.BYE,
+                    Request.MESSAGE, Request.SUBSCRIBE, Request.NOTIFY })
+                latencies.put(method, new LatencyHistogram());
+            if (hold > 0)
+                scheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+
+        /**
+         * Start a scenario: send its first request.
+         */
+        void start(String name) {
+            Scenario scenario = new Scenario(name);
+            started.incrementAndGet();
+            try {
+                if (name.equals("register"))
+                    send(scenario, createRequest(Request.REGISTER));
+                else if (name.equals("call"))
+                    send(scenario, createRequest(Request.INVITE));
+                else if (name.equals("message"))
+                    send(scenario, createRequest(Request.MESSAGE));
+                else if (name.equals("subscribe")) {
+                    // Done once the 200 and the NOTIFY are in.
+                    scenario.pending.incrementAndGet();
+                    send(scenario, createRequest(Request.SUBSCRIBE));
+                } else
+                    throw new IllegalArgumentException("unknown scenario " + name);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                fail(scenario);
+            }
+        }
+
+        private Request createRequest(String method) throws Exception {
+            if (!templates)
+                return buildRequest(method);
+            RequestTemplate template = requestTemplates.get(method);
+            if (template == null) {
+                template = new RequestTemplate(buildRequest(method));
+                requestTemplates.put(method, template);
+            }
+            return template.createRequest(null, sipProvider.getNewCallId().getCallId(), Long
+                    .toHexString(tags.incrementAndGet()), null, null, 1L);
+        }
+
+        private Request buildRequest(String method) throws Exception {
+            SipURI requestUri = addressFactory.createSipURI(USER, peerHost);
+            requestUri.setPort(peerPort);
+            requestUri.setTransportParam(transport);
+            Address from = addressFactory.createAddress("<sip:" + USER + "@example.com>");
+            Address to = addressFactory.createAddress("<sip:" + USER + "@example.com>");
+            CallIdHeader callId = sipProvider.getNewCallId();
+            List<ViaHeader> vias = new ArrayList<ViaHeader>();
+            vias.add(headerFactory.createViaHeader(host, port, transport, null));
+            Request request = messageFactory.createRequest(requestUri, method, callId,
+                    headerFactory.createCSeqHeader(1L, method), headerFactory.createFromHeader(
+                            from, Long.toHexString(tags.incrementAndGet())), headerFactory
+                            .createToHeader(to, null), vias, headerFactory
+                            .createMaxForwardsHeader(70));
+            request.addHeader(contact);
+            if (method.equals(Request.MESSAGE)) {
+                request.setContent("load", headerFactory.createContentTypeHeader("text",
+                        "plain"));
+            } else if (method.equals(Request.SUBSCRIBE)) {
+                request.addHeader(headerFactory.createEventHeader("presence"));
+                request.addHeader(headerFactory.createExpiresHeader(60));
+            }
+            return request;
+        }
+
+        private void send(Scenario scenario, Request request) throws Exception {
+            ClientTransaction ct = sipProvider.getNewClientTransaction(request);
+            ct.setApplicationData(new long[] { System.nanoTime() });
+            if (ct.getDialog() != null)
+                ct.getDialog().setApplicationData(scenario);
+            scenario.pending.incrementAndGet();
+            scenarios.put(ct, scenario);
+            ct.sendRequest();
+        }
+
+        /**
+         * A transaction of the scenario completed: the scenario is over once all of them are.
+         */
+        private void done(Scenario scenario) {
+            if (scenario.pending.decrementAndGet() == 0) {
+                if (scenario.failed)
+                    failed.incrementAndGet();
+                completed.incrementAndGet();
+                limit.release();
+            }
+        }
+
+        private void fail(Scenario scenario) {
+            if (scenario.failed)
+                return;
+            scenario.failed = true;
+            // Do not wait for the rest of the scenario.
+            scenario.pending.set(1);
+            done(scenario);
+        }
+
+        public void processResponse(ResponseEvent responseEvent) {
+            Response response = responseEvent.getResponse();
+            ClientTransaction ct = responseEvent.getClientTransaction();
+            if (response.getStatusCode() < 200 || ct == null)
+                return;
+            CSeqHeader cseq = (CSeqHeader) response.getHeader(CSeqHeader.NAME);
+            long sent = ((long[]) ct.getApplicationData())[0];
+            latencies.get(cseq.getMethod()).record((System.nanoTime() - sent) / 1000);
+            Scenario scenario = scenarios.remove(ct);
+            if (scenario == null)
+                // A NOTIFY of the server side.
+                return;
+            if (response.getStatusCode() >= 300) {
+                fail(scenario);
+                return;
+            }
+
+            try {
+                if (cseq.getMethod().equals(Request.INVITE)) {
+                    final Dialog dialog = responseEvent.getDialog();
+                    dialog.sendAck(dialog.createAck(cseq.getSeqNumber()));
+                    final Scenario call = scenario;
+                    if (hold > 0) {
+                        scheduler.schedule(new Runnable() {
+                            public void run() {
+                                bye(call, dialog);
+                            }
+                        }, hold, TimeUnit.MILLISECONDS);
+                    } else {
+                        bye(call, dialog);
+                    }
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                fail(scenario);
+                return;
+            }
+            done(scenario);
+        }
+
+        private void bye(Scenario scenario, Dialog dialog) {
+            try {
+                Request bye = dialog.createRequest(Request.BYE);
+                ClientTransaction ct = sipProvider.getNewClientTransaction(bye);
+                ct.setApplicationData(new long[] { System.nanoTime() });
+                scenario.pending.incrementAndGet();
+                scenarios.put(ct, scenario);
+                dialog.sendRequest(ct);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                fail(scenario);
+            }
+        }
+
+        public void processRequest(RequestEvent requestEvent) {
+            Request request = requestEvent.getRequest();
+            String method = request.getMethod();
+            try {
+                if (method.equals(Request.ACK))
+                    return;
+                if (work > 0)
+                    Thread.sleep(work);
+                ServerTransaction st = requestEvent.getServerTransaction();
+                if (st == null)
+                    st = sipProvider.getNewServerTransaction(request);
+                Response ok = messageFactory.createResponse(Response.OK, request);
+                ToHeader to = (ToHeader) ok.getHeader(ToHeader.NAME);
+                if (to.getTag() == null)
+                    to.setTag(Long.toHexString(tags.incrementAndGet()));
+                if (method.equals(Request.INVITE) || method.equals(Request.SUBSCRIBE))
+                    ok.addHeader(contact);
+                if (method.equals(Request.SUBSCRIBE))
+                    ok.addHeader(headerFactory.createExpiresHeader(60));
+                st.sendResponse(ok);
+
+                if (method.equals(Request.SUBSCRIBE)) {
+                    notify(st.getDialog(), request);
+                } else if (method.equals(Request.NOTIFY)) {
+                    Scenario scenario = (Scenario) (requestEvent.getDialog() != null
+                            ? requestEvent.getDialog().getApplicationData() : null);
+                    if (scenario != null)
+                        done(scenario);
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        /**
+         * Send the NOTIFY that ends a subscription.
+         */
+        private void notify(Dialog dialog, Request subscribe) throws Exception {
+            Request notify = dialog.createRequest(Request.NOTIFY);
+            notify.addHeader((EventHeader) subscribe.getHeader(EventHeader.NAME));
+            SubscriptionStateHeader state = headerFactory
+                    .createSubscriptionStateHeader(SubscriptionStateHeader.TERMINATED);
+            state.setReasonCode(SubscriptionStateHeader.TIMEOUT);
+            notify.addHeader(state);
+            ContentTypeHeader contentType = headerFactory.createContentTypeHeader("application",
+                    "pidf+xml");
+            notify.setContent("<presence/>", contentType);
+            ClientTransaction ct = sipProvider.getNewClientTransaction(notify);
+            ct.setApplicationData(new long[] { System.nanoTime() });
+            dialog.sendRequest(ct);
+        }
+
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            ClientTransaction ct = timeoutEvent.getClientTransaction();
+            if (ct == null)
+                return;
+            Scenario scenario = scenarios.remove(ct);
+            if (scenario != null)
+                fail(scenario);
+        }
+
+        public void processIOException(IOExceptionEvent exceptionEvent) {
+            System.out.println("I/O error " + exceptionEvent.getHost());
+        }
+
+        public void processTransactionTerminated(TransactionTerminatedEvent event) {
+        }
+
+        public void processDialogTerminated(DialogTerminatedEvent event) {
+        }
+    }
+}
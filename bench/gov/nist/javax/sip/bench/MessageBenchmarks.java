@@ -0,0 +1,206 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.bench;
+
+import gov.nist.core.NameValueList;
+import gov.nist.javax.sip.address.AddressFactoryImpl;
+import gov.nist.javax.sip.header.HeaderFactoryImpl;
+import gov.nist.javax.sip.message.MessageFactoryImpl;
+import gov.nist.javax.sip.message.RequestTemplate;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sip.address.SipURI;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Request;
+
+/**
+ * Benchmarks of operations on parsed messages: encoding for the wire, cloning (which the
+ * stack does for every request it forwards or retransmits from a template), looking headers
+ * up and building a
+ * response, with and without frozen headers, of the parameter
+ * lists every header and URI carries, and of originating a request through the factories
+ * against stamping it from a RequestTemplate.
+ *
+ * @version 1.2
+ *
+ */
+public class MessageBenchmarks {
+
+    public static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (int i = 0; i < Corpus.MESSAGES.length; i++) {
+            final String text = Corpus.MESSAGES[i];
+            benchmarks.add(new Benchmark("message.encodeAsBytes." + Corpus.MESSAGE_NAMES[i]) {
+                private SIPMessage sipMessage;
+
+                protected void setUp() throws Exception {
+                    sipMessage = new StringMsgParser().parseSIPMessage(text);
+                }
+
+                protected Object operation(int n) {
+                    return sipMessage.encodeAsBytes("UDP");
+                }
+            });
+        }
+        for (int i = 0; i < Corpus.MESSAGES.length; i++) {
+            final String text = Corpus.MESSAGES[i];
+            benchmarks.add(new Benchmark("message.clone." + Corpus.MESSAGE_NAMES[i]) {
+                private SIPMessage sipMessage;
+
+                protected void setUp() throws Exception {
+                    sipMessage = new StringMsgParser().parseSIPMessage(text);
+                }
+
+                protected Object operation(int n) {
+                    return sipMessage.clone();
+                }
+            });
+        }
+
+        // The lookups the transaction layer and a UA make on a received INVITE, by accessor
+        // and by name.
+        benchmarks.add(new Benchmark("message.getHeader.INVITE") {
+            private SIPMessage sipMessage;
+
+            protected void setUp() throws Exception {
+                sipMessage = new StringMsgParser().parseSIPMessage(Corpus.MESSAGES[0]);
+            }
+
+            protected Object operation(int n) {
+                sipMessage.getTopmostVia();
+                sipMessage.getContactHeader();
+                sipMessage.getRouteHeaders();
+                sipMessage.getContentTypeHeader();
+                sipMessage.getHeader(ContactHeader.NAME);
+                sipMessage.getHeader("record-route");
+                sipMessage.getHeader("X-Unknown");
+                return sipMessage.getHeader(ViaHeader.NAME);
+            }
+        });
+
+        // The response a UAS builds for a received request, copying its headers as it did
+        // before received requests had their headers frozen, and sharing them since.
+        for (String name : new String[] { "INVITE", "REGISTER", "MESSAGE" }) {
+            final String text = Corpus.MESSAGES[Arrays.asList(Corpus.MESSAGE_NAMES).indexOf(name)];
+            for (final boolean frozen : new boolean[] { false, true }) {
+                benchmarks.add(new Benchmark("message.createResponse." + name
+                        + (frozen ? ".frozen" : "")) {
+                    private SIPRequest sipRequest;
+
+                    protected void setUp() throws Exception {
+                        sipRequest = (SIPRequest) new StringMsgParser().parseSIPMessage(text);
+                        if (frozen)
+                            sipRequest.freezeHeaders();
+                    }
+
+                    protected Object operation(int n) {
+                        return sipRequest.createResponse(200);
+                    }
+                });
+            }
+        }
+
+        // A Via's worth of parameters: build, look up, encode.
+        benchmarks.add(new Benchmark("message.parameters.via") {
+            protected Object operation(int n) {
+                NameValueList parameters = new NameValueList();
+                parameters.set("branch", "z9hG4bK776asdhds");
+                parameters.set("received", "192.0.2.1");
+                parameters.set("rport", "5060");
+                parameters.getValue("branch");
+                return parameters.encode();
+            }
+        });
+        benchmarks.add(new Benchmark("message.parameters.empty") {
+            protected Object operation(int n) {
+                NameValueList parameters = new NameValueList();
+                parameters.getValue("tag");
+                return parameters;
+            }
+        });
+
+        // An INVITE as a UAC originates it, header by header and from a template.
+        benchmarks.add(new Benchmark("message.request.factory") {
+            protected Object operation(int n) throws Exception {
+                return createInvite(n);
+            }
+        });
+        benchmarks.add(new Benchmark("message.request.template") {
+            private RequestTemplate template;
+
+            protected void setUp() throws Exception {
+                template = new RequestTemplate(createInvite(0));
+            }
+
+            protected Object operation(int n) throws Exception {
+                return template.createRequest(null, "call-" + n + "@192.0.2.1", "tag" + n, null,
+                        "z9hG4bK" + n, 1L);
+            }
+        });
+        return benchmarks;
+    }
+
+    private static final AddressFactoryImpl addressFactory = new AddressFactoryImpl();
+
+    private static final HeaderFactoryImpl headerFactory = new HeaderFactoryImpl();
+
+    private static final MessageFactoryImpl messageFactory = new MessageFactoryImpl();
+
+    private static Request createInvite(int n) throws Exception {
+        SipURI requestUri = addressFactory.createSipURI("bob", "biloxi.example.com");
+        List<ViaHeader> vias = new ArrayList<ViaHeader>();
+        ViaHeader via = headerFactory.createViaHeader("192.0.2.1", 5060, "udp", "z9hG4bK" + n);
+        via.setRPort();
+        vias.add(via);
+        Request request = messageFactory.createRequest(requestUri, Request.INVITE,
+                headerFactory.createCallIdHeader("call-" + n + "@192.0.2.1"), headerFactory
+                        .createCSeqHeader(1L, Request.INVITE), headerFactory.createFromHeader(
+                        addressFactory.createAddress("Alice <sip:alice@atlanta.example.com>"),
+                        "tag" + n), headerFactory.createToHeader(addressFactory
+                        .createAddress("Bob <sip:bob@biloxi.example.com>"), null), vias,
+                headerFactory.createMaxForwardsHeader(70));
+        request.addHeader(headerFactory.createContactHeader(addressFactory
+                .createAddress("<sip:alice@192.0.2.1:5060;transport=udp>")));
+        for (String method : new String[] { Request.INVITE, Request.ACK, Request.CANCEL,
+                Request.BYE, Request.OPTIONS })
+            request.addHeader(headerFactory.createAllowHeader(method));
+        request.addHeader(headerFactory.createExpiresHeader(120));
+        request.setContent("v=0\r\no=alice 1 1 IN IP4 192.0.2.1\r\ns=-\r\n"
+                + "c=IN IP4 192.0.2.1\r\nt=0 0\r\nm=audio 49170 RTP/AVP 0\r\n",
+                headerFactory.createContentTypeHeader("application", "sdp"));
+        return request;
+    }
+}
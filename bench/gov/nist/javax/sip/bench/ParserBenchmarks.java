@@ -0,0 +1,127 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.bench;
+
+import gov.nist.javax.sdp.parser.SDPAnnounceParser;
+import gov.nist.javax.sip.address.AddressFactoryImpl;
+import gov.nist.javax.sip.header.HeaderFactoryImpl;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.parser.Pipeline;
+import gov.nist.javax.sip.parser.PipelinedMsgParser;
+import gov.nist.javax.sip.parser.SIPMessageListener;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.io.ByteArrayInputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the message, header, URI and SDP parsers.
+ *
+ * @version 1.2
+ *
+ */
+public class ParserBenchmarks {
+
+    public static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        // One datagram worth of bytes to a message, as UDPMessageChannel does it.
+        for (int i = 0; i < Corpus.MESSAGES.length; i++) {
+            final byte[] bytes = Corpus.MESSAGES[i].getBytes();
+            benchmarks.add(new Benchmark("parser.string." + Corpus.MESSAGE_NAMES[i]) {
+                protected Object operation(int n) throws Exception {
+                    return new StringMsgParser().parseSIPMessage(bytes);
+                }
+            });
+        }
+
+        // The whole corpus through the stream parser used by TCP and TLS.
+        final StringBuffer stream = new StringBuffer();
+        for (int i = 0; i < Corpus.MESSAGES.length; i++)
+            stream.append(Corpus.MESSAGES[i]);
+        final byte[] streamBytes = stream.toString().getBytes();
+        benchmarks.add(new Benchmark("parser.pipelined.corpus") {
+            private int parsed;
+
+            private SIPMessageListener listener = new SIPMessageListener() {
+                public void processMessage(SIPMessage sipMessage) {
+                    parsed++;
+                }
+
+                public void handleException(ParseException ex, SIPMessage sipMessage,
+                        Class<?> headerClass, String headerText, String messageText)
+                        throws ParseException {
+                    throw ex;
+                }
+            };
+
+            protected Object operation(int n) throws Exception {
+                // readTimeout -1 means no starvation timer.
+                Pipeline pipeline = new Pipeline(new ByteArrayInputStream(new byte[0]), -1, null);
+                pipeline.write(streamBytes);
+                pipeline.close();
+                parsed = 0;
+                // The parser thread loop, run in this thread until the pipeline is drained.
+                new PipelinedMsgParser(listener, pipeline, 0).run();
+                if (parsed != Corpus.MESSAGES.length)
+                    throw new IllegalStateException("parsed " + parsed + " messages");
+                return pipeline;
+            }
+        });
+
+        benchmarks.add(new Benchmark("parser.header.createHeader") {
+            private HeaderFactoryImpl headerFactory = new HeaderFactoryImpl();
+
+            protected Object operation(int n) throws Exception {
+                String[] header = Corpus.HEADERS[n % Corpus.HEADERS.length];
+                return headerFactory.createHeader(header[0], header[1]);
+            }
+        });
+
+        benchmarks.add(new Benchmark("parser.uri.createURI") {
+            private AddressFactoryImpl addressFactory = new AddressFactoryImpl();
+
+            protected Object operation(int n) throws Exception {
+                return addressFactory.createURI(Corpus.URIS[n % Corpus.URIS.length]);
+            }
+        });
+
+        for (int i = 0; i < Corpus.SDPS.length; i++) {
+            final String sdp = Corpus.SDPS[i];
+            benchmarks.add(new Benchmark("parser.sdp." + Corpus.SDP_NAMES[i]) {
+                protected Object operation(int n) throws Exception {
+                    return new SDPAnnounceParser(sdp).parse();
+                }
+            });
+        }
+        return benchmarks;
+    }
+}
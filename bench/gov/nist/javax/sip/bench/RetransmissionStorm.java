@@ -0,0 +1,182 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.bench;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.MessageFactoryImpl;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Response;
+
+/**
+ * A UDP retransmission storm against a stack answering every MESSAGE with a 200, with and
+ * without the retransmission cache of the UDP listening points (see
+ * gov.nist.javax.sip.RETRANSMISSION_CACHE_SIZE). Every request is sent once and answered,
+ * then retransmitted as fast as the socket takes it; prints how many of the retransmissions
+ * were answered per second, and how many of them the cache answered.
+ * <p>
+ * Usage: <code>java gov.nist.javax.sip.bench.RetransmissionStorm [requests]
+ * [retransmissions per request]</code>
+ *
+ * @version 1.2
+ *
+ */
+public class RetransmissionStorm {
+
+    private static final int PORT = 15070;
+
+    public static void main(String[] args) {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int retransmissions = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        try {
+            storm(requests, retransmissions, 0);
+            storm(requests, retransmissions, 4096);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void storm(int requests, int retransmissions, int cacheSize)
+            throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "storm-" + cacheSize);
+        properties.setProperty("gov.nist.javax.sip.RETRANSMISSION_CACHE_SIZE", String
+                .valueOf(cacheSize));
+        SipStackImpl sipStack = new SipStackImpl(properties);
+        ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", PORT, "udp");
+        final SipProvider sipProvider = sipStack.createSipProvider(listeningPoint);
+        final MessageFactory messageFactory = new MessageFactoryImpl();
+        sipProvider.addSipListener(new SipListener() {
+            public void processRequest(RequestEvent requestEvent) {
+                try {
+                    ServerTransaction serverTransaction = requestEvent.getServerTransaction();
+                    if (serverTransaction == null)
+                        serverTransaction = sipProvider.getNewServerTransaction(requestEvent
+                                .getRequest());
+                    serverTransaction.sendResponse(messageFactory.createResponse(Response.OK,
+                            requestEvent.getRequest()));
+                } catch (Exception ex) {
+                    // A retransmission racing the new transaction.
+                }
+            }
+
+            public void processResponse(ResponseEvent responseEvent) {
+            }
+
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+            }
+
+            public void processIOException(IOExceptionEvent exceptionEvent) {
+            }
+
+            public void processTransactionTerminated(TransactionTerminatedEvent event) {
+            }
+
+            public void processDialogTerminated(DialogTerminatedEvent event) {
+            }
+        });
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        socket.setSoTimeout(2000);
+        byte[] buffer = new byte[4096];
+        DatagramPacket received = new DatagramPacket(buffer, buffer.length);
+        InetAddress uas = InetAddress.getByName("127.0.0.1");
+
+        long answered = 0;
+        long sent = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            byte[] request = request(i, socket.getLocalPort());
+            DatagramPacket packet = new DatagramPacket(request, request.length, uas, PORT);
+            socket.send(packet);
+            socket.receive(received);
+            // Retransmit in bursts, reading what came back in between.
+            socket.setSoTimeout(1);
+            for (int j = 0; j < retransmissions; j++) {
+                socket.send(packet);
+                sent++;
+                if (j % 10 == 9)
+                    answered += drain(socket, received);
+            }
+            answered += drain(socket, received);
+            socket.setSoTimeout(2000);
+        }
+        socket.setSoTimeout(200);
+        answered += drain(socket, received);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("cache size " + cacheSize + ": " + answered + " of " + sent
+                + " retransmissions answered, " + (answered * 1000000000L / elapsed)
+                + " per second, " + sipStack.getMetrics().getRetransmissionsAbsorbed()
+                + " from the cache");
+        socket.close();
+        sipStack.stop();
+        Thread.sleep(1000);
+    }
+
+    private static int drain(DatagramSocket socket, DatagramPacket received) throws Exception {
+        int count = 0;
+        try {
+            while (true) {
+                socket.receive(received);
+                count++;
+            }
+        } catch (SocketTimeoutException ex) {
+            return count;
+        }
+    }
+
+    private static byte[] request(int i, int port) {
+        String text = "MESSAGE sip:bob@127.0.0.1:" + PORT + " SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:" + port + ";branch=z9hG4bK.storm" + i
+                + ";rport\r\n" + "From: <sip:alice@127.0.0.1>;tag=" + i + "\r\n"
+                + "To: <sip:bob@127.0.0.1>\r\n" + "Call-ID: storm-" + i + "@127.0.0.1\r\n"
+                + "CSeq: 1 MESSAGE\r\n" + "Max-Forwards: 70\r\n"
+                + "Content-Type: text/plain\r\n" + "Content-Length: 5\r\n\r\n" + "hello";
+        return text.getBytes();
+    }
+}
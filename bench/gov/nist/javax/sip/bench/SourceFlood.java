@@ -0,0 +1,198 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.bench;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.MessageFactoryImpl;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Response;
+
+/**
+ * One peer floods a stack with UDP MESSAGE requests, at more than it can handle, while another
+ * sends them at a modest rate, with and without per source rate limits (see
+ * gov.nist.javax.sip.SOURCE_RATE_LIMIT_OTHER). The flood comes from 127.0.0.2 and the well
+ * behaved peer from 127.0.0.1; prints how many requests of each were answered, and how many
+ * the rate limiter dropped.
+ * <p>
+ * Usage: <code>java gov.nist.javax.sip.bench.SourceFlood [seconds] [rate] [limit]
+ * [flood rate]</code> where rate is the rate of the well behaved peer and limit the rate
+ * allowed per source.
+ *
+ * @version 1.2
+ *
+ */
+public class SourceFlood {
+
+    private static final int PORT = 15080;
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int limit = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int floodRate = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+        try {
+            flood(seconds, rate, 0, floodRate);
+            flood(seconds, rate, limit, floodRate);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void flood(int seconds, int rate, int limit, final int floodRate)
+            throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "flood-" + limit);
+        properties.setProperty("gov.nist.javax.sip.SOURCE_RATE_LIMIT_OTHER", String
+                .valueOf(limit));
+        SipStackImpl sipStack = new SipStackImpl(properties);
+        ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", PORT, "udp");
+        final SipProvider sipProvider = sipStack.createSipProvider(listeningPoint);
+        final MessageFactory messageFactory = new MessageFactoryImpl();
+        sipProvider.addSipListener(new SipListener() {
+            public void processRequest(RequestEvent requestEvent) {
+                try {
+                    ServerTransaction serverTransaction = requestEvent.getServerTransaction();
+                    if (serverTransaction == null)
+                        serverTransaction = sipProvider.getNewServerTransaction(requestEvent
+                                .getRequest());
+                    serverTransaction.sendResponse(messageFactory.createResponse(Response.OK,
+                            requestEvent.getRequest()));
+                } catch (Exception ex) {
+                    // A retransmission racing the new transaction.
+                }
+            }
+
+            public void processResponse(ResponseEvent responseEvent) {
+            }
+
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+            }
+
+            public void processIOException(IOExceptionEvent exceptionEvent) {
+            }
+
+            public void processTransactionTerminated(TransactionTerminatedEvent event) {
+            }
+
+            public void processDialogTerminated(DialogTerminatedEvent event) {
+            }
+        });
+
+        final InetAddress uas = InetAddress.getByName("127.0.0.1");
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final DatagramSocket flooder = new DatagramSocket(0, InetAddress.getByName("127.0.0.2"));
+        final long[] flooded = new long[1];
+        Thread flood = new Thread() {
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    for (int i = 0; System.nanoTime() < end; i++) {
+                        // In bursts of 10.
+                        if (i % 10 == 0) {
+                            long due = start + i * 1000000000L / floodRate;
+                            long now = System.nanoTime();
+                            if (due > now)
+                                LockSupport.parkNanos(due - now);
+                        }
+                        byte[] request = request("flood", i, "127.0.0.2", flooder
+                                .getLocalPort());
+                        flooder.send(new DatagramPacket(request, request.length, uas, PORT));
+                        flooded[0]++;
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        flood.start();
+
+        DatagramSocket socket = new DatagramSocket(0, uas);
+        byte[] buffer = new byte[4096];
+        DatagramPacket received = new DatagramPacket(buffer, buffer.length);
+        long interval = 1000000000L / rate;
+        int sent = 0;
+        int answered = 0;
+        for (long next = System.nanoTime(); next < end; next += interval) {
+            byte[] request = request("peer", sent, "127.0.0.1", socket.getLocalPort());
+            socket.send(new DatagramPacket(request, request.length, uas, PORT));
+            sent++;
+            // Wait for the answer until the next request is due.
+            long now;
+            while ((now = System.nanoTime()) < next + interval) {
+                socket.setSoTimeout((int) Math.max(1, (next + interval - now) / 1000000));
+                try {
+                    socket.receive(received);
+                    if (new String(buffer, 0, received.getLength()).startsWith("SIP/2.0 200"))
+                        answered++;
+                } catch (SocketTimeoutException ex) {
+                }
+            }
+        }
+        flood.join();
+
+        System.out.println("limit " + (limit == 0 ? "none" : limit + "/s") + ": peer " + answered
+                + " of " + sent + " answered, flood of " + flooded[0] + " requests, "
+                + sipStack.getMetrics().getRequestsReceived() + " requests parsed, "
+                + sipStack.getMetrics().getRateLimited() + " dropped by the rate limiter");
+        socket.close();
+        flooder.close();
+        sipStack.stop();
+        Thread.sleep(1000);
+    }
+
+    private static byte[] request(String name, int i, String host, int port) {
+        String text = "MESSAGE sip:bob@127.0.0.1:" + PORT + " SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP " + host + ":" + port + ";branch=z9hG4bK." + name + i
+                + ";rport\r\n" + "From: <sip:" + name + "@" + host + ">;tag=" + i + "\r\n"
+                + "To: <sip:bob@127.0.0.1>\r\n" + "Call-ID: " + name + "-" + i + "@" + host
+                + "\r\n" + "CSeq: 1 MESSAGE\r\n" + "Max-Forwards: 70\r\n"
+                + "Content-Type: text/plain\r\n" + "Content-Length: 5\r\n\r\n" + "hello";
+        return text.getBytes();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.bench;
+
+import gov.nist.javax.sip.ListeningPointImpl;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.Utils;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.StringMsgParser;
+import gov.nist.javax.sip.stack.MessageChannel;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPServerTransaction;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.sip.message.Response;
+
+/**
+ * Benchmarks of identifier generation and of the transaction table lookups done for every
+ * incoming message.
+ *
+ * @version 1.2
+ *
+ */
+public class StackBenchmarks {
+
+    /**
+     * Number of transactions in the tables during the lookups.
+     */
+    private static final int TRANSACTIONS = 10000;
+
+    /**
+     * Port of the listening point the transactions are bound to. Nothing is sent.
+     */
+    private static final int PORT = 15099;
+
+    public static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        benchmarks.add(new Benchmark("utils.generateBranchId") {
+            protected Object operation(int n) {
+                return Utils.getInstance().generateBranchId();
+            }
+        });
+        benchmarks.add(new Benchmark("utils.generateTag") {
+            protected Object operation(int n) {
+                return Utils.getInstance().generateTag();
+            }
+        });
+        benchmarks.add(new Benchmark("utils.generateCallIdentifier") {
+            protected Object operation(int n) {
+                return Utils.getInstance().generateCallIdentifier("192.168.1.34");
+            }
+        });
+
+        benchmarks.add(new TransactionLookup("transaction.server.findTransaction", true));
+        benchmarks.add(new TransactionLookup("transaction.client.findTransaction", false));
+        return benchmarks;
+    }
+
+    /**
+     * Look up transactions in a stack holding {@link #TRANSACTIONS} of them: incoming requests
+     * (retransmissions) against the server table, or incoming responses against the client
+     * table.
+     */
+    static class TransactionLookup extends Benchmark {
+
+        private final boolean isServer;
+
+        private SipStackImpl sipStack;
+
+        private SIPRequest[] requests;
+
+        private SIPResponse[] responses;
+
+        TransactionLookup(String name, boolean isServer) {
+            super(name);
+            this.isServer = isServer;
+        }
+
+        protected void setUp() throws Exception {
+            Properties properties = new Properties();
+            properties.setProperty("javax.sip.STACK_NAME", getName());
+            // Room for all the transactions, with no admission control kicking in.
+            properties.setProperty("gov.nist.javax.sip.MAX_SERVER_TRANSACTIONS", String
+                    .valueOf(TRANSACTIONS * 2));
+            properties.setProperty("gov.nist.javax.sip.MAX_CLIENT_TRANSACTIONS", String
+                    .valueOf(TRANSACTIONS * 2));
+            sipStack = new SipStackImpl(properties);
+            ListeningPointImpl listeningPoint = (ListeningPointImpl) sipStack
+                    .createListeningPoint("127.0.0.1", PORT, "udp");
+            MessageChannel channel = listeningPoint.getMessageProcessor().createMessageChannel(
+                    InetAddress.getByName("127.0.0.1"), 5060);
+
+            // Not an INVITE: a server INVITE transaction would schedule a 100 Trying.
+            SIPRequest template = (SIPRequest) new StringMsgParser()
+                    .parseSIPMessage(Corpus.MESSAGE);
+            requests = new SIPRequest[TRANSACTIONS];
+            responses = new SIPResponse[TRANSACTIONS];
+            for (int i = 0; i < TRANSACTIONS; i++) {
+                SIPRequest request = (SIPRequest) template.clone();
+                request.getTopmostVia().setBranch(Utils.getInstance().generateBranchId());
+                request.getCallId().setCallId(Utils.getInstance().generateCallIdentifier(
+                        "192.168.1.34"));
+                requests[i] = request;
+                responses[i] = request.createResponse(Response.OK);
+                if (isServer) {
+                    SIPServerTransaction st = sipStack.createServerTransaction(channel);
+                    st.setOriginalRequest(request);
+                    sipStack.addTransaction(st);
+                } else {
+                    SIPClientTransaction ct = sipStack.createClientTransaction(request, channel);
+                    sipStack.addTransaction(ct);
+                }
+            }
+        }
+
+        protected void tearDown() {
+            sipStack.stop();
+        }
+
+        protected Object operation(int n) {
+            int i = (int) (((n & 0x7fffffff) * 7919L) % TRANSACTIONS);
+            Object tx = isServer ? sipStack.findTransaction(requests[i], true) : sipStack
+                    .findTransaction(responses[i], false);
+            if (tx == null)
+                throw new IllegalStateException("transaction not found");
+            return tx;
+        }
+    }
+}
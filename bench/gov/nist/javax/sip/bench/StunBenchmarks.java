@@ -0,0 +1,153 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.bench;
+
+import de.javawi.jstun.attribute.MappedAddress;
+import de.javawi.jstun.attribute.MessageAttribute;
+import de.javawi.jstun.attribute.MessageAttributeInterface;
+import de.javawi.jstun.header.MessageBuffer;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.header.MessageHeaderInterface;
+import de.javawi.jstun.util.Address;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the STUN codecs: decoding a Binding Response and answering a Binding Request
+ * with the jstun MessageHeader classes and with the flyweight MessageBuffer.
+ *
+ * @version 1.2
+ *
+ */
+public class StunBenchmarks {
+
+    private static final byte[] ADDRESS = { (byte) 192, 0, 2, 1 };
+
+    private static final int PORT = 5060;
+
+    private static byte[] bindingResponse() throws Exception {
+        MessageHeader header = new MessageHeader(MessageHeader.MessageHeaderType.BindingResponse);
+        header.generateTransactionID();
+        MappedAddress mappedAddress = new MappedAddress();
+        mappedAddress.setAddress(new Address(ADDRESS));
+        mappedAddress.setPort(PORT);
+        header.addMessageAttribute(mappedAddress);
+        return header.getBytes();
+    }
+
+    private static byte[] bindingRequest() throws Exception {
+        MessageHeader header = new MessageHeader(MessageHeader.MessageHeaderType.BindingRequest);
+        header.generateTransactionID();
+        return header.getBytes();
+    }
+
+    public static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new Benchmark("stun.decode.messageHeader") {
+            private byte[] data;
+
+            protected void setUp() throws Exception {
+                data = bindingResponse();
+            }
+
+            protected Object operation(int n) throws Exception {
+                MessageHeader header = MessageHeader.parseHeader(data);
+                header.parseAttributes(data);
+                MappedAddress mappedAddress = (MappedAddress) header
+                        .getMessageAttribute(MessageAttribute.MessageAttributeType.MappedAddress);
+                return mappedAddress.getPort() == PORT ? header : null;
+            }
+        });
+        benchmarks.add(new Benchmark("stun.decode.messageBuffer") {
+            private final MessageBuffer message = new MessageBuffer();
+
+            private final byte[] address = new byte[16];
+
+            private ByteBuffer buffer;
+
+            protected void setUp() throws Exception {
+                buffer = ByteBuffer.wrap(bindingResponse());
+            }
+
+            protected Object operation(int n) {
+                buffer.clear();
+                message.wrap(buffer);
+                message.getAddress(MessageAttributeInterface.MAPPEDADDRESS, address);
+                return message.getPort(MessageAttributeInterface.MAPPEDADDRESS) == PORT ? message
+                        : null;
+            }
+        });
+        benchmarks.add(new Benchmark("stun.respond.messageHeader") {
+            private byte[] data;
+
+            protected void setUp() throws Exception {
+                data = bindingRequest();
+            }
+
+            protected Object operation(int n) throws Exception {
+                MessageHeader request = MessageHeader.parseHeader(data);
+                request.parseAttributes(data);
+                MessageHeader response = new MessageHeader(
+                        MessageHeader.MessageHeaderType.BindingResponse);
+                response.setTransactionID(request.getTransactionID());
+                MappedAddress mappedAddress = new MappedAddress();
+                mappedAddress.setAddress(new Address(ADDRESS));
+                mappedAddress.setPort(PORT);
+                response.addMessageAttribute(mappedAddress);
+                return response.getBytes();
+            }
+        });
+        benchmarks.add(new Benchmark("stun.respond.messageBuffer") {
+            private final MessageBuffer request = new MessageBuffer();
+
+            private final MessageBuffer response = new MessageBuffer();
+
+            private final ByteBuffer responseBuffer = ByteBuffer.allocate(256);
+
+            private ByteBuffer requestBuffer;
+
+            protected void setUp() throws Exception {
+                requestBuffer = ByteBuffer.wrap(bindingRequest());
+            }
+
+            protected Object operation(int n) {
+                requestBuffer.clear();
+                request.wrap(requestBuffer);
+                responseBuffer.clear();
+                response.start(responseBuffer, MessageHeaderInterface.BINDINGRESPONSE, request);
+                response.putAddress(MessageAttributeInterface.MAPPEDADDRESS, ADDRESS, PORT);
+                response.finish();
+                return responseBuffer;
+            }
+        });
+        return benchmarks;
+    }
+}
@@ -25,4 +25,7 @@ public interface MessageAttributeInterface {
 	final static int UNKNOWNATTRIBUTE = 0x000a;
 	final static int REFLECTEDFROM = 0x000b;
 	final static int DUMMY = 0x0000;
+	// RFC 5389
+	final static int XORMAPPEDADDRESS = 0x0020;
+	final static int FINGERPRINT = 0x8028;
 }
\ No newline at end of file
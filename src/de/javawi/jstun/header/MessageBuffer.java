@@ -0,0 +1,393 @@
+/*
+ * This file is part of JSTUN. 
+ * 
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ * 
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.header;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import de.javawi.jstun.attribute.MessageAttributeInterface;
+
+/**
+ * A flyweight STUN message: reads and writes the header and the attributes in place in a
+ * ByteBuffer, without the intermediate arrays and objects of {@link MessageHeader} and
+ * {@link de.javawi.jstun.attribute.MessageAttribute}. One instance is meant to be reused for
+ * every message a thread handles (it is not thread safe).
+ * <p>
+ * {@link #wrap(ByteBuffer)} checks the framing of a received message and records where each
+ * known attribute starts in a fixed array indexed by attribute type, so lookups do not search
+ * the message. Comprehension-required attributes that are not known are remembered so that a
+ * server can answer with a 420 error. {@link #start(ByteBuffer, int, MessageBuffer)} begins a
+ * new message (usually a response, with the transaction ID of the request) and the put methods
+ * append attributes and keep the message length of the header up to date.
+ */
+public class MessageBuffer implements MessageHeaderInterface {
+	public static final int HEADER_LENGTH = 20;
+	public static final int MAX_UNKNOWN_ATTRIBUTES = 8;
+	private static final int FINGERPRINT_XOR = 0x5354554e;
+	private static final int SLOTS = 14;
+
+	private ByteBuffer buffer;
+	// offset of the message in the buffer
+	private int start;
+	// offset following the last attribute
+	private int end;
+	// offset of the value of each known attribute, or 0 if the message does not have it
+	private final int[] slots = new int[SLOTS];
+	private final int[] unknown = new int[MAX_UNKNOWN_ATTRIBUTES];
+	private int unknownCount;
+	private final CRC32 crc = new CRC32();
+	
+	public MessageBuffer() {
+		super();
+	}
+	
+	private static int slot(int type) {
+		if ((type >= MessageAttributeInterface.MAPPEDADDRESS) && (type <= MessageAttributeInterface.REFLECTEDFROM)) return type;
+		if (type == MessageAttributeInterface.XORMAPPEDADDRESS) return 12;
+		if (type == MessageAttributeInterface.FINGERPRINT) return 13;
+		return -1;
+	}
+	
+	private int getShort(int offset) {
+		return ((buffer.get(offset) & 0xff) << 8) | (buffer.get(offset + 1) & 0xff);
+	}
+	
+	private int getInt(int offset) {
+		return (getShort(offset) << 16) | getShort(offset + 2);
+	}
+	
+	private void putShort(int value) {
+		buffer.put(end++, (byte) (value >>> 8));
+		buffer.put(end++, (byte) value);
+	}
+	
+	private void putInt(int value) {
+		putShort(value >>> 16);
+		putShort(value);
+	}
+	
+	/**
+	 * Tells if a datagram can be a STUN message from its first byte: STUN messages start with
+	 * two zero bits, which lets them share a port with protocols such as SIP (RFC 5389, section 6).
+	 */
+	public static boolean isStunMessage(byte firstByte) {
+		return (firstByte & 0xc0) == 0;
+	}
+	
+	/**
+	 * Reads the message between the position and the limit of the buffer. The buffer is not
+	 * copied, it must not be changed while the message is in use.
+	 * 
+	 * @return false if the bytes are not a well formed STUN message: the length in the header
+	 *         must match, the attributes must fit in it and FINGERPRINT, if any, must be last.
+	 */
+	public boolean wrap(ByteBuffer buffer) {
+		this.buffer = buffer;
+		start = buffer.position();
+		end = start;
+		unknownCount = 0;
+		for (int i = 0; i < SLOTS; i++) slots[i] = 0;
+		int length = buffer.remaining();
+		if ((length < HEADER_LENGTH) || ((length & 3) != 0)) return false;
+		if (!isStunMessage(buffer.get(start))) return false;
+		if (getShort(start + 2) != length - HEADER_LENGTH) return false;
+		int limit = start + length;
+		int offset = start + HEADER_LENGTH;
+		while (offset < limit) {
+			if (slots[slot(MessageAttributeInterface.FINGERPRINT)] != 0) return false;
+			if (offset + 4 > limit) return false;
+			int type = getShort(offset);
+			int next = offset + 4 + ((getShort(offset + 2) + 3) & ~3);
+			if (next > limit) return false;
+			int slot = slot(type);
+			if (slot >= 0) {
+				// only the first instance of an attribute counts
+				if (slots[slot] == 0) slots[slot] = offset + 4;
+			} else if ((type < 0x8000) && (unknownCount < MAX_UNKNOWN_ATTRIBUTES)) {
+				unknown[unknownCount++] = type;
+			}
+			offset = next;
+		}
+		end = limit;
+		return true;
+	}
+	
+	public int getType() {
+		return getShort(start);
+	}
+	
+	/**
+	 * @return the length of the message, header included.
+	 */
+	public int getLength() {
+		return end - start;
+	}
+	
+	/**
+	 * @return true if the transaction ID starts with the RFC 5389 magic cookie.
+	 */
+	public boolean hasMagicCookie() {
+		return getInt(start + 4) == MAGICCOOKIE;
+	}
+	
+	/**
+	 * Copies the 16 bytes of the transaction ID (magic cookie included) into id.
+	 */
+	public void getTransactionID(byte[] id) {
+		for (int i = 0; i < 16; i++) id[i] = buffer.get(start + 4 + i);
+	}
+	
+	public boolean equalTransactionID(byte[] id) {
+		for (int i = 0; i < 16; i++) {
+			if (buffer.get(start + 4 + i) != id[i]) return false;
+		}
+		return true;
+	}
+	
+	public boolean equalTransactionID(MessageBuffer message) {
+		for (int i = 0; i < 16; i++) {
+			if (buffer.get(start + 4 + i) != message.buffer.get(message.start + 4 + i)) return false;
+		}
+		return true;
+	}
+	
+	public boolean hasAttribute(int type) {
+		int slot = slot(type);
+		return (slot >= 0) && (slots[slot] != 0);
+	}
+	
+	/**
+	 * @return the offset in the buffer of the value of the attribute, or -1 if the message does
+	 *         not have it or it is not one of the attributes known to this class.
+	 */
+	public int getAttributeOffset(int type) {
+		int slot = slot(type);
+		return ((slot < 0) || (slots[slot] == 0)) ? -1 : slots[slot];
+	}
+	
+	/**
+	 * @return the length of the value of the attribute, or -1 if the message does not have it.
+	 */
+	public int getAttributeLength(int type) {
+		int offset = getAttributeOffset(type);
+		return offset < 0 ? -1 : getShort(offset - 2);
+	}
+	
+	/**
+	 * @return the number of comprehension-required attributes (type below 0x8000) that are not
+	 *         known to this class, up to MAX_UNKNOWN_ATTRIBUTES.
+	 */
+	public int getUnknownAttributeCount() {
+		return unknownCount;
+	}
+	
+	public int getUnknownAttribute(int index) {
+		return unknown[index];
+	}
+	
+	/**
+	 * @return the flags of the CHANGE-REQUEST attribute, 0 if there is none.
+	 */
+	public int getChangeRequest() {
+		int offset = getAttributeOffset(MessageAttributeInterface.CHANGEREQUEST);
+		if ((offset < 0) || (getShort(offset - 2) != 4)) return 0;
+		return getInt(offset);
+	}
+	
+	/**
+	 * @return the response code of the ERROR-CODE attribute, 0 if there is none.
+	 */
+	public int getErrorCode() {
+		int offset = getAttributeOffset(MessageAttributeInterface.ERRORCODE);
+		if ((offset < 0) || (getShort(offset - 2) < 4)) return 0;
+		return (buffer.get(offset + 2) & 0x07) * 100 + (buffer.get(offset + 3) & 0xff);
+	}
+	
+	/**
+	 * @return the port of an address attribute (decoded for XOR-MAPPED-ADDRESS), -1 if the
+	 *         message does not have it.
+	 */
+	public int getPort(int type) {
+		int offset = getAttributeOffset(type);
+		if ((offset < 0) || (getShort(offset - 2) < 8)) return -1;
+		int port = getShort(offset + 2);
+		if (type == MessageAttributeInterface.XORMAPPEDADDRESS) port ^= MAGICCOOKIE >>> 16;
+		return port;
+	}
+	
+	/**
+	 * Copies the address of an address attribute (decoded for XOR-MAPPED-ADDRESS) into address,
+	 * which must have room for an IPv6 address.
+	 * 
+	 * @return the length of the address (4 or 16), -1 if the message does not have the attribute.
+	 */
+	public int getAddress(int type, byte[] address) {
+		int offset = getAttributeOffset(type);
+		if (offset < 0) return -1;
+		int length = getShort(offset - 2) - 4;
+		if ((length != 4) && (length != 16)) return -1;
+		boolean xor = type == MessageAttributeInterface.XORMAPPEDADDRESS;
+		for (int i = 0; i < length; i++) {
+			byte b = buffer.get(offset + 4 + i);
+			address[i] = xor ? (byte) (b ^ buffer.get(start + 4 + i)) : b;
+		}
+		return length;
+	}
+	
+	public InetAddress getAddress(int type) throws UnknownHostException {
+		byte[] address = new byte[16];
+		int length = getAddress(type, address);
+		if (length < 0) return null;
+		if (length == 4) return InetAddress.getByAddress(new byte[] { address[0], address[1], address[2], address[3] });
+		return InetAddress.getByAddress(address);
+	}
+	
+	private int fingerprint(int length) {
+		crc.reset();
+		if (buffer.hasArray()) {
+			crc.update(buffer.array(), buffer.arrayOffset() + start, length);
+		} else {
+			for (int i = 0; i < length; i++) crc.update(buffer.get(start + i));
+		}
+		return (int) crc.getValue() ^ FINGERPRINT_XOR;
+	}
+	
+	/**
+	 * @return true if the FINGERPRINT attribute is right or the message does not have one.
+	 */
+	public boolean checkFingerprint() {
+		int offset = getAttributeOffset(MessageAttributeInterface.FINGERPRINT);
+		if (offset < 0) return true;
+		if (getShort(offset - 2) != 4) return false;
+		return getInt(offset) == fingerprint(offset - 4 - start);
+	}
+	
+	/**
+	 * Starts a new message at the position of the buffer.
+	 * 
+	 * @param transactionID the 16 bytes of the transaction ID, magic cookie included.
+	 */
+	public void start(ByteBuffer buffer, int type, byte[] transactionID) {
+		begin(buffer, type);
+		for (int i = 0; i < 16; i++) buffer.put(start + 4 + i, transactionID[i]);
+	}
+	
+	/**
+	 * Starts the response to request at the position of the buffer.
+	 */
+	public void start(ByteBuffer buffer, int type, MessageBuffer request) {
+		begin(buffer, type);
+		for (int i = 0; i < 16; i++) buffer.put(start + 4 + i, request.buffer.get(request.start + 4 + i));
+	}
+	
+	private void begin(ByteBuffer buffer, int type) {
+		this.buffer = buffer;
+		start = buffer.position();
+		end = start;
+		unknownCount = 0;
+		for (int i = 0; i < SLOTS; i++) slots[i] = 0;
+		putShort(type);
+		putShort(0);
+		end = start + HEADER_LENGTH;
+	}
+	
+	private void beginAttribute(int type, int length) {
+		int slot = slot(type);
+		if ((slot >= 0) && (slots[slot] == 0)) slots[slot] = end + 4;
+		putShort(type);
+		putShort(length);
+	}
+	
+	private void endAttribute() {
+		while ((end & 3) != (start & 3)) buffer.put(end++, (byte) 0);
+		int length = end - start - HEADER_LENGTH;
+		buffer.put(start + 2, (byte) (length >>> 8));
+		buffer.put(start + 3, (byte) length);
+	}
+	
+	/**
+	 * Appends an address attribute. The port and the address of XOR-MAPPED-ADDRESS are xor'ed
+	 * with the transaction ID.
+	 * 
+	 * @param address an IPv4 or IPv6 address, as returned by InetAddress.getAddress().
+	 */
+	public void putAddress(int type, byte[] address, int port) {
+		boolean xor = type == MessageAttributeInterface.XORMAPPEDADDRESS;
+		beginAttribute(type, 4 + address.length);
+		putShort(address.length == 4 ? 0x01 : 0x02);
+		putShort(xor ? port ^ (MAGICCOOKIE >>> 16) : port);
+		for (int i = 0; i < address.length; i++) {
+			buffer.put(end++, xor ? (byte) (address[i] ^ buffer.get(start + 4 + i)) : address[i]);
+		}
+		endAttribute();
+	}
+	
+	public void putChangeRequest(int flags) {
+		beginAttribute(MessageAttributeInterface.CHANGEREQUEST, 4);
+		putInt(flags);
+		endAttribute();
+	}
+	
+	/**
+	 * Appends an ERROR-CODE attribute. The reason is taken as ASCII and padded with spaces to a
+	 * multiple of 4 bytes, as RFC 3489 asks.
+	 */
+	public void putErrorCode(int code, String reason) {
+		int reasonLength = (reason.length() + 3) & ~3;
+		beginAttribute(MessageAttributeInterface.ERRORCODE, 4 + reasonLength);
+		putShort(0);
+		buffer.put(end++, (byte) (code / 100));
+		buffer.put(end++, (byte) (code % 100));
+		for (int i = 0; i < reasonLength; i++) {
+			buffer.put(end++, i < reason.length() ? (byte) reason.charAt(i) : (byte) ' ');
+		}
+		endAttribute();
+	}
+	
+	/**
+	 * Appends an UNKNOWN-ATTRIBUTES attribute with the first count types. An odd list gets its
+	 * first type repeated, as RFC 3489 asks.
+	 */
+	public void putUnknownAttributes(int[] types, int count) {
+		int length = (count + 1) & ~1;
+		beginAttribute(MessageAttributeInterface.UNKNOWNATTRIBUTE, 2 * length);
+		for (int i = 0; i < length; i++) putShort(types[i < count ? i : 0]);
+		endAttribute();
+	}
+	
+	/**
+	 * Appends the FINGERPRINT attribute. It must be the last one.
+	 */
+	public void putFingerprint() {
+		int offset = end;
+		beginAttribute(MessageAttributeInterface.FINGERPRINT, 4);
+		putInt(0);
+		// the length in the header covers the fingerprint, the CRC does not
+		endAttribute();
+		end = offset + 4;
+		putInt(fingerprint(offset - start));
+	}
+	
+	/**
+	 * Ends the message: the position of the buffer is set to its start and the limit to its
+	 * end, ready to be sent.
+	 * 
+	 * @return the length of the message, header included.
+	 */
+	public int finish() {
+		buffer.limit(end);
+		buffer.position(start);
+		return end - start;
+	}
+}
@@ -93,8 +93,8 @@ public class MessageHeader implements MessageHeaderInterface {
 	}
 	
 	public boolean equalTransactionID(MessageHeader header) {
-		byte[] idHeader = header.getTransactionID();
-		if (idHeader.length != 16) return false;
+		// no need for the copy getTransactionID() makes
+		byte[] idHeader = header.id;
 		if ((idHeader[0] == id[0]) && (idHeader[1] == id[1]) && (idHeader[2] == id[2]) && (idHeader[3] == id[3]) && 
 			(idHeader[4] == id[4]) && (idHeader[5] == id[5]) && (idHeader[6] == id[6]) && (idHeader[7] == id[7]) && 
 			(idHeader[8] == id[8]) && (idHeader[9] == id[9]) && (idHeader[10] == id[10]) && (idHeader[11] == id[11]) &&
@@ -154,8 +154,10 @@ public class MessageHeader implements MessageHeaderInterface {
 				System.arraycopy(data, offset, cuttedData, 0, length);
 				MessageAttribute ma = MessageAttribute.parseCommonHeader(cuttedData); 
 				addMessageAttribute(ma);
-				length -= ma.getLength();
-				offset += ma.getLength();
+				// advance by the length on the wire, the re-encoded attribute may differ
+				int attributeLength = 4 + ((Utility.twoBytesToInteger(new byte[] { cuttedData[2], cuttedData[3] }) + 3) & ~3);
+				length -= attributeLength;
+				offset += attributeLength;
 			}
 		} catch (UtilityException ue) {
 			throw new MessageAttributeParsingException("Parsing error");
@@ -19,4 +19,6 @@ public interface MessageHeaderInterface {
 	final static int SHAREDSECRETREQUEST = 0x0002;
 	final static int SHAREDSECRETRESPONSE = 0x0102;
 	final static int SHAREDSECRETERRORRESPONSE = 0x0112;
+	// RFC 5389: first word of the transaction ID of requests from RFC 5389 clients
+	final static int MAGICCOOKIE = 0x2112A442;
 }
\ No newline at end of file
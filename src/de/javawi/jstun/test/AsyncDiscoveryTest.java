@@ -0,0 +1,515 @@
+/*
+ * This file is part of JSTUN.
+ *
+ * Copyright (c) 2005 Thomas King <king@t-king.de> - All rights
+ * reserved.
+ *
+ * This software is licensed under either the GNU Public License (GPL),
+ * or the Apache 2.0 license. Copies of both license agreements are
+ * included in this distribution.
+ */
+
+package de.javawi.jstun.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.javawi.jstun.attribute.ChangeRequest;
+import de.javawi.jstun.attribute.ChangedAddress;
+import de.javawi.jstun.attribute.ErrorCode;
+import de.javawi.jstun.attribute.MappedAddress;
+import de.javawi.jstun.attribute.MessageAttribute;
+import de.javawi.jstun.header.MessageHeader;
+import de.javawi.jstun.util.UtilityException;
+
+/**
+ * The RFC 3489 discovery of {@link DiscoveryTest} on a single non-blocking channel.
+ * <p>
+ * DiscoveryTest runs Test I, II and III one after the other, each on new sockets, and waits
+ * for the full retransmission schedule of a test before it starts the next one. Here Test I,
+ * II and III are sent together from the same local port and their responses are told apart by
+ * transaction ID, so the timeouts of Test II and III run concurrently. Test I with the changed
+ * address is only sent once Test II has timed out: sending it earlier would open the NAT to
+ * the changed address and a restricted NAT would look like a full cone one. Retransmissions
+ * keep their transaction ID and follow the schedule of DiscoveryTest.
+ * <p>
+ * Several STUN servers can be given. They are all tested at the same time over the same
+ * channel and the result of the first one that completes its discovery without an error is
+ * returned. If none does, the first result is returned.
+ */
+public class AsyncDiscoveryTest
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncDiscoveryTest.class);
+
+	private static final int TEST1 = 0;
+	private static final int TEST2 = 1;
+	private static final int TEST3 = 2;
+	private static final int TEST1_REDO = 3;
+	private static final String[] TEST_NAMES = { "Test 1", "Test 2", "Test 3", "Test 1 redo with changed address" };
+
+	// Outcome of a test.
+	private static final int NOT_SENT = 0;
+	private static final int PENDING = 1;
+	private static final int ANSWERED = 2;
+	private static final int TIMED_OUT = 3;
+
+	private InetAddress localAddress;
+	private int localPort;
+	private List<InetSocketAddress> stunServers = new ArrayList<InetSocketAddress>();
+	private int timeoutInitValue = 300; // ms
+	private DatagramChannel channel;
+	private Selector selector;
+	private ByteBuffer receiveBuffer = ByteBuffer.allocate(512);
+	private HashMap<ByteBuffer, Transaction> transactions = new HashMap<ByteBuffer, Transaction>();
+	private List<Discovery> discoveries = new ArrayList<Discovery>();
+
+	public AsyncDiscoveryTest(InetAddress localAddress, int localPort, String stunServer, int stunPort)
+	{
+		this.localAddress = localAddress;
+		this.localPort = localPort;
+		addStunServer(stunServer, stunPort);
+	}
+
+	/**
+	 * @param stunServers
+	 *            the servers to test against, unresolved addresses are resolved when the test starts
+	 */
+	public AsyncDiscoveryTest(InetAddress localAddress, int localPort, List<InetSocketAddress> stunServers)
+	{
+		this.localAddress = localAddress;
+		this.localPort = localPort;
+		this.stunServers.addAll(stunServers);
+	}
+
+	public void addStunServer(String stunServer, int stunPort)
+	{
+		stunServers.add(InetSocketAddress.createUnresolved(stunServer, stunPort));
+	}
+
+	/**
+	 * Run the discovery. Blocks until a result is known.
+	 *
+	 * @return the result of the first server that answered consistently
+	 */
+	public DiscoveryInfo test() throws IOException, UtilityException
+	{
+		transactions.clear();
+		discoveries.clear();
+		for (InetSocketAddress server : stunServers)
+		{
+			try
+			{
+				InetAddress address = server.isUnresolved() ? InetAddress.getByName(server.getHostName()) : server.getAddress();
+				discoveries.add(new Discovery(server.getHostName(), new InetSocketAddress(address, server.getPort())));
+			}
+			catch (UnknownHostException uhe)
+			{
+				LOGGER.debug("Cannot resolve STUN server " + server.getHostName() + ".");
+			}
+		}
+		if (discoveries.isEmpty())
+			throw new UnknownHostException("None of the STUN servers could be resolved");
+
+		channel = DatagramChannel.open();
+		try
+		{
+			channel.socket().setReuseAddress(true);
+			channel.socket().bind(new InetSocketAddress(localAddress, localPort));
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+
+			for (Discovery discovery : discoveries)
+				discovery.start();
+			return run();
+		}
+		finally
+		{
+			if (selector != null)
+				selector.close();
+			channel.close();
+		}
+	}
+
+	private DiscoveryInfo run() throws IOException, UtilityException
+	{
+		while (true)
+		{
+			DiscoveryInfo result = null;
+			boolean finished = true;
+			for (Discovery discovery : discoveries)
+			{
+				if (!discovery.finished)
+					finished = false;
+				else if (!discovery.di.isError() && !discovery.di.isBlockedUDP())
+					return discovery.di;
+				else if (result == null)
+					result = discovery.di;
+			}
+			if (finished)
+				return result;
+
+			// Retransmissions and timeouts.
+			long now = System.currentTimeMillis();
+			long wakeUp = Long.MAX_VALUE;
+			List<Transaction> timedOut = new ArrayList<Transaction>();
+			for (Transaction transaction : transactions.values())
+			{
+				if (now >= transaction.nextSend)
+				{
+					if (transaction.timeSinceFirstTransmission < 7900)
+					{
+						LOGGER.debug(TEST_NAMES[transaction.test] + ": timeout while receiving the response.");
+						transaction.timeSinceFirstTransmission += transaction.timeout;
+						transaction.timeout = Math.min(transaction.timeSinceFirstTransmission * 2, 1600);
+						transaction.send(now);
+					}
+					else
+					{
+						LOGGER.debug(TEST_NAMES[transaction.test] + ": maximum retry limit exceeded. Give up.");
+						timedOut.add(transaction);
+						continue;
+					}
+				}
+				wakeUp = Math.min(wakeUp, transaction.nextSend);
+			}
+			if (!timedOut.isEmpty())
+			{
+				// The decisions may send or cancel requests.
+				for (Transaction transaction : timedOut)
+				{
+					transactions.remove(ByteBuffer.wrap(transaction.id));
+					transaction.discovery.timedOut(transaction.test);
+				}
+				continue;
+			}
+
+			if (wakeUp == Long.MAX_VALUE)
+				selector.select();
+			else
+				selector.select(Math.max(1, wakeUp - now));
+			selector.selectedKeys().clear();
+			receive();
+		}
+	}
+
+	private void receive() throws IOException, UtilityException
+	{
+		while (true)
+		{
+			receiveBuffer.clear();
+			SocketAddress source = channel.receive(receiveBuffer);
+			if (source == null)
+				return;
+			byte[] data = new byte[receiveBuffer.position()];
+			System.arraycopy(receiveBuffer.array(), 0, data, 0, data.length);
+			MessageHeader receiveMH;
+			try
+			{
+				receiveMH = MessageHeader.parseHeader(data);
+				receiveMH.parseAttributes(data);
+			}
+			catch (Exception e)
+			{
+				LOGGER.debug("Discarding unparseable datagram from " + source + ".");
+				continue;
+			}
+			Transaction transaction = transactions.get(ByteBuffer.wrap(receiveMH.getTransactionID()));
+			if (transaction == null)
+			{
+				LOGGER.debug("Discarding response for an unknown transaction from " + source + ".");
+				continue;
+			}
+			if (transaction.expectedSource != null && !transaction.expectedSource.equals(source))
+			{
+				LOGGER.debug(TEST_NAMES[transaction.test] + ": discarding response from unexpected address " + source + ".");
+				continue;
+			}
+			transactions.remove(ByteBuffer.wrap(transaction.id));
+			transaction.discovery.answered(transaction.test, receiveMH, (InetSocketAddress) source);
+		}
+	}
+
+	/**
+	 * A Binding Request and its retransmissions.
+	 */
+	private class Transaction
+	{
+		Discovery discovery;
+		int test;
+		byte[] id;
+		ByteBuffer data;
+		InetSocketAddress destination;
+		// Where the response has to come from, null if not known yet.
+		InetSocketAddress expectedSource;
+		int timeSinceFirstTransmission = 0;
+		int timeout = timeoutInitValue;
+		long nextSend;
+
+		void send(long now) throws IOException
+		{
+			data.rewind();
+			channel.send(data, destination);
+			nextSend = now + timeout;
+		}
+	}
+
+	/**
+	 * The RFC 3489 tests against one server.
+	 */
+	private class Discovery
+	{
+		InetSocketAddress server;
+		DiscoveryInfo di;
+		MappedAddress ma = null;
+		ChangedAddress ca = null;
+		boolean nodeNatted = true;
+		int[] state = new int[4];
+		MessageHeader[] responses = new MessageHeader[4];
+		InetSocketAddress[] sources = new InetSocketAddress[4];
+		List<Transaction> pending = new ArrayList<Transaction>();
+		boolean finished = false;
+
+		Discovery(String stunServer, InetSocketAddress server)
+		{
+			this.server = server;
+			this.di = new DiscoveryInfo(localAddress, stunServer);
+		}
+
+		void start() throws IOException, UtilityException
+		{
+			send(TEST1, false, false, server, server);
+			send(TEST2, true, true, server, null);
+			send(TEST3, false, true, server, null);
+		}
+
+		private void send(int test, boolean changeIP, boolean changePort, InetSocketAddress destination, InetSocketAddress expectedSource) throws IOException,
+				UtilityException
+		{
+			MessageHeader sendMH = new MessageHeader(MessageHeader.MessageHeaderType.BindingRequest);
+			sendMH.generateTransactionID();
+			ChangeRequest changeRequest = new ChangeRequest();
+			if (changeIP)
+				changeRequest.setChangeIP();
+			if (changePort)
+				changeRequest.setChangePort();
+			sendMH.addMessageAttribute(changeRequest);
+
+			Transaction transaction = new Transaction();
+			transaction.discovery = this;
+			transaction.test = test;
+			transaction.id = sendMH.getTransactionID();
+			transaction.data = ByteBuffer.wrap(sendMH.getBytes());
+			transaction.destination = destination;
+			transaction.expectedSource = expectedSource;
+			transactions.put(ByteBuffer.wrap(transaction.id), transaction);
+			pending.add(transaction);
+			state[test] = PENDING;
+			transaction.send(System.currentTimeMillis());
+			LOGGER.debug(TEST_NAMES[test] + ": Binding Request sent to " + server + ".");
+		}
+
+		void answered(int test, MessageHeader response, InetSocketAddress source) throws IOException, UtilityException
+		{
+			state[test] = ANSWERED;
+			responses[test] = response;
+			sources[test] = source;
+			evaluate();
+		}
+
+		void timedOut(int test) throws IOException, UtilityException
+		{
+			state[test] = TIMED_OUT;
+			evaluate();
+		}
+
+		private void finish()
+		{
+			finished = true;
+			for (Transaction transaction : pending)
+				transactions.remove(ByteBuffer.wrap(transaction.id));
+			pending.clear();
+		}
+
+		private boolean error(MessageHeader response)
+		{
+			ErrorCode ec = (ErrorCode) response.getMessageAttribute(MessageAttribute.MessageAttributeType.ErrorCode);
+			if (ec == null)
+				return false;
+			di.setError(ec.getResponseCode(), ec.getReason());
+			LOGGER.debug("Message header contains an Errorcode message attribute.");
+			finish();
+			return true;
+		}
+
+		/**
+		 * Take the decisions of DiscoveryTest as far as the answers received so far allow.
+		 */
+		private void evaluate() throws IOException, UtilityException
+		{
+			if (finished)
+				return;
+
+			// Test 1
+			if (state[TEST1] == PENDING)
+				return;
+			if (state[TEST1] == TIMED_OUT)
+			{
+				di.setBlockedUDP();
+				LOGGER.debug("Node is not capable of UDP communication.");
+				finish();
+				return;
+			}
+			if (ma == null)
+			{
+				if (error(responses[TEST1]))
+					return;
+				ma = (MappedAddress) responses[TEST1].getMessageAttribute(MessageAttribute.MessageAttributeType.MappedAddress);
+				ca = (ChangedAddress) responses[TEST1].getMessageAttribute(MessageAttribute.MessageAttributeType.ChangedAddress);
+				if ((ma == null) || (ca == null))
+				{
+					di.setError(700,
+							"The server is sending an incomplete response (Mapped Address and Changed Address message attributes are missing). The client should not retry.");
+					LOGGER.debug("Response does not contain a Mapped Address or Changed Address message attribute.");
+					finish();
+					return;
+				}
+				di.setPublicIP(ma.getAddress().getInetAddress());
+				di.setLocalPort(channel.socket().getLocalPort());
+				if ((ma.getPort() == channel.socket().getLocalPort()) && (ma.getAddress().getInetAddress().equals(channel.socket().getLocalAddress())))
+				{
+					LOGGER.debug("Node is not natted.");
+					di.setPublicPort(channel.socket().getLocalPort());
+					nodeNatted = false;
+				}
+				else
+				{
+					di.setPublicPort(ma.getPort());
+					LOGGER.debug("Node is natted.");
+				}
+			}
+			InetSocketAddress changedAddress = new InetSocketAddress(ca.getAddress().getInetAddress(), ca.getPort());
+
+			// Test 2, sent before the changed address was known.
+			if (state[TEST2] == ANSWERED && !changedAddress.equals(sources[TEST2]))
+			{
+				LOGGER.debug("Test 2: discarding response from unexpected address " + sources[TEST2] + ".");
+				resend(TEST2, changedAddress);
+			}
+			if (state[TEST2] == PENDING)
+				return;
+			if (state[TEST2] == ANSWERED)
+			{
+				if (error(responses[TEST2]))
+					return;
+				if (!nodeNatted)
+				{
+					di.setOpenAccess();
+					LOGGER.debug("Node has open access to the Internet (or, at least the node is behind a full-cone NAT without translation).");
+				}
+				else
+				{
+					di.setFullCone();
+					LOGGER.debug("Node is behind a full-cone NAT.");
+				}
+				finish();
+				return;
+			}
+			if (!nodeNatted)
+			{
+				di.setSymmetricUDPFirewall();
+				LOGGER.debug("Node is behind a symmetric UDP firewall.");
+				finish();
+				return;
+			}
+
+			// Test 1 redo with address and port as offered in the changed-address message attribute.
+			if (state[TEST1_REDO] == NOT_SENT)
+				send(TEST1_REDO, false, false, changedAddress, changedAddress);
+			if (state[TEST1_REDO] == PENDING)
+				return;
+			if (state[TEST1_REDO] == TIMED_OUT)
+			{
+				finish();
+				return;
+			}
+			if (responses[TEST1_REDO] != null)
+			{
+				if (error(responses[TEST1_REDO]))
+					return;
+				MappedAddress ma2 = (MappedAddress) responses[TEST1_REDO].getMessageAttribute(MessageAttribute.MessageAttributeType.MappedAddress);
+				if (ma2 == null)
+				{
+					di.setError(700, "The server is sending an incomplete response (Mapped Address message attribute is missing). The client should not retry.");
+					LOGGER.debug("Response does not contain a Mapped Address message attribute.");
+					finish();
+					return;
+				}
+				if ((ma.getPort() != ma2.getPort()) || (!(ma.getAddress().getInetAddress().equals(ma2.getAddress().getInetAddress()))))
+				{
+					di.setSymmetric();
+					LOGGER.debug("Node is behind a symmetric NAT.");
+					finish();
+					return;
+				}
+				responses[TEST1_REDO] = null;
+			}
+
+			// Test 3, sent before the changed port was known.
+			InetSocketAddress changedPort = new InetSocketAddress(server.getAddress(), ca.getPort());
+			if (state[TEST3] == ANSWERED && !changedPort.equals(sources[TEST3]))
+			{
+				LOGGER.debug("Test 3: discarding response from unexpected address " + sources[TEST3] + ".");
+				resend(TEST3, changedPort);
+			}
+			if (state[TEST3] == PENDING)
+				return;
+			if (state[TEST3] == ANSWERED)
+			{
+				if (error(responses[TEST3]))
+					return;
+				if (nodeNatted)
+				{
+					di.setRestrictedCone();
+					LOGGER.debug("Node is behind a restricted NAT.");
+				}
+			}
+			else
+			{
+				di.setPortRestrictedCone();
+				LOGGER.debug("Node is behind a port restricted NAT.");
+			}
+			finish();
+		}
+
+		/**
+		 * The response came from the wrong address: keep waiting for the right one on the same transaction.
+		 */
+		private void resend(int test, InetSocketAddress expectedSource) throws IOException
+		{
+			for (Transaction transaction : pending)
+			{
+				if (transaction.test == test)
+				{
+					transaction.expectedSource = expectedSource;
+					transactions.put(ByteBuffer.wrap(transaction.id), transaction);
+					transaction.send(System.currentTimeMillis());
+				}
+			}
+			state[test] = PENDING;
+		}
+	}
+}
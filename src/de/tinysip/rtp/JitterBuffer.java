@@ -0,0 +1,369 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An adaptive jitter buffer for the received packets of a RtpStream. The packets are kept in a ring of preallocated slots indexed by their sequence number, so
+ * neither put() nor get() allocates. The playout thread calls get() once per frame.
+ * <p>
+ * The target delay follows the interarrival jitter (four times its mean deviation plus one frame), within the configured minimum and maximum. The buffer
+ * shrinks by dropping a frame when it holds more than two frames above the target, and grows by starting over to buffer up to the target after an underrun.
+ * Frames that are missing at their turn are counted as lost and replaced by the PacketLossConcealment, if one is set.
+ * The buffer starts over from the received packet when its SSRC changes or its sequence number jumps further than the ring, ahead or back.
+ *
+ */
+public class JitterBuffer implements RtpListener {
+	// Until the packet size is known from the timestamps.
+	private static final int DEFAULT_FRAME_DURATION = 20;
+
+	// Frames above the target before one is dropped.
+	private static final int SHRINK_THRESHOLD = 2;
+
+	private final int clockRate;
+	private final int minDelay;
+	private final int maxDelay;
+
+	private final int mask;
+	private final byte[][] payloads;
+	private final int[] lengths;
+	private final long[] sequences;
+
+	private final byte[] lastFrame = new byte[RtpBufferPool.BUFFER_SIZE];
+	private int lastFrameLength;
+	private int concealedInRow;
+	private PacketLossConcealment concealment;
+
+	private boolean started;
+	private boolean playing;
+	// The source the buffered packets came from.
+	private int ssrc;
+	// Extended sequence numbers: the highest received and the next to play.
+	private long highest;
+	private long next;
+
+	// State of the jitter estimate, from the last packet received in order.
+	private long lastSequence;
+	private int lastTimestamp;
+	private long lastArrival;
+	private int frameSamples;
+	private double jitter;
+
+	private long received;
+	private long played;
+	private long late;
+	private long lost;
+	private long reordered;
+	private long duplicates;
+	private long discarded;
+	private long concealed;
+	private long underruns;
+
+	/**
+	 * Create a JitterBuffer for a stream with the given clock rate.
+	 *
+	 * @param clockRate the RTP clock rate of the stream, in Hz
+	 * @param minDelay the minimum playout delay, in ms
+	 * @param maxDelay the maximum playout delay, in ms. Packets arriving further ahead push the oldest ones out
+	 */
+	public JitterBuffer(int clockRate, int minDelay, int maxDelay) {
+		if (minDelay < 0 || maxDelay < minDelay)
+			throw new IllegalArgumentException("bad delays " + minDelay + " " + maxDelay);
+		this.clockRate = clockRate;
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+		// Room for the maximum delay with 10 ms frames, the shortest in common use.
+		int capacity = 16;
+		while (capacity < maxDelay / 10 + SHRINK_THRESHOLD + 2)
+			capacity <<= 1;
+		this.mask = capacity - 1;
+		this.payloads = new byte[capacity][RtpBufferPool.BUFFER_SIZE];
+		this.lengths = new int[capacity];
+		this.sequences = new long[capacity];
+		reset();
+	}
+
+	/**
+	 * Set the concealment of lost frames. Without one, get() returns 0 for them and the caller plays silence.
+	 *
+	 * @param concealment the PacketLossConcealment for the codec of the stream
+	 */
+	public synchronized void setPacketLossConcealment(PacketLossConcealment concealment) {
+		this.concealment = concealment;
+	}
+
+	public void rtpReceived(RtpStream stream, ByteBuffer packet) {
+		put(packet, System.nanoTime());
+	}
+
+	public void byeReceived(RtpStream stream) {
+		// What is buffered is still played out.
+	}
+
+	/**
+	 * Add a received RTP packet. Its payload is copied.
+	 *
+	 * @param packet the packet, from position 0 to its limit
+	 * @param arrival the arrival time, in ns as given by System.nanoTime()
+	 */
+	public synchronized void put(ByteBuffer packet, long arrival) {
+		if (!RtpPacket.isRtp(packet))
+			return;
+		int timestamp = RtpPacket.getTimestamp(packet);
+		int source = RtpPacket.getSsrc(packet);
+		long sequence = 0;
+		if (started) {
+			// The extended sequence number closest to the highest one.
+			sequence = highest + (short) (RtpPacket.getSequenceNumber(packet) - (int) highest);
+			if (source != ssrc || Math.abs(sequence - highest) > mask) {
+				// A new source, or one that jumped ahead of or back behind anything buffered: start over from this packet.
+				clear();
+				started = false;
+				playing = false;
+			}
+		}
+
+		if (!started) {
+			started = true;
+			ssrc = source;
+			sequence = RtpPacket.getSequenceNumber(packet);
+			highest = sequence;
+			next = sequence;
+			lastSequence = sequence;
+			lastTimestamp = timestamp;
+			lastArrival = arrival;
+		} else if (sequence > lastSequence) {
+			int samples = (timestamp - lastTimestamp) / (int) (sequence - lastSequence);
+			if (samples > 0 && samples < clockRate)
+				frameSamples = samples;
+			// Interarrival jitter in ms (RFC 3550, appendix A.8).
+			double d = (arrival - lastArrival) / 1000000.0 - (timestamp - lastTimestamp) * 1000.0 / clockRate;
+			jitter += (Math.abs(d) - jitter) / 16;
+			lastSequence = sequence;
+			lastTimestamp = timestamp;
+			lastArrival = arrival;
+		}
+
+		if (sequence < next) {
+			late++;
+			return;
+		}
+		// No room: drop the oldest frames.
+		while (sequence - next > mask || (sequence - next + 1) * getFrameDuration() > maxDelay && next < sequence)
+			drop();
+
+		int slot = (int) (sequence & mask);
+		if (sequences[slot] == sequence) {
+			duplicates++;
+			return;
+		}
+		if (sequence < highest)
+			reordered++;
+		else
+			highest = sequence;
+		int offset = RtpPacket.getPayloadOffset(packet);
+		int length = RtpPacket.getPayloadLength(packet);
+		for (int i = 0; i < length; i++)
+			payloads[slot][i] = packet.get(offset + i);
+		lengths[slot] = length;
+		sequences[slot] = sequence;
+		received++;
+	}
+
+	/**
+	 * Get the next frame to play.
+	 *
+	 * @param frame the array to copy the payload to, at least RtpBufferPool.BUFFER_SIZE long from offset
+	 * @param offset the offset in the array
+	 * @return the length of the payload, 0 to play silence
+	 */
+	public synchronized int get(byte[] frame, int offset) {
+		if (!started)
+			return 0;
+		int frameDuration = getFrameDuration();
+		int target = getTargetDelay();
+		if (!playing) {
+			// Buffering up to the target delay.
+			if ((highest - next + 1) * frameDuration < target)
+				return played == 0 ? 0 : conceal(frame, offset);
+			playing = true;
+		}
+		if (highest - next + 1 > (target + frameDuration - 1) / frameDuration + SHRINK_THRESHOLD)
+			drop();
+
+		if (next > highest) {
+			// Nothing left: buffer again, the delay grows by what it takes.
+			underruns++;
+			playing = false;
+			return conceal(frame, offset);
+		}
+		int slot = (int) (next & mask);
+		next++;
+		if (sequences[slot] != next - 1) {
+			lost++;
+			return conceal(frame, offset);
+		}
+		int length = lengths[slot];
+		System.arraycopy(payloads[slot], 0, frame, offset, length);
+		System.arraycopy(payloads[slot], 0, lastFrame, 0, length);
+		lastFrameLength = length;
+		sequences[slot] = -1;
+		concealedInRow = 0;
+		played++;
+		return length;
+	}
+
+	private int conceal(byte[] frame, int offset) {
+		concealed++;
+		concealedInRow++;
+		if (concealment == null)
+			return 0;
+		int length = concealment.conceal(lastFrame, lastFrameLength, frame, offset, concealedInRow);
+		System.arraycopy(frame, offset, lastFrame, 0, length);
+		lastFrameLength = length;
+		return length;
+	}
+
+	/**
+	 * Drop the next frame to play.
+	 */
+	private void drop() {
+		int slot = (int) (next & mask);
+		if (sequences[slot] == next) {
+			sequences[slot] = -1;
+			discarded++;
+		} else {
+			lost++;
+		}
+		next++;
+	}
+
+	private void clear() {
+		for (int i = 0; i < sequences.length; i++)
+			sequences[i] = -1;
+	}
+
+	/**
+	 * Forget the buffered packets and the state of the stream, for example when the remote source changes.
+	 */
+	public synchronized void reset() {
+		clear();
+		started = false;
+		playing = false;
+		frameSamples = 0;
+		jitter = 0;
+		lastFrameLength = 0;
+		concealedInRow = 0;
+	}
+
+	/**
+	 * @return the duration of a frame, in ms, as given by the timestamps of the received packets
+	 */
+	public synchronized int getFrameDuration() {
+		if (frameSamples == 0)
+			return DEFAULT_FRAME_DURATION;
+		return Math.max(1, frameSamples * 1000 / clockRate);
+	}
+
+	/**
+	 * @return the playout delay the buffer adapts to, in ms
+	 */
+	public synchronized int getTargetDelay() {
+		int target = getFrameDuration() + (int) (4 * jitter);
+		return Math.max(minDelay, Math.min(maxDelay, target));
+	}
+
+	/**
+	 * @return the buffered playout delay, in ms
+	 */
+	public synchronized int getDelay() {
+		if (!started)
+			return 0;
+		return (int) Math.max(0, (highest - next + 1) * getFrameDuration());
+	}
+
+	/**
+	 * @return the interarrival jitter, in ms
+	 */
+	public synchronized double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @return the number of packets buffered
+	 */
+	public synchronized long getReceived() {
+		return received;
+	}
+
+	/**
+	 * @return the number of frames played from received packets
+	 */
+	public synchronized long getPlayed() {
+		return played;
+	}
+
+	/**
+	 * @return the number of packets that arrived after their turn to be played
+	 */
+	public synchronized long getLate() {
+		return late;
+	}
+
+	/**
+	 * @return the number of frames missing at their turn to be played. A late packet is counted both as lost and late
+	 */
+	public synchronized long getLost() {
+		return lost;
+	}
+
+	/**
+	 * @return the number of packets that arrived after a packet with a higher sequence number, in time to be played
+	 */
+	public synchronized long getReordered() {
+		return reordered;
+	}
+
+	/**
+	 * @return the number of packets received twice
+	 */
+	public synchronized long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * @return the number of buffered packets dropped to shrink the delay
+	 */
+	public synchronized long getDiscarded() {
+		return discarded;
+	}
+
+	/**
+	 * @return the number of frames concealed, lost ones and those played while the buffer was empty
+	 */
+	public synchronized long getConcealed() {
+		return concealed;
+	}
+
+	/**
+	 * @return the number of times the buffer ran empty
+	 */
+	public synchronized long getUnderruns() {
+		return underruns;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "JitterBuffer delay " + getDelay() + "/" + getTargetDelay() + " ms jitter " + (int) jitter + " ms received " + received + " played " + played
+				+ " late " + late + " lost " + lost + " reordered " + reordered + " duplicates " + duplicates + " discarded " + discarded + " concealed "
+				+ concealed + " underruns " + underruns;
+	}
+}
@@ -0,0 +1,29 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.rtp;
+
+/**
+ * Fills in for a frame that did not arrive in time to be played. Implementations depend on the codec, for example repeating the previous frame with a
+ * decreasing volume for G.711.
+ *
+ */
+public interface PacketLossConcealment {
+	/**
+	 * Produce the frame played in place of a missing one.
+	 *
+	 * @param previous the payload of the last frame played, or concealed
+	 * @param previousLength the length of that payload, 0 if nothing was played yet
+	 * @param frame the array to write the frame to
+	 * @param offset the offset in the array
+	 * @param count the number of frames concealed in a row, including this one
+	 * @return the length of the frame written, 0 to play silence
+	 */
+	public int conceal(byte[] previous, int previousLength, byte[] frame, int offset, int count);
+}
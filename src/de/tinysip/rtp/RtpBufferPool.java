@@ -0,0 +1,70 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct ByteBuffers large enough for one RTP packet. Buffers go back to the pool once they are sent, so a running call does not allocate any.
+ *
+ */
+public class RtpBufferPool {
+	/**
+	 * The capacity of every buffer: an Ethernet MTU.
+	 */
+	public static final int BUFFER_SIZE = 1500;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final int maxSize;
+
+	/**
+	 * Create a RtpBufferPool which keeps at most maxSize free buffers. More buffers than that can be in use, they are just not kept once released.
+	 *
+	 * @param maxSize the maximum number of free buffers kept
+	 */
+	public RtpBufferPool(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return a cleared buffer, from the pool if there is one
+	 */
+	public ByteBuffer get() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		size.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool. It must not be used afterwards.
+	 *
+	 * @param buffer a buffer obtained from get()
+	 */
+	public void release(ByteBuffer buffer) {
+		if (size.incrementAndGet() > maxSize) {
+			size.decrementAndGet();
+			return;
+		}
+		buffers.offer(buffer);
+	}
+
+	/**
+	 * @return the number of free buffers in the pool
+	 */
+	public int getSize() {
+		return size.get();
+	}
+}
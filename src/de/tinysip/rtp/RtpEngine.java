@@ -0,0 +1,267 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.rtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.tinysip.sip.LocalSipProfile;
+import de.tinysip.sip.SipAudioFormat;
+import de.tinysip.sip.SipSession;
+
+/**
+ * Runs the RTP streams of many calls on a small, fixed number of threads. Every thread owns a Selector and serves the streams assigned to it: it receives their
+ * RTP and RTCP packets, sends the packets queued by RtpStream.send() and sends the RTCP reports. A stream is served by the same thread for its whole life, so
+ * its state needs no locking.
+ *
+ */
+public class RtpEngine {
+	private final Worker[] workers;
+	private final RtpBufferPool pool;
+	private final AtomicInteger nextWorker = new AtomicInteger();
+
+	/**
+	 * Create a RtpEngine with one thread per available processor.
+	 *
+	 * @throws IOException if a Selector cannot be opened
+	 */
+	public RtpEngine() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a RtpEngine with the given number of threads.
+	 *
+	 * @param threads the number of threads serving the streams
+	 * @throws IOException if a Selector cannot be opened
+	 */
+	public RtpEngine(int threads) throws IOException {
+		this.pool = new RtpBufferPool(1024 * threads);
+		this.workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(Selector.open());
+			Thread thread = new Thread(workers[i], "RtpEngine-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Open a RTP stream: bind the local RTP and RTCP ports and start receiving.
+	 *
+	 * @param localAddress the local address to bind to, or null for all local addresses
+	 * @param localRtpPort the local RTP port, or 0 for any port
+	 * @param localRtcpPort the local RTCP port, or 0 for any port
+	 * @param remoteAddress the address of the remote participant
+	 * @param remoteRtpPort the RTP port of the remote participant
+	 * @param remoteRtcpPort the RTCP port of the remote participant
+	 * @param payloadType the payload type of the sent packets
+	 * @param clockRate the RTP clock rate, in Hz
+	 * @param cname the RTCP canonical name of the local participant, for example user@host
+	 * @param listener the RtpListener receiving the media
+	 * @return the new RtpStream
+	 * @throws IOException if a port cannot be bound
+	 */
+	public RtpStream openStream(InetAddress localAddress, int localRtpPort, int localRtcpPort, InetAddress remoteAddress, int remoteRtpPort,
+			int remoteRtcpPort, int payloadType, int clockRate, String cname, RtpListener listener) throws IOException {
+		DatagramChannel rtpChannel = DatagramChannel.open();
+		DatagramChannel rtcpChannel = null;
+		try {
+			rtpChannel.socket().bind(new InetSocketAddress(localAddress, localRtpPort));
+			rtcpChannel = DatagramChannel.open();
+			rtcpChannel.socket().bind(new InetSocketAddress(localAddress, localRtcpPort));
+			rtpChannel.configureBlocking(false);
+			rtcpChannel.configureBlocking(false);
+		} catch (IOException e) {
+			rtpChannel.close();
+			if (rtcpChannel != null)
+				rtcpChannel.close();
+			throw e;
+		}
+		Worker worker = workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+		RtpStream stream = new RtpStream(worker, pool, rtpChannel, rtcpChannel, new InetSocketAddress(remoteAddress, remoteRtpPort), new InetSocketAddress(
+				remoteAddress, remoteRtcpPort), payloadType, clockRate, cname, listener);
+		worker.register(stream);
+		return stream;
+	}
+
+	/**
+	 * Open the audio stream of a SipSession on the local ports of the LocalSipProfile, sending the given format. An RTCP port that is not set is the RTP port
+	 * plus one.
+	 *
+	 * @param localSipProfile the local user's profile holding the local audio ports
+	 * @param sipSession the call holding the remote address and audio ports
+	 * @param audioFormat the negotiated audio format
+	 * @param listener the RtpListener receiving the audio
+	 * @return the new RtpStream, which is also set as the audio stream of the SipSession
+	 * @throws IOException if a port cannot be bound
+	 */
+	public RtpStream openAudioStream(LocalSipProfile localSipProfile, SipSession sipSession, SipAudioFormat audioFormat, RtpListener listener)
+			throws IOException {
+		int localRtpPort = localSipProfile.getLocalAudioRtpPort();
+		int localRtcpPort = localSipProfile.getLocalAudioRtcpPort();
+		if (localRtcpPort == 0 && localRtpPort != 0)
+			localRtcpPort = localRtpPort + 1;
+		int remoteRtcpPort = sipSession.getRemoteAudioRtcpPort();
+		if (remoteRtcpPort == 0)
+			remoteRtcpPort = sipSession.getRemoteAudioRtpPort() + 1;
+		RtpStream stream = openStream(null, localRtpPort, localRtcpPort, sipSession.getRemoteAddress(), sipSession.getRemoteAudioRtpPort(), remoteRtcpPort,
+				audioFormat.getFormat(), audioFormat.getSampleRate(), localSipProfile.getUserName() + "@" + localSipProfile.getSipDomain(), listener);
+		sipSession.setAudioStream(stream);
+		return stream;
+	}
+
+	/**
+	 * @return the pool of the packet buffers
+	 */
+	public RtpBufferPool getBufferPool() {
+		return pool;
+	}
+
+	/**
+	 * Close all streams and stop the threads.
+	 */
+	public void shutdown() {
+		for (Worker worker : workers)
+			worker.shutdown();
+	}
+
+	/**
+	 * An engine thread and the streams it serves.
+	 */
+	static class Worker implements Runnable {
+		// The streams due for a RTCP report are looked for at this interval rather than on every wake up.
+		private static final long REPORT_CHECK_INTERVAL = 100000000L;
+
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<RtpStream> registrations = new ConcurrentLinkedQueue<RtpStream>();
+		private final ConcurrentLinkedQueue<RtpStream> ready = new ConcurrentLinkedQueue<RtpStream>();
+		private final List<RtpStream> streams = new ArrayList<RtpStream>();
+		// Received packets are handed to the listeners in this buffer, and RTCP reports are written to it.
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(RtpBufferPool.BUFFER_SIZE);
+		private volatile boolean running = true;
+		private long nextReportCheck = System.nanoTime();
+
+		Worker(Selector selector) {
+			this.selector = selector;
+		}
+
+		void register(RtpStream stream) {
+			registrations.offer(stream);
+			selector.wakeup();
+		}
+
+		/**
+		 * The stream has packets to send or was closed.
+		 */
+		void ready(RtpStream stream) {
+			ready.offer(stream);
+			selector.wakeup();
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (running) {
+				try {
+					long timeout = (nextReportCheck - System.nanoTime()) / 1000000;
+					if (timeout > 0 && ready.isEmpty())
+						selector.select(timeout);
+					else
+						selector.selectNow();
+
+					RtpStream stream;
+					while ((stream = registrations.poll()) != null) {
+						stream.rtpChannel.register(selector, SelectionKey.OP_READ, stream);
+						stream.rtcpChannel.register(selector, SelectionKey.OP_READ, stream);
+						streams.add(stream);
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.isValid())
+							receive(key);
+					}
+
+					// At most one flush per stream before the next select: under load the senders refill the queue as fast as it is
+					// drained, and the received packets must not wait for it to be empty.
+					for (int n = streams.size() + 1; n > 0 && (stream = ready.poll()) != null; n--) {
+						stream.flush();
+						if (stream.isClosed() && streams.remove(stream))
+							close(stream);
+					}
+
+					long now = System.nanoTime();
+					if (now - nextReportCheck >= 0) {
+						for (int i = 0; i < streams.size(); i++) {
+							stream = streams.get(i);
+							if (now - stream.nextReportNanos >= 0)
+								stream.sendReport(buffer, false);
+						}
+						nextReportCheck = now + REPORT_CHECK_INTERVAL;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			for (RtpStream stream : streams)
+				close(stream);
+			streams.clear();
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		/**
+		 * Read all packets waiting on a channel.
+		 */
+		private void receive(SelectionKey key) throws IOException {
+			RtpStream stream = (RtpStream) key.attachment();
+			DatagramChannel channel = (DatagramChannel) key.channel();
+			boolean rtp = channel == stream.rtpChannel;
+			while (true) {
+				buffer.clear();
+				if (channel.receive(buffer) == null)
+					return;
+				buffer.flip();
+				if (rtp)
+					stream.rtpReceived(buffer);
+				else
+					stream.rtcpReceived(buffer);
+			}
+		}
+
+		private void close(RtpStream stream) {
+			stream.sendReport(buffer, true);
+			stream.release();
+			try {
+				stream.rtpChannel.close();
+				stream.rtcpChannel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
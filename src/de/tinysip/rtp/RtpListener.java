@@ -0,0 +1,34 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the media of a RtpStream. The methods are called on the engine thread serving the stream and must return quickly, since that thread also serves other streams.
+ *
+ */
+public interface RtpListener {
+	/**
+	 * An RTP packet was received. The buffer holds the whole packet from position 0 to its limit, use RtpPacket to read it. It is reused for the next packet, so
+	 * copy what must be kept.
+	 *
+	 * @param stream the stream the packet was received on
+	 * @param packet the received RTP packet
+	 */
+	public void rtpReceived(RtpStream stream, ByteBuffer packet);
+
+	/**
+	 * The remote participant sent an RTCP BYE: it left the session.
+	 *
+	 * @param stream the stream the BYE was received on
+	 */
+	public void byeReceived(RtpStream stream);
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes the fixed RTP header (RFC 3550, section 5.1) in place. The packet is the
+ * ByteBuffer from position 0 to its limit; nothing is copied or allocated.
+ *
+ */
+public final class RtpPacket {
+	/**
+	 * The length of the fixed RTP header, without CSRC list.
+	 */
+	public static final int HEADER_LENGTH = 12;
+
+	/**
+	 * The RTP version.
+	 */
+	public static final int VERSION = 2;
+
+	private RtpPacket() {
+	}
+
+	/**
+	 * Check whether a datagram can be an RTP packet: version 2, long enough for its header and not an RTCP packet type (RFC 5761, section 4).
+	 *
+	 * @param packet the received datagram, from position 0 to its limit
+	 * @return true if the datagram looks like an RTP packet
+	 */
+	public static boolean isRtp(ByteBuffer packet) {
+		if (packet.limit() < HEADER_LENGTH || (packet.get(0) & 0xc0) != VERSION << 6)
+			return false;
+		int payloadType = packet.get(1) & 0x7f;
+		return (payloadType < 72 || payloadType > 76) && getPayloadOffset(packet) <= packet.limit() - getPaddingLength(packet);
+	}
+
+	/**
+	 * Write the fixed header of an RTP packet without CSRCs or extension and leave the buffer positioned at the payload.
+	 *
+	 * @param packet the buffer to write to
+	 * @param payloadType the RTP payload type
+	 * @param marker the marker bit
+	 * @param sequenceNumber the sequence number, only the low 16 bits are used
+	 * @param timestamp the RTP timestamp
+	 * @param ssrc the synchronization source
+	 */
+	public static void putHeader(ByteBuffer packet, int payloadType, boolean marker, int sequenceNumber, int timestamp, int ssrc) {
+		packet.clear();
+		packet.put((byte) (VERSION << 6));
+		packet.put((byte) ((marker ? 0x80 : 0) | (payloadType & 0x7f)));
+		packet.putShort((short) sequenceNumber);
+		packet.putInt(timestamp);
+		packet.putInt(ssrc);
+	}
+
+	/**
+	 * @return the payload type
+	 */
+	public static int getPayloadType(ByteBuffer packet) {
+		return packet.get(1) & 0x7f;
+	}
+
+	/**
+	 * @return the marker bit
+	 */
+	public static boolean isMarker(ByteBuffer packet) {
+		return (packet.get(1) & 0x80) != 0;
+	}
+
+	/**
+	 * @return the sequence number, from 0 to 65535
+	 */
+	public static int getSequenceNumber(ByteBuffer packet) {
+		return packet.getShort(2) & 0xffff;
+	}
+
+	/**
+	 * @return the RTP timestamp
+	 */
+	public static int getTimestamp(ByteBuffer packet) {
+		return packet.getInt(4);
+	}
+
+	/**
+	 * @return the synchronization source
+	 */
+	public static int getSsrc(ByteBuffer packet) {
+		return packet.getInt(8);
+	}
+
+	/**
+	 * @return the offset of the payload, after the CSRC list and the header extension
+	 */
+	public static int getPayloadOffset(ByteBuffer packet) {
+		int offset = HEADER_LENGTH + 4 * (packet.get(0) & 0x0f);
+		if ((packet.get(0) & 0x10) != 0 && offset + 4 <= packet.limit())
+			offset += 4 + 4 * (packet.getShort(offset + 2) & 0xffff);
+		return offset;
+	}
+
+	/**
+	 * @return the length of the payload, without padding
+	 */
+	public static int getPayloadLength(ByteBuffer packet) {
+		return packet.limit() - getPayloadOffset(packet) - getPaddingLength(packet);
+	}
+
+	private static int getPaddingLength(ByteBuffer packet) {
+		if ((packet.get(0) & 0x20) == 0)
+			return 0;
+		return packet.get(packet.limit() - 1) & 0xff;
+	}
+}
@@ -0,0 +1,529 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.rtp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One RTP stream of a call and its RTCP: the local RTP and RTCP channels, the remote addresses, the sender state (SSRC, sequence number, timestamp) and the
+ * reception statistics of RFC 3550, appendix A. Packets are sent with send(), from any thread, and go out on the engine thread the stream belongs to, which
+ * also receives and sends the RTCP reports. Received packets are handed to the RtpListener.
+ *
+ */
+public class RtpStream {
+	// RTCP packet types (RFC 3550, section 12.1).
+	private static final int RTCP_SR = 200;
+	private static final int RTCP_RR = 201;
+	private static final int RTCP_SDES = 202;
+	private static final int RTCP_BYE = 203;
+
+	// The nominal interval between RTCP reports, in ms (RFC 3550, section 6.2).
+	private static final int RTCP_INTERVAL = 5000;
+
+	// Seconds between 1900 (NTP) and 1970 (Java).
+	private static final long NTP_OFFSET = 2208988800L;
+
+	// The sequence number gap that is taken for a restarted source rather than loss (RFC 3550, appendix A.1).
+	private static final int MAX_DROPOUT = 3000;
+	private static final int MAX_MISORDER = 100;
+
+	private static final Random random = new SecureRandom();
+
+	private final RtpEngine.Worker worker;
+	private final RtpBufferPool pool;
+	final DatagramChannel rtpChannel;
+	final DatagramChannel rtcpChannel;
+	private final InetSocketAddress remoteRtpAddress;
+	private final InetSocketAddress remoteRtcpAddress;
+	private final int payloadType;
+	private final int clockRate;
+	private final byte[] cname;
+	private final RtpListener listener;
+	private final long startNanos = System.nanoTime();
+
+	private final ConcurrentLinkedQueue<ByteBuffer> sendQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicBoolean pending = new AtomicBoolean();
+	private volatile boolean closed;
+
+	// Sender state.
+	private final int ssrc;
+	private final AtomicInteger sequenceNumber;
+	private final AtomicInteger timestamp;
+	private volatile long packetsSent;
+	private volatile long octetsSent;
+	private volatile long packetsDropped;
+	private int lastTimestamp;
+	private long lastSendNanos;
+
+	// Receiver state, only touched by the engine thread.
+	private boolean receiving;
+	private volatile int remoteSsrc;
+	private int baseSequence;
+	private int maxSequence;
+	private int badSequence = -1;
+	private int cycles;
+	private volatile long packetsReceived;
+	private long expectedPrior;
+	private long receivedPrior;
+	private int lastTransit;
+	private volatile double jitter;
+	private int lastSenderReport;
+	private long lastSenderReportNanos;
+	private volatile int roundTripTime = -1;
+
+	long nextReportNanos;
+
+	RtpStream(RtpEngine.Worker worker, RtpBufferPool pool, DatagramChannel rtpChannel, DatagramChannel rtcpChannel, InetSocketAddress remoteRtpAddress,
+			InetSocketAddress remoteRtcpAddress, int payloadType, int clockRate, String cname, RtpListener listener) {
+		this.worker = worker;
+		this.pool = pool;
+		this.rtpChannel = rtpChannel;
+		this.rtcpChannel = rtcpChannel;
+		this.remoteRtpAddress = remoteRtpAddress;
+		this.remoteRtcpAddress = remoteRtcpAddress;
+		this.payloadType = payloadType;
+		this.clockRate = clockRate;
+		byte[] bytes = cname.getBytes();
+		// An SDES item holds at most 255 octets.
+		if (bytes.length > 255) {
+			byte[] truncated = new byte[255];
+			System.arraycopy(bytes, 0, truncated, 0, 255);
+			bytes = truncated;
+		}
+		this.cname = bytes;
+		this.listener = listener;
+		this.ssrc = random.nextInt();
+		this.sequenceNumber = new AtomicInteger(random.nextInt(0x10000));
+		this.timestamp = new AtomicInteger(random.nextInt());
+		this.lastTimestamp = timestamp.get();
+		this.lastSendNanos = startNanos;
+		this.nextReportNanos = startNanos + reportInterval();
+	}
+
+	/**
+	 * Send an RTP packet. The payload is copied into a pooled buffer and queued, the call does not block.
+	 *
+	 * @param payload the payload, from its position to its limit
+	 * @param samples the duration of the payload, in clock rate units. The timestamp of the next packet is advanced by it
+	 * @param marker the marker bit, for example set on the first packet after silence
+	 * @return false if the stream is closed or the payload does not fit into a packet
+	 */
+	public boolean send(ByteBuffer payload, int samples, boolean marker) {
+		if (closed || payload.remaining() > RtpBufferPool.BUFFER_SIZE - RtpPacket.HEADER_LENGTH)
+			return false;
+		ByteBuffer packet = pool.get();
+		RtpPacket.putHeader(packet, payloadType, marker, sequenceNumber.getAndIncrement(), timestamp.getAndAdd(samples), ssrc);
+		packet.put(payload);
+		packet.flip();
+		queue(packet);
+		return true;
+	}
+
+	/**
+	 * Send an RTP packet. The payload is copied into a pooled buffer and queued, the call does not block.
+	 *
+	 * @param payload the array holding the payload
+	 * @param offset the offset of the payload in the array
+	 * @param length the length of the payload
+	 * @param samples the duration of the payload, in clock rate units. The timestamp of the next packet is advanced by it
+	 * @param marker the marker bit, for example set on the first packet after silence
+	 * @return false if the stream is closed or the payload does not fit into a packet
+	 */
+	public boolean send(byte[] payload, int offset, int length, int samples, boolean marker) {
+		if (closed || length > RtpBufferPool.BUFFER_SIZE - RtpPacket.HEADER_LENGTH)
+			return false;
+		ByteBuffer packet = pool.get();
+		RtpPacket.putHeader(packet, payloadType, marker, sequenceNumber.getAndIncrement(), timestamp.getAndAdd(samples), ssrc);
+		packet.put(payload, offset, length);
+		packet.flip();
+		queue(packet);
+		return true;
+	}
+
+	private void queue(ByteBuffer packet) {
+		sendQueue.offer(packet);
+		// Only the first packet queued since the last flush wakes up the engine thread.
+		if (pending.compareAndSet(false, true))
+			worker.ready(this);
+	}
+
+	/**
+	 * Close the stream: a BYE is sent and the channels are closed on the engine thread.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		worker.ready(this);
+	}
+
+	/**
+	 * Send the queued packets. Called on the engine thread.
+	 */
+	void flush() {
+		pending.set(false);
+		ByteBuffer packet;
+		while ((packet = sendQueue.poll()) != null) {
+			try {
+				int length = packet.remaining();
+				// A full socket buffer drops the packet: sending it late is of no use.
+				if (rtpChannel.send(packet, remoteRtpAddress) == 0) {
+					packetsDropped++;
+				} else {
+					packetsSent++;
+					octetsSent += length - RtpPacket.HEADER_LENGTH;
+					lastTimestamp = RtpPacket.getTimestamp(packet);
+					lastSendNanos = System.nanoTime();
+				}
+			} catch (IOException e) {
+				packetsDropped++;
+			}
+			pool.release(packet);
+		}
+	}
+
+	/**
+	 * Process a received RTP packet. Called on the engine thread.
+	 */
+	void rtpReceived(ByteBuffer packet) {
+		if (!RtpPacket.isRtp(packet))
+			return;
+		int sequence = RtpPacket.getSequenceNumber(packet);
+		int source = RtpPacket.getSsrc(packet);
+		if (!receiving || source != remoteSsrc) {
+			receiving = true;
+			remoteSsrc = source;
+			initSequence(sequence);
+			lastTransit = arrivalTime() - RtpPacket.getTimestamp(packet);
+		} else if (!updateSequence(sequence)) {
+			return;
+		}
+		packetsReceived++;
+
+		// Interarrival jitter (RFC 3550, appendix A.8).
+		int transit = arrivalTime() - RtpPacket.getTimestamp(packet);
+		int d = Math.abs(transit - lastTransit);
+		lastTransit = transit;
+		jitter += (d - jitter) / 16;
+
+		listener.rtpReceived(this, packet);
+	}
+
+	private void initSequence(int sequence) {
+		baseSequence = sequence;
+		maxSequence = sequence;
+		badSequence = -1;
+		cycles = 0;
+		packetsReceived = 0;
+		expectedPrior = 0;
+		receivedPrior = 0;
+	}
+
+	/**
+	 * Track the highest sequence number and the wrap arounds (RFC 3550, appendix A.1, without the probation).
+	 *
+	 * @return false if the packet must be dropped
+	 */
+	private boolean updateSequence(int sequence) {
+		int delta = (sequence - maxSequence) & 0xffff;
+		if (delta < MAX_DROPOUT) {
+			if (sequence < maxSequence)
+				cycles += 0x10000;
+			maxSequence = sequence;
+		} else if (delta <= 0x10000 - MAX_MISORDER) {
+			if (sequence == badSequence) {
+				// Two packets in a row: the source restarted.
+				initSequence(sequence);
+			} else {
+				badSequence = (sequence + 1) & 0xffff;
+				return false;
+			}
+		}
+		// Otherwise a duplicate or reordered packet.
+		return true;
+	}
+
+	private int arrivalTime() {
+		return (int) ((System.nanoTime() - startNanos) * clockRate / 1000000000L);
+	}
+
+	/**
+	 * Process a received compound RTCP packet. Called on the engine thread.
+	 */
+	void rtcpReceived(ByteBuffer packet) {
+		int offset = 0;
+		int limit = packet.limit();
+		while (offset + 8 <= limit) {
+			if ((packet.get(offset) & 0xc0) != RtpPacket.VERSION << 6)
+				return;
+			int count = packet.get(offset) & 0x1f;
+			int type = packet.get(offset + 1) & 0xff;
+			int length = 4 * ((packet.getShort(offset + 2) & 0xffff) + 1);
+			if (offset + length > limit)
+				return;
+			if (type == RTCP_SR && length >= 28) {
+				// The middle 32 bits of the NTP timestamp, echoed as LSR.
+				lastSenderReport = packet.getInt(offset + 10);
+				lastSenderReportNanos = System.nanoTime();
+				reportBlocksReceived(packet, offset + 28, count, offset + length);
+			} else if (type == RTCP_RR) {
+				reportBlocksReceived(packet, offset + 8, count, offset + length);
+			} else if (type == RTCP_BYE) {
+				for (int i = 0; i < count && offset + 8 + 4 * i <= offset + length; i++) {
+					if (packet.getInt(offset + 4 + 4 * i) == remoteSsrc && receiving) {
+						listener.byeReceived(this);
+						break;
+					}
+				}
+			}
+			offset += length;
+		}
+	}
+
+	private void reportBlocksReceived(ByteBuffer packet, int offset, int count, int end) {
+		for (int i = 0; i < count && offset + 24 <= end; i++, offset += 24) {
+			if (packet.getInt(offset) != ssrc)
+				continue;
+			int lsr = packet.getInt(offset + 16);
+			int dlsr = packet.getInt(offset + 20);
+			if (lsr != 0) {
+				// RFC 3550, section 6.4.1: in 1/65536 s. The clock resolution can make it slightly negative on a LAN.
+				int rtt = ntpMiddle(System.currentTimeMillis()) - lsr - dlsr;
+				roundTripTime = rtt < 0 ? 0 : (int) ((rtt * 1000L) >> 16);
+			}
+		}
+	}
+
+	/**
+	 * Send a compound RTCP packet: a SR if packets were sent since the last report, a RR otherwise, and the CNAME. Called on the engine thread.
+	 */
+	void sendReport(ByteBuffer buffer, boolean bye) {
+		buffer.clear();
+		long now = System.nanoTime();
+		boolean sender = packetsSent > 0;
+		int reportCount = receiving ? 1 : 0;
+		buffer.put((byte) (RtpPacket.VERSION << 6 | reportCount));
+		if (sender) {
+			buffer.put((byte) RTCP_SR);
+			buffer.putShort((short) (6 + 6 * reportCount));
+			buffer.putInt(ssrc);
+			long millis = System.currentTimeMillis();
+			buffer.putInt((int) (millis / 1000 + NTP_OFFSET));
+			buffer.putInt((int) ((millis % 1000 << 32) / 1000));
+			// The RTP timestamp matching the NTP timestamp.
+			buffer.putInt(lastTimestamp + (int) ((now - lastSendNanos) * clockRate / 1000000000L));
+			buffer.putInt((int) packetsSent);
+			buffer.putInt((int) octetsSent);
+		} else {
+			buffer.put((byte) RTCP_RR);
+			buffer.putShort((short) (1 + 6 * reportCount));
+			buffer.putInt(ssrc);
+		}
+		if (receiving)
+			putReportBlock(buffer, now);
+
+		// SDES with a single CNAME item, padded to 32 bits with at least one null octet.
+		int itemWords = (2 + cname.length + 4) / 4;
+		buffer.put((byte) (RtpPacket.VERSION << 6 | 1));
+		buffer.put((byte) RTCP_SDES);
+		buffer.putShort((short) (1 + itemWords));
+		buffer.putInt(ssrc);
+		buffer.put((byte) 1);
+		buffer.put((byte) cname.length);
+		buffer.put(cname);
+		for (int i = 2 + cname.length; i < 4 * itemWords; i++)
+			buffer.put((byte) 0);
+
+		if (bye) {
+			buffer.put((byte) (RtpPacket.VERSION << 6 | 1));
+			buffer.put((byte) RTCP_BYE);
+			buffer.putShort((short) 1);
+			buffer.putInt(ssrc);
+		}
+		buffer.flip();
+		try {
+			rtcpChannel.send(buffer, remoteRtcpAddress);
+		} catch (IOException e) {
+			// The next report may get through.
+		}
+		nextReportNanos = now + reportInterval();
+	}
+
+	/**
+	 * Write the report block about the remote source (RFC 3550, section 6.4.1 and appendix A.3).
+	 */
+	private void putReportBlock(ByteBuffer buffer, long now) {
+		long extendedMax = cycles + maxSequence;
+		long expected = extendedMax - baseSequence + 1;
+		long lost = expected - packetsReceived;
+		long expectedInterval = expected - expectedPrior;
+		long receivedInterval = packetsReceived - receivedPrior;
+		expectedPrior = expected;
+		receivedPrior = packetsReceived;
+		long lostInterval = expectedInterval - receivedInterval;
+		int fraction = expectedInterval == 0 || lostInterval <= 0 ? 0 : (int) ((lostInterval << 8) / expectedInterval);
+		// The cumulative number lost is a signed 24 bit value.
+		lost = Math.max(-0x800000, Math.min(0x7fffff, lost));
+
+		buffer.putInt(remoteSsrc);
+		buffer.putInt(fraction << 24 | (int) (lost & 0xffffff));
+		buffer.putInt((int) extendedMax);
+		buffer.putInt((int) jitter);
+		if (lastSenderReportNanos == 0) {
+			buffer.putInt(0);
+			buffer.putInt(0);
+		} else {
+			buffer.putInt(lastSenderReport);
+			buffer.putInt((int) (((now - lastSenderReportNanos) << 16) / 1000000000L));
+		}
+	}
+
+	/**
+	 * @return the middle 32 bits of the NTP timestamp of a time in ms since 1970
+	 */
+	private static int ntpMiddle(long millis) {
+		long seconds = millis / 1000 + NTP_OFFSET;
+		long fraction = (millis % 1000 << 16) / 1000;
+		return (int) (seconds << 16 | fraction);
+	}
+
+	/**
+	 * @return the time to the next report, randomized between 0.5 and 1.5 times the interval (RFC 3550, section 6.3.1)
+	 */
+	private static long reportInterval() {
+		return (RTCP_INTERVAL / 2 + random.nextInt(RTCP_INTERVAL)) * 1000000L;
+	}
+
+	/**
+	 * Drop the queued packets. Called on the engine thread once the stream is closed.
+	 */
+	void release() {
+		ByteBuffer packet;
+		while ((packet = sendQueue.poll()) != null)
+			pool.release(packet);
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return the local RTP port
+	 */
+	public int getLocalRtpPort() {
+		return rtpChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return the local RTCP port
+	 */
+	public int getLocalRtcpPort() {
+		return rtcpChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return the remote RTP address
+	 */
+	public InetSocketAddress getRemoteRtpAddress() {
+		return remoteRtpAddress;
+	}
+
+	/**
+	 * @return the payload type of the sent packets
+	 */
+	public int getPayloadType() {
+		return payloadType;
+	}
+
+	/**
+	 * @return the RTP clock rate, in Hz
+	 */
+	public int getClockRate() {
+		return clockRate;
+	}
+
+	/**
+	 * @return the synchronization source of the sent packets
+	 */
+	public int getSsrc() {
+		return ssrc;
+	}
+
+	/**
+	 * @return the synchronization source of the received packets
+	 */
+	public int getRemoteSsrc() {
+		return remoteSsrc;
+	}
+
+	/**
+	 * @return the number of RTP packets sent
+	 */
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	/**
+	 * @return the number of payload octets sent
+	 */
+	public long getOctetsSent() {
+		return octetsSent;
+	}
+
+	/**
+	 * @return the number of RTP packets dropped because the socket buffer was full
+	 */
+	public long getPacketsDropped() {
+		return packetsDropped;
+	}
+
+	/**
+	 * @return the number of RTP packets received
+	 */
+	public long getPacketsReceived() {
+		return packetsReceived;
+	}
+
+	/**
+	 * @return the number of RTP packets lost since the first one received
+	 */
+	public long getPacketsLost() {
+		if (!receiving)
+			return 0;
+		return cycles + maxSequence - baseSequence + 1 - packetsReceived;
+	}
+
+	/**
+	 * @return the interarrival jitter, in clock rate units
+	 */
+	public int getJitter() {
+		return (int) jitter;
+	}
+
+	/**
+	 * @return the round trip time from the last report of the remote participant, in ms, or -1 if not known yet
+	 */
+	public int getRoundTripTime() {
+		return roundTripTime;
+	}
+
+	@Override
+	public String toString() {
+		return "RtpStream " + getLocalRtpPort() + " -> " + remoteRtpAddress + " pt " + payloadType;
+	}
+}
@@ -49,6 +49,7 @@ public class LocalSipProfile {
 
 	private String nonce;
 	private String realm;
+	private int registerExpires = 3600;
 
 	private String tag;
 
@@ -282,6 +283,13 @@ public class LocalSipProfile {
 		this.nonce = nonce;
 	}
 
+	/**
+	 * @return the nonce of the last authorization challenge, or null if there was none
+	 */
+	public String getNonce() {
+		return nonce;
+	}
+
 	/**
 	 * Set the realm to use for the authentication
 	 * 
@@ -292,6 +300,30 @@ public class LocalSipProfile {
 		this.realm = realm;
 	}
 
+	/**
+	 * @return the realm of the last authorization challenge, or null if there was none
+	 */
+	public String getRealm() {
+		return realm;
+	}
+
+	/**
+	 * Set the expiry in seconds asked for when registering. The registrar may grant a shorter one.
+	 * 
+	 * @param registerExpires
+	 *            the registration expiry in seconds
+	 */
+	public void setRegisterExpires(int registerExpires) {
+		this.registerExpires = registerExpires;
+	}
+
+	/**
+	 * @return the expiry in seconds asked for when registering
+	 */
+	public int getRegisterExpires() {
+		return registerExpires;
+	}
+
 	/**
 	 * @return the profile's display name
 	 */
@@ -0,0 +1,332 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.sip;
+
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RegistrationManager keeps the registrations of many SipAccounts of a SipEngine alive.
+ * <p>
+ * Every registration is refreshed after a fraction of the expiry the registrar granted, shortened by a random jitter, so that accounts registered together
+ * spread their refreshes instead of refreshing all at once. A failed registration is tried again after a delay that doubles up to a maximum. Only so many
+ * REGISTER transactions are outstanding at a time, the others wait in a queue. The challenge (realm and nonce) a registrar sent for one account is kept per
+ * domain and used to authorize the first REGISTER of the other accounts of that domain, and every account authorizes its refreshes with its last challenge, so
+ * that most REGISTERs get through without a 401.
+ *
+ */
+public class RegistrationManager implements SipEngineListener {
+	private static String TAG = "tSIP";
+
+	private static final long MIN_RETRY_DELAY = 30000L;
+	private static final long MAX_RETRY_DELAY = 900000L;
+
+	private final SipEngine sipEngine;
+	private final ConcurrentHashMap<SipAccount, Registration> registrations = new ConcurrentHashMap<SipAccount, Registration>();
+	// The last challenge by SIP domain: { realm, nonce }.
+	private final ConcurrentHashMap<String, String[]> challenges = new ConcurrentHashMap<String, String[]>();
+	private final Queue<Registration> pending = new ConcurrentLinkedQueue<Registration>();
+	private final Semaphore outstanding;
+	// Drain requests not yet handled, so that only one thread drains the queue at a time and a REGISTER finishing within send() does not recurse.
+	private final AtomicInteger drainRequests = new AtomicInteger();
+	private final int maxOutstanding;
+	private final ScheduledExecutorService scheduler;
+	private final Random random = new Random();
+
+	private volatile double refreshFraction = 0.8;
+	private volatile double jitter = 0.15;
+	private final AtomicInteger registeredCount = new AtomicInteger();
+	private final AtomicInteger requestCount = new AtomicInteger();
+
+	/**
+	 * The state the RegistrationManager keeps for an account.
+	 */
+	private static class Registration {
+		final SipAccount account;
+		final AtomicBoolean sent = new AtomicBoolean();
+		volatile boolean removing;
+		volatile boolean registered;
+		volatile int failures;
+		volatile ScheduledFuture<?> refresh;
+
+		Registration(SipAccount account) {
+			this.account = account;
+		}
+	}
+
+	/**
+	 * Create a RegistrationManager.
+	 *
+	 * @param sipEngine the SipEngine to register the accounts through
+	 * @param maxOutstanding the maximum number of REGISTER transactions in progress at a time
+	 */
+	public RegistrationManager(SipEngine sipEngine, int maxOutstanding) {
+		this.sipEngine = sipEngine;
+		this.maxOutstanding = maxOutstanding;
+		this.outstanding = new Semaphore(maxOutstanding);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "RegistrationManager");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		sipEngine.addListener(this);
+	}
+
+	/**
+	 * Add an account to the SipEngine and register it, and keep it registered from then on.
+	 *
+	 * @param localSipProfile the local user's SIP profile
+	 * @return the SipAccount of the profile
+	 */
+	public SipAccount add(LocalSipProfile localSipProfile) {
+		SipAccount account = sipEngine.addAccount(localSipProfile);
+		Registration registration = new Registration(account);
+		if (registrations.putIfAbsent(account, registration) == null)
+			submit(registration);
+		return account;
+	}
+
+	/**
+	 * Stop refreshing the registration of an account, unregister it and remove it from the SipEngine.
+	 *
+	 * @param account the SipAccount to remove
+	 */
+	public void remove(SipAccount account) {
+		Registration registration = registrations.get(account);
+		if (registration == null || registration.removing)
+			return;
+		registration.removing = true;
+		cancelRefresh(registration);
+		submit(registration);
+	}
+
+	/**
+	 * Queue the REGISTER of an account and send as many queued ones as may be outstanding.
+	 */
+	private void submit(Registration registration) {
+		pending.add(registration);
+		drain();
+	}
+
+	private void drain() {
+		if (drainRequests.getAndIncrement() != 0)
+			return;
+		int requests = 1;
+		do {
+			while (!pending.isEmpty() && outstanding.tryAcquire()) {
+				Registration registration = pending.poll();
+				if (registration == null) {
+					outstanding.release();
+					break;
+				}
+				send(registration);
+			}
+			requests = drainRequests.addAndGet(-requests);
+		} while (requests != 0);
+	}
+
+	private void send(Registration registration) {
+		SipAccount account = registration.account;
+		registration.sent.set(true);
+		requestCount.incrementAndGet();
+		try {
+			if (registration.removing) {
+				account.unregister();
+			} else {
+				LocalSipProfile localSipProfile = account.getLocalSipProfile();
+				String[] challenge = challenges.get(localSipProfile.getSipDomain());
+				if (localSipProfile.getNonce() == null && challenge != null) {
+					localSipProfile.setRealm(challenge[0]);
+					localSipProfile.setNonce(challenge[1]);
+				}
+				account.register();
+			}
+		} catch (Exception e) {
+			System.out.println(TAG + ": " + account + ": could not send the REGISTER: " + e.getMessage());
+			sipEngine.setAccountState(account, SipManagerState.ERROR);
+			// A state that did not change is not raised.
+			if (registration.sent.get())
+				failed(registration);
+		}
+	}
+
+	/**
+	 * The REGISTER of an account is done: let the next queued one go.
+	 */
+	private void done(Registration registration) {
+		if (registration.sent.compareAndSet(true, false)) {
+			outstanding.release();
+			drain();
+		}
+	}
+
+	@Override
+	public void accountStateChanged(SipAccount account, SipManagerState state) {
+		Registration registration = registrations.get(account);
+		if (registration == null)
+			return;
+
+		switch (state) {
+		case READY:
+			done(registration);
+			registration.failures = 0;
+			if (!registration.registered) {
+				registration.registered = true;
+				registeredCount.incrementAndGet();
+			}
+			LocalSipProfile localSipProfile = account.getLocalSipProfile();
+			if (localSipProfile.getRealm() != null && localSipProfile.getNonce() != null)
+				challenges.put(localSipProfile.getSipDomain(), new String[] { localSipProfile.getRealm(), localSipProfile.getNonce() });
+			if (!registration.removing && !localSipProfile.isLocalProfile())
+				scheduleRefresh(registration, getRefreshDelay(account.getGrantedExpires()));
+			break;
+
+		case IDLE:
+			done(registration);
+			unregistered(registration);
+			if (registration.removing)
+				removed(registration);
+			break;
+
+		case ERROR:
+		case INVALID:
+		case TIMEOUT:
+			failed(registration);
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	private void failed(Registration registration) {
+		done(registration);
+		unregistered(registration);
+		if (registration.removing) {
+			removed(registration);
+			return;
+		}
+		int failures = ++registration.failures;
+		long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(failures - 1, 10));
+		scheduleRefresh(registration, delay - (long) (delay * jitter * random.nextDouble()));
+	}
+
+	private void unregistered(Registration registration) {
+		if (registration.registered) {
+			registration.registered = false;
+			registeredCount.decrementAndGet();
+		}
+	}
+
+	private void removed(Registration registration) {
+		cancelRefresh(registration);
+		registrations.remove(registration.account, registration);
+		sipEngine.removeAccount(registration.account);
+	}
+
+	@Override
+	public void callStateChanged(SipCall call, SipManagerState state) {
+	}
+
+	/**
+	 * @return the delay in ms until a registration granted for the given seconds is refreshed
+	 */
+	long getRefreshDelay(int expires) {
+		long delay = (long) (expires * 1000L * refreshFraction);
+		return delay - (long) (delay * jitter * random.nextDouble());
+	}
+
+	private void scheduleRefresh(final Registration registration, long delay) {
+		cancelRefresh(registration);
+		if (scheduler.isShutdown())
+			return;
+		registration.refresh = scheduler.schedule(new Runnable() {
+			public void run() {
+				if (!registration.removing)
+					submit(registration);
+			}
+		}, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+	}
+
+	private void cancelRefresh(Registration registration) {
+		ScheduledFuture<?> refresh = registration.refresh;
+		if (refresh != null)
+			refresh.cancel(false);
+	}
+
+	/**
+	 * Set when registrations are refreshed.
+	 *
+	 * @param refreshFraction the fraction of the granted expiry after which a registration is refreshed, 0.8 by default
+	 * @param jitter the fraction of the refresh delay it is shortened by at most, at random, 0.15 by default
+	 */
+	public void setRefresh(double refreshFraction, double jitter) {
+		if (refreshFraction <= 0 || refreshFraction > 1 || jitter < 0 || jitter >= 1)
+			throw new IllegalArgumentException("refresh fraction must be in (0, 1], jitter in [0, 1)");
+		this.refreshFraction = refreshFraction;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * @return the number of accounts kept registered
+	 */
+	public int getAccountCount() {
+		return registrations.size();
+	}
+
+	/**
+	 * @return the number of accounts currently registered
+	 */
+	public int getRegisteredCount() {
+		return registeredCount.get();
+	}
+
+	/**
+	 * @return the number of REGISTER transactions in progress
+	 */
+	public int getOutstandingCount() {
+		return maxOutstanding - outstanding.availablePermits();
+	}
+
+	/**
+	 * @return the number of REGISTERs waiting for one of the outstanding ones to finish
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the number of registrations and refreshes started, not counting the REGISTERs answering a challenge
+	 */
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Stop refreshing the registrations. The accounts stay registered until their registrations expire.
+	 */
+	public void close() {
+		sipEngine.removeListener(this);
+		scheduler.shutdownNow();
+		pending.clear();
+	}
+}
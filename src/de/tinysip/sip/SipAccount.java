@@ -0,0 +1,161 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.sip;
+
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sdp.SdpException;
+import javax.sip.InvalidArgumentException;
+import javax.sip.SipException;
+
+/**
+ * A LocalSipProfile registered through a SipEngine, with the state of its registration. Calls are made with call().
+ *
+ */
+public class SipAccount {
+	private final SipEngine sipEngine;
+	private final LocalSipProfile localSipProfile;
+	private final SipMessageHandler sipMessageHandler;
+	private final AtomicReference<SipManagerState> state = new AtomicReference<SipManagerState>(SipManagerState.IDLE);
+	private int authorizationTries;
+	private volatile int grantedExpires;
+
+	/**
+	 * Create a SipAccount.
+	 *
+	 * @param sipEngine the SipEngine the account is registered through
+	 * @param localSipProfile the local user's SIP profile
+	 */
+	SipAccount(SipEngine sipEngine, LocalSipProfile localSipProfile) {
+		this.sipEngine = sipEngine;
+		this.localSipProfile = localSipProfile;
+		this.sipMessageHandler = new SipMessageHandler(sipEngine, localSipProfile);
+	}
+
+	/**
+	 * Register the account with the sip provider. A local profile is READY at once. If the profile holds the nonce of an earlier challenge, the REGISTER is
+	 * authorized up front, which saves the 401 round trip as long as the registrar still accepts the nonce.
+	 *
+	 * @throws ParseException
+	 * @throws InvalidArgumentException
+	 * @throws SipException
+	 */
+	public void register() throws ParseException, InvalidArgumentException, SipException {
+		resetAuthorizationTries();
+		if (localSipProfile.isLocalProfile()) {
+			sipEngine.setAccountState(this, SipManagerState.READY);
+		} else {
+			sipEngine.setAccountState(this, SipManagerState.REGISTERING);
+			if (localSipProfile.getNonce() != null && localSipProfile.getRealm() != null)
+				sipMessageHandler.register(SipRequestState.AUTHORIZATION);
+			else
+				sipMessageHandler.register(SipRequestState.REGISTER);
+		}
+	}
+
+	/**
+	 * Unregister the account from the sip provider.
+	 *
+	 * @throws ParseException
+	 * @throws InvalidArgumentException
+	 * @throws SipException
+	 */
+	public void unregister() throws ParseException, InvalidArgumentException, SipException {
+		resetAuthorizationTries();
+		sipMessageHandler.stopKeepalive();
+		if (localSipProfile.isLocalProfile()) {
+			sipEngine.setAccountState(this, SipManagerState.IDLE);
+		} else {
+			sipEngine.setAccountState(this, SipManagerState.UNREGISTERING);
+			sipMessageHandler.register(SipRequestState.UNREGISTER);
+		}
+	}
+
+	/**
+	 * Start calling the specified SipContact.
+	 *
+	 * @param contact the SIP contact to call
+	 * @return the new SipCall, in state CALLING
+	 * @throws ParseException
+	 * @throws InvalidArgumentException
+	 * @throws SipException
+	 * @throws SdpException
+	 */
+	public SipCall call(SipContact contact) throws ParseException, InvalidArgumentException, SipException, SdpException {
+		return sipEngine.call(this, contact);
+	}
+
+	/**
+	 * @return the current registration state of the account
+	 */
+	public SipManagerState getState() {
+		return state.get();
+	}
+
+	/**
+	 * Set the registration state.
+	 *
+	 * @return true if the state changed
+	 */
+	boolean changeState(SipManagerState newState) {
+		return state.getAndSet(newState) != newState;
+	}
+
+	/**
+	 * @return the expiry in seconds the registrar granted the last registration, 0 if it is not registered
+	 */
+	public int getGrantedExpires() {
+		return grantedExpires;
+	}
+
+	void setGrantedExpires(int grantedExpires) {
+		this.grantedExpires = grantedExpires;
+	}
+
+	/**
+	 * @return the LocalSipProfile of the account
+	 */
+	public LocalSipProfile getLocalSipProfile() {
+		return localSipProfile;
+	}
+
+	/**
+	 * @return the key of the account in its SipEngine: user@domain
+	 */
+	public String getKey() {
+		return getKey(localSipProfile.getUserName(), localSipProfile.getSipDomain());
+	}
+
+	static String getKey(String userName, String sipDomain) {
+		return userName + "@" + sipDomain.toLowerCase();
+	}
+
+	SipEngine getSipEngine() {
+		return sipEngine;
+	}
+
+	SipMessageHandler getSipMessageHandler() {
+		return sipMessageHandler;
+	}
+
+	synchronized int nextAuthorizationTry() {
+		return ++authorizationTries;
+	}
+
+	synchronized void resetAuthorizationTries() {
+		authorizationTries = 0;
+	}
+
+	@Override
+	public String toString() {
+		return localSipProfile.toString();
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.sip;
+
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sdp.SdpException;
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.InvalidArgumentException;
+import javax.sip.ServerTransaction;
+import javax.sip.SipException;
+import javax.sip.header.CallIdHeader;
+import javax.sip.message.Request;
+
+/**
+ * One call of a SipAccount, incoming or outgoing, and its state machine. A SipEngine keeps its calls by Call-ID.
+ * <p>
+ * Outgoing calls go CALLING, RINGING, ESTABLISHED and incoming ones INCOMING, ESTABLISHED. Every call ends in one of the final states BYE, BUSY, DECLINED,
+ * INVALID, TIMEOUT or ERROR, after which its state does not change any more.
+ *
+ */
+public class SipCall {
+	private final SipAccount account;
+	private final CallIdHeader callIdHeader;
+	private final boolean incoming;
+	private final AtomicReference<SipManagerState> state;
+
+	private volatile SipSession sipSession;
+	private volatile SipContact contact;
+	private volatile Request invite;
+	private volatile ClientTransaction clientTransaction;
+	private volatile ServerTransaction serverTransaction;
+	private volatile Dialog dialog;
+	private long callSequence = 1L;
+	private int authorizationTries;
+
+	/**
+	 * Create a SipCall.
+	 *
+	 * @param account the SipAccount the call belongs to
+	 * @param callIdHeader the Call-ID of the call
+	 * @param incoming whether the call is incoming
+	 */
+	SipCall(SipAccount account, CallIdHeader callIdHeader, boolean incoming) {
+		this.account = account;
+		this.callIdHeader = callIdHeader;
+		this.incoming = incoming;
+		this.state = new AtomicReference<SipManagerState>(incoming ? SipManagerState.INCOMING : SipManagerState.CALLING);
+	}
+
+	/**
+	 * Accept the incoming call: answer it with 200 OK. It is ESTABLISHED once the ACK arrives.
+	 *
+	 * @throws SipException
+	 * @throws InvalidArgumentException
+	 * @throws ParseException
+	 * @throws SdpException
+	 */
+	public void accept() throws SipException, InvalidArgumentException, ParseException, SdpException {
+		if (incoming && state.get() == SipManagerState.INCOMING)
+			account.getSipMessageHandler().sendOK(this, invite, null);
+	}
+
+	/**
+	 * Decline the incoming call.
+	 *
+	 * @throws SipException
+	 * @throws InvalidArgumentException
+	 * @throws ParseException
+	 */
+	public void decline() throws SipException, InvalidArgumentException, ParseException {
+		if (incoming && state.get() == SipManagerState.INCOMING) {
+			account.getSipMessageHandler().sendDecline(this);
+			account.getSipEngine().setCallState(this, SipManagerState.BYE);
+		}
+	}
+
+	/**
+	 * End the call: BYE once it is established, CANCEL while an outgoing call is being set up, decline an incoming call not yet accepted.
+	 *
+	 * @throws SipException
+	 * @throws InvalidArgumentException
+	 * @throws ParseException
+	 */
+	public void end() throws SipException, InvalidArgumentException, ParseException {
+		SipManagerState current = state.get();
+		if (isFinal(current))
+			return;
+		if (current == SipManagerState.ESTABLISHED)
+			account.getSipMessageHandler().sendBye(this);
+		else if (incoming)
+			account.getSipMessageHandler().sendDecline(this);
+		else
+			account.getSipMessageHandler().sendCancel(this);
+		account.getSipEngine().setCallState(this, SipManagerState.BYE);
+	}
+
+	/**
+	 * Move the call to a new state, if the state machine allows it.
+	 *
+	 * @param newState the new state
+	 * @return true if the state changed
+	 */
+	boolean changeState(SipManagerState newState) {
+		while (true) {
+			SipManagerState current = state.get();
+			if (!isAllowed(current, newState))
+				return false;
+			if (state.compareAndSet(current, newState))
+				return true;
+		}
+	}
+
+	private static boolean isAllowed(SipManagerState from, SipManagerState to) {
+		if (isFinal(from) || from == to)
+			return false;
+		switch (to) {
+		case RINGING:
+			return from == SipManagerState.CALLING;
+		case ESTABLISHED:
+			return from == SipManagerState.CALLING || from == SipManagerState.RINGING || from == SipManagerState.INCOMING;
+		default:
+			return isFinal(to);
+		}
+	}
+
+	/**
+	 * @return whether the state ends a call
+	 */
+	static boolean isFinal(SipManagerState state) {
+		switch (state) {
+		case BYE:
+		case BUSY:
+		case DECLINED:
+		case INVALID:
+		case TIMEOUT:
+		case ERROR:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return the current state of the call
+	 */
+	public SipManagerState getState() {
+		return state.get();
+	}
+
+	/**
+	 * @return the SipAccount the call belongs to
+	 */
+	public SipAccount getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return the Call-ID of the call
+	 */
+	public String getCallId() {
+		return callIdHeader.getCallId();
+	}
+
+	CallIdHeader getCallIdHeader() {
+		return callIdHeader;
+	}
+
+	/**
+	 * @return true if the call is incoming, false otherwise
+	 */
+	public boolean isIncoming() {
+		return incoming;
+	}
+
+	/**
+	 * @return the SipSession of the call, null until the remote session description is known
+	 */
+	public SipSession getSipSession() {
+		return sipSession;
+	}
+
+	void setSipSession(SipSession sipSession) {
+		this.sipSession = sipSession;
+	}
+
+	/**
+	 * @return the called SipContact of an outgoing call
+	 */
+	public SipContact getContact() {
+		return contact;
+	}
+
+	void setContact(SipContact contact) {
+		this.contact = contact;
+	}
+
+	Request getInvite() {
+		return invite;
+	}
+
+	void setInvite(Request invite) {
+		this.invite = invite;
+	}
+
+	ClientTransaction getClientTransaction() {
+		return clientTransaction;
+	}
+
+	void setClientTransaction(ClientTransaction clientTransaction) {
+		this.clientTransaction = clientTransaction;
+	}
+
+	ServerTransaction getServerTransaction() {
+		return serverTransaction;
+	}
+
+	void setServerTransaction(ServerTransaction serverTransaction) {
+		this.serverTransaction = serverTransaction;
+	}
+
+	/**
+	 * @return the dialog of the call, null until it is known
+	 */
+	public Dialog getDialog() {
+		return dialog;
+	}
+
+	void setDialog(Dialog dialog) {
+		this.dialog = dialog;
+	}
+
+	synchronized long getCallSequence() {
+		return callSequence;
+	}
+
+	synchronized long nextCallSequence() {
+		return callSequence++;
+	}
+
+	synchronized int nextAuthorizationTry() {
+		return ++authorizationTries;
+	}
+
+	@Override
+	public String toString() {
+		return (incoming ? "incoming" : "outgoing") + " call " + getCallId() + " of " + account + ": " + state.get();
+	}
+}
@@ -0,0 +1,613 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.sip;
+
+import gov.nist.javax.sip.stack.KeepaliveFlow;
+import gov.nist.javax.sip.stack.KeepaliveListener;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Properties;
+import java.util.TooManyListenersException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sdp.SdpException;
+import javax.sdp.SdpFactory;
+import javax.sdp.SessionDescription;
+import javax.sip.ClientTransaction;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.InvalidArgumentException;
+import javax.sip.ListeningPoint;
+import javax.sip.ObjectInUseException;
+import javax.sip.PeerUnavailableException;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipException;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.TransportNotSupportedException;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.address.URI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ExpiresHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ProxyAuthenticateHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.WWWAuthenticateHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * SipEngine runs any number of SipAccounts and their concurrent calls on one SIP stack and listening point. Calls are kept by Call-ID and accounts by
+ * user@domain in concurrent maps, so the SIP stack thread finds the call or account of a message without locking. Every call has its own state machine (see
+ * SipCall), and state changes are raised to the SipEngineListeners.
+ *
+ */
+public class SipEngine implements SipListener, KeepaliveListener {
+	private static String TAG = "tSIP";
+
+	// Authorization attempts per request before giving up: the credentials are wrong.
+	private static final int MAX_AUTHORIZATION_TRIES = 3;
+
+	private AddressFactory addressFactory = null;
+	private MessageFactory messageFactory = null;
+	private HeaderFactory headerFactory = null;
+	private SipStack sipStack = null;
+	private SipProvider sipProvider = null;
+	private ListeningPoint listeningPoint = null;
+	private String localIPAddress;
+	private int localSipPort;
+
+	private final ConcurrentHashMap<String, SipAccount> accounts = new ConcurrentHashMap<String, SipAccount>();
+	// The accounts by the Call-ID of their REGISTER requests.
+	private final ConcurrentHashMap<String, SipAccount> registrations = new ConcurrentHashMap<String, SipAccount>();
+	private final ConcurrentHashMap<String, SipCall> calls = new ConcurrentHashMap<String, SipCall>();
+	private final List<SipEngineListener> listeners = new CopyOnWriteArrayList<SipEngineListener>();
+
+	/**
+	 * Create a SipEngine listening on the given address and UDP port. If the port is taken, a random one between 5000 and 6000 is used instead.
+	 *
+	 * @param localIPAddress the local IP address, or the public one found through STUN
+	 * @param localSipPort the local SIP port
+	 * @throws PeerUnavailableException
+	 * @throws TransportNotSupportedException
+	 * @throws InvalidArgumentException
+	 * @throws ObjectInUseException
+	 * @throws TooManyListenersException
+	 */
+	public SipEngine(String localIPAddress, int localSipPort) throws PeerUnavailableException, TransportNotSupportedException, InvalidArgumentException,
+			ObjectInUseException, TooManyListenersException {
+		this.localIPAddress = localIPAddress;
+		// Create SipFactory
+		SipFactory sipFactory = SipFactory.getInstance();
+
+		// Create unique name properties for SipStack
+		Properties properties = new Properties();
+		properties.setProperty("javax.sip.STACK_NAME", "tinysip:" + localIPAddress + ":" + localSipPort);
+
+		// Create SipStack object
+		sipStack = sipFactory.createSipStack(properties);
+		headerFactory = sipFactory.createHeaderFactory();
+		addressFactory = sipFactory.createAddressFactory();
+		messageFactory = sipFactory.createMessageFactory();
+
+		int minPort = 5000, maxPort = 6000;
+		boolean successfullyBound = false;
+		while (!successfullyBound) {
+			try {
+				listeningPoint = sipStack.createListeningPoint(localIPAddress, localSipPort, ListeningPoint.UDP);
+			} catch (InvalidArgumentException ex) {
+				// choose another port between MIN and MAX
+				localSipPort = (int) ((maxPort - minPort) * Math.random()) + minPort;
+				continue;
+			}
+			successfullyBound = true;
+			//TODO: needs to check for the public port again if the local one changed
+		}
+		this.localSipPort = localSipPort;
+
+		sipProvider = sipStack.createSipProvider(listeningPoint);
+		sipProvider.addSipListener(this);
+	}
+
+	/**
+	 * Add an account. It is IDLE until registered.
+	 *
+	 * @param localSipProfile the local user's SIP profile
+	 * @return the new SipAccount, or the existing one for the same user@domain
+	 */
+	public SipAccount addAccount(LocalSipProfile localSipProfile) {
+		localSipProfile.setLocalSipPort(localSipPort);
+		SipAccount account = new SipAccount(this, localSipProfile);
+		SipAccount existing = accounts.putIfAbsent(account.getKey(), account);
+		if (existing != null)
+			return existing;
+		registrations.put(account.getSipMessageHandler().getRegisterCallId(), account);
+		return account;
+	}
+
+	/**
+	 * Remove an account. It should be unregistered first, its calls are left alone.
+	 *
+	 * @param account the SipAccount to remove
+	 */
+	public void removeAccount(SipAccount account) {
+		account.getSipMessageHandler().stopKeepalive();
+		accounts.remove(account.getKey(), account);
+		registrations.remove(account.getSipMessageHandler().getRegisterCallId(), account);
+	}
+
+	/**
+	 * @return the account of user@domain, or null if there is none
+	 */
+	public SipAccount getAccount(String userName, String sipDomain) {
+		return accounts.get(SipAccount.getKey(userName, sipDomain));
+	}
+
+	/**
+	 * @return all accounts
+	 */
+	public Collection<SipAccount> getAccounts() {
+		return Collections.unmodifiableCollection(accounts.values());
+	}
+
+	/**
+	 * @return the call with the given Call-ID, or null if there is none
+	 */
+	public SipCall getCall(String callId) {
+		return calls.get(callId);
+	}
+
+	/**
+	 * @return the calls in progress
+	 */
+	public Collection<SipCall> getCalls() {
+		return Collections.unmodifiableCollection(calls.values());
+	}
+
+	/**
+	 * @return the number of calls in progress
+	 */
+	public int getCallCount() {
+		return calls.size();
+	}
+
+	/**
+	 * Start a call from an account.
+	 */
+	SipCall call(SipAccount account, SipContact contact) throws ParseException, InvalidArgumentException, SipException, SdpException {
+		SipCall call = new SipCall(account, sipProvider.getNewCallId(), false);
+		call.setContact(contact);
+		calls.put(call.getCallId(), call);
+		fireCallStateChanged(call, SipManagerState.CALLING);
+		try {
+			account.getSipMessageHandler().sendInvite(call, SipRequestState.REGISTER);
+		} catch (SipException e) {
+			setCallState(call, SipManagerState.ERROR);
+			throw e;
+		}
+		return call;
+	}
+
+	@Override
+	public void processRequest(RequestEvent requestEvent) {
+		Request request = requestEvent.getRequest();
+		String method = ((CSeqHeader) request.getHeader(CSeqHeader.NAME)).getMethod();
+		String callId = ((CallIdHeader) request.getHeader(CallIdHeader.NAME)).getCallId();
+		SipCall call = calls.get(callId);
+		System.out.println(TAG + ": Incoming " + method + " request");
+
+		try {
+			if (method.equals(Request.INVITE)) {
+				if (call == null)
+					incomingCall(requestEvent);
+				else if (call.getState() == SipManagerState.ESTABLISHED)
+					reinvite(call, requestEvent);
+			} else if (call == null) {
+				return;
+			} else if (method.equals(Request.CANCEL)) {
+				call.getAccount().getSipMessageHandler().sendCancelled(call, request, requestEvent.getServerTransaction());
+				setCallState(call, SipManagerState.BYE);
+			} else if (method.equals(Request.ACK)) {
+				call.setDialog(requestEvent.getDialog());
+				setCallState(call, SipManagerState.ESTABLISHED);
+			} else if (method.equals(Request.BYE)) {
+				call.getAccount().getSipMessageHandler().sendOK(call, request, requestEvent.getServerTransaction());
+				setCallState(call, SipManagerState.BYE);
+			}
+		} catch (Exception e) {
+			if (call != null)
+				setCallState(call, SipManagerState.ERROR);
+		}
+	}
+
+	/**
+	 * A re-INVITE refreshing the session of an established call: answer it on its own transaction with the same session description. A
+	 * failure to answer does not end the call.
+	 */
+	private void reinvite(SipCall call, RequestEvent requestEvent) {
+		try {
+			call.getAccount().getSipMessageHandler().sendReinviteOK(call, requestEvent.getRequest(), requestEvent.getServerTransaction());
+		} catch (Exception e) {
+			System.out.println(TAG + ": Could not answer re-INVITE: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A new INVITE: find the account it is for and let it ring.
+	 */
+	private void incomingCall(RequestEvent requestEvent) throws Exception {
+		Request request = requestEvent.getRequest();
+		SipAccount account = findAccount(((ToHeader) request.getHeader(ToHeader.NAME)).getAddress().getURI());
+		if (account == null) {
+			// Create a new response for the request and send it
+			Response response = messageFactory.createResponse(Response.NOT_FOUND, request);
+			ServerTransaction serverTransaction = requestEvent.getServerTransaction();
+			if (serverTransaction == null)
+				serverTransaction = sipProvider.getNewServerTransaction(request);
+			serverTransaction.sendResponse(response);
+			System.out.println(TAG + ": NOT FOUND sent");
+			return;
+		}
+
+		SipCall call = new SipCall(account, (CallIdHeader) request.getHeader(CallIdHeader.NAME), true);
+		if (calls.putIfAbsent(call.getCallId(), call) != null)
+			return;
+		call.setInvite(request);
+		call.setServerTransaction(requestEvent.getServerTransaction());
+		try {
+			SessionDescription sdpSession = SdpFactory.getInstance().createSessionDescription(new String(request.getRawContent()));
+			SipSession session = SipMessageHandler.createSipSession(request, sdpSession);
+			session.setIncoming(true);
+			call.setSipSession(session);
+			System.out.println(TAG + ": " + session.toString());
+
+			account.getSipMessageHandler().sendRinging(call);
+		} catch (Exception e) {
+			setCallState(call, SipManagerState.ERROR);
+			return;
+		}
+		fireCallStateChanged(call, SipManagerState.INCOMING);
+	}
+
+	/**
+	 * @return the account a request is addressed to: by user@domain, else by user name alone
+	 */
+	private SipAccount findAccount(URI uri) {
+		if (!uri.isSipURI())
+			return null;
+		SipURI sipURI = (SipURI) uri;
+		if (sipURI.getUser() == null)
+			return null;
+		SipAccount account = accounts.get(SipAccount.getKey(sipURI.getUser(), sipURI.getHost()));
+		if (account != null)
+			return account;
+		for (SipAccount item : accounts.values())
+			if (item.getLocalSipProfile().getUserName().equals(sipURI.getUser()))
+				return item;
+		return null;
+	}
+
+	@Override
+	public void processResponse(ResponseEvent responseEvent) {
+		Response response = responseEvent.getResponse();
+		String callId = ((CallIdHeader) response.getHeader(CallIdHeader.NAME)).getCallId();
+		System.out.println(TAG + ": Response Status Code: " + response.getStatusCode());
+
+		SipCall call = calls.get(callId);
+		if (call != null) {
+			callResponse(call, responseEvent);
+			return;
+		}
+		SipAccount account = registrations.get(callId);
+		if (account != null)
+			registerResponse(account, responseEvent);
+	}
+
+	private void callResponse(SipCall call, ResponseEvent responseEvent) {
+		Response response = responseEvent.getResponse();
+		CSeqHeader cSeqHeader = (CSeqHeader) response.getHeader(CSeqHeader.NAME);
+		if (!cSeqHeader.getMethod().equals(Request.INVITE))
+			return;
+		SipMessageHandler sipMessageHandler = call.getAccount().getSipMessageHandler();
+
+		try {
+			switch (response.getStatusCode()) {
+			case 180: // Ringing
+				setCallState(call, SipManagerState.RINGING);
+				break;
+
+			case 200: // OK
+				SipManagerState state = call.getState();
+				if ((state == SipManagerState.CALLING || state == SipManagerState.RINGING) && response.getRawContent() != null
+						&& responseEvent.getDialog() != null) {
+					SessionDescription sdpSession = SdpFactory.getInstance().createSessionDescription(new String(response.getRawContent()));
+					SipSession session = SipMessageHandler.createSipSession(response, sdpSession);
+					session.setIncoming(false);
+					call.setSipSession(session);
+
+					call.setDialog(responseEvent.getDialog());
+					sipMessageHandler.sendAck(call, cSeqHeader.getSeqNumber());
+
+					setCallState(call, SipManagerState.ESTABLISHED);
+				}
+				break;
+
+			case 407: // Proxy Authentication required
+				ProxyAuthenticateHeader authHeader = (ProxyAuthenticateHeader) response.getHeader(ProxyAuthenticateHeader.NAME);
+				if (call.getState() == SipManagerState.CALLING && authHeader != null && call.nextAuthorizationTry() <= MAX_AUTHORIZATION_TRIES) {
+					LocalSipProfile localSipProfile = call.getAccount().getLocalSipProfile();
+					localSipProfile.setNonce(authHeader.getNonce());
+					localSipProfile.setRealm(authHeader.getRealm());
+					sipMessageHandler.sendInvite(call, SipRequestState.AUTHORIZATION);
+				} else {
+					setCallState(call, SipManagerState.ERROR);
+				}
+				break;
+
+			case 404: // Not found
+				setCallState(call, SipManagerState.INVALID);
+				break;
+
+			case 486: // Busy
+				setCallState(call, SipManagerState.BUSY);
+				break;
+
+			case 603: // Decline
+				setCallState(call, SipManagerState.DECLINED);
+				break;
+
+			default:
+				if (response.getStatusCode() >= 300)
+					setCallState(call, SipManagerState.ERROR);
+				break;
+			}
+		} catch (Exception e) {
+			setCallState(call, SipManagerState.ERROR);
+		}
+	}
+
+	private void registerResponse(SipAccount account, ResponseEvent responseEvent) {
+		Response response = responseEvent.getResponse();
+		SipManagerState state = account.getState();
+		SipMessageHandler sipMessageHandler = account.getSipMessageHandler();
+
+		try {
+			switch (response.getStatusCode()) {
+			case 200: // OK
+				if (state == SipManagerState.REGISTERING) {
+					account.resetAuthorizationTries();
+					account.setGrantedExpires(getGrantedExpires(account, response));
+					setAccountState(account, SipManagerState.READY);
+					sipMessageHandler.startKeepalive(responseEvent.getClientTransaction(), response, this, account);
+				} else if (state == SipManagerState.UNREGISTERING) {
+					account.resetAuthorizationTries();
+					account.setGrantedExpires(0);
+					setAccountState(account, SipManagerState.IDLE);
+				}
+				break;
+
+			case 401: // Unauthorized
+				WWWAuthenticateHeader authHeader = (WWWAuthenticateHeader) response.getHeader(WWWAuthenticateHeader.NAME);
+				if (authHeader == null || account.nextAuthorizationTry() > MAX_AUTHORIZATION_TRIES) {
+					setAccountState(account, SipManagerState.ERROR);
+					break;
+				}
+				account.getLocalSipProfile().setNonce(authHeader.getNonce());
+				account.getLocalSipProfile().setRealm(authHeader.getRealm());
+
+				if (state == SipManagerState.REGISTERING)
+					sipMessageHandler.register(SipRequestState.AUTHORIZATION);
+				else if (state == SipManagerState.UNREGISTERING)
+					sipMessageHandler.register(SipRequestState.UNREGISTER_AUTHORIZATION);
+				break;
+
+			case 404: // Not found
+				setAccountState(account, SipManagerState.INVALID);
+				break;
+
+			default:
+				if (response.getStatusCode() >= 300)
+					setAccountState(account, SipManagerState.ERROR);
+				break;
+			}
+		} catch (Exception e) {
+			setAccountState(account, SipManagerState.ERROR);
+		}
+	}
+
+	/**
+	 * @return the expiry the registrar granted: that of our binding in the 200 OK, else that of its Expires header, else the one asked for
+	 */
+	private int getGrantedExpires(SipAccount account, Response response) {
+		ListIterator<?> contactHeaders = response.getHeaders(ContactHeader.NAME);
+		while (contactHeaders != null && contactHeaders.hasNext()) {
+			ContactHeader contactHeader = (ContactHeader) contactHeaders.next();
+			URI uri = contactHeader.getAddress().getURI();
+			if (contactHeader.getExpires() >= 0 && uri.isSipURI() && localIPAddress.equals(((SipURI) uri).getHost())
+					&& account.getLocalSipProfile().getUserName().equals(((SipURI) uri).getUser()))
+				return contactHeader.getExpires();
+		}
+		ExpiresHeader expiresHeader = response.getExpires();
+		if (expiresHeader != null)
+			return expiresHeader.getExpires();
+		return account.getLocalSipProfile().getRegisterExpires();
+	}
+
+	@Override
+	public void processTimeout(TimeoutEvent timeoutEvent) {
+		ClientTransaction clientTransaction = timeoutEvent.getClientTransaction();
+		if (clientTransaction == null)
+			return;
+		Request request = clientTransaction.getRequest();
+		String callId = ((CallIdHeader) request.getHeader(CallIdHeader.NAME)).getCallId();
+		SipCall call = calls.get(callId);
+		if (call != null) {
+			if (request.getMethod().equals(Request.INVITE))
+				setCallState(call, SipManagerState.TIMEOUT);
+			return;
+		}
+		SipAccount account = registrations.get(callId);
+		if (account != null)
+			setAccountState(account, SipManagerState.TIMEOUT);
+	}
+
+	/**
+	 * The NAT binding of a registration was lost: register again to open a new one.
+	 */
+	@Override
+	public void flowFailed(KeepaliveFlow flow) {
+		System.out.println(TAG + ": Keepalive flow failed: " + flow.getFailureReason());
+		Object account = flow.getApplicationData();
+		if (account instanceof SipAccount && ((SipAccount) account).getState() == SipManagerState.READY) {
+			try {
+				((SipAccount) account).register();
+			} catch (Exception e) {
+				setAccountState((SipAccount) account, SipManagerState.ERROR);
+			}
+		}
+	}
+
+	@Override
+	public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+	}
+
+	@Override
+	public void processIOException(IOExceptionEvent exceptionEvent) {
+	}
+
+	@Override
+	public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+	}
+
+	/**
+	 * Move a call to a new state and raise it. A call that is over is forgotten and its media closed.
+	 */
+	void setCallState(SipCall call, SipManagerState state) {
+		if (!call.changeState(state))
+			return;
+		if (SipCall.isFinal(state)) {
+			calls.remove(call.getCallId(), call);
+			SipSession session = call.getSipSession();
+			if (session != null && session.getAudioStream() != null)
+				session.getAudioStream().close();
+		}
+		fireCallStateChanged(call, state);
+	}
+
+	/**
+	 * Set the registration state of an account and raise it.
+	 */
+	void setAccountState(SipAccount account, SipManagerState state) {
+		if (!account.changeState(state))
+			return;
+		System.out.println(TAG + ": " + account + ": " + state);
+		for (SipEngineListener listener : listeners)
+			listener.accountStateChanged(account, state);
+	}
+
+	private void fireCallStateChanged(SipCall call, SipManagerState state) {
+		System.out.println(TAG + ": " + call);
+		for (SipEngineListener listener : listeners)
+			listener.callStateChanged(call, state);
+	}
+
+	/**
+	 * End all calls, stop the keepalives and stop the SIP stack.
+	 */
+	public void close() {
+		for (SipCall call : new ArrayList<SipCall>(calls.values())) {
+			try {
+				call.end();
+			} catch (Exception e) {
+			}
+		}
+		for (SipAccount account : accounts.values())
+			account.getSipMessageHandler().stopKeepalive();
+		sipStack.stop();
+	}
+
+	/**
+	 * Add a SipEngineListener.
+	 *
+	 * @param listener the listener to register for the state changes
+	 */
+	public void addListener(SipEngineListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a SipEngineListener.
+	 *
+	 * @param listener the listener to unregister
+	 */
+	public void removeListener(SipEngineListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return the SipStack
+	 */
+	public SipStack getSipStack() {
+		return sipStack;
+	}
+
+	/**
+	 * @return the SipProvider
+	 */
+	public SipProvider getSipProvider() {
+		return sipProvider;
+	}
+
+	ListeningPoint getListeningPoint() {
+		return listeningPoint;
+	}
+
+	AddressFactory getAddressFactory() {
+		return addressFactory;
+	}
+
+	MessageFactory getMessageFactory() {
+		return messageFactory;
+	}
+
+	HeaderFactory getHeaderFactory() {
+		return headerFactory;
+	}
+
+	/**
+	 * @return the local IP address put into the Via, Contact and SDP
+	 */
+	public String getLocalIPAddress() {
+		return localIPAddress;
+	}
+
+	/**
+	 * @return the local SIP port
+	 */
+	public int getLocalSipPort() {
+		return localSipPort;
+	}
+}
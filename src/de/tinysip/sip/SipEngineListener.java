@@ -0,0 +1,33 @@
+/*
+ * This file is part of TinySip. 
+ * http://code.google.com/p/de-tiny-sip/
+ * 
+ * Created 2011 by Sebastian Rsch <flowfire@sebastianroesch.de>
+ * 
+ * This software is licensed under the Apache License 2.0.
+ */
+
+package de.tinysip.sip;
+
+/**
+ * Interface for receiving the state changes of the accounts and calls of a SipEngine. The methods are called on the thread of the SIP stack and must not block.
+ *
+ */
+public interface SipEngineListener {
+	/**
+	 * The registration state of an account changed.
+	 *
+	 * @param account the SipAccount
+	 * @param state the new state: IDLE, REGISTERING, READY, UNREGISTERING, TIMEOUT, INVALID or ERROR
+	 */
+	public void accountStateChanged(SipAccount account, SipManagerState state);
+
+	/**
+	 * The state of a call changed. A new incoming call is signalled by the state INCOMING, it is then ringing and waits for accept() or decline().
+	 *
+	 * @param call the SipCall
+	 * @param state the new state: CALLING, RINGING, INCOMING and ESTABLISHED while the call is up, BYE, BUSY, DECLINED, INVALID, TIMEOUT or ERROR once it is
+	 *            over
+	 */
+	public void callStateChanged(SipCall call, SipManagerState state);
+}
@@ -20,41 +20,26 @@ import java.util.List;
 import java.util.TooManyListenersException;
 
 import javax.sdp.SdpException;
-import javax.sdp.SdpFactory;
-import javax.sdp.SessionDescription;
-import javax.sip.DialogTerminatedEvent;
-import javax.sip.IOExceptionEvent;
 import javax.sip.InvalidArgumentException;
-import javax.sip.RequestEvent;
-import javax.sip.ResponseEvent;
 import javax.sip.SipException;
-import javax.sip.SipListener;
-import javax.sip.TimeoutEvent;
-import javax.sip.TransactionTerminatedEvent;
-import javax.sip.header.CSeqHeader;
-import javax.sip.header.ProxyAuthenticateHeader;
-import javax.sip.header.WWWAuthenticateHeader;
-import javax.sip.message.Request;
-import javax.sip.message.Response;
 
 /**
  * SipManager handles the session establishment, teardown and authorization. Notifies state changes by raising SipManagerStatusChangedEvent, SipManagerCallStatusEvent,
  * SipManagerSessionEvent.
+ * <p>
+ * SipManager runs one account with one call at a time on a SipEngine, further incoming calls are answered busy. Use getEngine() for more accounts and calls.
  * 
  * @author Sebastian
  * 
  */
-public class SipManager implements SipListener {
+public class SipManager implements SipEngineListener {
 	private static String TAG = "tSIP";
 	private static SipManager sipManager = null;
-	private SipMessageHandler sipMessageHandler = null;
+	private SipEngine sipEngine = null;
+	private SipAccount sipAccount = null;
 
 	private SipManagerState currentState = null;
-	private SipSession currentSession = null;
-	private SipContact currentContact = null;
-	private Request currentRequest = null;
-
-	private int registerTryCount = 0;
+	private volatile SipCall currentCall = null;
 
 	private List<SipManagerStatusListener> statusListeners = null;
 
@@ -68,10 +53,11 @@ public class SipManager implements SipListener {
 	 */
 	private SipManager(LocalSipProfile localSipProfile, String localIPAddress, int localSipPort) {
 		try {
-			sipMessageHandler = SipMessageHandler.createInstance(localSipProfile, localIPAddress, localSipPort);
-			sipMessageHandler.getSipProvider().addSipListener(this);
 			statusListeners = new ArrayList<SipManagerStatusListener>();
 			currentState = SipManagerState.IDLE;
+			sipEngine = new SipEngine(localIPAddress, localSipPort);
+			sipAccount = sipEngine.addAccount(localSipProfile);
+			sipEngine.addListener(this);
 		} catch (Exception e) {
 		}
 	}
@@ -101,6 +87,13 @@ public class SipManager implements SipListener {
 		return sipManager;
 	}
 
+	/**
+	 * @return the SipEngine the SipManager runs on
+	 */
+	public SipEngine getEngine() {
+		return sipEngine;
+	}
+
 	/**
 	 * Register the local sip profile with the sip provider.
 	 * 
@@ -110,12 +103,7 @@ public class SipManager implements SipListener {
 	 * @throws SipException
 	 */
 	public void registerProfile() throws InvalidArgumentException, TooManyListenersException, ParseException, SipException {
-		if (sipMessageHandler.getLocalSipProfile().isLocalProfile())
-			setStatusChanged(SipManagerState.READY);
-		else {
-			setStatusChanged(SipManagerState.REGISTERING);
-			sipMessageHandler.register(SipRequestState.REGISTER);
-		}
+		sipAccount.register();
 	}
 
 	/**
@@ -126,12 +114,7 @@ public class SipManager implements SipListener {
 	 * @throws SipException
 	 */
 	public void unregisterProfile() throws ParseException, InvalidArgumentException, SipException {
-		if (sipMessageHandler.getLocalSipProfile().isLocalProfile())
-			setStatusChanged(SipManagerState.IDLE);
-		else {
-			setStatusChanged(SipManagerState.UNREGISTERING);
-			sipMessageHandler.register(SipRequestState.UNREGISTER);
-		}
+		sipAccount.unregister();
 	}
 
 	/**
@@ -146,176 +129,66 @@ public class SipManager implements SipListener {
 	 * @throws SdpException
 	 */
 	public void sendInvite(SipContact contact) throws ParseException, InvalidArgumentException, SipException, NullPointerException, SdpException {
-		currentContact = contact;
-		currentSession = null;
-		setStatusChanged(SipManagerState.CALLING);
-		sipMessageHandler.sendInvite(currentContact, SipRequestState.REGISTER);
+		currentCall = sipAccount.call(contact);
 	}
 
 	@Override
-	public void processDialogTerminated(DialogTerminatedEvent arg0) {
+	public void accountStateChanged(SipAccount account, SipManagerState state) {
+		// While a call is up, its state is the state of the SipManager.
+		if (currentCall == null)
+			setStatusChanged(state);
 	}
 
 	@Override
-	public void processIOException(IOExceptionEvent arg0) {
-	}
-
-	@Override
-	public void processRequest(RequestEvent requestEvent) {
-		Request request = requestEvent.getRequest();
-		String method = ((CSeqHeader) request.getHeader(CSeqHeader.NAME)).getMethod();
-		System.out.println(TAG +": Incoming " + method + " request");
-
-		if (method.equals(Request.INVITE)) {
-			try {
-				if (currentSession == null) {
-					SessionDescription sdpSession = SdpFactory.getInstance().createSessionDescription(new String(request.getRawContent()));
-					currentSession = SipMessageHandler.createSipSession(request, sdpSession);
-					currentSession.setIncoming(true);
-					
-					if(currentSession.getToSipURI().equals(sipMessageHandler.getLocalSipProfile().getSipUri())){
-						setStatusChanged(SipManagerState.INCOMING, currentSession.getCallerNumber());
-						setCallStatus("Incoming call from " + currentSession.getCallerNumber());
-						System.out.println(TAG +": " + currentSession.toString());
-
-						currentRequest = request;
-						sipMessageHandler.sendRinging(request);						
-					} else {
-						sipMessageHandler.sendNotFound(request);
-					}
-				} else {
-					sipMessageHandler.sendBusyHere(request);
+	public void callStateChanged(SipCall call, SipManagerState state) {
+		if (state.equals(SipManagerState.INCOMING)) {
+			if (currentCall != null) {
+				try {
+					sipAccount.getSipMessageHandler().sendBusyHere(call);
+				} catch (Exception e) {
 				}
-			} catch (Exception e) {
-				setStatusChanged(SipManagerState.ERROR);
-			}
-		} else if (method.equals(Request.CANCEL)) {
-			reset();
-		} else if (method.equals(Request.ACK)) {
-			if (currentSession != null) {
-				sipMessageHandler.setDialog(requestEvent.getDialog());
-				
-				setStatusChanged(SipManagerState.ESTABLISHED, currentSession.getCallerNumber());
-				setSessionChanged(currentSession);
+				sipEngine.setCallState(call, SipManagerState.BUSY);
+				return;
 			}
-		} else if (method.equals(Request.BYE)) {
-			try {
-				sipMessageHandler.sendOK(request, requestEvent.getServerTransaction());
-			} catch (Exception e) {
-				setStatusChanged(SipManagerState.ERROR);
-			}
-			// no need to send 200 OK, SipStack should do that automatically
-			setStatusChanged(SipManagerState.BYE);
-			reset();
+			currentCall = call;
+			setStatusChanged(SipManagerState.INCOMING, call.getSipSession().getCallerNumber());
+			setCallStatus("Incoming call from " + call.getSipSession().getCallerNumber());
+			return;
 		}
-	}
 
-	@Override
-	public void processResponse(ResponseEvent responseEvent) {
-		Response response = (Response) responseEvent.getResponse();
-		int status = response.getStatusCode();
-		System.out.println(TAG +": Response Status Code: " + status);
-
-		switch (status) {
-		case 180: // Ringing
-			try {
-				if (currentState.equals(SipManagerState.CALLING)) {
-					setStatusChanged(SipManagerState.RINGING);
-				}
-			} catch (Exception e) {
-				setStatusChanged(SipManagerState.ERROR);
-			}
-		case 200: // OK
-			try {
-				if ((currentState.equals(SipManagerState.RINGING) || currentState.equals(SipManagerState.CALLING)) && response.getRawContent() != null
-						&& responseEvent.getDialog() != null) {
-					SessionDescription sdpSession = SdpFactory.getInstance().createSessionDescription(new String(response.getRawContent()));
-					currentSession = SipMessageHandler.createSipSession(response, sdpSession);
-					currentSession.setIncoming(false);
-					
-					sipMessageHandler.setDialog(responseEvent.getDialog());
-					sipMessageHandler.sendAck();
-
-					setStatusChanged(SipManagerState.ESTABLISHED);
-					setSessionChanged(currentSession);
-				} else if (currentState.equals(SipManagerState.REGISTERING)) {
-					setStatusChanged(SipManagerState.READY);
-					registerTryCount = 0;
-				} else if (currentState.equals(SipManagerState.UNREGISTERING)) {
-					setStatusChanged(SipManagerState.IDLE);
-					registerTryCount = 0;
-				}
-			} catch (Exception e) {
-				setStatusChanged(SipManagerState.ERROR);
-			}
+		// The state CALLING is raised before sendInvite() returns the call.
+		if (currentCall == null && state.equals(SipManagerState.CALLING))
+			currentCall = call;
+		if (call != currentCall)
+			return;
 
+		switch (state) {
+		case ESTABLISHED:
+			setStatusChanged(SipManagerState.ESTABLISHED, call.isIncoming() ? call.getSipSession().getCallerNumber() : "");
+			setSessionChanged(call.getSipSession());
 			break;
 
-		case 401: // Unauthorized
-			try {
-				registerTryCount++;
-
-				WWWAuthenticateHeader authHeader = (WWWAuthenticateHeader) response.getHeader(WWWAuthenticateHeader.NAME);
-				sipMessageHandler.getLocalSipProfile().setNonce(authHeader.getNonce());
-				sipMessageHandler.getLocalSipProfile().setRealm(authHeader.getRealm());
-
-				if (currentState.equals(SipManagerState.REGISTERING))
-					sipMessageHandler.register(SipRequestState.AUTHORIZATION);
-				else if (currentState.equals(SipManagerState.UNREGISTERING))
-					sipMessageHandler.register(SipRequestState.UNREGISTER_AUTHORIZATION);
-			} catch (Exception e) {
-				setStatusChanged(SipManagerState.ERROR);
-			}
-
-			break;
-
-		case 404: // Not found
-			setStatusChanged(SipManagerState.INVALID);
-			break;
-
-		case 407: // Proxy Authentication required
-			try {
-				registerTryCount++;
-				System.out.println(TAG +": " + response.toString());
-
-				if (currentSession == null && currentContact != null) {
-					ProxyAuthenticateHeader authHeader = (ProxyAuthenticateHeader) response.getHeader(ProxyAuthenticateHeader.NAME);
-					sipMessageHandler.getLocalSipProfile().setNonce(authHeader.getNonce());
-					sipMessageHandler.getLocalSipProfile().setRealm(authHeader.getRealm());
-
-					if (currentState.equals(SipManagerState.CALLING))
-						sipMessageHandler.sendInvite(currentContact, SipRequestState.AUTHORIZATION);
-				}
-			} catch (Exception e) {
-				setStatusChanged(SipManagerState.ERROR);
-			}
-
-			break;
-
-		case 486: // Busy
-			setStatusChanged(SipManagerState.BUSY);
-			break;
-
-		case 603: // Decline
-			setStatusChanged(SipManagerState.DECLINED);
+		case BYE:
+			// A cancelled incoming call goes back to READY without a BYE.
+			if (!currentState.equals(SipManagerState.INCOMING))
+				setStatusChanged(SipManagerState.BYE);
+			reset();
 			break;
 
-		case 500: // Too many clients
-			setStatusChanged(SipManagerState.ERROR);
+		case BUSY:
+		case DECLINED:
+		case INVALID:
+		case TIMEOUT:
+		case ERROR:
+			// Stays until confirmStateAndReset().
+			currentCall = null;
+			setStatusChanged(state);
 			break;
 
 		default:
+			setStatusChanged(state);
 			break;
 		}
-
-	}
-
-	@Override
-	public void processTimeout(TimeoutEvent arg0) {
-	}
-
-	@Override
-	public void processTransactionTerminated(TransactionTerminatedEvent arg0) {
 	}
 
 	/**
@@ -327,8 +200,9 @@ public class SipManager implements SipListener {
 	 * @throws SdpException
 	 */
 	public void acceptCall() throws SipException, InvalidArgumentException, ParseException, SdpException {
-		if (currentRequest != null)
-			sipMessageHandler.sendOK(currentRequest, null);
+		SipCall call = currentCall;
+		if (call != null)
+			call.accept();
 	}
 
 	/**
@@ -340,10 +214,11 @@ public class SipManager implements SipListener {
 	 * @throws SdpException
 	 */
 	public void declineCall() throws SipException, InvalidArgumentException, ParseException, SdpException {
-		if (currentRequest != null)
-			sipMessageHandler.sendDecline(currentRequest);
-
+		SipCall call = currentCall;
 		reset();
+
+		if (call != null)
+			call.decline();
 	}
 
 	/**
@@ -362,30 +237,25 @@ public class SipManager implements SipListener {
 	 * @throws SdpException
 	 */
 	public void endCall() throws SipException, InvalidArgumentException, ParseException, SdpException {
-		if (currentState.equals(SipManagerState.ESTABLISHED))
-			sipMessageHandler.sendBye();
-		else
-			sipMessageHandler.sendCancel();
-
+		SipCall call = currentCall;
 		reset();
+
+		if (call != null)
+			call.end();
 	}
 	
 	/** 
 	 * @return the LocalSipProfile
 	 */
 	public LocalSipProfile getLocalSipProfile(){
-		return sipMessageHandler.getLocalSipProfile();
+		return sipAccount.getLocalSipProfile();
 	}
 
 	/**
-	 * Reset all connections.
+	 * Reset all connections. The media of the call is closed by the SipEngine once the call is over.
 	 */
 	private void reset() {
-		currentContact = null;
-		currentRequest = null;
-		currentSession = null;
-		registerTryCount = 0;
-		sipMessageHandler.reset();
+		currentCall = null;
 
 		if (currentState.equals(SipManagerState.ESTABLISHED))
 			setSessionChanged(null);
@@ -16,14 +16,21 @@ import gov.nist.javax.sdp.fields.MediaField;
 import gov.nist.javax.sdp.fields.OriginField;
 import gov.nist.javax.sdp.fields.SDPKeywords;
 import gov.nist.javax.sdp.fields.SessionNameField;
-
+import gov.nist.javax.sip.TransactionExt;
+import gov.nist.javax.sip.message.RequestTemplate;
+import gov.nist.javax.sip.stack.KeepaliveFlow;
+import gov.nist.javax.sip.stack.KeepaliveListener;
+import gov.nist.javax.sip.stack.KeepaliveScheduler;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Properties;
+import java.util.ListIterator;
 import java.util.Vector;
 
 import javax.sdp.Attribute;
@@ -36,14 +43,9 @@ import javax.sip.ClientTransaction;
 import javax.sip.Dialog;
 import javax.sip.InvalidArgumentException;
 import javax.sip.ListeningPoint;
-import javax.sip.ObjectInUseException;
-import javax.sip.PeerUnavailableException;
 import javax.sip.ServerTransaction;
 import javax.sip.SipException;
-import javax.sip.SipFactory;
 import javax.sip.SipProvider;
-import javax.sip.SipStack;
-import javax.sip.TransportNotSupportedException;
 import javax.sip.address.Address;
 import javax.sip.address.AddressFactory;
 import javax.sip.address.SipURI;
@@ -52,9 +54,11 @@ import javax.sip.header.CallIdHeader;
 import javax.sip.header.ContactHeader;
 import javax.sip.header.ContentTypeHeader;
 import javax.sip.header.ExpiresHeader;
+import javax.sip.header.ExtensionHeader;
 import javax.sip.header.FromHeader;
 import javax.sip.header.HeaderFactory;
 import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.RequireHeader;
 import javax.sip.header.ToHeader;
 import javax.sip.header.ViaHeader;
 import javax.sip.message.Message;
@@ -73,97 +77,42 @@ public class SipMessageHandler {
 	private AddressFactory addressFactory = null;
 	private MessageFactory messageFactory = null;
 	private HeaderFactory headerFactory = null;
-	private SipStack sipStack = null;
 	private SipProvider sipProvider = null;
 	private ListeningPoint listeningPoint = null;
+	private SipEngine sipEngine = null;
 
 	private LocalSipProfile localSipProfile = null;
 	private String localIPAddress;
 	private int localSipPort;
 
-	private ServerTransaction serverTransaction = null;
-	private ClientTransaction clientTransaction = null;
-	private CallIdHeader currentCallID = null;
-	private Dialog currentDialog = null;
-
-	private long callSequence = 1L;
-
-	private static SipMessageHandler sipMessageHandler = null;
+	// The registration keeps its Call-ID, so that the registrar sees its refreshes as such.
+	private CallIdHeader registerCallID = null;
+	private long registerSequence = 1L;
+	// The REGISTER the registrations and refreshes are stamped from, and the Contact expiry it was built with.
+	private RequestTemplate registerTemplate = null;
+	private int registerTemplateExpires;
+	private String registerFromTag;
+	private KeepaliveFlow keepaliveFlow = null;
 
 	/**
-	 * Create a SipMessageHandler using the LocalSipProfile and a STUN DiscoveryInfo.
+	 * Create a SipMessageHandler sending the messages of one account through the SIP stack of a SipEngine.
 	 * 
+	 * @param sipEngine
+	 *            the SipEngine owning the SIP stack
 	 * @param localSipProfile
 	 *            the local user's SIP profile to register with the provider
-	 * @param discoveryInfo
-	 *            the STUN DiscoveryInfo for NAT traversal
-	 * @throws PeerUnavailableException
-	 * @throws TransportNotSupportedException
-	 * @throws InvalidArgumentException
-	 * @throws ObjectInUseException
 	 */
-	private SipMessageHandler(LocalSipProfile localSipProfile, String localIPAddress, int localSipPort) throws PeerUnavailableException, TransportNotSupportedException,
-			InvalidArgumentException, ObjectInUseException {
+	SipMessageHandler(SipEngine sipEngine, LocalSipProfile localSipProfile) {
+		this.sipEngine = sipEngine;
 		this.localSipProfile = localSipProfile;
-		this.localIPAddress = localIPAddress;
-		this.localSipPort = localSipPort;
-		// Create SipFactory
-		SipFactory sipFactory = SipFactory.getInstance();
-
-		// Create unique name properties for SipStack
-		Properties properties = new Properties();
-		properties.setProperty("javax.sip.STACK_NAME", "tinysip");
-
-		// Create SipStack object
-		sipStack = sipFactory.createSipStack(properties);
-		headerFactory = sipFactory.createHeaderFactory();
-		addressFactory = sipFactory.createAddressFactory();
-		messageFactory = sipFactory.createMessageFactory();
-
-		int minPort = 5000, maxPort = 6000;
-		boolean successfullyBound = false;
-		while (!successfullyBound) {
-			try {
-				listeningPoint = sipStack.createListeningPoint(localIPAddress, localSipPort, ListeningPoint.UDP);
-			} catch (InvalidArgumentException ex) {
-				// choose another port between MIN and MAX
-				localSipPort = (int) ((maxPort - minPort) * Math.random()) + minPort;
-				continue;
-			}
-			successfullyBound = true;
-			localSipProfile.setLocalSipPort(localSipPort);
-			//TODO: needs to check for the public port again if the local one changed
-		}
-
-		sipProvider = sipStack.createSipProvider(listeningPoint);
-	}
-
-	/**
-	 * Create an instance of SipMessageHandler.
-	 * 
-	 * @param localSipProfile
-	 *            the local user's SIP profile to register with the provider
-	 * @param discoveryInfo
-	 *            the STUN DiscoveryInfo for NAT traversal
-	 * @return the created instance of SipMessageHandler
-	 * @throws PeerUnavailableException
-	 * @throws TransportNotSupportedException
-	 * @throws ObjectInUseException
-	 * @throws InvalidArgumentException
-	 */
-	public static SipMessageHandler createInstance(LocalSipProfile localSipProfile, String localIPAddress, int localSipPort) throws PeerUnavailableException, TransportNotSupportedException,
-			ObjectInUseException, InvalidArgumentException {
-		if (sipMessageHandler == null)
-			sipMessageHandler = new SipMessageHandler(localSipProfile, localIPAddress, localSipPort);
-
-		return sipMessageHandler;
-	}
-
-	/**
-	 * @return the instance of the SipMessageHandler which needs to be created first
-	 */
-	public static SipMessageHandler getInstance() {
-		return sipMessageHandler;
+		this.localIPAddress = sipEngine.getLocalIPAddress();
+		this.localSipPort = sipEngine.getLocalSipPort();
+		this.addressFactory = sipEngine.getAddressFactory();
+		this.messageFactory = sipEngine.getMessageFactory();
+		this.headerFactory = sipEngine.getHeaderFactory();
+		this.sipProvider = sipEngine.getSipProvider();
+		this.listeningPoint = sipEngine.getListeningPoint();
+		this.registerCallID = sipProvider.getNewCallId();
 	}
 
 	/**
@@ -180,16 +129,70 @@ public class SipMessageHandler {
 		return localSipProfile;
 	}
 
+	/**
+	 * @return the Call-ID of the REGISTER requests
+	 */
+	public String getRegisterCallId() {
+		return registerCallID.getCallId();
+	}
+
 	/**
 	 * Register the local profile with the provider.
 	 * 
 	 * @param state
-	 *            the current SipRequestState of the SipManager, used for assembling the message
+	 *            the current SipRequestState of the account, used for assembling the message
 	 * @throws ParseException
 	 * @throws InvalidArgumentException
 	 * @throws SipException
 	 */
 	public void register(SipRequestState state) throws ParseException, InvalidArgumentException, SipException {
+		long sequence;
+		synchronized (this) {
+			sequence = registerSequence++;
+		}
+
+		Request request;
+		if (state.equals(SipRequestState.UNREGISTER) || state.equals(SipRequestState.UNREGISTER_AUTHORIZATION)) {
+			request = createRegisterRequest(sequence, true);
+		} else {
+			// Only the CSeq and the Via branch change from one registration to the next, so they are stamped from a template instead of being
+			// built header by header.
+			RequestTemplate template;
+			synchronized (this) {
+				if (registerTemplate == null || registerTemplateExpires != localSipProfile.getRegisterExpires()) {
+					registerTemplateExpires = localSipProfile.getRegisterExpires();
+					Request registerRequest = createRegisterRequest(sequence, false);
+					registerFromTag = ((FromHeader) registerRequest.getHeader(FromHeader.NAME)).getTag();
+					registerTemplate = new RequestTemplate(registerRequest);
+				}
+				template = registerTemplate;
+			}
+			request = template.createRequest(null, registerCallID.getCallId(), registerFromTag, null, null, sequence);
+		}
+
+		if (state.equals(SipRequestState.AUTHORIZATION) || state.equals(SipRequestState.UNREGISTER_AUTHORIZATION)) {
+			request.addHeader(localSipProfile.getAuthorizationHeader(headerFactory));
+		}
+
+		// Create the client transaction and send the request
+		ClientTransaction clientTransaction = sipProvider.getNewClientTransaction(request);
+		clientTransaction.sendRequest();
+		System.out.println(TAG +": REGISTER sent");
+	}
+
+	/**
+	 * Create a REGISTER request for the local profile.
+	 * 
+	 * @param sequence
+	 *            the CSeq number of the request
+	 * @param unregister
+	 *            true to remove all bindings, false to bind the local contact
+	 * @return the REGISTER request
+	 * @throws ParseException
+	 * @throws InvalidArgumentException
+	 * @throws SipException
+	 */
+	private Request createRegisterRequest(long sequence, boolean unregister) throws ParseException, InvalidArgumentException, SipException {
 		// create To and From headers
 		FromHeader fromHeader = localSipProfile.getFromHeader(addressFactory, headerFactory);
 		ToHeader toHeader = localSipProfile.getToHeader(addressFactory, headerFactory);
@@ -203,19 +206,16 @@ public class SipMessageHandler {
 		viaHeader.setRPort();
 		viaHeaders.add(viaHeader);
 
-		// Create a new CallId header
-		CallIdHeader callIdHeader = sipProvider.getNewCallId();
-
 		// Create a new Cseq header
-		CSeqHeader cSeqHeader = headerFactory.createCSeqHeader(callSequence, Request.REGISTER);
+		CSeqHeader cSeqHeader = headerFactory.createCSeqHeader(sequence, Request.REGISTER);
 
 		// Create a new MaxForwards header
 		MaxForwardsHeader maxForwards = headerFactory.createMaxForwardsHeader(70);
 
 		// Create the request
-		Request request = messageFactory.createRequest(requestURI, Request.REGISTER, callIdHeader, cSeqHeader, fromHeader, toHeader, viaHeaders, maxForwards);
+		Request request = messageFactory.createRequest(requestURI, Request.REGISTER, registerCallID, cSeqHeader, fromHeader, toHeader, viaHeaders, maxForwards);
 
-		if (state.equals(SipRequestState.UNREGISTER) || state.equals(SipRequestState.UNREGISTER_AUTHORIZATION)) {
+		if (unregister) {
 			// Create a new Expires header
 			ExpiresHeader expires = headerFactory.createExpiresHeader(0);
 			request.addHeader(expires);
@@ -224,26 +224,12 @@ public class SipMessageHandler {
 			ContactHeader contactHeader = headerFactory.createContactHeader();
 			request.addHeader(contactHeader);
 		} else {
-			// Create the contact name address
-			SipURI contactURI = addressFactory.createSipURI(localSipProfile.getUserName(), localIPAddress);
-			contactURI.setPort(localSipPort);
-			Address contactAddress = addressFactory.createAddress(contactURI);
-			contactAddress.setDisplayName(localSipProfile.getDisplayName());
-
 			// Create a new Contact header
-			ContactHeader contactHeader = headerFactory.createContactHeader(contactAddress);
-			contactHeader.setExpires(3600); // 20 minutes
+			ContactHeader contactHeader = headerFactory.createContactHeader(createContactAddress());
+			contactHeader.setExpires(localSipProfile.getRegisterExpires());
 			request.addHeader(contactHeader);
 		}
-
-		if (state.equals(SipRequestState.AUTHORIZATION) || state.equals(SipRequestState.UNREGISTER_AUTHORIZATION)) {
-			request.addHeader(localSipProfile.getAuthorizationHeader(headerFactory));
-		}
-
-		// Create the client transaction and send the request
-		clientTransaction = sipProvider.getNewClientTransaction(request);
-		clientTransaction.sendRequest();
-		System.out.println(TAG +": REGISTER sent");
+		return request;
 	}
 
 	/**
@@ -338,62 +324,60 @@ public class SipMessageHandler {
 	}
 
 	/**
-	 * Send a sip ringing reply.
+	 * Send a sip ringing reply to the INVITE of an incoming call.
 	 * 
-	 * @param invite
-	 *            the Request to reply to
+	 * @param call
+	 *            the SipCall to reply for
 	 * @throws SipException
 	 * @throws InvalidArgumentException
 	 * @throws ParseException
 	 */
-	public void sendRinging(Request invite) throws SipException, InvalidArgumentException, ParseException {
+	public void sendRinging(SipCall call) throws SipException, InvalidArgumentException, ParseException {
 		// Create a new response for the request
-		Response response = messageFactory.createResponse(Response.RINGING, invite);
+		Response response = messageFactory.createResponse(Response.RINGING, call.getInvite());
 
 		// Send the created response
-		if (serverTransaction == null)
-			serverTransaction = sipProvider.getNewServerTransaction(invite);
-		serverTransaction.sendResponse(response);
+		getServerTransaction(call).sendResponse(response);
 		System.out.println(TAG +": RINGING sent");
 	}
 
 	/**
-	 * Send a sip ack reply.
+	 * Send a sip ack for the 200 OK to the INVITE of an outgoing call.
 	 * 
+	 * @param call
+	 *            the SipCall to acknowledge
+	 * @param cseq
+	 *            the sequence number of the acknowledged INVITE
 	 * @throws InvalidArgumentException
 	 * @throws SipException
 	 */
-	public void sendAck() throws InvalidArgumentException, SipException {
-		Request request = currentDialog.createAck(callSequence++);
-		currentDialog.sendAck(request);
+	public void sendAck(SipCall call, long cseq) throws InvalidArgumentException, SipException {
+		Request request = call.getDialog().createAck(cseq);
+		call.getDialog().sendAck(request);
 		System.out.println(TAG +": ACK sent");
 	}
 
 	/**
 	 * Send a sip ok reply.
 	 * 
+	 * @param call
+	 *            the SipCall to reply for
 	 * @param request
 	 *            the Request to reply to
 	 * @param transaction
-	 *            the ServerTransaction used for creating the reply
+	 *            the ServerTransaction used for creating the reply, null to answer the INVITE of the call with the local session description
 	 * @throws SipException
 	 * @throws InvalidArgumentException
 	 * @throws ParseException
 	 * @throws SdpException
 	 */
-	public void sendOK(Request request, ServerTransaction transaction) throws SipException, InvalidArgumentException, ParseException, SdpException {
+	public void sendOK(SipCall call, Request request, ServerTransaction transaction) throws SipException, InvalidArgumentException, ParseException, SdpException {
 		// Create a new response for the request
 		Response response = messageFactory.createResponse(Response.OK, request);
 
 		if (transaction == null) {
-			// Create the contact name address
-			SipURI contactURI = addressFactory.createSipURI(localSipProfile.getUserName(), localIPAddress);
-			contactURI.setPort(localSipPort);
-			Address contactAddress = addressFactory.createAddress(contactURI);
-			contactAddress.setDisplayName(localSipProfile.getDisplayName());
-
 			// Create a new Contact header
-			ContactHeader contactHeader = headerFactory.createContactHeader(contactAddress);
+			ContactHeader contactHeader = headerFactory.createContactHeader(createContactAddress());
 			contactHeader.setExpires(3600); // 20 minutes
 			response.addHeader(contactHeader);
 
@@ -403,9 +387,7 @@ public class SipMessageHandler {
 			response.setContent(sdp.toString(), contentTypeHeader);
 
 			// Send the created response
-			if (serverTransaction == null)
-				serverTransaction = sipProvider.getNewServerTransaction(request);
-			serverTransaction.sendResponse(response);
+			getServerTransaction(call).sendResponse(response);
 		} else {
 			transaction.sendResponse(response);
 		}
@@ -413,63 +395,96 @@ public class SipMessageHandler {
 	}
 
 	/**
-	 * Set the current sip dialog.
+	 * Send a sip ok reply to a re-INVITE of an established call, with the session description the call was set up with. The call itself is left
+	 * as it is.
 	 * 
-	 * @param dialog
-	 *            the SipManager's current dialog
+	 * @param call
+	 *            the established SipCall
+	 * @param request
+	 *            the re-INVITE
+	 * @param transaction
+	 *            the ServerTransaction of the re-INVITE, null to create it
+	 * @throws SipException
+	 * @throws InvalidArgumentException
+	 * @throws ParseException
+	 * @throws SdpException
 	 */
-	public void setDialog(Dialog dialog) {
-		this.currentDialog = dialog;
+	public void sendReinviteOK(SipCall call, Request request, ServerTransaction transaction) throws SipException, InvalidArgumentException, ParseException, SdpException {
+		if (transaction == null)
+			transaction = sipProvider.getNewServerTransaction(request);
+
+		// Create a new response for the request
+		Response response = messageFactory.createResponse(Response.OK, request);
+
+		// Create a new Contact header
+		ContactHeader contactHeader = headerFactory.createContactHeader(createContactAddress());
+		response.addHeader(contactHeader);
+
+		// The session is unchanged: answer with the description it was set up with
+		Request invite = call.getInvite();
+		ContentTypeHeader contentTypeHeader = headerFactory.createContentTypeHeader("application", "sdp");
+		SessionDescription sdp = createSDP(invite != null && invite.getRawContent() != null ? invite : null);
+		response.setContent(sdp.toString(), contentTypeHeader);
+
+		transaction.sendResponse(response);
+		System.out.println(TAG +": OK sent for re-INVITE");
 	}
 
 	/**
 	 * Send a sip bye request.
 	 * 
+	 * @param call
+	 *            the established SipCall to end
 	 * @throws ParseException
 	 * @throws InvalidArgumentException
 	 * @throws SipException
 	 */
-	public void sendBye() throws ParseException, InvalidArgumentException, SipException {
+	public void sendBye(SipCall call) throws ParseException, InvalidArgumentException, SipException {
 		// create Request from dialog
-		Request request = currentDialog.createRequest(Request.BYE);
+		Dialog dialog = call.getDialog();
+		Request request = dialog.createRequest(Request.BYE);
 
 		// Create the client transaction and send the request
 		ClientTransaction clientTransaction = sipProvider.getNewClientTransaction(request);
-		currentDialog.sendRequest(clientTransaction);
+		dialog.sendRequest(clientTransaction);
 		System.out.println(TAG +": BYE sent");
 	}
 
 	/**
-	 * Send a sip cancel request.
+	 * Send a sip cancel request for the INVITE of an outgoing call.
 	 * 
+	 * @param call
+	 *            the SipCall to cancel
 	 * @throws ParseException
 	 * @throws InvalidArgumentException
 	 * @throws SipException
 	 */
-	public void sendCancel() throws ParseException, InvalidArgumentException, SipException {
-		// create Request from dialog
-		Request request = clientTransaction.createCancel();
+	public void sendCancel(SipCall call) throws ParseException, InvalidArgumentException, SipException {
+		// create Request from the INVITE transaction
+		Request request = call.getClientTransaction().createCancel();
 
 		// Create the client transaction and send the request
-		clientTransaction = sipProvider.getNewClientTransaction(request);
+		ClientTransaction clientTransaction = sipProvider.getNewClientTransaction(request);
 		clientTransaction.sendRequest();
 		System.out.println(TAG +": CANCEL sent");
 	}
 
 	/**
-	 * Send a sip invite request.
+	 * Send a sip invite request for an outgoing call.
 	 * 
-	 * @param contact
-	 *            the SipContact to call
+	 * @param call
+	 *            the SipCall with the SipContact to call
 	 * @param state
-	 *            the SipRequestState of the SipManager
+	 *            the SipRequestState of the call
 	 * @throws ParseException
 	 * @throws InvalidArgumentException
 	 * @throws NullPointerException
 	 * @throws SipException
 	 * @throws SdpException
 	 */
-	public void sendInvite(SipContact contact, SipRequestState state) throws ParseException, InvalidArgumentException, NullPointerException, SipException, SdpException {
+	public void sendInvite(SipCall call, SipRequestState state) throws ParseException, InvalidArgumentException, NullPointerException, SipException, SdpException {
+		SipContact contact = call.getContact();
+
 		// create To and From headers
 		FromHeader fromHeader = localSipProfile.getFromHeader(addressFactory, headerFactory);
 		ToHeader toHeader = contact.getToHeader(addressFactory, headerFactory);
@@ -487,31 +502,22 @@ public class SipMessageHandler {
 			viaHeader.setRPort();
 		viaHeaders.add(viaHeader);
 
-		// Create a new CallId header
-		if (state.equals(SipRequestState.REGISTER))
-			currentCallID = sipProvider.getNewCallId();
-
 		// Create a new Cseq header
-		CSeqHeader cSeqHeader = headerFactory.createCSeqHeader(callSequence, Request.INVITE);
+		CSeqHeader cSeqHeader = headerFactory.createCSeqHeader(call.nextCallSequence(), Request.INVITE);
 
 		// Create a new MaxForwards header
 		MaxForwardsHeader maxForwards = headerFactory.createMaxForwardsHeader(70);
 
 		// Create the request
-		Request request = messageFactory.createRequest(requestURI, Request.INVITE, currentCallID, cSeqHeader, fromHeader, toHeader, viaHeaders, maxForwards);
+		Request request = messageFactory.createRequest(requestURI, Request.INVITE, call.getCallIdHeader(), cSeqHeader, fromHeader, toHeader, viaHeaders,
+				maxForwards);
 
 		// Create a new Expires header
 		ExpiresHeader expires = headerFactory.createExpiresHeader(120);
 		request.addFirst(expires);
 
-		// Create the contact name address
-		SipURI contactURI = addressFactory.createSipURI(localSipProfile.getUserName(), localIPAddress);
-		contactURI.setPort(localSipPort);
-		Address contactAddress = addressFactory.createAddress(contactURI);
-		contactAddress.setDisplayName(localSipProfile.getDisplayName());
-
 		// Create a new Contact header
-		ContactHeader contactHeader = headerFactory.createContactHeader(contactAddress);
+		ContactHeader contactHeader = headerFactory.createContactHeader(createContactAddress());
 		request.addHeader(contactHeader);
 
 		if (state.equals(SipRequestState.AUTHORIZATION)) {
@@ -523,71 +529,98 @@ public class SipMessageHandler {
 		request.setContent(sdp, contentTypeHeader);
 
 		// Create the client transaction and send the request
-		clientTransaction = sipProvider.getNewClientTransaction(request);
+		ClientTransaction clientTransaction = sipProvider.getNewClientTransaction(request);
+		call.setClientTransaction(clientTransaction);
+		call.setInvite(request);
 		clientTransaction.sendRequest();
 
-		currentDialog = clientTransaction.getDialog();
+		call.setDialog(clientTransaction.getDialog());
 		System.out.println(TAG +": INVITE sent");
 	}
 
 	/**
-	 * Send a sip decline response.
+	 * Send a sip decline response to the INVITE of an incoming call.
 	 * 
-	 * @param invite
-	 *            the Request to reply to
+	 * @param call
+	 *            the SipCall to decline
 	 * @throws ParseException
 	 * @throws SipException
 	 * @throws InvalidArgumentException
 	 */
-	public void sendDecline(Request invite) throws ParseException, SipException, InvalidArgumentException {
+	public void sendDecline(SipCall call) throws ParseException, SipException, InvalidArgumentException {
 		// Create a new response for the request
-		Response response = messageFactory.createResponse(Response.DECLINE, invite);
+		Response response = messageFactory.createResponse(Response.DECLINE, call.getInvite());
 
 		// Send the created response
-		if (serverTransaction == null)
-			serverTransaction = sipProvider.getNewServerTransaction(invite);
-		serverTransaction.sendResponse(response);
+		getServerTransaction(call).sendResponse(response);
 		System.out.println(TAG +": DECLINE sent");
 	}
 
 	/**
-	 * Send a sip busy here response.
+	 * Send a sip busy here response to the INVITE of an incoming call.
 	 * 
-	 * @param invite
-	 *            the Request to reply to
+	 * @param call
+	 *            the SipCall to reject
 	 * @throws ParseException
 	 * @throws SipException
 	 * @throws InvalidArgumentException
 	 */
-	public void sendBusyHere(Request invite) throws ParseException, SipException, InvalidArgumentException {
+	public void sendBusyHere(SipCall call) throws ParseException, SipException, InvalidArgumentException {
 		// Create a new response for the request
-		Response response = messageFactory.createResponse(Response.BUSY_HERE, invite);
+		Response response = messageFactory.createResponse(Response.BUSY_HERE, call.getInvite());
 
 		// Send the created response
-		if (serverTransaction == null)
-			serverTransaction = sipProvider.getNewServerTransaction(invite);
-		serverTransaction.sendResponse(response);
+		getServerTransaction(call).sendResponse(response);
 		System.out.println(TAG +": BUSY HERE sent");
 	}
 
 	/**
-	 * Send a sip not found response.
+	 * Answer the CANCEL of an incoming call with ok, and its INVITE with request terminated.
 	 * 
-	 * @param invite
-	 *            the Request to reply to
+	 * @param call
+	 *            the cancelled SipCall
+	 * @param cancel
+	 *            the CANCEL request
+	 * @param transaction
+	 *            the ServerTransaction of the CANCEL
 	 * @throws ParseException
 	 * @throws SipException
 	 * @throws InvalidArgumentException
 	 */
-	public void sendNotFound(Request invite) throws ParseException, SipException, InvalidArgumentException {
-		// Create a new response for the request
-		Response response = messageFactory.createResponse(Response.NOT_FOUND, invite);
+	public void sendCancelled(SipCall call, Request cancel, ServerTransaction transaction) throws ParseException, SipException, InvalidArgumentException {
+		Response response = messageFactory.createResponse(Response.OK, cancel);
+		if (transaction == null)
+			transaction = sipProvider.getNewServerTransaction(cancel);
+		transaction.sendResponse(response);
+
+		response = messageFactory.createResponse(Response.REQUEST_TERMINATED, call.getInvite());
+		getServerTransaction(call).sendResponse(response);
+		System.out.println(TAG +": REQUEST TERMINATED sent");
+	}
 
-		// Send the created response
-		if (serverTransaction == null)
-			serverTransaction = sipProvider.getNewServerTransaction(invite);
-		serverTransaction.sendResponse(response);
-		System.out.println(TAG +": NOT FOUND sent");
+	/**
+	 * @return the server transaction of the INVITE of an incoming call, created on first use
+	 */
+	private ServerTransaction getServerTransaction(SipCall call) throws SipException {
+		ServerTransaction serverTransaction = call.getServerTransaction();
+		if (serverTransaction == null) {
+			serverTransaction = sipProvider.getNewServerTransaction(call.getInvite());
+			call.setServerTransaction(serverTransaction);
+		}
+		return serverTransaction;
+	}
+
+	/**
+	 * @return the address of the local profile for the Contact headers
+	 * @throws ParseException
+	 */
+	private Address createContactAddress() throws ParseException {
+		// Create the contact name address
+		SipURI contactURI = addressFactory.createSipURI(localSipProfile.getUserName(), localIPAddress);
+		contactURI.setPort(localSipPort);
+		Address contactAddress = addressFactory.createAddress(contactURI);
+		contactAddress.setDisplayName(localSipProfile.getDisplayName());
+		return contactAddress;
 	}
 
 	/**
@@ -711,13 +744,55 @@ public class SipMessageHandler {
 	}
 
 	/**
-	 * Reset all current data.
+	 * Keep the flow the registration went out on open through the NAT (RFC 5626): STUN keepalives if the registrar supports outbound (Require: outbound in
+	 * its 200 OK), CRLF ones otherwise, at the interval of its Flow-Timer header if there is one.
+	 * 
+	 * @param registerTransaction
+	 *            the client transaction of the successful REGISTER
+	 * @param response
+	 *            the 200 OK to the REGISTER
+	 * @param listener
+	 *            told when the flow fails, to register again
+	 * @param applicationData
+	 *            the object of the registration, handed back with the failed flow
+	 */
+	public synchronized void startKeepalive(ClientTransaction registerTransaction, Response response, KeepaliveListener listener, Object applicationData) {
+		boolean outbound = false;
+		ListIterator<?> requireHeaders = response.getHeaders(RequireHeader.NAME);
+		while (requireHeaders.hasNext())
+			if ("outbound".equalsIgnoreCase(((RequireHeader) requireHeaders.next()).getOptionTag()))
+				outbound = true;
+
+		int interval = 0;
+		ExtensionHeader flowTimer = (ExtensionHeader) response.getHeader("Flow-Timer");
+		if (flowTimer != null) {
+			try {
+				interval = Integer.parseInt(flowTimer.getValue().trim());
+			} catch (NumberFormatException e) {
+			}
+		}
+
+		try {
+			KeepaliveScheduler keepaliveScheduler = ((SIPTransactionStack) sipEngine.getSipStack()).getKeepaliveScheduler();
+			keepaliveScheduler.removeKeepaliveListener(listener);
+			keepaliveScheduler.addKeepaliveListener(listener);
+			stopKeepalive();
+			TransactionExt transaction = (TransactionExt) registerTransaction;
+			keepaliveFlow = keepaliveScheduler.addFlow(listeningPoint.getTransport(), listeningPoint.getPort(), transaction.getPeerAddress(), transaction
+					.getPeerPort(), outbound, interval);
+			keepaliveFlow.setApplicationData(applicationData);
+		} catch (IOException e) {
+			System.out.println(TAG + ": could not start the keepalive: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Stop the keepalives of the registration.
 	 */
-	public void reset() {
-		serverTransaction = null;
-		clientTransaction = null;
-		currentDialog = null;
-		currentCallID = null;
-		callSequence = 1L;
+	public synchronized void stopKeepalive() {
+		if (keepaliveFlow != null) {
+			((SIPTransactionStack) sipEngine.getSipStack()).getKeepaliveScheduler().removeFlow(keepaliveFlow);
+			keepaliveFlow = null;
+		}
 	}
 }
@@ -19,6 +19,8 @@ import javax.sip.address.URI;
 import javax.sip.header.HeaderFactory;
 import javax.sip.header.ToHeader;
 
+import de.tinysip.rtp.RtpStream;
+
 /**
  * SipSession contains all information about an ongoing call.
  * 
@@ -40,6 +42,8 @@ public class SipSession {
 	private int remoteVideoRtpPort;
 	private int remoteVideoRtcpPort;
 
+	private RtpStream audioStream;
+
 	/**
 	 * Create a new SipSession by specifying the caller and the called sip uri
 	 * and the remote Internet address.
@@ -211,6 +215,21 @@ public class SipSession {
 		return remoteVideoRtcpPort;
 	}
 
+	/**
+	 * Set the RtpStream carrying the audio of the SipSession.
+	 * @param audioStream the audio RtpStream, opened by a RtpEngine
+	 */
+	public void setAudioStream(RtpStream audioStream) {
+		this.audioStream = audioStream;
+	}
+
+	/**
+	 * @return the RtpStream carrying the audio of the SipSession, or null if no media was started
+	 */
+	public RtpStream getAudioStream() {
+		return audioStream;
+	}
+
 	/**
 	 * @return javax.sip.address.URI of the called
 	 */
@@ -19,8 +19,8 @@ import java.util.List;
 
 import android.os.AsyncTask;
 import android.util.Log;
+import de.javawi.jstun.test.AsyncDiscoveryTest;
 import de.javawi.jstun.test.DiscoveryInfo;
-import de.javawi.jstun.test.DiscoveryTest;
 
 /**
  * Executes an asynchronous task for testing the NAT and NAT traversal. Raises a STUNDiscoveryResultEvent when new information is available.
@@ -46,13 +46,14 @@ public class STUNDiscoveryTask extends AsyncTask<STUNInfo, DiscoveryInfo, Discov
 
 		try {
 			Log.d(TAG, "Starting STUN test for " + stunInfo.getStunAddress() + ":" + stunInfo.getStunPort() + " from " + stunInfo.getLocalPort());
-			DiscoveryTest test = new DiscoveryTest(inetAddress, stunInfo.getLocalPort(), stunInfo.getStunAddress(), stunInfo.getStunPort());
+			AsyncDiscoveryTest test = new AsyncDiscoveryTest(inetAddress, stunInfo.getLocalPort(), stunInfo.getStunServers());
 			DiscoveryInfo info = test.test();
 
 			return info;
 		} catch (Exception e) {
 			try {
-				DiscoveryTest test = new DiscoveryTest(inetAddress, stunInfo.getStunAddress(), stunInfo.getStunPort());
+				// The local port may be taken, try any port.
+				AsyncDiscoveryTest test = new AsyncDiscoveryTest(inetAddress, 0, stunInfo.getStunServers());
 				DiscoveryInfo info = test.test();
 
 				return info;
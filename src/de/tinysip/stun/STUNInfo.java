@@ -9,6 +9,10 @@
 
 package de.tinysip.stun;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Contains information about the STUN discovery test to execute.
  * 
@@ -21,6 +25,7 @@ public class STUNInfo
 	private int stunPort;
 	private int localPort;
 	private int type;
+	private List<InetSocketAddress> alternateServers = new ArrayList<InetSocketAddress>();
 
 	/**
 	 * Create a new STUNInfo to contain information for the STUN discovery test. STUN tests a local port and its visibility from the internet, providing information about a NAT and NAT traversal.
@@ -75,6 +80,27 @@ public class STUNInfo
 		this.localPort = localPort;
 	}
 
+	/**
+	 * Add a further STUN server. All the servers are queried at the same time and the first consistent answer is used.
+	 * @param stunAddress the address of the STUN server to contact
+	 * @param stunPort the port of the STUN server to contact
+	 */
+	public void addStunServer(String stunAddress, int stunPort)
+	{
+		alternateServers.add(InetSocketAddress.createUnresolved(stunAddress, stunPort));
+	}
+
+	/**
+	 * @return the STUN servers to contact (unresolved), the one given to the constructor first
+	 */
+	public List<InetSocketAddress> getStunServers()
+	{
+		List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+		servers.add(InetSocketAddress.createUnresolved(stunAddress, stunPort));
+		servers.addAll(alternateServers);
+		return servers;
+	}
+
 	/**
 	 * @return the address of the STUN server to contact
 	 */
@@ -188,7 +188,8 @@ public class HostNameParser extends ParserCore {
 			else {
 				int startPtr = lexer.getPtr();
 				consumeDomainLabel();
-				hostname = lexer.getBuffer().substring(startPtr, lexer.getPtr());
+				// The same few hosts show up in every message.
+				hostname = InternCache.intern(lexer.getBuffer(), startPtr, lexer.getPtr());
 			}
 
 			if (hostname.length() == 0)
@@ -0,0 +1,136 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small, bounded cache of the strings the parsers see over and over again: host names,
+ * parameter names, URI parameter values, protocol and transport names, content types and the
+ * like. Looking up a token straight from the parse buffer returns the string parsed from an
+ * earlier message without allocating anything, so the values kept by long lived headers
+ * (Via, Contact, Route...) share a single copy instead of each holding its own.
+ * <p>
+ * The cache is a fixed size, direct mapped table shared by all the parsers of the VM. There is
+ * no lock: a slot is a single reference to an immutable String, so a racing reader sees either
+ * the old string or the new one, and a lost update only costs a later miss. Values that are
+ * different in every message (tags, branches, Call-IDs) must not be interned, they would only
+ * push the useful entries out.
+ * <p>
+ * Hits and misses are only counted once setCounting(true) has been called (a stack does it
+ * when it exports its metrics), so the parsers do not share contended counters otherwise.
+ *
+ * @version 1.2
+ *
+ */
+public final class InternCache {
+
+	// Must be a power of two.
+	private static final int SIZE = 4096;
+
+	// Longer tokens are not worth caching.
+	private static final int MAX_LENGTH = 64;
+
+	private static final String[] table = new String[SIZE];
+
+	private static final AtomicLong hits = new AtomicLong();
+
+	private static final AtomicLong misses = new AtomicLong();
+
+	private static volatile boolean counting;
+
+	private InternCache() {
+	}
+
+	/**
+	 * Get the cached copy of a substring of the buffer, caching it if it is not there.
+	 *
+	 * @param buffer -- the text being parsed.
+	 * @param start -- index of the first character.
+	 * @param end -- index after the last character.
+	 * @return a string equal to buffer.substring(start, end).
+	 */
+	public static String intern(String buffer, int start, int end) {
+		int length = end - start;
+		if (length > MAX_LENGTH || length <= 0)
+			return buffer.substring(start, end);
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + buffer.charAt(i);
+		int slot = (hash ^ (hash >>> 12)) & (SIZE - 1);
+		String cached = table[slot];
+		if (cached != null && cached.length() == length
+				&& buffer.regionMatches(start, cached, 0, length)) {
+			if (counting)
+				hits.incrementAndGet();
+			return cached;
+		}
+		if (counting)
+			misses.incrementAndGet();
+		String value = buffer.substring(start, end);
+		table[slot] = value;
+		return value;
+	}
+
+	/**
+	 * Get the cached copy of a string, caching it if it is not there.
+	 */
+	public static String intern(String value) {
+		return value == null ? null : intern(value, 0, value.length());
+	}
+
+	/**
+	 * Start or stop counting the hits and misses.
+	 */
+	public static void setCounting(boolean counting) {
+		InternCache.counting = counting;
+	}
+
+	public static boolean isCounting() {
+		return counting;
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Empty the cache and reset the counters.
+	 */
+	public static void clear() {
+		for (int i = 0; i < SIZE; i++)
+			table[i] = null;
+		hits.set(0);
+		misses.set(0);
+	}
+}
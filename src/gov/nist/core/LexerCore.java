@@ -386,6 +386,18 @@ public class LexerCore extends StringTokenizer {
 		}
 	}
 
+	/** Match an ID like match(ID) and return its value taken from the InternCache.
+	 * Only for tokens that take few distinct values (names, transports, content types...).
+	 */
+	public String internedId() throws ParseException {
+		if (!startsId())
+			throw new ParseException(buffer + "\nID expected", ptr);
+		int startIdx = ptr;
+		while (ptr < bufferLen && isTokenChar(buffer.charAt(ptr)))
+			ptr++;
+		return InternCache.intern(buffer, startIdx, ptr);
+	}
+
 	/* JvB: unreferenced
 	public String ttokenAllowSpace() {
 		int startIdx = ptr;
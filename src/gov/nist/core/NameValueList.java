@@ -31,17 +31,24 @@ package gov.nist.core;
 import java.util.concurrent.*;
 
 import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
  * Implements a simple NameValue association with a quick lookup function (via a
  * hash map) the default behavior for this class is not thread safe.
  * specify a constructor with boolean true to make this thread safe.
+ * <p>
+ * Most headers and URIs carry no more than a handful of parameters, so a list that is
+ * not thread safe keeps its first few entries in two small parallel arrays (names and
+ * values, in insertion order) that are searched linearly. It only moves its entries to a
+ * LinkedHashMap when it outgrows them. An empty list allocates nothing.
  * 
  * @version 1.2
  * 
@@ -56,6 +63,17 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	
 	private static final long serialVersionUID = -6998271876574260243L;
 
+	// Lists with more entries than this use hmap.
+	private static final int MAX_INLINE = 8;
+
+	// Keys (lower case names) and values while the list is small, null otherwise.
+	private String[] names;
+
+	private NameValue[] values;
+
+	private int count;
+
+	// The entries once the list has grown, or always for a thread safe list.
 	private Map<String,NameValue> hmap;
 
 	private String separator;
@@ -65,21 +83,88 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 */
 	public NameValueList() {
 		this.separator = ";";
-		this.hmap = new LinkedHashMap<String,NameValue>();
 	}
 
 	public NameValueList(boolean sync) {
 		this.separator = ";";
 		if (sync)
 			this.hmap = new ConcurrentHashMap<String,NameValue>();
-		else
-			this.hmap = new LinkedHashMap<String,NameValue>();
 	}
 
 	public void setSeparator(String separator) {
 		this.separator = separator;
 	}
 
+	private int indexOf(Object key) {
+		for (int i = 0; i < count; i++) {
+			if (names[i] == key || names[i].equals(key))
+				return i;
+		}
+		return -1;
+	}
+
+	private NameValue lookup(Object key) {
+		if (hmap != null)
+			return hmap.get(key);
+		int i = indexOf(key);
+		return i < 0 ? null : values[i];
+	}
+
+	private NameValue store(String key, NameValue nameValue) {
+		if (hmap != null)
+			return hmap.put(key, nameValue);
+		int i = indexOf(key);
+		if (i >= 0) {
+			NameValue old = values[i];
+			values[i] = nameValue;
+			return old;
+		}
+		if (count == MAX_INLINE) {
+			hmap = new LinkedHashMap<String,NameValue>();
+			for (i = 0; i < count; i++)
+				hmap.put(names[i], values[i]);
+			names = null;
+			values = null;
+			count = 0;
+			return hmap.put(key, nameValue);
+		}
+		if (names == null) {
+			names = new String[2];
+			values = new NameValue[2];
+		} else if (count == names.length) {
+			String[] newNames = new String[Math.min(count * 2, MAX_INLINE)];
+			NameValue[] newValues = new NameValue[newNames.length];
+			System.arraycopy(names, 0, newNames, 0, count);
+			System.arraycopy(values, 0, newValues, 0, count);
+			names = newNames;
+			values = newValues;
+		}
+		names[count] = key;
+		values[count] = nameValue;
+		count++;
+		return null;
+	}
+
+	private NameValue removeAt(int i) {
+		NameValue old = values[i];
+		int tail = count - i - 1;
+		if (tail > 0) {
+			System.arraycopy(names, i + 1, names, i, tail);
+			System.arraycopy(values, i + 1, values, i, tail);
+		}
+		count--;
+		names[count] = null;
+		values[count] = null;
+		return old;
+	}
+
+	private NameValue discard(Object key) {
+		if (hmap != null)
+			return hmap.remove(key);
+		int i = indexOf(key);
+		return i < 0 ? null : removeAt(i);
+	}
+
 	/**
 	 * Encode the list in semicolon separated form.
 	 * 
@@ -91,7 +176,13 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	}
 	
 	public StringBuffer encode(StringBuffer buffer) {
-		if (!hmap.isEmpty()) {
+		if (hmap == null) {
+			for (int i = 0; i < count; i++) {
+				if (i > 0)
+					buffer.append(separator);
+				values[i].encode(buffer);
+			}
+		} else if (!hmap.isEmpty()) {
 			Iterator<NameValue> iterator = hmap.values().iterator();
 			if (iterator.hasNext()) {
 				while (true) {
@@ -121,7 +212,7 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 */
 
 	public void set(NameValue nv) {
-		this.hmap.put(nv.getName().toLowerCase(), nv);
+		this.store(nv.getName().toLowerCase(), nv);
 	}
 
 	/**
@@ -129,7 +220,7 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 */
 	public void set(String name, Object value) {
 		NameValue nameValue = new NameValue(name, value);
-		hmap.put(name.toLowerCase(), nameValue);
+		this.store(name.toLowerCase(), nameValue);
 
 	}
 
@@ -146,15 +237,15 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 		}
 		NameValueList other = (NameValueList) otherObject;
 
-		if (hmap.size() != other.hmap.size()) {
+		if (this.size() != other.size()) {
 			return false;
 		}
-		Iterator<String> li = this.hmap.keySet().iterator();
+		Iterator<String> li = this.getNames();
 
 		while (li.hasNext()) {
 			String key = (String) li.next();
 			NameValue nv1 = this.getNameValue(key);
-			NameValue nv2 = (NameValue) other.hmap.get(key);
+			NameValue nv2 = other.lookup(key);
 			if (nv2 == null)
 				return false;
 			else if (!nv2.equals(nv1))
@@ -180,7 +271,7 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @since 1.0
 	 */
 	public NameValue getNameValue(String name) {
-		return (NameValue) this.hmap.get(name.toLowerCase());
+		return this.lookup(name.toLowerCase());
 	}
 
 	/**
@@ -190,7 +281,7 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @since 1.0
 	 */
 	public boolean hasNameValue(String name) {
-		return hmap.containsKey(name.toLowerCase());
+		return this.lookup(name.toLowerCase()) != null;
 	}
 
 	/**
@@ -199,20 +290,13 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @since 1.0
 	 */
 	public boolean delete(String name) {
-		String lcName = name.toLowerCase();
-		if (this.hmap.containsKey(lcName)) {
-			this.hmap.remove(lcName);
-			return true;
-		} else {
-			return false;
-		}
-
+		return this.discard(name.toLowerCase()) != null;
 	}
 
 	public Object clone() {
 		NameValueList retval = new NameValueList();
 		retval.setSeparator(this.separator);
-		Iterator<NameValue> it = this.hmap.values().iterator();
+		Iterator<NameValue> it = this.iterator();
 		while (it.hasNext()) {
 			retval.set((NameValue) ((NameValue) it.next()).clone());
 		}
@@ -223,14 +307,14 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * Return the size of the embedded map
 	 */
 	public int size() {
-		return this.hmap.size();
+		return hmap == null ? count : this.hmap.size();
 	}
 
 	/**
 	 * Return true if empty.
 	 */
 	public boolean isEmpty() {
-		return hmap.isEmpty();
+		return this.size() == 0;
 	}
 
 	/**
@@ -239,7 +323,13 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @return the iterator.
 	 */
 	public Iterator<NameValue> iterator() {
-		return this.hmap.values().iterator();
+		if (hmap != null)
+			return this.hmap.values().iterator();
+		return new InlineIterator<NameValue>() {
+			protected NameValue get(int i) {
+				return values[i];
+			}
+		};
 	}
 
 	/**
@@ -248,7 +338,13 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @return a list iterator that has the names of the parameters.
 	 */
 	public Iterator<String> getNames() {
-		return this.hmap.keySet().iterator();
+		if (hmap != null)
+			return this.hmap.keySet().iterator();
+		return new InlineIterator<String>() {
+			protected String get(int i) {
+				return names[i];
+			}
+		};
 
 	}
 
@@ -273,7 +369,13 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 */
 
 	public void clear() {
-		this.hmap.clear();	
+		if (hmap != null) {
+			this.hmap.clear();
+		} else {
+			names = null;
+			values = null;
+			count = 0;
+		}
 	}
 
 	/*
@@ -281,7 +383,7 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @see java.util.Map#containsKey(java.lang.Object)
 	 */
 	public boolean containsKey(Object key) {
-		return this.hmap.containsKey(key.toString().toLowerCase());
+		return this.lookup(key.toString().toLowerCase()) != null;
 	}
 
 	/*
@@ -289,7 +391,13 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @see java.util.Map#containsValue(java.lang.Object)
 	 */
 	public boolean containsValue(Object value) {
-		return this.hmap.containsValue(value);
+		if (hmap != null)
+			return this.hmap.containsValue(value);
+		for (int i = 0; i < count; i++) {
+			if (values[i].equals(value))
+				return true;
+		}
+		return false;
 	}
 
 	/*
@@ -297,7 +405,21 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @see java.util.Map#entrySet()
 	 */
 	public Set<java.util.Map.Entry<String, NameValue>> entrySet() {
-		return this.hmap.entrySet();
+		return new AbstractSet<Map.Entry<String, NameValue>>() {
+			public Iterator<Map.Entry<String, NameValue>> iterator() {
+				if (hmap != null)
+					return hmap.entrySet().iterator();
+				return new InlineIterator<Map.Entry<String, NameValue>>() {
+					protected Map.Entry<String, NameValue> get(int i) {
+						return new InlineEntry(i);
+					}
+				};
+			}
+
+			public int size() {
+				return NameValueList.this.size();
+			}
+		};
 	}
 
 	/*
@@ -305,7 +427,7 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @see java.util.Map#get(java.lang.Object)
 	 */
 	public NameValue get(Object key) {
-		return this.hmap.get(key.toString().toLowerCase());
+		return this.lookup(key.toString().toLowerCase());
 	}
 
 	/*
@@ -313,7 +435,19 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @see java.util.Map#keySet()
 	 */
 	public Set<String> keySet() {
-		return this.hmap.keySet();
+		return new AbstractSet<String>() {
+			public Iterator<String> iterator() {
+				return getNames();
+			}
+
+			public int size() {
+				return NameValueList.this.size();
+			}
+
+			public boolean contains(Object key) {
+				return lookup(key) != null;
+			}
+		};
 	}
 
 	/*
@@ -321,11 +455,12 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @see java.util.Map#put(java.lang.Object, java.lang.Object)
 	 */
 	public NameValue put(String name, NameValue nameValue) {
-		return this.hmap.put(name, nameValue);
+		return this.store(name, nameValue);
 	}
 
 	public void putAll(Map<? extends String, ? extends NameValue> map) {
-		this.hmap.putAll(map);
+		for (Map.Entry<? extends String, ? extends NameValue> entry : map.entrySet())
+			this.store(entry.getKey(), entry.getValue());
 	}
 
 	/*
@@ -333,7 +468,7 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @see java.util.Map#remove(java.lang.Object)
 	 */
 	public NameValue remove(Object key) {
-		return this.hmap.remove(key.toString().toLowerCase());
+		return this.discard(key.toString().toLowerCase());
 	}
 
 	/*
@@ -341,6 +476,79 @@ public class NameValueList implements Serializable, Map<String,NameValue> {
 	 * @see java.util.Map#values()
 	 */
 	public Collection<NameValue> values() {
-		return this.hmap.values();
+		return new AbstractCollection<NameValue>() {
+			public Iterator<NameValue> iterator() {
+				return NameValueList.this.iterator();
+			}
+
+			public int size() {
+				return NameValueList.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Iterator over the inline entries. Supports remove().
+	 */
+	private abstract class InlineIterator<T> implements Iterator<T> {
+
+		private int next;
+
+		private int last = -1;
+
+		public boolean hasNext() {
+			return next < count;
+		}
+
+		public T next() {
+			if (next >= count)
+				throw new NoSuchElementException();
+			last = next++;
+			return get(last);
+		}
+
+		public void remove() {
+			if (last < 0)
+				throw new IllegalStateException();
+			removeAt(last);
+			next = last;
+			last = -1;
+		}
+
+		protected abstract T get(int i);
+	}
+
+	private class InlineEntry implements Map.Entry<String, NameValue> {
+
+		private int index;
+
+		InlineEntry(int index) {
+			this.index = index;
+		}
+
+		public String getKey() {
+			return names[index];
+		}
+
+		public NameValue getValue() {
+			return values[index];
+		}
+
+		public NameValue setValue(NameValue value) {
+			NameValue old = values[index];
+			values[index] = value;
+			return old;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return getKey().equals(entry.getKey()) && getValue().equals(entry.getValue());
+		}
+
+		public int hashCode() {
+			return getKey().hashCode() ^ getValue().hashCode();
+		}
 	}
 }
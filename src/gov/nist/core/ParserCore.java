@@ -49,8 +49,8 @@ public abstract class ParserCore {
 		if (debug) dbg_enter("nameValue");
 		try {
                
-		lexer.match(LexerCore.ID);
-		Token name = lexer.getNextToken();
+		// Parameter names are few, share them across messages.
+		String name = lexer.internedId();
 		// eat white space.
 		lexer.SPorHT();
 		try {
@@ -79,15 +79,15 @@ public abstract class ParserCore {
 					   isFlag = true;
 				   }
 				}
-				NameValue nv = new NameValue(name.tokenValue,str,isFlag);
+				NameValue nv = new NameValue(name,str,isFlag);
 				if (quoted) nv.setQuotedValue();
 				return nv;
 			}  else {
 				// JvB: flag parameters must be empty string!
-				return new NameValue(name.tokenValue,"",true);
+				return new NameValue(name,"",true);
 			}
 		} catch (ParseException ex) {
-			return new NameValue(name.tokenValue,null,false);
+			return new NameValue(name,null,false);
 		}
 
 		} finally {
@@ -41,6 +41,7 @@ import gov.nist.javax.sip.message.MessageFactoryImpl;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
 import gov.nist.javax.sip.stack.MessageChannel;
+import gov.nist.javax.sip.stack.OverloadControl;
 import gov.nist.javax.sip.stack.SIPClientTransaction;
 import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
@@ -121,6 +122,35 @@ class DialogFilter implements ServerRequestInterface, ServerResponseInterface {
         }
     }
 
+    /**
+     * Reject a new request on behalf of the overload control. The transaction is mapped so that
+     * it absorbs the retransmissions of the request (and the ACK of an INVITE).
+     * 
+     * @param sipRequest
+     * @param transaction
+     */
+    private void send503Response(SIPRequest sipRequest, SIPServerTransaction transaction) {
+        if (sipStack.isLoggingEnabled())
+            sipStack.getLogWriter().logDebug("Sending 503 response -- overloaded");
+        SIPResponse sipResponse = sipRequest.createResponse(Response.SERVICE_UNAVAILABLE);
+
+        RetryAfter retryAfter = new RetryAfter();
+        try {
+            retryAfter.setRetryAfter(sipStack.getOverloadControl().getRetryAfter());
+        } catch (InvalidArgumentException ex) {
+            sipStack.getLogWriter().logError("bad Retry-After", ex);
+        }
+        sipResponse.addHeader(retryAfter);
+        try {
+            sipStack.addTransaction(transaction);
+            transaction.sendMessage(sipResponse);
+            transaction.releaseSem();
+        } catch (IOException ex) {
+            transaction.raiseIOExceptionEvent();
+            sipStack.removeTransaction(transaction);
+        }
+    }
+
     /**
      * Process a request. Check for various conditions in the dialog that can result in the
      * message being dropped. Possibly return errors for these conditions.
@@ -160,6 +190,19 @@ class DialogFilter implements ServerRequestInterface, ServerResponseInterface {
             if (sipStack.isLoggingEnabled())
                 sipStack.getLogWriter().logDebug("transaction state = " + transaction.getState());
         }
+
+        /*
+         * Shed new dialogs while the listener is overloaded (RFC 7339). Requests within dialogs
+         * still go through so that existing calls can be torn down.
+         */
+        OverloadControl overloadControl = sipStack.getOverloadControl();
+        if (overloadControl != null && transaction != null && sipRequest.getToTag() == null
+                && sipStack.isDialogCreated(sipRequest.getMethod())
+                && overloadControl.rejectRequest()) {
+            this.send503Response(sipRequest, transaction);
+            return;
+        }
+
         String dialogId = sipRequest.getDialogId(true);
         SIPDialog dialog = sipStack.getDialog(dialogId);
         /*
@@ -79,9 +79,12 @@ class EventScanner implements Runnable {
 
 	public void addEvent(EventWrapper eventWrapper) {
 		sipStack.getLogWriter().logDebug("addEvent " + eventWrapper);
+		if (sipStack.getOverloadControl() != null)
+			eventWrapper.queuedAt = StackMetrics.now();
 		synchronized (this.eventMutex) {
 
 			pendingEvents.add(eventWrapper);
+			sipStack.getMetrics().eventQueued();
 
 			// Add the event into the pending events list
 
@@ -219,8 +222,11 @@ class EventScanner implements Runnable {
 						sipStack.getLogWriter().logDebug(
 								"Calling listener " + eventWrapper.transaction);
 					}
+					LatencyTracer.mark(sipRequest, LatencyTracer.DISPATCHED);
 					if (sipListener != null)
 						sipListener.processRequest((RequestEvent) sipEvent);
+					if (sipStack.getLatencyTracer() != null)
+						sipStack.getLatencyTracer().finish(sipRequest);
 
 					if (sipStack.isLoggingEnabled()) {
 						sipStack.getLogWriter().logDebug(
@@ -287,7 +293,10 @@ class EventScanner implements Runnable {
 						if (tx != null) {
 							tx.setPassToListener();
 						}
+						LatencyTracer.mark(sipResponse, LatencyTracer.DISPATCHED);
 						sipListener.processResponse((ResponseEvent) sipEvent);
+						if (sipStack.getLatencyTracer() != null)
+							sipStack.getLatencyTracer().finish(sipResponse);
 					}
 
 					/*
@@ -488,6 +497,8 @@ class EventScanner implements Runnable {
 								"Processing " + eventWrapper + "nevents "
 										+ eventsToDeliver.size());
 					}
+					OverloadControl overloadControl = sipStack.getOverloadControl();
+					long start = overloadControl == null ? 0 : StackMetrics.now();
 					try {
 						deliverEvent(eventWrapper);
 					} catch (Exception e) {
@@ -495,6 +506,11 @@ class EventScanner implements Runnable {
 							sipStack.getLogWriter().logError(
 									"Unexpected exception caught while delivering event -- carrying on bravely", e);
 						}
+					} finally {
+						sipStack.getMetrics().eventDequeued();
+						if (overloadControl != null)
+							overloadControl.eventDelivered(start - eventWrapper.queuedAt,
+									StackMetrics.now() - start);
 					}
 				}
 			} // end While
@@ -35,6 +35,8 @@ class EventWrapper {
 	
 	protected EventObject sipEvent;
 	protected SIPTransaction transaction;
+	// When the event was queued for the listener (only kept for the overload control).
+	protected long queuedAt;
 	
 	EventWrapper(EventObject sipEvent, SIPTransaction transaction) {
 		this.sipEvent = sipEvent;
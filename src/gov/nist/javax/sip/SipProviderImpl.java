@@ -36,13 +36,16 @@ import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
 import gov.nist.javax.sip.stack.HopImpl;
+import gov.nist.javax.sip.stack.LatencyTracer;
 import gov.nist.javax.sip.stack.MessageChannel;
+import gov.nist.javax.sip.stack.OverloadControl;
 import gov.nist.javax.sip.stack.SIPClientTransaction;
 import gov.nist.javax.sip.stack.SIPDialog;
 import gov.nist.javax.sip.stack.SIPServerTransaction;
 import gov.nist.javax.sip.stack.SIPTransaction;
 import gov.nist.javax.sip.stack.SIPTransactionErrorEvent;
 import gov.nist.javax.sip.stack.SIPTransactionEventListener;
+import gov.nist.javax.sip.stack.StackMetrics;
 
 import java.io.IOException;
 import java.text.ParseException;
@@ -176,12 +179,27 @@ public final class SipProviderImpl implements javax.sip.SipProvider,
 
 		EventWrapper eventWrapper = new EventWrapper(sipEvent, transaction);
 
+		if (sipStack.getLatencyTracer() != null) {
+			if (sipEvent instanceof RequestEvent)
+				LatencyTracer.mark((SIPMessage) ((RequestEvent) sipEvent).getRequest(),
+						LatencyTracer.QUEUED);
+			else if (sipEvent instanceof ResponseEvent)
+				LatencyTracer.mark((SIPMessage) ((ResponseEvent) sipEvent).getResponse(),
+						LatencyTracer.QUEUED);
+		}
+
 		if (!sipStack.reEntrantListener) {
 			// Run the event in the context of a single thread.
 			this.eventScanner.addEvent(eventWrapper);
 		} else {
 			// just call the delivery method
-			this.eventScanner.deliverEvent(eventWrapper);
+			OverloadControl overloadControl = sipStack.getOverloadControl();
+			if (overloadControl != null) {
+				long start = StackMetrics.now();
+				this.eventScanner.deliverEvent(eventWrapper);
+				overloadControl.eventDelivered(0, StackMetrics.now() - start);
+			} else
+				this.eventScanner.deliverEvent(eventWrapper);
 		}
 	}
 
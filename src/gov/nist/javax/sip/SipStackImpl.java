@@ -25,6 +25,7 @@
  */
 package gov.nist.javax.sip;
 
+import gov.nist.core.InternCache;
 import gov.nist.core.LogWriter;
 import gov.nist.core.net.AddressResolver;
 import gov.nist.core.net.NetworkLayer;
@@ -35,11 +36,18 @@ import gov.nist.javax.sip.clientauthutils.AuthenticationHelperImpl;
 import gov.nist.javax.sip.parser.StringMsgParser;
 import gov.nist.javax.sip.stack.DefaultMessageLogFactory;
 import gov.nist.javax.sip.stack.DefaultRouter;
+import gov.nist.javax.sip.stack.DialogStore;
+import gov.nist.javax.sip.stack.LatencyTracer;
 import gov.nist.javax.sip.stack.MessageProcessor;
+import gov.nist.javax.sip.stack.MetricsExporter;
+import gov.nist.javax.sip.stack.OverloadControl;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 import gov.nist.javax.sip.stack.ServerLog;
+import gov.nist.javax.sip.stack.SourceRateLimiter;
+import gov.nist.javax.sip.stack.StatelessProxy;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -267,6 +275,111 @@ import org.apache.log4j.Logger;
  * is <it>false</it>. This flag is added to allow Sip Listeners to receive all NOTIFY requests
  * including those that are not part of a valid dialog.
  * 
+ * <li><b>gov.nist.javax.sip.STATELESS_PROXY = [true|false] </b> <br/> Default
+ * is <it>false</it>. Run the stack as a stateless proxy (RFC 3261 section 16.11). Requests
+ * that are not addressed to one of the listening points of the stack are forwarded to the
+ * next hop computed by the router and responses are relayed back along the Via path without
+ * creating transactions or reaching the SipListener, whatever transport they arrive on. UDP
+ * datagrams are relayed by splicing the original bytes (a Via is pushed, Max-Forwards is
+ * decremented and the top Route is stripped) and are only fully parsed when this cannot be
+ * done; TCP and TLS messages are parsed. A message that cannot be forwarded is logged and
+ * processed as if the stack were not a proxy.
+ * 
+ * <li><b>gov.nist.javax.sip.METRICS_JMX = [true|false] </b> <br/> Default
+ * is <it>false</it>. Register the stack metrics (see {@link #getMetrics()}) with the platform
+ * MBean server under gov.nist.javax.sip:type=StackMetrics,name=&lt;stack name&gt;.
+ * 
+ * <li><b>gov.nist.javax.sip.METRICS_PORT = integer </b> <br/> If set, the stack metrics are
+ * served as plain text (one sample per line) to connections on this port of the loopback
+ * interface. Message counters per method and status class, retransmissions, Timer B/F/H
+ * timeouts, parse failures, queue depths, table sizes and transaction latency histograms
+ * (overall, by method and by status class of the final response) are exported.
+ * 
+ * <li><b>gov.nist.javax.sip.LATENCY_TRACING = [true|false] </b> <br/> Default
+ * is <it>false</it>. Time stamp every incoming message when it is read from the socket,
+ * parsed, matched to a transaction, queued for the listener and handed to and returned from
+ * the SipListener. The time spent between these stages is added to the exported metrics as
+ * one histogram per stage.
+ * 
+ * <li><b>gov.nist.javax.sip.LATENCY_TRACE_SAMPLE = integer </b> <br/> Default
+ * is <it>0</it>. When latency tracing is on, log the stage breakdown of one message out of
+ * this many at INFO level. 0 disables the trace log.
+ * 
+ * <li><b>gov.nist.javax.sip.COMPACT_CONFIRMED_DIALOGS = [true|false] </b> <br/> Default
+ * is <it>false</it>. Once a dialog has been confirmed and its transactions are over, release
+ * the messages and transactions it holds on to and keep only what is needed to build requests
+ * within the dialog (tags, sequence numbers, Call-ID, route set, remote target), encoded as
+ * bytes. The parsed objects are rebuilt on demand the next time the dialog is used. This
+ * greatly reduces the heap used by long lived calls.
+ * 
+ * <li><b>gov.nist.javax.sip.DIALOG_STORE_FILE = fileName </b> <br/> If set, compacted dialogs
+ * are also written to this memory mapped file (and COMPACT_CONFIRMED_DIALOGS is turned on).
+ * When the stack is restarted with the same file, the confirmed dialogs of the previous run
+ * are restored as soon as a request for one of them arrives on the listening point it was
+ * bound to, so that calls in progress survive the restart. See
+ * {@link gov.nist.javax.sip.stack.SIPTransactionStack#restoreDialogs()}.
+ * 
+ * <li><b>gov.nist.javax.sip.DIALOG_STORE_SLOTS = integer </b> <br/> Default
+ * is <it>10000</it>. The number of dialogs the dialog store file can hold (each takes
+ * 2 KB of the file). Only used when the file is created.
+ * 
+ * <li><b>gov.nist.javax.sip.STUN_RESPONDER = [true|false] </b> <br/> Default
+ * is <it>false</it>. Answer STUN Binding Requests (RFC 5389, and RFC 3489 for older clients)
+ * sent to the UDP listening points, so that clients behind a NAT can discover their public
+ * address and send keepalives to the SIP port itself. STUN datagrams are told apart from SIP
+ * by their first byte and never reach the SIP message queue.
+ * 
+ * <li><b>gov.nist.javax.sip.FREEZE_RECEIVED_HEADERS = [true|false] </b> <br/> Default
+ * is <it>false</it>. Freeze the From, Call-ID, CSeq and Via headers of received requests, so
+ * that the responses created for them, and clones of them, share these headers instead of
+ * copying them. A frozen header throws an IllegalStateException from its setters, and the
+ * clones of a received request share these headers with it: only set true if the application
+ * never changes them in place (for instance a B2BUA or proxy that clones a received request
+ * and sets the tag of its From or the sequence number of its CSeq), but replaces them with
+ * setHeader. The addresses and URIs held by a shared header are shared too.
+ * 
+ * <li><b>gov.nist.javax.sip.RETRANSMISSION_CACHE_SIZE = integer </b> <br/> Default
+ * is <it>0</it>. Number of final responses every UDP listening point keeps to answer
+ * retransmitted requests with, straight from the thread that reads the socket: retransmissions
+ * of a request already answered with a final response (a 2xx for an INVITE) are not parsed
+ * and never reach the transaction layer. 0 disables the cache. Not used by a stateless proxy.
+ * 
+ * <li><b>gov.nist.javax.sip.OVERLOAD_CONTROL = [true|false] </b> <br/> Default
+ * is <it>false</it>. Measure how long events wait for the listener and how long the listener
+ * takes to handle them and, while either average goes over its limit, answer a growing share
+ * of the new dialog creating requests (INVITE, SUBSCRIBE, REFER) with a 503 (Service
+ * Unavailable) and a Retry-After, instead of passing them to the listener. Requests within
+ * dialogs are always passed on. See {@link gov.nist.javax.sip.stack.OverloadControl}.
+ * 
+ * <li><b>gov.nist.javax.sip.OVERLOAD_QUEUE_DELAY = integer </b> <br/> Default
+ * is <it>200</it>. Longest average time (ms) events may wait in the event queue before the
+ * overload control starts rejecting requests. 0 to ignore the queue delay.
+ * 
+ * <li><b>gov.nist.javax.sip.OVERLOAD_SERVICE_TIME = integer </b> <br/> Default
+ * is <it>500</it>. Longest average time (ms) the listener may take per event before the
+ * overload control starts rejecting requests. 0 to ignore the service time.
+ * 
+ * <li><b>gov.nist.javax.sip.OVERLOAD_RETRY_AFTER = integer </b> <br/> Default
+ * is <it>5</it>. Seconds put in the Retry-After header of the 503 responses of the
+ * overload control.
+ * 
+ * <li><b>gov.nist.javax.sip.SOURCE_RATE_LIMIT_INVITE = integer </b> <br/> Default
+ * is <it>0</it>. INVITEs per second accepted from one source address, with bursts of up to
+ * one second worth. Messages over the rate are dropped before they are parsed, on UDP as well
+ * as on TCP and TLS connections. 0 for no limit. See
+ * {@link gov.nist.javax.sip.stack.SourceRateLimiter}.
+ * 
+ * <li><b>gov.nist.javax.sip.SOURCE_RATE_LIMIT_REGISTER = integer </b> <br/> Default
+ * is <it>0</it>. REGISTERs per second accepted from one source address. 0 for no limit.
+ * 
+ * <li><b>gov.nist.javax.sip.SOURCE_RATE_LIMIT_OTHER = integer </b> <br/> Default
+ * is <it>0</it>. Other messages (other requests and responses) per second accepted from one
+ * source address. 0 for no limit.
+ * 
+ * <li><b>gov.nist.javax.sip.SOURCE_RATE_LIMIT_SOURCES = integer </b> <br/> Default
+ * is <it>4096</it>. Number of source addresses the rate limiter keeps track of at a time
+ * (each takes 40 bytes). Sources seen the longest time ago are forgotten first.
+ * 
  * <li><b>javax.net.ssl.keyStore = fileName </b> <br/> Default
  * is <it>NULL</it>.  If left undefined the keyStore and trustStore will be left to the java
  * runtime defaults.  If defined, any TLS sockets created (client and server) will use the 
@@ -718,6 +831,112 @@ public class SipStackImpl extends SIPTransactionStack implements javax.sip.SipSt
                 "true");
         super.logStackTraceOnMessageSend = configurationProperties.getProperty(
                 "gov.nist.javax.sip.LOG_STACK_TRACE_ON_MESSAGE_SEND", "false").equalsIgnoreCase("true");
+
+        if (configurationProperties.getProperty("gov.nist.javax.sip.STATELESS_PROXY", "false")
+                .equalsIgnoreCase("true")) {
+            super.statelessProxy = new StatelessProxy(this);
+        }
+
+        if (configurationProperties.getProperty("gov.nist.javax.sip.LATENCY_TRACING", "false")
+                .equalsIgnoreCase("true")) {
+            int sampleInterval = 0;
+            try {
+                sampleInterval = Integer.parseInt(configurationProperties.getProperty(
+                        "gov.nist.javax.sip.LATENCY_TRACE_SAMPLE", "0"));
+            } catch (NumberFormatException ex) {
+                this.logWriter.logError("latency trace sample - bad value " + ex.getMessage());
+            }
+            super.latencyTracer = new LatencyTracer(this, sampleInterval);
+        }
+
+        if (configurationProperties.getProperty("gov.nist.javax.sip.OVERLOAD_CONTROL", "false")
+                .equalsIgnoreCase("true")) {
+            int maxQueueDelay = 200;
+            int maxServiceTime = 500;
+            int retryAfter = 5;
+            try {
+                maxQueueDelay = Integer.parseInt(configurationProperties.getProperty(
+                        "gov.nist.javax.sip.OVERLOAD_QUEUE_DELAY", "200"));
+                maxServiceTime = Integer.parseInt(configurationProperties.getProperty(
+                        "gov.nist.javax.sip.OVERLOAD_SERVICE_TIME", "500"));
+                retryAfter = Integer.parseInt(configurationProperties.getProperty(
+                        "gov.nist.javax.sip.OVERLOAD_RETRY_AFTER", "5"));
+            } catch (NumberFormatException ex) {
+                this.logWriter.logError("overload control - bad value " + ex.getMessage());
+            }
+            super.overloadControl = new OverloadControl(this, maxQueueDelay, maxServiceTime,
+                    retryAfter);
+        }
+
+        int[] sourceRates = new int[3];
+        int sources = 4096;
+        try {
+            sourceRates[SourceRateLimiter.INVITE] = Integer.parseInt(configurationProperties
+                    .getProperty("gov.nist.javax.sip.SOURCE_RATE_LIMIT_INVITE", "0"));
+            sourceRates[SourceRateLimiter.REGISTER] = Integer.parseInt(configurationProperties
+                    .getProperty("gov.nist.javax.sip.SOURCE_RATE_LIMIT_REGISTER", "0"));
+            sourceRates[SourceRateLimiter.OTHER] = Integer.parseInt(configurationProperties
+                    .getProperty("gov.nist.javax.sip.SOURCE_RATE_LIMIT_OTHER", "0"));
+            sources = Integer.parseInt(configurationProperties.getProperty(
+                    "gov.nist.javax.sip.SOURCE_RATE_LIMIT_SOURCES", "4096"));
+        } catch (NumberFormatException ex) {
+            this.logWriter.logError("source rate limit - bad value " + ex.getMessage());
+        }
+        if (sourceRates[SourceRateLimiter.INVITE] > 0
+                || sourceRates[SourceRateLimiter.REGISTER] > 0
+                || sourceRates[SourceRateLimiter.OTHER] > 0) {
+            super.sourceRateLimiter = new SourceRateLimiter(this, sources, sourceRates);
+        }
+
+        super.compactConfirmedDialogs = configurationProperties.getProperty(
+                "gov.nist.javax.sip.COMPACT_CONFIRMED_DIALOGS", "false").equalsIgnoreCase("true");
+
+        super.stunResponder = configurationProperties.getProperty(
+                "gov.nist.javax.sip.STUN_RESPONDER", "false").equalsIgnoreCase("true");
+
+        super.freezeReceivedHeaders = configurationProperties.getProperty(
+                "gov.nist.javax.sip.FREEZE_RECEIVED_HEADERS", "false").equalsIgnoreCase("true");
+
+        try {
+            super.retransmissionCacheSize = Integer.parseInt(configurationProperties.getProperty(
+                    "gov.nist.javax.sip.RETRANSMISSION_CACHE_SIZE", "0"));
+        } catch (NumberFormatException ex) {
+            this.logWriter.logError("retransmission cache size - bad value " + ex.getMessage());
+        }
+
+        String dialogStoreFile = configurationProperties
+                .getProperty("gov.nist.javax.sip.DIALOG_STORE_FILE");
+        if (dialogStoreFile != null) {
+            int slots = 10000;
+            try {
+                slots = Integer.parseInt(configurationProperties.getProperty(
+                        "gov.nist.javax.sip.DIALOG_STORE_SLOTS", "10000"));
+            } catch (NumberFormatException ex) {
+                this.logWriter.logError("dialog store slots - bad value " + ex.getMessage());
+            }
+            try {
+                super.dialogStore = new DialogStore(this, new File(dialogStoreFile), slots);
+                super.compactConfirmedDialogs = true;
+            } catch (IOException ex) {
+                getLogWriter().logError("Could not open the dialog store " + dialogStoreFile, ex);
+            }
+        }
+
+        boolean metricsJmx = configurationProperties.getProperty("gov.nist.javax.sip.METRICS_JMX",
+                "false").equalsIgnoreCase("true");
+        String metricsPort = configurationProperties.getProperty("gov.nist.javax.sip.METRICS_PORT");
+        if (metricsJmx || metricsPort != null) {
+            super.metricsExporter = new MetricsExporter(this);
+            InternCache.setCounting(true);
+            try {
+                if (metricsJmx)
+                    metricsExporter.registerMBean();
+                if (metricsPort != null)
+                    metricsExporter.startTextEndpoint(Integer.parseInt(metricsPort));
+            } catch (Exception ex) {
+                getLogWriter().logError("Could not export stack metrics", ex);
+            }
+        }
         logWriter.logDebug("created Sip stack. Properties = " + configurationProperties);
         InputStream in = getClass().getResourceAsStream("/TIMESTAMP");
         if (in != null) {
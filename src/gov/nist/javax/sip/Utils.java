@@ -86,6 +86,21 @@ public class Utils implements UtilsExt {
 		return new String(c);
 	}
 
+	/**
+	 * Return true if a branch identifier starts with the magic cookie of RFC
+	 * 3261, in any case. Unlike lower casing the branch first, this does not
+	 * allocate.
+	 *
+	 * @param branch
+	 *            the branch identifier, or null.
+	 */
+	public static boolean isRfc3261Branch(String branch) {
+		return branch != null
+				&& branch.regionMatches(true, 0,
+						SIPConstants.BRANCH_MAGIC_COOKIE, 0,
+						SIPConstants.BRANCH_MAGIC_COOKIE.length());
+	}
+
 	/**
 	 * Put quotes around a string and return it.
 	 * Any " characters appearing in str are escaped
@@ -57,6 +57,7 @@ public abstract class AddressParametersHeader extends ParametersHeader implement
 	 * @see gov.nist.javax.sip.header.AddressParameters#setAddress(javax.sip.address.Address)
 	 */
 	public void setAddress(Address address) {
+		checkFrozen();
 		this.address = (AddressImpl) address;
 	}
 
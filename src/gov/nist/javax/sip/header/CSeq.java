@@ -130,6 +130,7 @@ public class CSeq extends SIPHeader implements javax.sip.header.CSeqHeader {
 	 */
 	public void setSeqNumber(long sequenceNumber)
 		throws InvalidArgumentException {
+		checkFrozen();
 		if (sequenceNumber < 0 )
 			throw new InvalidArgumentException(
 				"JAIN-SIP Exception, CSeq, setSequenceNumber(), "
@@ -146,6 +147,7 @@ public class CSeq extends SIPHeader implements javax.sip.header.CSeqHeader {
 	 * For backwards compatibility
 	 */
 	public void setSequenceNumber(int sequenceNumber) throws InvalidArgumentException {
+		checkFrozen();
 		this.setSeqNumber( (long) sequenceNumber );
 	}
 	
@@ -154,6 +156,7 @@ public class CSeq extends SIPHeader implements javax.sip.header.CSeqHeader {
 	 * @see javax.sip.header.CSeqHeader#setMethod(java.lang.String)
 	 */
 	public void setMethod(String meth) throws ParseException {
+		checkFrozen();
 		if (meth == null)
 			throw new NullPointerException(
 				"JAIN-SIP Exception, CSeq"
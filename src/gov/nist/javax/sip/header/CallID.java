@@ -114,6 +114,7 @@ public class CallID
 	 * not a token@token.
 	 */
 	public void setCallId(String cid) throws ParseException {
+		checkFrozen();
 		try {
 			callIdentifier = new CallIdentifier(cid);
 		} catch (IllegalArgumentException ex) {
@@ -126,6 +127,7 @@ public class CallID
 	 * @param cid CallIdentifier to set (localId@host).
 	 */
 	public void setCallIdentifier(CallIdentifier cid) {
+		checkFrozen();
 		callIdentifier = cid;
 	}
 
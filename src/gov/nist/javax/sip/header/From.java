@@ -130,6 +130,7 @@ public final class From
 	/** remove Tag member
 	 */
 	public void removeTag() {
+		checkFrozen();
 		parameters.delete(ParameterNames.TAG);
 	}
 
@@ -138,6 +139,7 @@ public final class From
 	 * @param address Address to set
 	 */
 	public void setAddress(javax.sip.address.Address address) {
+		checkFrozen();
 		this.address = (AddressImpl) address;
 	}
 
@@ -73,6 +73,7 @@ public class MaxForwards extends SIPHeader implements MaxForwardsHeader {
 	     */
 	public void setMaxForwards(int maxForwards)
 		throws InvalidArgumentException {
+		checkFrozen();
 		if (maxForwards < 0 || maxForwards > 255)
 			throw new InvalidArgumentException(
 				"bad max forwards value " + maxForwards);
@@ -102,6 +103,7 @@ public class MaxForwards extends SIPHeader implements MaxForwardsHeader {
 	/** decrement MaxForwards field one by one.
 	 */
 	public void decrementMaxForwards() throws TooManyHopsException {
+		checkFrozen();
 		if (maxForwards > 0)
 			maxForwards--;
 		else throw new TooManyHopsException ("has already reached 0!");
@@ -119,6 +119,7 @@ public abstract class ParametersHeader
 	*/
 
 	public void removeParameter(String name) {
+		checkFrozen();
 		this.parameters.delete(name);
 	}
 
@@ -141,6 +142,7 @@ public abstract class ParametersHeader
 	 *
 	 */
 	public void setParameter(String name, String value) throws ParseException {
+		checkFrozen();
 		NameValue nv = parameters.getNameValue(name);
 		if (nv != null) {
 			nv.setValueAsObject(value);
@@ -170,6 +172,7 @@ public abstract class ParametersHeader
 	 */
 	public void setQuotedParameter(String name, String value)
 		throws ParseException {
+		checkFrozen();
 		NameValue nv = parameters.getNameValue(name);
 		if (nv != null) {
 			nv.setValueAsObject(value);
@@ -197,6 +200,7 @@ public abstract class ParametersHeader
 	 *
 	 */
 	protected void setParameter(String name, int value) {
+		checkFrozen();
 		Integer val = new Integer(value);
 		this.parameters.set(name,val);
 		
@@ -218,6 +222,7 @@ public abstract class ParametersHeader
 	 *
 	 */
 	protected void setParameter(String name, boolean value) {
+		checkFrozen();
 		Boolean val = new Boolean(value);
 		this.parameters.set(name,val);
 	}
@@ -237,6 +242,7 @@ public abstract class ParametersHeader
 	 *
 	 */
 	protected void setParameter(String name, float value) {
+		checkFrozen();
 		Float val = new Float(value);
 		NameValue nv = parameters.getNameValue(name);
 		if (nv != null) {
@@ -266,6 +272,7 @@ public abstract class ParametersHeader
 	 *
 	 */
 	protected void setParameter(String name, Object value) {
+		checkFrozen();
 		this.parameters.set(name,value);
 	}
 
@@ -284,6 +291,7 @@ public abstract class ParametersHeader
 	 *Remove all parameters.
 	 */
 	public void removeParameters() {
+		checkFrozen();
 		this.parameters = new NameValueList();
 	}
 
@@ -300,6 +308,7 @@ public abstract class ParametersHeader
 	 * @param nameValue - the name value of the parameter to set.
 	 */
 	public void setParameter(NameValue nameValue) {
+		checkFrozen();
 		this.parameters.set(nameValue);
 	}
 
@@ -309,6 +318,7 @@ public abstract class ParametersHeader
 	 * @param parameters The name value list to set as the parameter list.
 	 */
 	public void setParameters(NameValueList parameters) {
+		checkFrozen();
 		this.parameters = parameters;
 	}
 
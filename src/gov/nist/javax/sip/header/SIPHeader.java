@@ -44,6 +44,11 @@ public abstract class SIPHeader
 	 */
 	protected String headerName;
 
+	/** Set once the header may be shared between messages. Private, so
+	 * that the introspection based equals() and match() skip it.
+	 */
+	private boolean frozen;
+
 	/** Value of the header.
 	*/
 
@@ -104,6 +109,55 @@ public abstract class SIPHeader
 		return buffer.toString().trim();
 	}
 
+	/**
+	 * Make this header immutable, so that messages can share it instead of
+	 * cloning it: SIPMessage.clone() and the requests and responses a
+	 * SIPRequest creates reuse a frozen header as is. The setters of the
+	 * headers the stack shares (From, To, Call-ID, CSeq, Via, Max-Forwards,
+	 * Content-Length and the parameters of every parameterized header)
+	 * throw an IllegalStateException on a frozen header; to change one,
+	 * set a clone of it, which is never frozen. The objects a header holds
+	 * (addresses, URIs) are not frozen and must be left alone too.
+	 */
+	public void freeze() {
+		frozen = true;
+	}
+
+	/**
+	 * @return true if this header is immutable and may be shared.
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * Throw if this header is frozen. Called first by every setter of a
+	 * header that may be shared.
+	 */
+	protected final void checkFrozen() {
+		if (frozen)
+			throw new IllegalStateException("Frozen header -- set a clone of it instead: "
+					+ headerName);
+	}
+
+	/**
+	 * Copy this header for another message.
+	 *
+	 * @return this header if it is frozen, a clone of it otherwise.
+	 */
+	public Object cloneIfMutable() {
+		return frozen ? this : clone();
+	}
+
+	/**
+	 * A clone of a frozen header is not frozen.
+	 */
+	public Object clone() {
+		SIPHeader retval = (SIPHeader) super.clone();
+		retval.frozen = false;
+		return retval;
+	}
+
 	/** Return false if this is not a header list 
 	* (SIPHeaderList overrrides this method).
 	*@return false
@@ -446,6 +446,28 @@ public abstract class SIPHeaderList<HDR extends SIPHeader> extends SIPHeader imp
 	 * @return clone of this Header.
 	 */
 	public Object clone() {
+		return newList().clonehlist(this.hlist);
+	}
+
+	/**
+	 * Copy this list for another message: the copy is a list of its own,
+	 * holding the frozen headers of this one and clones of the others.
+	 *
+	 * @return the copy.
+	 */
+	public Object cloneIfMutable() {
+		SIPHeaderList<HDR> retval = newList();
+		for (Iterator<HDR> it = hlist.iterator(); it.hasNext();) {
+			HDR h = it.next();
+			retval.hlist.add(h.isFrozen() ? h : myClass.cast(h.clone()));
+		}
+		return retval;
+	}
+
+	/**
+	 * @return an empty list of the same type and name as this one.
+	 */
+	private SIPHeaderList<HDR> newList() {
 		try {
 			Class<?> clazz = this.getClass();
 
@@ -453,7 +475,7 @@ public abstract class SIPHeaderList<HDR extends SIPHeader> extends SIPHeader imp
 			SIPHeaderList<HDR> retval = (SIPHeaderList<HDR>) cons.newInstance((Object[])null);
 			retval.headerName = this.headerName;
 			retval.myClass  = this.myClass;
-			return retval.clonehlist(this.hlist);
+			return retval;
 		} catch (Exception ex) {
 			throw new RuntimeException("Could not clone!", ex);
 		}
@@ -476,6 +498,25 @@ public abstract class SIPHeaderList<HDR extends SIPHeader> extends SIPHeader imp
 		return hlist.size();
 	}
 
+	/**
+	 * Freeze the headers in the list. The list itself stays mutable, so a
+	 * message sharing the headers of another one has a list of its own.
+	 */
+	public void freeze() {
+		for (Iterator<HDR> it = hlist.iterator(); it.hasNext();)
+			it.next().freeze();
+	}
+
+	/**
+	 * @return true if every header in the list is frozen.
+	 */
+	public boolean isFrozen() {
+		for (Iterator<HDR> it = hlist.iterator(); it.hasNext();)
+			if (!it.next().isFrozen())
+				return false;
+		return true;
+	}
+
 	/**
 	 * Return true if this is a header list (overrides the base class method
 	 * which returns false).
@@ -159,6 +159,7 @@ public final class To extends AddressParametersHeader implements
 	 * remove Tag member
 	 */
 	public void removeTag() {
+			checkFrozen();
 			if (parameters != null)
 				parameters.delete(ParameterNames.TAG);
 	
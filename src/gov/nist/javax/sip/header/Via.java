@@ -194,12 +194,14 @@ public class Via
 	/** remove the port.
 	 */
 	public void removePort() {
+		checkFrozen();
 		sentBy.removePort();
 	}
 
 	/** remove the comment field.
 	 */
 	public void removeComment() {
+		checkFrozen();
 		comment = null;
 	}
 
@@ -207,6 +209,7 @@ public class Via
 	 * @param protocolVersion String to set
 	 */
 	public void setProtocolVersion(String protocolVersion) {
+		checkFrozen();
 		if (sentProtocol == null)
 			sentProtocol = new Protocol();
 		sentProtocol.setProtocolVersion(protocolVersion);
@@ -216,6 +219,7 @@ public class Via
 	     * @param host String to set
 	     */
 	public void setHost(Host host) {
+		checkFrozen();
 		if (sentBy == null) {
 			sentBy = new HostPort();
 		}
@@ -227,6 +231,7 @@ public class Via
 	 * @param s Protocol to set.
 	 */
 	public void setSentProtocol(Protocol s) {
+		checkFrozen();
 		sentProtocol = s;
 	}
 
@@ -235,6 +240,7 @@ public class Via
 	 * @param s HostPort to set.
 	 */
 	public void setSentBy(HostPort s) {
+		checkFrozen();
 		sentBy = s;
 	}
 
@@ -244,6 +250,7 @@ public class Via
 	 * @deprecated This is an RFC 2543 feature.
 	 */
 	public void setComment(String c) {
+		checkFrozen();
 		comment = c;
 	}
 
@@ -276,6 +283,7 @@ public class Via
 	 * unexpectedly while parsing the host value.
 	 */
 	public void setHost(String host) throws ParseException {
+		checkFrozen();
 		if (sentBy == null)
 			sentBy = new HostPort();
 		try {
@@ -310,6 +318,7 @@ public class Via
 	 * @param port - the new integer value of the port of this ViaHeader
 	 */
 	public void setPort(int port) throws InvalidArgumentException {
+		checkFrozen();
 
 		if ( port!=-1 && (port<1 || port>65535)) {
 			throw new InvalidArgumentException( "Port value out of range -1, [1..65535]" );
@@ -379,6 +388,7 @@ public class Via
 	 * unexpectedly while parsing the transport value.
 	 */
 	public void setTransport(String transport) throws ParseException {
+		checkFrozen();
 		if (transport == null)
 			throw new NullPointerException(
 				"JAIN-SIP Exception, "
@@ -408,6 +418,7 @@ public class Via
 	 * unexpectedly while parsing the protocol value.
 	 */
 	public void setProtocol(String protocol) throws ParseException {
+		checkFrozen();
 		if (protocol == null)
 			throw new NullPointerException(
 				"JAIN-SIP Exception, "
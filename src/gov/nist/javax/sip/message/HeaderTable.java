@@ -0,0 +1,175 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.message;
+
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.SIPHeaderNames;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The headers of a message by name. The headers the stack knows (those of SIPHeaderNames)
+ * get a fixed id and live in a slot array indexed by it; only extension headers go through
+ * a map. Ids are looked up with the name as given, which is the canonical name almost
+ * always, so the name is only lower cased for other spellings and extension headers. The
+ * order of the headers for encoding is kept by the message, not here.
+ * <p>
+ * Not synchronized: a message is built and read by one thread at a time.
+ *
+ * @version 1.2
+ *
+ */
+final class HeaderTable {
+
+	// The id of every known header name, in its canonical and its lower case spelling.
+	private static final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+	private static final int SLOT_COUNT;
+
+	static {
+		int count = 0;
+		for (Field field : SIPHeaderNames.class.getFields()) {
+			if (field.getType().equals(String.class)
+					&& Modifier.isStatic(field.getModifiers())) {
+				try {
+					String name = (String) field.get(null);
+					String lowerCase = name.toLowerCase();
+					Integer id = ids.get(lowerCase);
+					if (id == null) {
+						id = Integer.valueOf(count++);
+						ids.put(lowerCase, id);
+					}
+					ids.put(name, id);
+				} catch (IllegalAccessException e) {
+				}
+			}
+		}
+		SLOT_COUNT = count;
+	}
+
+	private final SIPHeader[] slots = new SIPHeader[SLOT_COUNT];
+
+	// Extension headers by lower case name, created with the first one.
+	private HashMap<String, SIPHeader> extensions;
+
+	private int size;
+
+	/**
+	 * Get the id of a header name.
+	 *
+	 * @param name -- the header name, in any case.
+	 * @return the id of the header, or -1 if it is an extension header.
+	 */
+	static int getId(String name) {
+		Integer id = ids.get(name);
+		if (id == null)
+			id = ids.get(name.toLowerCase());
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * Get the header (or header list) with a known id.
+	 */
+	SIPHeader get(int id) {
+		return slots[id];
+	}
+
+	/**
+	 * Get the header (or header list) of a name.
+	 */
+	SIPHeader get(String name) {
+		int id = getId(name);
+		if (id >= 0)
+			return slots[id];
+		return extensions == null ? null : extensions.get(name.toLowerCase());
+	}
+
+	boolean containsKey(String name) {
+		return get(name) != null;
+	}
+
+	/**
+	 * Set the header (or header list) of a name.
+	 */
+	void put(String name, SIPHeader header) {
+		int id = getId(name);
+		SIPHeader previous;
+		if (id >= 0) {
+			previous = slots[id];
+			slots[id] = header;
+		} else {
+			if (extensions == null)
+				extensions = new HashMap<String, SIPHeader>();
+			previous = extensions.put(name.toLowerCase(), header);
+		}
+		if (previous == null)
+			size++;
+	}
+
+	/**
+	 * Remove the header (or header list) of a name.
+	 *
+	 * @return the header removed, or null if there was none.
+	 */
+	SIPHeader remove(String name) {
+		int id = getId(name);
+		SIPHeader removed;
+		if (id >= 0) {
+			removed = slots[id];
+			slots[id] = null;
+		} else {
+			removed = extensions == null ? null : extensions.remove(name.toLowerCase());
+		}
+		if (removed != null)
+			size--;
+		return removed;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the headers (and header lists), in no particular order.
+	 */
+	List<SIPHeader> values() {
+		List<SIPHeader> values = new ArrayList<SIPHeader>(size);
+		for (SIPHeader header : slots) {
+			if (header != null)
+				values.add(header);
+		}
+		if (extensions != null)
+			values.addAll(extensions.values());
+		return values;
+	}
+}
@@ -0,0 +1,294 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.message;
+
+import gov.nist.core.NameValueList;
+import gov.nist.javax.sip.Utils;
+import gov.nist.javax.sip.address.AddressImpl;
+import gov.nist.javax.sip.address.GenericURI;
+import gov.nist.javax.sip.header.CSeq;
+import gov.nist.javax.sip.header.CallID;
+import gov.nist.javax.sip.header.ContentLength;
+import gov.nist.javax.sip.header.From;
+import gov.nist.javax.sip.header.ParameterNames;
+import gov.nist.javax.sip.header.RequestLine;
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.SIPHeaderList;
+import gov.nist.javax.sip.header.To;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.header.ViaList;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.sip.address.URI;
+import javax.sip.message.Request;
+
+/**
+ * A request skeleton prepared once and stamped out many times, for applications originating
+ * requests at a high rate. Building every request through the message and header factories
+ * allocates and validates the whole header set over again; a template copy only gets a new
+ * request line (with a clone of the Request-URI, which the router may change in place),
+ * Call-ID, From (with its tag), Via (with its branch) and CSeq -- and a new To when it is given
+ * a To tag -- and shares every other header, and the content, with the template.
+ * <p>
+ * The shared headers are frozen (see SIPHeader.freeze()): to change one in a copy, replace it
+ * with setHeader, or set its tag with setToTag. Header lists (Route, Contact, Allow ...) are
+ * copied, so headers may be added to or removed from a copy, but the headers in them are
+ * shared and frozen too. The addresses and URIs held by shared headers, and the address of the
+ * From, are shared as well and must be left alone. The template itself is never modified and
+ * may be used by many threads at once.
+ *
+ * @version 1.2
+ *
+ */
+public class RequestTemplate {
+
+	private static final int SHARED = 0;
+
+	private static final int LIST = 1;
+
+	private static final int CALL_ID = 2;
+
+	private static final int FROM = 3;
+
+	private static final int TO = 4;
+
+	private static final int CSEQ = 5;
+
+	private static final int VIA = 6;
+
+	private final String method;
+
+	private final GenericURI requestURI;
+
+	// The headers of the template in order, without the Content-Length, and what to do with
+	// each in a copy.
+	private final SIPHeader[] headers;
+
+	private final int[] kinds;
+
+	private final AddressImpl fromAddress;
+
+	// The From parameters other than the tag.
+	private final NameValueList fromParameters;
+
+	private final To to;
+
+	private final ViaList viaList;
+
+	private final long seqNumber;
+
+	private final byte[] content;
+
+	private final LinkedList<String> unrecognizedHeaders;
+
+	/**
+	 * Create a template from a request. The request is copied, so later changes to it do not
+	 * show in the template. Its Call-ID, From tag, top Via branch and CSeq number are only
+	 * used as defaults.
+	 *
+	 * @param request -- the request to stamp copies of.
+	 */
+	public RequestTemplate(Request request) {
+		SIPRequest sipRequest = (SIPRequest) ((SIPRequest) request).clone();
+		if (sipRequest.getRequestLine() == null || sipRequest.getFrom() == null
+				|| sipRequest.getTo() == null || sipRequest.getCSeq() == null
+				|| sipRequest.getViaHeaders() == null || sipRequest.getCallId() == null)
+			throw new IllegalArgumentException(
+					"a template needs a request line, Call-ID, From, To, CSeq and Via");
+
+		this.method = sipRequest.getMethod();
+		this.requestURI = sipRequest.getRequestLine().getUri();
+		From from = (From) sipRequest.getFrom();
+		this.fromAddress = (AddressImpl) from.getAddress();
+		this.fromParameters = (NameValueList) from.getParameters().clone();
+		this.fromParameters.delete(ParameterNames.TAG);
+		this.to = (To) sipRequest.getTo();
+		this.viaList = sipRequest.getViaHeaders();
+		this.seqNumber = sipRequest.getCSeq().getSeqNumber();
+		this.content = sipRequest.getRawContent();
+		this.unrecognizedHeaders = sipRequest.unrecognizedHeaders;
+
+		List<SIPHeader> headerList = new ArrayList<SIPHeader>();
+		for (Iterator<SIPHeader> it = sipRequest.getHeaders(); it.hasNext();) {
+			SIPHeader header = it.next();
+			if (!(header instanceof ContentLength)
+					&& !(header instanceof SIPHeaderList && ((SIPHeaderList<?>) header).isEmpty()))
+				headerList.add(header);
+		}
+		this.headers = headerList.toArray(new SIPHeader[headerList.size()]);
+		this.kinds = new int[headers.length];
+		// The copies share everything but the top Via, Call-ID, From and CSeq: writing to a
+		// shared header would change the template and every copy.
+		for (int j = 1; j < viaList.size(); j++)
+			viaList.get(j).freeze();
+		for (int i = 0; i < headers.length; i++) {
+			SIPHeader header = headers[i];
+			if (!(header instanceof CallID || header instanceof From || header instanceof CSeq
+					|| header instanceof ViaList))
+				header.freeze();
+			if (header instanceof CallID)
+				kinds[i] = CALL_ID;
+			else if (header instanceof From)
+				kinds[i] = FROM;
+			else if (header instanceof To)
+				kinds[i] = TO;
+			else if (header instanceof CSeq)
+				kinds[i] = CSEQ;
+			else if (header instanceof ViaList)
+				kinds[i] = VIA;
+			else if (header instanceof SIPHeaderList)
+				kinds[i] = LIST;
+			else
+				kinds[i] = SHARED;
+		}
+	}
+
+	/**
+	 * Stamp out a copy of the template.
+	 *
+	 * @param requestURI -- the Request-URI, or null for a clone of the one of the template.
+	 *        A URI given is not copied.
+	 * @param callId -- the Call-ID.
+	 * @param fromTag -- the From tag.
+	 * @param toTag -- the To tag, or null for the To of the template.
+	 * @param branch -- the branch of the top Via, or null to have the stack assign one.
+	 * @param seqNumber -- the CSeq number.
+	 * @return a new request.
+	 * @throws ParseException if a tag or the branch is not a valid token.
+	 */
+	public SIPRequest createRequest(URI requestURI, String callId, String fromTag,
+			String toTag, String branch, long seqNumber) throws ParseException {
+		if (callId == null || fromTag == null)
+			throw new NullPointerException("null Call-ID or From tag");
+
+		SIPRequest request = new SIPRequest();
+		request.setRequestLine(new RequestLine(requestURI != null ? (GenericURI) requestURI
+				: (GenericURI) this.requestURI.clone(), method));
+		for (int i = 0; i < headers.length; i++) {
+			SIPHeader header;
+			switch (kinds[i]) {
+			case CALL_ID:
+				header = new CallID(callId);
+				break;
+			case FROM:
+				From from = new From();
+				from.setAddress(fromAddress);
+				from.setParameters((NameValueList) fromParameters.clone());
+				from.setTag(fromTag);
+				header = from;
+				break;
+			case TO:
+				if (toTag == null) {
+					header = to;
+				} else {
+					To newTo = new To();
+					newTo.setAddress(to.getAddress());
+					newTo.setParameters((NameValueList) to.getParameters().clone());
+					newTo.setTag(toTag);
+					header = newTo;
+				}
+				break;
+			case CSEQ:
+				header = new CSeq(seqNumber, method);
+				break;
+			case VIA:
+				ViaList vias = new ViaList();
+				// The stack sets the transport, port and branch of the top Via in place.
+				Via topVia = (Via) ((Via) viaList.getFirst()).clone();
+				if (branch != null)
+					topVia.setBranch(branch);
+				else
+					topVia.removeParameter(ParameterNames.BRANCH);
+				vias.add(topVia);
+				for (int j = 1; j < viaList.size(); j++)
+					vias.add(viaList.get(j));
+				header = vias;
+				break;
+			case LIST:
+				header = copyList(headers[i]);
+				break;
+			default:
+				header = headers[i];
+				break;
+			}
+			try {
+				request.attachHeader(header, false, false);
+			} catch (SIPDuplicateHeaderException ex) {
+				// The template had one of each already.
+			}
+		}
+		if (!unrecognizedHeaders.isEmpty())
+			request.unrecognizedHeaders.addAll(unrecognizedHeaders);
+		if (content != null)
+			request.setMessageContent(content);
+		return request;
+	}
+
+	/**
+	 * Stamp out a copy of the template with a new Call-ID, From tag and branch, and the CSeq
+	 * number of the template.
+	 *
+	 * @param requestURI -- the Request-URI, or null for the one of the template.
+	 * @return a new request.
+	 */
+	public SIPRequest createRequest(URI requestURI) {
+		Utils utils = Utils.getInstance();
+		Via topVia = (Via) viaList.getFirst();
+		try {
+			return createRequest(requestURI, utils.generateCallIdentifier(topVia.getHost()), utils
+					.generateTag(), null, utils.generateBranchId(), seqNumber);
+		} catch (ParseException ex) {
+			// Generated identifiers are tokens.
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * A new list of the same type holding the same headers.
+	 */
+	private static SIPHeaderList<SIPHeader> copyList(SIPHeader header) {
+		@SuppressWarnings("unchecked")
+		SIPHeaderList<SIPHeader> list = (SIPHeaderList<SIPHeader>) header;
+		SIPHeaderList<SIPHeader> copy = ListMap.getList((SIPHeader) list.getFirst());
+		copy.addAll(list);
+		return copy;
+	}
+
+	/**
+	 * @return the method of the requests of this template.
+	 */
+	public String getMethod() {
+		return method;
+	}
+}
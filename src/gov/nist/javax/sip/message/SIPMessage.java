@@ -29,7 +29,7 @@
 package gov.nist.javax.sip.message;
 
 import gov.nist.core.InternalErrorHandler;
-import gov.nist.javax.sip.SIPConstants;
+import gov.nist.javax.sip.Utils;
 import gov.nist.javax.sip.header.AlertInfo;
 import gov.nist.javax.sip.header.Authorization;
 import gov.nist.javax.sip.header.CSeq;
@@ -56,7 +56,6 @@ import gov.nist.javax.sip.header.RouteList;
 import gov.nist.javax.sip.header.SIPETag;
 import gov.nist.javax.sip.header.SIPHeader;
 import gov.nist.javax.sip.header.SIPHeaderList;
-import gov.nist.javax.sip.header.SIPHeaderNamesCache;
 import gov.nist.javax.sip.header.SIPIfMatch;
 import gov.nist.javax.sip.header.Server;
 import gov.nist.javax.sip.header.Subject;
@@ -76,7 +75,6 @@ import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.text.ParseException;
 import java.util.Collection;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -169,7 +167,7 @@ public abstract class SIPMessage extends MessageObject implements
 	private Object messageContentObject;
 
 	// Table of headers indexed by name.
-	private Hashtable<String,SIPHeader> nameTable;
+	private HeaderTable nameTable;
 
 	/**
 	 * The application data pointer. This is un-interpreted by the stack.
@@ -178,6 +176,12 @@ public abstract class SIPMessage extends MessageObject implements
 	 */
 	protected Object applicationData;
 
+	/**
+	 * Stage timestamps kept by the stack while this message travels from the
+	 * socket to the listener. Null unless latency tracing is enabled.
+	 */
+	private long[] stageTimes;
+
 	/**
 	 * Return true if the header belongs only in a Request.
 	 *
@@ -425,9 +429,15 @@ public abstract class SIPMessage extends MessageObject implements
 	    }
 		// JvB: added to fix case where application provides the wrong transport
 		// in the topmost Via header
-		ViaHeader topVia = (ViaHeader) this.getHeader( ViaHeader.NAME );
+		Via topVia = this.getTopmostVia();
 		try {
-			topVia.setTransport( transport );
+			if (!transport.equalsIgnoreCase(topVia.getTransport())) {
+				if (topVia.isFrozen()) {
+					topVia = (Via) topVia.clone();
+					this.getViaHeaders().set(0, topVia);
+				}
+				topVia.setTransport( transport );
+			}
 		} catch (ParseException e) {
 			InternalErrorHandler.handleException(e);
 		}
@@ -476,7 +486,8 @@ public abstract class SIPMessage extends MessageObject implements
 
 	/**
 	 * clone this message (create a new deep physical copy). All headers in the
-	 * message are cloned. You can modify the cloned copy without affecting the
+	 * message are cloned, except frozen ones, which the copy shares (see
+	 * SIPHeader.freeze()). You can modify the cloned copy without affecting the
 	 * original. The content is handled as follows: If the content is a String,
 	 * or a byte array, a new copy of the content is allocated and copied over.
 	 * If the content is an Object that supports the clone method, then the
@@ -487,7 +498,7 @@ public abstract class SIPMessage extends MessageObject implements
 	 */
 	public Object clone() {
 		SIPMessage retval = (SIPMessage) super.clone();
-		retval.nameTable = new Hashtable<String,SIPHeader>();
+		retval.nameTable = new HeaderTable();
 		retval.fromHeader = null;
 		retval.toHeader = null;
 		retval.cSeqHeader = null;
@@ -498,7 +509,7 @@ public abstract class SIPMessage extends MessageObject implements
 				retval.headers = new ConcurrentLinkedQueue<SIPHeader>();
 			for (Iterator<SIPHeader> iter = headers.iterator(); iter.hasNext();) {
 				SIPHeader hdr = (SIPHeader) iter.next();
-				retval.attachHeader((SIPHeader) hdr.clone());
+				retval.attachHeader((SIPHeader) hdr.cloneIfMutable());
 			}
 
 		}
@@ -508,9 +519,27 @@ public abstract class SIPMessage extends MessageObject implements
 		if (this.messageContentObject != null)
 			retval.messageContentObject = makeClone(messageContentObject);
 		retval.unrecognizedHeaders = this.unrecognizedHeaders;
+		retval.stageTimes = null;
 		return retval;
 	}
 
+	/**
+	 * Freeze the headers that the responses to this message, and the messages
+	 * cloned from it, can share with it instead of copying: From, Call-ID,
+	 * CSeq and the Vias. The stack does this for the requests it receives.
+	 */
+	public void freezeHeaders() {
+		if (fromHeader != null)
+			fromHeader.freeze();
+		if (callIdHeader != null)
+			callIdHeader.freeze();
+		if (cSeqHeader != null)
+			cSeqHeader.freeze();
+		ViaList vias = getViaHeaders();
+		if (vias != null)
+			vias.freeze();
+	}
+
 	/**
 	 * Get the string representation of this header (for pretty printing the
 	 * generated structure).
@@ -564,7 +593,7 @@ public abstract class SIPMessage extends MessageObject implements
 	public SIPMessage() {
 		this.unrecognizedHeaders = new LinkedList<String>();
 		this.headers = new ConcurrentLinkedQueue<SIPHeader>();
-		nameTable = new Hashtable<String,SIPHeader>();
+		nameTable = new HeaderTable();
 		try {
 			this.attachHeader(new ContentLength(0), false);
 		} catch (Exception ex) {
@@ -688,11 +717,10 @@ public abstract class SIPMessage extends MessageObject implements
 			h = header;
 		}
 
-		String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(h
-				.getName());
+		String headerName = h.getName();
 		if (replaceFlag) {
-			nameTable.remove(headerNameLowerCase);
-		} else if (nameTable.containsKey(headerNameLowerCase)
+			nameTable.remove(headerName);
+		} else if (nameTable.containsKey(headerName)
 				&& !(h instanceof SIPHeaderList)) {
 			if (h instanceof ContentLength) {
 				try {
@@ -705,7 +733,7 @@ public abstract class SIPMessage extends MessageObject implements
 			return;
 		}
 
-		SIPHeader originalHeader = (SIPHeader) getHeader(header.getName());
+		SIPHeader originalHeader = (SIPHeader) getHeader(headerName);
 
 		// Delete the original header from our list structure.
 		if (originalHeader != null) {
@@ -718,19 +746,19 @@ public abstract class SIPMessage extends MessageObject implements
 			}
 		}
 
-		if (!nameTable.containsKey(headerNameLowerCase)) {
-			nameTable.put(headerNameLowerCase, h);
+		if (!nameTable.containsKey(headerName)) {
+			nameTable.put(headerName, h);
 			headers.add(h);
 		} else {
 			if (h instanceof SIPHeaderList) {
 				SIPHeaderList<?> hdrlist = (SIPHeaderList<?>) nameTable
-						.get(headerNameLowerCase);
+						.get(headerName);
 				if (hdrlist != null)
 					hdrlist.concatenate((SIPHeaderList) h, top);
 				else
-					nameTable.put(headerNameLowerCase, h);
+					nameTable.put(headerName, h);
 			} else {
-				nameTable.put(headerNameLowerCase, h);
+				nameTable.put(headerName, h);
 			}
 		}
 
@@ -762,9 +790,7 @@ public abstract class SIPMessage extends MessageObject implements
 	 */
 	public void removeHeader(String headerName, boolean top) {
 
-		String headerNameLowerCase = SIPHeaderNamesCache
-				.toLowerCase(headerName);
-		SIPHeader toRemove = (SIPHeader) nameTable.get(headerNameLowerCase);
+		SIPHeader toRemove = (SIPHeader) nameTable.get(headerName);
 		// nothing to do then we are done.
 		if (toRemove == null)
 			return;
@@ -779,17 +805,16 @@ public abstract class SIPMessage extends MessageObject implements
 				Iterator<SIPHeader> li = this.headers.iterator();
 				while (li.hasNext()) {
 					SIPHeader sipHeader = (SIPHeader) li.next();
-					if (sipHeader.getName().equalsIgnoreCase(
-							headerNameLowerCase))
+					if (sipHeader.getName().equalsIgnoreCase(headerName))
 						li.remove();
 				}
 
 				// JvB: also remove it from the nameTable! Else NPE in
 				// DefaultRouter
-				nameTable.remove(headerNameLowerCase);
+				nameTable.remove(headerName);
 			}
 		} else {
-			this.nameTable.remove(headerNameLowerCase);
+			this.nameTable.remove(headerName);
 			if (toRemove instanceof From) {
 				this.fromHeader = null;
 			} else if (toRemove instanceof To) {
@@ -823,9 +848,7 @@ public abstract class SIPMessage extends MessageObject implements
 
 		if (headerName == null)
 			throw new NullPointerException("null arg");
-		String headerNameLowerCase = SIPHeaderNamesCache
-				.toLowerCase(headerName);
-		SIPHeader removed = (SIPHeader) nameTable.remove(headerNameLowerCase);
+		SIPHeader removed = (SIPHeader) nameTable.remove(headerName);
 		// nothing to do then we are done.
 		if (removed == null)
 			return;
@@ -848,7 +871,7 @@ public abstract class SIPMessage extends MessageObject implements
 		Iterator<SIPHeader> li = this.headers.iterator();
 		while (li.hasNext()) {
 			SIPHeader sipHeader = (SIPHeader) li.next();
-			if (sipHeader.getName().equalsIgnoreCase(headerNameLowerCase))
+			if (sipHeader.getName().equalsIgnoreCase(headerName))
 				li.remove();
 
 		}
@@ -882,9 +905,7 @@ public abstract class SIPMessage extends MessageObject implements
 		// Have specified a branch Identifier so we can use it to identify
 		// the transaction. BranchId is not case sensitive.
 		// Branch Id prefix is not case sensitive.
-		if (topVia != null && topVia.getBranch() != null
-				&& topVia.getBranch().toUpperCase().startsWith(
-						SIPConstants.BRANCH_MAGIC_COOKIE_UPPER_CASE)) {
+		if (topVia != null && Utils.isRfc3261Branch(topVia.getBranch())) {
 			// Bis 09 compatible branch assignment algorithm.
 			// implies that the branch id can be used as a transaction
 			// identifier.
@@ -956,13 +977,19 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return header -- the first header of the given name.
 	 */
 	public Header getHeader(String headerName) {
-		return getHeaderLowerCase(SIPHeaderNamesCache.toLowerCase(headerName));
+		if (headerName == null)
+			throw new NullPointerException("bad name");
+		return getFirst(nameTable.get(headerName));
 	}
 
-	private Header getHeaderLowerCase(String lowerCaseHeaderName) {
-		if (lowerCaseHeaderName == null)
-			throw new NullPointerException("bad name");
-		SIPHeader sipHeader = (SIPHeader) nameTable.get(lowerCaseHeaderName);
+	/**
+	 * Get the first header of a known header id (see HeaderTable).
+	 */
+	private Header getHeader(int headerId) {
+		return getFirst(nameTable.get(headerId));
+	}
+
+	private static Header getFirst(SIPHeader sipHeader) {
 		if (sipHeader instanceof SIPHeaderList)
 			return (Header) ((SIPHeaderList) sipHeader).getFirst();
 		else
@@ -975,11 +1002,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return contentType header
 	 */
 	public ContentType getContentTypeHeader() {
-		return (ContentType) getHeaderLowerCase(CONTENT_TYPE_LOWERCASE);
+		return (ContentType) getHeader(CONTENT_TYPE_ID);
 	}
 
-	private static final String CONTENT_TYPE_LOWERCASE = SIPHeaderNamesCache
-			.toLowerCase(ContentTypeHeader.NAME);
+	private static final int CONTENT_TYPE_ID = HeaderTable
+			.getId(ContentTypeHeader.NAME);
 
 	/**
 	 * Get the from header.
@@ -996,11 +1023,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return List containing ErrorInfo headers.
 	 */
 	public ErrorInfoList getErrorInfoHeaders() {
-		return (ErrorInfoList) getSIPHeaderListLowerCase(ERROR_LOWERCASE);
+		return (ErrorInfoList) getSIPHeaderList(ERROR_ID);
 	}
 
-	private static final String ERROR_LOWERCASE = SIPHeaderNamesCache
-			.toLowerCase(ErrorInfo.NAME);
+	private static final int ERROR_ID = HeaderTable
+			.getId(ErrorInfo.NAME);
 
 	/**
 	 * Get the Contact list of headers (null if one does not exist).
@@ -1008,11 +1035,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return List containing Contact headers.
 	 */
 	public ContactList getContactHeaders() {
-		return (ContactList) this.getSIPHeaderListLowerCase(CONTACT_LOWERCASE);
+		return (ContactList) this.getSIPHeaderList(CONTACT_ID);
 	}
 
-	private static final String CONTACT_LOWERCASE = SIPHeaderNamesCache
-			.toLowerCase(ContactHeader.NAME);
+	private static final int CONTACT_ID = HeaderTable
+			.getId(ContactHeader.NAME);
 
 	/**
 	 * Get the contact header ( the first contact header) which is all we need
@@ -1035,11 +1062,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return List containing Via headers.
 	 */
 	public ViaList getViaHeaders() {
-		return (ViaList) getSIPHeaderListLowerCase(VIA_LOWERCASE);
+		return (ViaList) getSIPHeaderList(VIA_ID);
 	}
 
-	private static final String VIA_LOWERCASE = SIPHeaderNamesCache
-			.toLowerCase(ViaHeader.NAME);
+	private static final int VIA_ID = HeaderTable
+			.getId(ViaHeader.NAME);
 
 	/**
 	 * Set A list of via headers.
@@ -1074,10 +1101,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return the top most via header if one exists or null if none exists.
 	 */
 	public Via getTopmostVia() {
-		if (this.getViaHeaders() == null)
+		ViaList viaList = this.getViaHeaders();
+		if (viaList == null)
 			return null;
 		else
-			return (Via) (getViaHeaders().getFirst());
+			return (Via) viaList.getFirst();
 	}
 
 	/**
@@ -1095,11 +1123,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return Authorization header.
 	 */
 	public Authorization getAuthorization() {
-		return (Authorization) getHeaderLowerCase(AUTHORIZATION_LOWERCASE);
+		return (Authorization) getHeader(AUTHORIZATION_ID);
 	}
 
-	private static final String AUTHORIZATION_LOWERCASE = SIPHeaderNamesCache
-			.toLowerCase(AuthorizationHeader.NAME);
+	private static final int AUTHORIZATION_ID = HeaderTable
+			.getId(AuthorizationHeader.NAME);
 
 	/**
 	 * Get the MaxForwards header (null if one does not exist).
@@ -1127,11 +1155,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return List containing Route headers
 	 */
 	public RouteList getRouteHeaders() {
-		return (RouteList) getSIPHeaderListLowerCase(ROUTE_LOWERCASE);
+		return (RouteList) getSIPHeaderList(ROUTE_ID);
 	}
 
-	private static final String ROUTE_LOWERCASE = SIPHeaderNamesCache
-			.toLowerCase(RouteHeader.NAME);
+	private static final int ROUTE_ID = HeaderTable
+			.getId(RouteHeader.NAME);
 
 	/**
 	 * Get the CallID header (null if one does not exist)
@@ -1159,7 +1187,7 @@ public abstract class SIPMessage extends MessageObject implements
 	 *            the call identifier to be assigned to the call id header
 	 */
 	public void setCallId(String callId) throws java.text.ParseException {
-		if (callIdHeader == null) {
+		if (callIdHeader == null || callIdHeader.isFrozen()) {
 			this.setHeader(new CallID());
 		}
 		callIdHeader.setCallId(callId);
@@ -1172,11 +1200,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 */
 	public RecordRouteList getRecordRouteHeaders() {
 		return (RecordRouteList) this
-				.getSIPHeaderListLowerCase(RECORDROUTE_LOWERCASE);
+				.getSIPHeaderList(RECORDROUTE_ID);
 	}
 
-	private static final String RECORDROUTE_LOWERCASE = SIPHeaderNamesCache
-			.toLowerCase(RecordRouteHeader.NAME);
+	private static final int RECORDROUTE_ID = HeaderTable
+			.getId(RecordRouteHeader.NAME);
 
 	/**
 	 * Get the To header (null if one does not exist).
@@ -1489,8 +1517,7 @@ public abstract class SIPMessage extends MessageObject implements
 	public ListIterator<SIPHeader> getHeaders(String headerName) {
 		if (headerName == null)
 			throw new NullPointerException("null headerName");
-		SIPHeader sipHeader = (SIPHeader) nameTable.get(SIPHeaderNamesCache
-				.toLowerCase(headerName));
+		SIPHeader sipHeader = (SIPHeader) nameTable.get(headerName);
 		// empty iterator
 		if (sipHeader == null)
 			return new LinkedList<SIPHeader>().listIterator();
@@ -1510,16 +1537,15 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return the header as a formatted string
 	 */
 	public String getHeaderAsFormattedString(String name) {
-		String lowerCaseName = name.toLowerCase();
-		if (this.nameTable.containsKey(lowerCaseName)) {
-			return this.nameTable.get(lowerCaseName).toString();
+		if (this.nameTable.containsKey(name)) {
+			return this.nameTable.get(name).toString();
 		} else {
 			return this.getHeader(name).toString();
 		}
 	}
 
-	private SIPHeader getSIPHeaderListLowerCase(String lowerCaseHeaderName) {
-		return nameTable.get(lowerCaseHeaderName);
+	private SIPHeader getSIPHeaderList(int headerId) {
+		return nameTable.get(headerId);
 	}
 
 	/**
@@ -1532,8 +1558,7 @@ public abstract class SIPMessage extends MessageObject implements
 	 */
 	@SuppressWarnings("unchecked")
 	private List<SIPHeader> getHeaderList(String headerName) {
-		SIPHeader sipHeader = (SIPHeader) nameTable.get(SIPHeaderNamesCache
-				.toLowerCase(headerName));
+		SIPHeader sipHeader = (SIPHeader) nameTable.get(headerName);
 		if (sipHeader == null)
 			return null;
 		else if (sipHeader instanceof SIPHeaderList)
@@ -1553,8 +1578,7 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return true if the header is present in the message
 	 */
 	public boolean hasHeader(String headerName) {
-		return nameTable.containsKey(SIPHeaderNamesCache
-				.toLowerCase(headerName));
+		return nameTable.containsKey(headerName);
 	}
 
 	/**
@@ -1593,6 +1617,8 @@ public abstract class SIPMessage extends MessageObject implements
 	 */
 	public void setFromTag(String tag) {
 		try {
+			if (fromHeader.isFrozen())
+				this.setHeader((From) fromHeader.clone());
 			fromHeader.setTag(tag);
 		} catch (ParseException e) {
 		}
@@ -1606,6 +1632,8 @@ public abstract class SIPMessage extends MessageObject implements
 	 */
 	public void setToTag(String tag) {
 		try {
+			if (toHeader.isFrozen())
+				this.setHeader((To) toHeader.clone());
 			toHeader.setTag(tag);
 		} catch (ParseException e) {
 		}
@@ -1724,7 +1752,7 @@ public abstract class SIPMessage extends MessageObject implements
 		while (it.hasNext()) {
 			SIPHeader mine = (SIPHeader) it.next();
 			SIPHeader his = (SIPHeader) (otherMessage.nameTable
-					.get(SIPHeaderNamesCache.toLowerCase(mine.getName())));
+					.get(mine.getName()));
 			if (his == null) {
 				return false;
 			} else if (!his.equals(mine)) {
@@ -1740,11 +1768,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return the contentDisposition header
 	 */
 	public javax.sip.header.ContentDispositionHeader getContentDisposition() {
-		return (ContentDispositionHeader) getHeaderLowerCase(CONTENT_DISPOSITION_LOWERCASE);
+		return (ContentDispositionHeader) getHeader(CONTENT_DISPOSITION_ID);
 	}
 
-	private static final String CONTENT_DISPOSITION_LOWERCASE = SIPHeaderNamesCache
-			.toLowerCase(ContentDispositionHeader.NAME);
+	private static final int CONTENT_DISPOSITION_ID = HeaderTable
+			.getId(ContentDispositionHeader.NAME);
 
 	/**
 	 * get the content encoding header.
@@ -1752,11 +1780,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return the contentEncoding header.
 	 */
 	public javax.sip.header.ContentEncodingHeader getContentEncoding() {
-		return (ContentEncodingHeader) getHeaderLowerCase(CONTENT_ENCODING_LOWERCASE);
+		return (ContentEncodingHeader) getHeader(CONTENT_ENCODING_ID);
 	}
 
-	private static final String CONTENT_ENCODING_LOWERCASE = SIPHeaderNamesCache
-			.toLowerCase(ContentEncodingHeader.NAME);
+	private static final int CONTENT_ENCODING_ID = HeaderTable
+			.getId(ContentEncodingHeader.NAME);
 
 	/**
 	 * Get the contentLanguage header.
@@ -1764,11 +1792,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return the content language header.
 	 */
 	public javax.sip.header.ContentLanguageHeader getContentLanguage() {
-		return (ContentLanguageHeader) getHeaderLowerCase(CONTENT_LANGUAGE_LOWERCASE);
+		return (ContentLanguageHeader) getHeader(CONTENT_LANGUAGE_ID);
 	}
 
-	private static final String CONTENT_LANGUAGE_LOWERCASE = SIPHeaderNamesCache
-			.toLowerCase(ContentLanguageHeader.NAME);
+	private static final int CONTENT_LANGUAGE_ID = HeaderTable
+			.getId(ContentLanguageHeader.NAME);
 
 	/**
 	 * Get the exipres header.
@@ -1776,11 +1804,11 @@ public abstract class SIPMessage extends MessageObject implements
 	 * @return the expires header or null if one does not exist.
 	 */
 	public javax.sip.header.ExpiresHeader getExpires() {
-		return (ExpiresHeader) getHeaderLowerCase(EXPIRES_LOWERCASE);
+		return (ExpiresHeader) getHeader(EXPIRES_ID);
 	}
 
-	private static final String EXPIRES_LOWERCASE = SIPHeaderNamesCache
-			.toLowerCase(ExpiresHeader.NAME);
+	private static final int EXPIRES_ID = HeaderTable
+			.getId(ExpiresHeader.NAME);
 
 	/**
 	 * Set the expiresHeader
@@ -1940,6 +1968,26 @@ public abstract class SIPMessage extends MessageObject implements
 		return this.applicationData;
 	}
 
+	/**
+	 * Set the stage timestamps of this message. Only used by the stack
+	 * (see gov.nist.javax.sip.stack.LatencyTracer).
+	 *
+	 * @param stageTimes --
+	 *            timestamps indexed by stage, or null.
+	 */
+	public void setStageTimes(long[] stageTimes) {
+		this.stageTimes = stageTimes;
+	}
+
+	/**
+	 * Get the stage timestamps of this message.
+	 *
+	 * @return the timestamps or null if the message is not traced.
+	 */
+	public long[] getStageTimes() {
+		return this.stageTimes;
+	}
+
 
 	public abstract void setSIPVersion(String sipVersion) throws ParseException;
 
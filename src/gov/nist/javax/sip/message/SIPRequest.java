@@ -695,8 +695,8 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
                     || nextHeader instanceof TimeStamp) {
 
                 try {
-
-                    newResponse.attachHeader((SIPHeader) nextHeader.clone(), false);
+                    // The frozen headers of a received request are shared, not cloned.
+                    newResponse.attachHeader((SIPHeader) nextHeader.cloneIfMutable(), false);
                 } catch (SIPDuplicateHeaderException e) {
                     e.printStackTrace();
                 }
@@ -752,25 +752,25 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
         SIPRequest cancel = new SIPRequest();
         cancel.setRequestLine((RequestLine) this.requestLine.clone());
         cancel.setMethod(Request.CANCEL);
-        cancel.setHeader((Header) this.callIdHeader.clone());
-        cancel.setHeader((Header) this.toHeader.clone());
+        cancel.setHeader((Header) this.callIdHeader.cloneIfMutable());
+        cancel.setHeader((Header) this.toHeader.cloneIfMutable());
         cancel.setHeader((Header) cSeqHeader.clone());
         try {
             cancel.getCSeq().setMethod(Request.CANCEL);
         } catch (ParseException e) {
             e.printStackTrace(); // should not happen
         }
-        cancel.setHeader((Header) this.fromHeader.clone());
+        cancel.setHeader((Header) this.fromHeader.cloneIfMutable());
 
-        cancel.addFirst((Header) this.getTopmostVia().clone());
-        cancel.setHeader((Header) this.maxForwardsHeader.clone());
+        cancel.addFirst((Header) this.getTopmostVia().cloneIfMutable());
+        cancel.setHeader((Header) this.maxForwardsHeader.cloneIfMutable());
 
         /*
          * If the request being cancelled contains a Route header field, the CANCEL request MUST
          * include that Route header field's values.
          */
         if (this.getRouteHeaders() != null) {
-            cancel.setHeader((SIPHeaderList< ? >) this.getRouteHeaders().clone());
+            cancel.setHeader((SIPHeaderList< ? >) this.getRouteHeaders().cloneIfMutable());
         }
         if (MessageFactoryImpl.getDefaultUserAgentHeader() != null) {
             cancel.setHeader(MessageFactoryImpl.getDefaultUserAgentHeader());
@@ -836,7 +836,7 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
                 if (responseToHeader != null) {
                     nextHeader = responseToHeader;
                 } else {
-                    nextHeader = (SIPHeader) nextHeader.clone();
+                    nextHeader = (SIPHeader) nextHeader.cloneIfMutable();
                 }
             } else if (nextHeader instanceof ContactList || nextHeader instanceof Expires) {
                 // CONTACT header does not apply for ACK requests.
@@ -848,9 +848,9 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
                 // field of the original
                 // request.
 
-                nextHeader = (SIPHeader) ((ViaList) nextHeader).getFirst().clone();
+                nextHeader = (SIPHeader) ((Via) ((ViaList) nextHeader).getFirst()).cloneIfMutable();
             } else {
-                nextHeader = (SIPHeader) nextHeader.clone();
+                nextHeader = (SIPHeader) nextHeader.cloneIfMutable();
             }
 
             try {
@@ -894,13 +894,13 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
         SIPRequest newRequest = new SIPRequest();
         newRequest.setRequestLine((RequestLine) this.requestLine.clone());
         newRequest.setMethod(Request.ACK);
-        newRequest.setHeader((Header) this.callIdHeader.clone());
-        newRequest.setHeader((Header) this.maxForwardsHeader.clone()); // ISSUE
+        newRequest.setHeader((Header) this.callIdHeader.cloneIfMutable());
+        newRequest.setHeader((Header) this.maxForwardsHeader.cloneIfMutable()); // ISSUE
         // 130
         // fix
-        newRequest.setHeader((Header) this.fromHeader.clone());
-        newRequest.setHeader((Header) responseToHeader.clone());
-        newRequest.addFirst((Header) this.getTopmostVia().clone());
+        newRequest.setHeader((Header) this.fromHeader.cloneIfMutable());
+        newRequest.setHeader((Header) responseToHeader.cloneIfMutable());
+        newRequest.addFirst((Header) this.getTopmostVia().cloneIfMutable());
         newRequest.setHeader((Header) cSeqHeader.clone());
         newRequest.getCSeq().setMethod(Request.ACK);
 
@@ -910,7 +910,7 @@ public final class SIPRequest extends SIPMessage implements javax.sip.message.Re
          * routed properly through any downstream stateless proxies.
          */
         if (this.getRouteHeaders() != null) {
-            newRequest.setHeader((SIPHeaderList) this.getRouteHeaders().clone());
+            newRequest.setHeader((SIPHeaderList) this.getRouteHeaders().cloneIfMutable());
         }
         if (MessageFactoryImpl.getDefaultUserAgentHeader() != null) {
             newRequest.setHeader(MessageFactoryImpl.getDefaultUserAgentHeader());
@@ -74,9 +74,7 @@ public class AllowParser extends HeaderParser {
 			allow.setHeaderName(SIPHeaderNames.ALLOW);
 
 			this.lexer.SPorHT();
-			this.lexer.match(TokenTypes.ID);
-			Token token = lexer.getNextToken();
-			allow.setMethod(token.getTokenValue());
+			allow.setMethod(lexer.internedId());
 
 			list.add(allow);
 			this.lexer.SPorHT();
@@ -85,9 +83,7 @@ public class AllowParser extends HeaderParser {
 				this.lexer.SPorHT();
 
 				allow = new Allow();
-				this.lexer.match(TokenTypes.ID);
-				token = lexer.getNextToken();
-				allow.setMethod(token.getTokenValue());
+				allow.setMethod(lexer.internedId());
 
 				list.add(allow);
 				this.lexer.SPorHT();
@@ -0,0 +1,47 @@
+/*
+* Conditions Of Use 
+* 
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+* 
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+* 
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*  
+* .
+* 
+*/
+/*******************************************************************************
+* Product of NIST/ITL Advanced Networking Technologies Division (ANTD)         *
+*******************************************************************************/
+package gov.nist.javax.sip.parser;
+
+/**
+ * Implemented by a SIPMessageListener that wants to hear about the CRLF keepalives of RFC 5626
+ * (section 3.5.1) that the PipelinedMsgParser skips between messages: a double CRLF "ping"
+ * must be answered with a single CRLF "pong", and a pong tells a client its flow is alive.
+ * 
+ * @version 1.2
+ * @see PipelinedMsgParser
+ */
+public interface CRLFListener {
+	/**
+	 * Called for every blank line between messages. The first CRLF of a ping is reported as a
+	 * pong, the second one as a ping.
+	 * 
+	 * @param ping true if this is the second CRLF in a row.
+	 */
+	public void crlfReceived(boolean ping);
+}
@@ -63,17 +63,15 @@ public class ContentTypeParser extends ParametersParser {
 			this.headerName(TokenTypes.CONTENT_TYPE);
 
 			// The type:
-			lexer.match(TokenTypes.ID);
-			Token type = lexer.getNextToken();
+			String type = lexer.internedId();
 			this.lexer.SPorHT();
-			contentType.setContentType(type.getTokenValue());
+			contentType.setContentType(type);
 
 			// The sub-type:
 			lexer.match('/');
-			lexer.match(TokenTypes.ID);
-			Token subType = lexer.getNextToken();
+			String subType = lexer.internedId();
 			this.lexer.SPorHT();
-			contentType.setContentSubType(subType.getTokenValue());
+			contentType.setContentSubType(subType);
 			super.parse(contentType);
 			this.lexer.match('\n');
 		} finally {
@@ -159,6 +159,22 @@ public class Pipeline extends InputStream {
 		this.pipe.close();
 	}
 
+	/**
+	 * The number of bytes that can be read without waiting for the socket.
+	 */
+	public int available() {
+		synchronized (this.buffList) {
+			int retval = 0;
+			if (currentBuffer != null)
+				retval = currentBuffer.length - currentBuffer.ptr;
+			for (Iterator it = buffList.iterator(); it.hasNext();) {
+				Buffer buff = (Buffer) it.next();
+				retval += buff.length - buff.ptr;
+			}
+			return retval;
+		}
+	}
+
 	public int read() throws IOException {
 		// if (this.isClosed) return -1;
 		synchronized (this.buffList) {
@@ -202,6 +202,60 @@ public final class PipelinedMsgParser implements Runnable {
 		return retval.toString();
 	}
 
+	/**
+	 * Find the Content-Length of a message from its unparsed header block.
+	 * 
+	 * @return the content length, or 0 if there is none.
+	 */
+	private static int getContentLength(StringBuffer headers) {
+		int start = 0;
+		int length = headers.length();
+		while (start < length) {
+			int end = headers.indexOf("\n", start);
+			if (end == -1)
+				end = length;
+			int colon = headers.indexOf(":", start);
+			if (colon != -1 && colon < end) {
+				String name = headers.substring(start, colon).trim();
+				if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("l")) {
+					try {
+						return Math.max(0, Integer.parseInt(headers.substring(colon + 1, end)
+								.trim()));
+					} catch (NumberFormatException ex) {
+						return 0;
+					}
+				}
+			}
+			start = end + 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Read and throw away the body of a dropped message.
+	 * 
+	 * @return false if the stream ended first.
+	 */
+	private boolean skip(InputStream inputStream, int contentLength) {
+		byte[] buffer = new byte[Math.min(contentLength, 4096)];
+		int nread = 0;
+		while (nread < contentLength) {
+			this.rawInputStream.startTimer();
+			try {
+				int readlength = inputStream.read(buffer, 0, Math.min(buffer.length,
+						contentLength - nread));
+				if (readlength <= 0)
+					return false;
+				nread += readlength;
+			} catch (IOException ex) {
+				return false;
+			} finally {
+				this.rawInputStream.stopTimer();
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * This is input reading thread for the pipelined parser. You feed it input
 	 * through the input stream (see the constructor) and it calls back an event
@@ -225,6 +279,7 @@ public final class PipelinedMsgParser implements Runnable {
 
 				String line1;
 				String line2 = null;
+				int crlfCount = 0;
 
 				while (true) {
 					try {
@@ -233,9 +288,23 @@ public final class PipelinedMsgParser implements Runnable {
 						if (line1.equals("\n")) {
 							if (Debug.parserDebug)
 								Debug.println("Discarding " + line1);
+							// but report RFC 5626 keepalives: a double CRLF is a
+							// ping, a CRLF that is not followed right away by
+							// another one is a pong.
+							if (sipMessageListener instanceof CRLFListener) {
+								crlfCount++;
+								if (crlfCount == 2 || inputStream.available() == 0) {
+									((CRLFListener) sipMessageListener)
+											.crlfReceived(crlfCount == 2);
+									crlfCount = 0;
+								}
+							}
 							continue;
-						} else
+						} else {
+							if (crlfCount == 1)
+								((CRLFListener) sipMessageListener).crlfReceived(false);
 							break;
+						}
 					} catch (IOException ex) {
 						Debug.printStackTrace(ex);
 						this.rawInputStream.stopTimer();
@@ -265,6 +334,17 @@ public final class PipelinedMsgParser implements Runnable {
 				// Stop the timer that will kill the read.
 				this.rawInputStream.stopTimer();
 				inputBuffer.append(line2);
+
+				if (sipMessageListener instanceof MessageAcceptor
+						&& !((MessageAcceptor) sipMessageListener).acceptMessage(line1)) {
+					// Skip the body unread, or give up on a peer that sends too much.
+					int contentLength = getContentLength(inputBuffer);
+					if (maxMessageSize != 0 && contentLength >= this.sizeCounter)
+						break;
+					if (!skip(inputStream, contentLength))
+						break;
+					continue;
+				}
 				StringMsgParser smp = new StringMsgParser(sipMessageListener);
 				smp.readBody = false;
 				SIPMessage sipMessage = null;
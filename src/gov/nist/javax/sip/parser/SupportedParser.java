@@ -78,9 +78,7 @@ public class SupportedParser extends HeaderParser {
 				supported.setHeaderName(SIPHeaderNames.SUPPORTED);
 
 				// Parsing the option tag
-				this.lexer.match(TokenTypes.ID);
-				Token token = lexer.getNextToken();
-				supported.setOptionTag(token.getTokenValue());
+				supported.setOptionTag(lexer.internedId());
 				this.lexer.SPorHT();
 
 				supportedList.add(supported);
@@ -92,9 +90,7 @@ public class SupportedParser extends HeaderParser {
 					supported = new Supported();
 
 					// Parsing the option tag
-					this.lexer.match(TokenTypes.ID);
-					token = lexer.getNextToken();
-					supported.setOptionTag(token.getTokenValue());
+					supported.setOptionTag(lexer.internedId());
 					this.lexer.SPorHT();
 
 					supportedList.add(supported);
@@ -26,6 +26,7 @@
 package gov.nist.javax.sip.parser;
 import gov.nist.core.HostNameParser;
 import gov.nist.core.HostPort;
+import gov.nist.core.InternCache;
 import gov.nist.core.NameValue;
 import gov.nist.core.NameValueList;
 import gov.nist.core.Token;
@@ -122,7 +123,8 @@ public class URLParser extends Parser {
 
 	}
 
-	/** Name or value of a parameter.
+	/** Name or value of a parameter. URI parameters (transport, lr, user,
+	 * maddr...) take few distinct values, so both are interned.
 	 */
 	protected String paramNameOrValue() throws ParseException {
 		int startIdx = lexer.getPtr();
@@ -146,7 +148,7 @@ public class URLParser extends Parser {
 			} else
 				break;
 		}
-		return lexer.getBuffer().substring(startIdx, lexer.getPtr());
+		return InternCache.intern(lexer.getBuffer(), startIdx, lexer.getPtr());
 	}
 
 	private NameValue uriParam() throws ParseException {
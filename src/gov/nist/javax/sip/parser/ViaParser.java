@@ -53,32 +53,25 @@ public class ViaParser extends HeaderParser {
 	 */
 	private void parseVia(Via v) throws ParseException {
 		// The protocol
-		lexer.match(TokenTypes.ID);
-		Token protocolName = lexer.getNextToken();
+		String protocolName = lexer.internedId();
 
 		this.lexer.SPorHT();
 		// consume the "/"
 		lexer.match('/');
 		this.lexer.SPorHT();
-		lexer.match(TokenTypes.ID);
-		this.lexer.SPorHT();
-		Token protocolVersion = lexer.getNextToken();
-
+		String protocolVersion = lexer.internedId();
 		this.lexer.SPorHT();
 
 		// We consume the "/"
 		lexer.match('/');
 		this.lexer.SPorHT();
-		lexer.match(TokenTypes.ID);
-		this.lexer.SPorHT();
-
-		Token transport = lexer.getNextToken();
+		String transport = lexer.internedId();
 		this.lexer.SPorHT();
 
 		Protocol protocol = new Protocol();
-		protocol.setProtocolName(protocolName.getTokenValue());
-		protocol.setProtocolVersion(protocolVersion.getTokenValue());
-		protocol.setTransport(transport.getTokenValue());
+		protocol.setProtocolName(protocolName);
+		protocol.setProtocolVersion(protocolVersion);
+		protocol.setTransport(transport);
 		v.setSentProtocol(protocol);
 
 		// sent-By
@@ -146,8 +139,7 @@ public class ViaParser extends HeaderParser {
 			dbg_enter("nameValue");
 		try {
 
-			lexer.match(LexerCore.ID);
-			Token name = lexer.getNextToken();
+			String name = lexer.internedId();
 			// eat white space.
 			lexer.SPorHT();
 			try {
@@ -160,7 +152,7 @@ public class ViaParser extends HeaderParser {
 					lexer.consume(1);
 					lexer.SPorHT();
 					String str = null;
-					if (name.getTokenValue().compareToIgnoreCase(Via.RECEIVED) == 0) {
+					if (name.compareToIgnoreCase(Via.RECEIVED) == 0) {
 						// Allow for IPV6 Addresses.
 						// these could have : in them!
 						str = lexer.byteStringNoSemicolon();
@@ -174,17 +166,17 @@ public class ViaParser extends HeaderParser {
 							str = value.getTokenValue();
 						}
 					}
-					NameValue nv = new NameValue(name.getTokenValue()
+					NameValue nv = new NameValue(name
 							.toLowerCase(), str);
 					if (quoted)
 						nv.setQuotedValue();
 					return nv;
 				} else {
-					return new NameValue(name.getTokenValue().toLowerCase(),
+					return new NameValue(name.toLowerCase(),
 							null);
 				}
 			} catch (ParseException ex) {
-				return new NameValue(name.getTokenValue(), null);
+				return new NameValue(name, null);
 			}
 
 		} finally {
@@ -0,0 +1,641 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.proxy;
+
+import gov.nist.javax.sip.ServerTransactionExt;
+import gov.nist.javax.sip.Utils;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.TimerTask;
+
+import javax.sip.ClientTransaction;
+import javax.sip.InvalidArgumentException;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipException;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionState;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.SipURI;
+import javax.sip.address.URI;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.ProxyAuthenticateHeader;
+import javax.sip.header.RecordRouteHeader;
+import javax.sip.header.RouteHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.header.WWWAuthenticateHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * A transaction stateful forking proxy core (RFC 3261 section 16).
+ * <p>
+ * The application keeps its SipListener and hands the proxying work to this class: an
+ * incoming request is passed to {@link #proxyRequest(RequestEvent, List, boolean)} together
+ * with its target set, and the listener delegates responses, timeouts and CANCEL requests to
+ * {@link #processResponse(ResponseEvent)}, {@link #processTimeout(TimeoutEvent)} and
+ * {@link #processCancel(RequestEvent)}. These return false for events that do not belong to
+ * a proxied request so that the application may handle them itself.
+ * <p>
+ * Targets are ordered by q-value. In parallel mode all targets are forked at once. In
+ * sequential mode targets of equal q-value are forked together and the next group is only
+ * tried once every branch of the current group has failed. Provisional responses and 2xx
+ * responses to INVITE are forwarded as they arrive; other final responses are collected and
+ * the best one is returned upstream when all branches have completed (section 16.7). A 2xx or
+ * 6xx response, or a CANCEL from upstream, cancels the branches that are still pending.
+ * <p>
+ * Every INVITE branch runs a Timer C (section 16.8), restarted by each provisional response
+ * other than 100. When it fires the branch is cancelled and counts as a 408, so a branch that
+ * rings forever does not hold up the proxied request or the next targets.
+ * <p>
+ * The state of each proxied request lives in a context object attached to the server
+ * transaction (and a branch object attached to each client transaction) as application
+ * data. Events are serialized on that context only, so unrelated requests never contend on a
+ * shared lock.
+ * <p>
+ * The stack should be created with javax.sip.AUTOMATIC_DIALOG_SUPPORT set to off, a proxy
+ * does not take part in the dialogs it forwards.
+ *
+ * @version 1.2
+ *
+ */
+public class ForkingProxy {
+
+	/**
+	 * Application data of the client transactions used to CANCEL branches.
+	 */
+	private static final Object CANCEL_MARKER = new Object();
+
+	private static final int DEFAULT_MAX_FORWARDS = 70;
+
+	/**
+	 * Default Timer C, in seconds: it must be more than 3 minutes (16.6 step 11).
+	 */
+	public static final int DEFAULT_TIMER_C = 185;
+
+	private static final Comparator<ProxyTarget> Q_VALUE_ORDER = new Comparator<ProxyTarget>() {
+		public int compare(ProxyTarget t1, ProxyTarget t2) {
+			return Float.compare(t2.getQValue(), t1.getQValue());
+		}
+	};
+
+	private SipProvider sipProvider;
+
+	private MessageFactory messageFactory;
+
+	private HeaderFactory headerFactory;
+
+	private AddressFactory addressFactory;
+
+	private boolean recordRoute;
+
+	private int timerC = DEFAULT_TIMER_C;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sipProvider -- the provider on which requests are received and forwarded.
+	 * @param messageFactory -- message factory.
+	 * @param headerFactory -- header factory.
+	 * @param addressFactory -- address factory.
+	 */
+	public ForkingProxy(SipProvider sipProvider, MessageFactory messageFactory,
+			HeaderFactory headerFactory, AddressFactory addressFactory) {
+		this.sipProvider = sipProvider;
+		this.messageFactory = messageFactory;
+		this.headerFactory = headerFactory;
+		this.addressFactory = addressFactory;
+	}
+
+	/**
+	 * Insert a Record-Route header so that the proxy stays on the path of in-dialog requests.
+	 * Default is false.
+	 */
+	public void setRecordRoute(boolean recordRoute) {
+		this.recordRoute = recordRoute;
+	}
+
+	public boolean isRecordRoute() {
+		return recordRoute;
+	}
+
+	/**
+	 * Set Timer C, how long an INVITE branch may go without a provisional response before it
+	 * is cancelled. Default is DEFAULT_TIMER_C.
+	 *
+	 * @param seconds -- Timer C in seconds.
+	 */
+	public void setTimerC(int seconds) {
+		if (seconds <= 0)
+			throw new IllegalArgumentException("bad Timer C " + seconds);
+		this.timerC = seconds;
+	}
+
+	public int getTimerC() {
+		return timerC;
+	}
+
+	/**
+	 * Proxy a request to a target set. ACK requests (for 2xx responses) have no transaction and
+	 * are forwarded statelessly to the first target.
+	 *
+	 * @param requestEvent -- the event carrying the request to proxy.
+	 * @param targets -- the target set.
+	 * @param parallel -- true to fork to all targets at once, false to try groups of equal
+	 *        q-value one after the other.
+	 * @return the server transaction for the request, or null for an ACK.
+	 * @throws SipException if the server transaction cannot be created.
+	 * @throws InvalidArgumentException if a response cannot be sent upstream.
+	 */
+	public ServerTransaction proxyRequest(RequestEvent requestEvent, List<ProxyTarget> targets,
+			boolean parallel) throws SipException, InvalidArgumentException {
+		Request request = requestEvent.getRequest();
+		if (targets == null || targets.isEmpty())
+			throw new IllegalArgumentException("empty target set");
+
+		Request template = (Request) request.clone();
+		// Route pre-processing (16.4)
+		RouteHeader route = (RouteHeader) template.getHeader(RouteHeader.NAME);
+		if (route != null && isOwnUri(route.getAddress().getURI()))
+			template.removeFirst(RouteHeader.NAME);
+
+		if (request.getMethod().equals(Request.ACK)) {
+			Request ack = prepareBranchRequest(template, targets.get(0).getURI());
+			if (ack != null)
+				sipProvider.sendRequest(ack);
+			return null;
+		}
+
+		ServerTransaction serverTransaction = requestEvent.getServerTransaction();
+		if (serverTransaction == null)
+			serverTransaction = sipProvider.getNewServerTransaction(request);
+
+		MaxForwardsHeader maxForwards = (MaxForwardsHeader) request
+				.getHeader(MaxForwardsHeader.NAME);
+		if (maxForwards != null && maxForwards.getMaxForwards() <= 0) {
+			serverTransaction.sendResponse(createResponse(Response.TOO_MANY_HOPS, request));
+			return serverTransaction;
+		}
+
+		List<ProxyTarget> sorted = new ArrayList<ProxyTarget>(targets);
+		Collections.sort(sorted, Q_VALUE_ORDER);
+		ProxyContext context = new ProxyContext(serverTransaction, template);
+		ArrayList<ProxyTarget> group = null;
+		for (ProxyTarget target : sorted) {
+			if (group == null
+					|| (!parallel && group.get(0).getQValue() != target.getQValue())) {
+				group = new ArrayList<ProxyTarget>();
+				context.groups.add(group);
+			}
+			group.add(target);
+		}
+		serverTransaction.setApplicationData(context);
+
+		if (request.getMethod().equals(Request.INVITE)) {
+			serverTransaction.sendResponse(createResponse(Response.TRYING, request));
+		}
+		synchronized (context) {
+			context.forkNextGroup();
+		}
+		return serverTransaction;
+	}
+
+	/**
+	 * Handle a response received on a proxy branch.
+	 *
+	 * @return false if the response does not belong to a proxied request.
+	 */
+	public boolean processResponse(ResponseEvent responseEvent) {
+		ClientTransaction clientTransaction = responseEvent.getClientTransaction();
+		if (clientTransaction == null)
+			return false;
+		Object applicationData = clientTransaction.getApplicationData();
+		if (applicationData == CANCEL_MARKER)
+			return true;
+		if (!(applicationData instanceof ProxyBranch))
+			return false;
+		ProxyBranch branch = (ProxyBranch) applicationData;
+		Response response = (Response) responseEvent.getResponse().clone();
+		// Our Via is on top.
+		response.removeFirst(ViaHeader.NAME);
+		synchronized (branch.context) {
+			branch.context.branchResponse(branch, response);
+		}
+		return true;
+	}
+
+	/**
+	 * Handle a transaction timeout. A branch that times out counts as a 408 response.
+	 *
+	 * @return false if the timeout does not belong to a proxied request.
+	 */
+	public boolean processTimeout(TimeoutEvent timeoutEvent) {
+		if (timeoutEvent.isServerTransaction())
+			return timeoutEvent.getServerTransaction().getApplicationData() instanceof ProxyContext;
+		Object applicationData = timeoutEvent.getClientTransaction().getApplicationData();
+		if (applicationData == CANCEL_MARKER)
+			return true;
+		if (!(applicationData instanceof ProxyBranch))
+			return false;
+		ProxyBranch branch = (ProxyBranch) applicationData;
+		synchronized (branch.context) {
+			branch.context.branchResponse(branch, createResponse(Response.REQUEST_TIMEOUT,
+					branch.context.serverTransaction.getRequest()));
+		}
+		return true;
+	}
+
+	/**
+	 * Handle a CANCEL for a proxied INVITE: the CANCEL is answered and every pending branch is
+	 * cancelled. The 487 responses of the branches are aggregated as usual.
+	 *
+	 * @return false if the CANCEL does not match a proxied request.
+	 */
+	public boolean processCancel(RequestEvent requestEvent) throws SipException,
+			InvalidArgumentException {
+		ServerTransaction cancelTransaction = requestEvent.getServerTransaction();
+		if (!(cancelTransaction instanceof ServerTransactionExt))
+			return false;
+		ServerTransaction inviteTransaction = ((ServerTransactionExt) cancelTransaction)
+				.getCanceledInviteTransaction();
+		if (inviteTransaction == null
+				|| !(inviteTransaction.getApplicationData() instanceof ProxyContext))
+			return false;
+		ProxyContext context = (ProxyContext) inviteTransaction.getApplicationData();
+		cancelTransaction.sendResponse(createResponse(Response.OK, requestEvent.getRequest()));
+		synchronized (context) {
+			context.cancelPendingBranches();
+		}
+		return true;
+	}
+
+	/**
+	 * Build the request for one branch (16.6 steps 1 to 8). Returns null if the request cannot
+	 * be built.
+	 */
+	private Request prepareBranchRequest(Request template, URI target) {
+		try {
+			Request request = (Request) template.clone();
+			request.setRequestURI((URI) target.clone());
+
+			MaxForwardsHeader maxForwards = (MaxForwardsHeader) request
+					.getHeader(MaxForwardsHeader.NAME);
+			if (maxForwards == null)
+				request.setHeader(headerFactory.createMaxForwardsHeader(DEFAULT_MAX_FORWARDS));
+			else
+				maxForwards.decrementMaxForwards();
+
+			ListeningPoint listeningPoint = sipProvider.getListeningPoints()[0];
+			if (recordRoute && !request.getMethod().equals(Request.ACK)
+					&& !request.getMethod().equals(Request.REGISTER)) {
+				SipURI uri = addressFactory.createSipURI(null, listeningPoint.getIPAddress());
+				uri.setPort(listeningPoint.getPort());
+				uri.setLrParam();
+				RecordRouteHeader recordRouteHeader = headerFactory
+						.createRecordRouteHeader(addressFactory.createAddress(uri));
+				request.addFirst(recordRouteHeader);
+			}
+
+			// The stack assigns the branch and fixes the transport.
+			ViaHeader via = headerFactory.createViaHeader(listeningPoint.getIPAddress(),
+					listeningPoint.getPort(), listeningPoint.getTransport(), null);
+			if (request.getMethod().equals(Request.ACK))
+				via.setBranch(Utils.getInstance().generateBranchId());
+			request.addFirst(via);
+			return request;
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	private Response createResponse(int statusCode, Request request) {
+		try {
+			Response response = messageFactory.createResponse(statusCode, request);
+			ToHeader to = (ToHeader) response.getHeader(ToHeader.NAME);
+			if (to.getTag() == null && statusCode > Response.TRYING)
+				to.setTag(Utils.getInstance().generateTag());
+			return response;
+		} catch (ParseException ex) {
+			throw new IllegalArgumentException(ex.getMessage());
+		}
+	}
+
+	private boolean isOwnUri(URI uri) {
+		if (!uri.isSipURI())
+			return false;
+		SipURI sipUri = (SipURI) uri;
+		ListeningPoint[] listeningPoints = sipProvider.getListeningPoints();
+		for (int i = 0; i < listeningPoints.length; i++) {
+			int port = sipUri.getPort() == -1 ? 5060 : sipUri.getPort();
+			if (sipUri.getHost().equalsIgnoreCase(listeningPoints[i].getIPAddress())
+					&& port == listeningPoints[i].getPort())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Rank used for best response selection (16.7 step 6). Lower is better. 6xx always wins,
+	 * otherwise the lowest class wins and a few 4xx codes that the UAC may be able to act upon
+	 * are preferred within their class.
+	 */
+	private static int rank(int statusCode) {
+		int responseClass = statusCode / 100;
+		if (responseClass == 6)
+			return 0;
+		int rank = responseClass * 2;
+		if (responseClass == 4
+				&& !(statusCode == 401 || statusCode == 407 || statusCode == 415
+						|| statusCode == 420 || statusCode == 484))
+			rank++;
+		return rank;
+	}
+
+	/**
+	 * One forked request.
+	 */
+	class ProxyBranch {
+		ProxyContext context;
+
+		ClientTransaction clientTransaction;
+
+		boolean provisionalReceived;
+
+		boolean cancelRequested;
+
+		boolean completed;
+
+		// Only INVITE branches have one.
+		TimerTask timerCTask;
+
+		ProxyBranch(ProxyContext context) {
+			this.context = context;
+		}
+
+		/**
+		 * Start Timer C, or restart it if it is running.
+		 */
+		void startTimerC() {
+			stopTimerC();
+			timerCTask = new SIPStackTimerTask() {
+				protected void runTask() {
+					synchronized (ProxyBranch.this.context) {
+						// Ignore a task that was stopped while it waited for the lock.
+						if (timerCTask == this)
+							ProxyBranch.this.context.timerCFired(ProxyBranch.this);
+					}
+				}
+			};
+			((SIPTransactionStack) sipProvider.getSipStack()).getTimer().schedule(timerCTask,
+					timerC * 1000L);
+		}
+
+		void stopTimerC() {
+			if (timerCTask != null) {
+				timerCTask.cancel();
+				timerCTask = null;
+			}
+		}
+
+		void cancel() {
+			if (completed || !context.isInvite())
+				return;
+			if (!provisionalReceived) {
+				// A CANCEL may only be sent after a provisional response (9.1).
+				cancelRequested = true;
+				return;
+			}
+			try {
+				ClientTransaction cancelTransaction = sipProvider
+						.getNewClientTransaction(clientTransaction.createCancel());
+				cancelTransaction.setApplicationData(CANCEL_MARKER);
+				cancelTransaction.sendRequest();
+			} catch (SipException ex) {
+				// The branch will time out.
+			}
+			cancelRequested = false;
+		}
+	}
+
+	/**
+	 * State of a proxied request. All access is synchronized on the context.
+	 */
+	class ProxyContext {
+		ServerTransaction serverTransaction;
+
+		Request template;
+
+		List<List<ProxyTarget>> groups = new ArrayList<List<ProxyTarget>>();
+
+		List<ProxyBranch> branches = new ArrayList<ProxyBranch>();
+
+		int nextGroup;
+
+		int pendingBranches;
+
+		boolean finalResponseSent;
+
+		boolean cancelled;
+
+		Response bestResponse;
+
+		/*
+		 * Challenges collected from the 401/407 responses (16.7 step 7).
+		 */
+		List<WWWAuthenticateHeader> authenticateHeaders = new ArrayList<WWWAuthenticateHeader>();
+
+		List<ProxyAuthenticateHeader> proxyAuthenticateHeaders = new ArrayList<ProxyAuthenticateHeader>();
+
+		ProxyContext(ServerTransaction serverTransaction, Request template) {
+			this.serverTransaction = serverTransaction;
+			this.template = template;
+		}
+
+		boolean isInvite() {
+			return template.getMethod().equals(Request.INVITE);
+		}
+
+		/**
+		 * Fork the next group of targets. Targets that cannot be reached count as a 503.
+		 */
+		void forkNextGroup() {
+			while (!cancelled && nextGroup < groups.size() && pendingBranches == 0) {
+				List<ProxyTarget> group = groups.get(nextGroup++);
+				for (ProxyTarget target : group) {
+					Request request = prepareBranchRequest(template, target.getURI());
+					ProxyBranch branch = new ProxyBranch(this);
+					try {
+						if (request == null)
+							throw new SipException("could not build request for " + target);
+						branch.clientTransaction = sipProvider.getNewClientTransaction(request);
+						branch.clientTransaction.setApplicationData(branch);
+						branch.clientTransaction.sendRequest();
+						branches.add(branch);
+						pendingBranches++;
+						if (isInvite())
+							branch.startTimerC();
+					} catch (SipException ex) {
+						keepResponse(createResponse(Response.SERVICE_UNAVAILABLE,
+								serverTransaction.getRequest()));
+					}
+				}
+			}
+			if (pendingBranches == 0)
+				sendBestResponse();
+		}
+
+		void branchResponse(ProxyBranch branch, Response response) {
+			if (branch.completed)
+				return;
+			int statusCode = response.getStatusCode();
+			if (statusCode < 200) {
+				branch.provisionalReceived = true;
+				if (statusCode != Response.TRYING && branch.timerCTask != null)
+					branch.startTimerC();
+				if (branch.cancelRequested)
+					branch.cancel();
+				if (statusCode != Response.TRYING && !finalResponseSent)
+					forward(response);
+				return;
+			}
+
+			branch.completed = true;
+			branch.stopTimerC();
+			pendingBranches--;
+			if (statusCode / 100 == 2) {
+				// Every 2xx to an INVITE goes upstream, only the first for other methods.
+				if (!finalResponseSent || isInvite())
+					forward(response);
+				finalResponseSent = true;
+				cancelPendingBranches();
+				return;
+			}
+			if (statusCode / 100 == 6)
+				cancelPendingBranches();
+			keepResponse(response);
+			if (pendingBranches == 0) {
+				if (cancelled || bestResponse.getStatusCode() / 100 == 6)
+					sendBestResponse();
+				else
+					forkNextGroup();
+			}
+		}
+
+		/**
+		 * Timer C of a branch fired (16.8): cancel the branch and treat it as a 408.
+		 */
+		void timerCFired(ProxyBranch branch) {
+			branch.timerCTask = null;
+			if (branch.completed)
+				return;
+			branch.cancel();
+			branchResponse(branch, createResponse(Response.REQUEST_TIMEOUT, serverTransaction
+					.getRequest()));
+		}
+
+		void cancelPendingBranches() {
+			cancelled = true;
+			for (ProxyBranch branch : branches)
+				branch.cancel();
+		}
+
+		@SuppressWarnings("unchecked")
+		void keepResponse(Response response) {
+			int statusCode = response.getStatusCode();
+			if (statusCode == Response.UNAUTHORIZED) {
+				ListIterator<WWWAuthenticateHeader> it = response
+						.getHeaders(WWWAuthenticateHeader.NAME);
+				while (it.hasNext())
+					authenticateHeaders.add(it.next());
+			} else if (statusCode == Response.PROXY_AUTHENTICATION_REQUIRED) {
+				ListIterator<ProxyAuthenticateHeader> it = response
+						.getHeaders(ProxyAuthenticateHeader.NAME);
+				while (it.hasNext())
+					proxyAuthenticateHeaders.add(it.next());
+			}
+			if (bestResponse == null || rank(statusCode) < rank(bestResponse.getStatusCode()))
+				bestResponse = response;
+		}
+
+		void sendBestResponse() {
+			if (finalResponseSent)
+				return;
+			finalResponseSent = true;
+			Request request = serverTransaction.getRequest();
+			Response response = bestResponse;
+			if (response == null || response.getStatusCode() == Response.SERVICE_UNAVAILABLE) {
+				// A 503 would make the UAC believe the proxy itself is overloaded.
+				response = createResponse(Response.SERVER_INTERNAL_ERROR, request);
+			} else if (response.getStatusCode() == Response.UNAUTHORIZED
+					|| response.getStatusCode() == Response.PROXY_AUTHENTICATION_REQUIRED) {
+				response.removeHeader(WWWAuthenticateHeader.NAME);
+				response.removeHeader(ProxyAuthenticateHeader.NAME);
+				for (Iterator<WWWAuthenticateHeader> it = authenticateHeaders.iterator(); it
+						.hasNext();)
+					response.addHeader(it.next());
+				for (Iterator<ProxyAuthenticateHeader> it = proxyAuthenticateHeaders.iterator(); it
+						.hasNext();)
+					response.addHeader(it.next());
+			}
+			forward(response);
+		}
+
+		void forward(Response response) {
+			try {
+				if (serverTransaction.getState() == null
+						|| serverTransaction.getState().getValue() < TransactionState._COMPLETED)
+					serverTransaction.sendResponse(response);
+				else
+					sipProvider.sendResponse(response);
+			} catch (SipException ex) {
+				try {
+					sipProvider.sendResponse(response);
+				} catch (SipException e) {
+					// Upstream is gone -- nothing more we can do.
+				}
+			} catch (InvalidArgumentException ex) {
+				// Not thrown for valid responses.
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.proxy;
+
+import javax.sip.address.URI;
+import javax.sip.header.ContactHeader;
+
+/**
+ * A target set entry for the forking proxy: the URI the request is forwarded to and its
+ * q-value (RFC 3261 section 16.6). Targets with a higher q-value are tried first.
+ *
+ * @version 1.2
+ *
+ */
+public class ProxyTarget {
+
+	/**
+	 * q-value assumed for targets that do not carry one.
+	 */
+	public static final float DEFAULT_Q_VALUE = 1.0f;
+
+	private URI uri;
+
+	private float qValue;
+
+	public ProxyTarget(URI uri, float qValue) {
+		if (uri == null)
+			throw new NullPointerException("null uri");
+		this.uri = uri;
+		this.qValue = qValue;
+	}
+
+	public ProxyTarget(URI uri) {
+		this(uri, DEFAULT_Q_VALUE);
+	}
+
+	/**
+	 * Build a target from a Contact header (typically taken from a location service lookup).
+	 *
+	 * @param contact -- the contact to forward to.
+	 */
+	public ProxyTarget(ContactHeader contact) {
+		this(contact.getAddress().getURI(), contact.getQValue() < 0 ? DEFAULT_Q_VALUE : contact
+				.getQValue());
+	}
+
+	public URI getURI() {
+		return uri;
+	}
+
+	public float getQValue() {
+		return qValue;
+	}
+
+	public String toString() {
+		return uri + ";q=" + qValue;
+	}
+}
@@ -0,0 +1,178 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.Utils;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An index of the client transactions with RFC 3261 branches, by branch, that a response is
+ * matched against without building its transaction id. The transaction id of such a
+ * transaction is its branch in lower case, followed by ":cancel" for a CANCEL; the index
+ * hashes the branch of the response folding the case as it goes and compares it in place
+ * with the ids of the transactions in its bucket, so that the lookup allocates nothing.
+ * <p>
+ * The index mirrors the client transaction table of the stack (put and remove by transaction
+ * id) and only speeds up the lookup: a transaction it misses, for instance while it is
+ * resized, is still found in the table. Lookups take no lock; a bucket is a chain of
+ * immutable entries that changes are copied into.
+ *
+ * @version 1.2
+ *
+ */
+final class BranchTable {
+
+	private static final String CANCEL_SUFFIX = ":cancel";
+
+	private static final class Entry {
+		final int hash;
+
+		final String transactionId;
+
+		// The length of the branch at the start of the transaction id.
+		final int branchLength;
+
+		final SIPClientTransaction transaction;
+
+		final Entry next;
+
+		Entry(int hash, String transactionId, int branchLength,
+				SIPClientTransaction transaction, Entry next) {
+			this.hash = hash;
+			this.transactionId = transactionId;
+			this.branchLength = branchLength;
+			this.transaction = transaction;
+			this.next = next;
+		}
+	}
+
+	private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(64);
+
+	private int count;
+
+	/**
+	 * Hash the first characters of a branch, with ASCII letters folded to lower case.
+	 */
+	private static int hash(String branch, int length) {
+		int h = 0;
+		for (int i = 0; i < length; i++) {
+			char c = branch.charAt(i);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			h = 31 * h + c;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Get the client transaction of a branch.
+	 *
+	 * @param branch -- the branch of the top Via of a response, in any case.
+	 * @param cancel -- true if the response is to a CANCEL.
+	 * @return the transaction, or null if the index has none for the branch.
+	 */
+	SIPClientTransaction get(String branch, boolean cancel) {
+		int length = branch.length();
+		int hash = hash(branch, length);
+		AtomicReferenceArray<Entry> table = this.table;
+		for (Entry e = table.get(hash & (table.length() - 1)); e != null; e = e.next) {
+			if (e.hash == hash
+					&& e.branchLength == length
+					&& e.transactionId.length() == (cancel ? length + CANCEL_SUFFIX.length()
+							: length)
+					&& e.transactionId.regionMatches(true, 0, branch, 0, length))
+				return e.transaction;
+		}
+		return null;
+	}
+
+	/**
+	 * Add a client transaction under its transaction id, replacing the one that had the same
+	 * id. Transactions without an RFC 3261 branch are not indexed.
+	 */
+	synchronized void put(String transactionId, SIPClientTransaction transaction) {
+		if (!Utils.isRfc3261Branch(transactionId))
+			return;
+		remove(transactionId);
+		int branchLength = transactionId.endsWith(CANCEL_SUFFIX) ? transactionId.length()
+				- CANCEL_SUFFIX.length() : transactionId.length();
+		int hash = hash(transactionId, branchLength);
+		if (++count > table.length() * 3 / 4)
+			resize();
+		AtomicReferenceArray<Entry> table = this.table;
+		int i = hash & (table.length() - 1);
+		table.set(i, new Entry(hash, transactionId, branchLength, transaction, table.get(i)));
+	}
+
+	/**
+	 * Remove the client transaction of a transaction id.
+	 */
+	synchronized void remove(String transactionId) {
+		if (!Utils.isRfc3261Branch(transactionId))
+			return;
+		int branchLength = transactionId.endsWith(CANCEL_SUFFIX) ? transactionId.length()
+				- CANCEL_SUFFIX.length() : transactionId.length();
+		int hash = hash(transactionId, branchLength);
+		AtomicReferenceArray<Entry> table = this.table;
+		int i = hash & (table.length() - 1);
+		Entry first = table.get(i);
+		Entry e = first;
+		while (e != null && !(e.hash == hash && e.transactionId.equals(transactionId)))
+			e = e.next;
+		if (e == null)
+			return;
+		// Copy the entries in front of the one removed.
+		Entry rest = e.next;
+		for (Entry p = first; p != e; p = p.next)
+			rest = new Entry(p.hash, p.transactionId, p.branchLength, p.transaction, rest);
+		table.set(i, rest);
+		count--;
+	}
+
+	synchronized void clear() {
+		table = new AtomicReferenceArray<Entry>(64);
+		count = 0;
+	}
+
+	private void resize() {
+		AtomicReferenceArray<Entry> oldTable = this.table;
+		AtomicReferenceArray<Entry> newTable = new AtomicReferenceArray<Entry>(
+				oldTable.length() * 2);
+		int mask = newTable.length() - 1;
+		for (int i = 0; i < oldTable.length(); i++) {
+			for (Entry e = oldTable.get(i); e != null; e = e.next) {
+				int j = e.hash & mask;
+				newTable.set(j, new Entry(e.hash, e.transactionId, e.branchLength,
+						e.transaction, newTable.get(j)));
+			}
+		}
+		this.table = newTable;
+	}
+}
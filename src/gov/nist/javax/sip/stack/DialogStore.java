@@ -0,0 +1,361 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Keeps the state of compacted dialogs (see gov.nist.javax.sip.COMPACT_CONFIRMED_DIALOGS) in a
+ * memory mapped file, outside of the Java heap, so that a restarted stack can pick up the calls
+ * that were in progress (see gov.nist.javax.sip.DIALOG_STORE_FILE).
+ * <p>
+ * The file is a header followed by fixed size slots. A slot holds the length of its record, a
+ * generation number and the record itself, written by SIPDialog.writeTo() with the primitives
+ * of this class (no Java serialization). A dialog is updated by writing the new record in a
+ * free slot and only then releasing the old one; if the process dies in between, the record
+ * with the highest generation wins when the file is opened again. Only the slot index lives on
+ * the heap.
+ * <p>
+ * Writes go to the operating system page cache and survive the death of the process; the file
+ * is only forced to the disk when the store is closed.
+ *
+ * @version 1.2
+ *
+ */
+public class DialogStore {
+
+	private static final int MAGIC = 0x53495044; // "SIPD"
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+
+	/**
+	 * Size of a slot. A compacted dialog with a few routes takes well under a kilobyte.
+	 */
+	public static final int SLOT_SIZE = 2048;
+
+	// Record length and generation.
+	private static final int SLOT_HEADER_SIZE = 12;
+
+	private SIPTransactionStack sipStack;
+
+	private RandomAccessFile file;
+
+	private MappedByteBuffer buffer;
+
+	private int slotCount;
+
+	private long generation;
+
+	// dialog id -> slot
+	private HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+	private BitSet usedSlots = new BitSet();
+
+	// index.size(), read without the lock on the lookup path of the stack.
+	private volatile int dialogCount;
+
+	private ByteBuffer scratch = ByteBuffer.allocate(SLOT_SIZE - SLOT_HEADER_SIZE);
+
+	/**
+	 * Open the store, creating the file if needed.
+	 *
+	 * @param sipStack -- the stack the dialogs are restored into.
+	 * @param path -- the file.
+	 * @param slotCount -- number of slots of a new file. An existing file keeps its size.
+	 */
+	public DialogStore(SIPTransactionStack sipStack, File path, int slotCount) throws IOException {
+		this.sipStack = sipStack;
+		this.file = new RandomAccessFile(path, "rw");
+		boolean existing = false;
+		if (file.length() >= HEADER_SIZE) {
+			file.seek(0);
+			if (file.readInt() == MAGIC && file.readInt() == VERSION
+					&& file.readInt() == SLOT_SIZE) {
+				int count = file.readInt();
+				if (file.length() >= HEADER_SIZE + (long) count * SLOT_SIZE) {
+					slotCount = count;
+					existing = true;
+				}
+			}
+			if (!existing)
+				sipStack.getLogWriter().logError(
+						"Dialog store " + path + " is not usable -- starting afresh");
+		}
+		if (!existing) {
+			file.setLength(0);
+			file.setLength(HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+		}
+		this.slotCount = slotCount;
+		this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+		if (existing) {
+			load();
+		} else {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, SLOT_SIZE);
+			buffer.putInt(12, slotCount);
+		}
+	}
+
+	private static int offset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	/**
+	 * Rebuild the index from the slots of an existing file.
+	 */
+	private void load() {
+		HashMap<String, Long> generations = new HashMap<String, Long>();
+		for (int slot = 0; slot < slotCount; slot++) {
+			int length = buffer.getInt(offset(slot));
+			if (length <= 0)
+				continue;
+			long recordGeneration = buffer.getLong(offset(slot) + 4);
+			String dialogId = null;
+			if (length <= SLOT_SIZE - SLOT_HEADER_SIZE) {
+				try {
+					dialogId = readString(record(slot));
+				} catch (RuntimeException ex) {
+					// Damaged record -- dropped below.
+				}
+			}
+			if (dialogId == null) {
+				free(slot);
+				continue;
+			}
+			generation = Math.max(generation, recordGeneration);
+			Integer previous = index.get(dialogId);
+			if (previous != null) {
+				if (generations.get(dialogId).longValue() > recordGeneration) {
+					free(slot);
+					continue;
+				}
+				free(previous.intValue());
+			}
+			index.put(dialogId, Integer.valueOf(slot));
+			generations.put(dialogId, Long.valueOf(recordGeneration));
+			usedSlots.set(slot);
+		}
+		dialogCount = index.size();
+		if (sipStack.isLoggingEnabled())
+			sipStack.getLogWriter().logDebug("Dialog store: " + index.size() + " dialogs");
+	}
+
+	/**
+	 * @return a view of the record held in a slot, positioned at its start.
+	 */
+	private ByteBuffer record(int slot) {
+		ByteBuffer record = buffer.duplicate();
+		int start = offset(slot) + SLOT_HEADER_SIZE;
+		record.limit(start + buffer.getInt(offset(slot)));
+		record.position(start);
+		return record.slice();
+	}
+
+	private void free(int slot) {
+		buffer.putInt(offset(slot), 0);
+		usedSlots.clear(slot);
+	}
+
+	/**
+	 * Save (or update) the state of a compacted dialog.
+	 */
+	public synchronized void put(SIPDialog dialog) {
+		if (buffer == null)
+			return;
+		String dialogId = dialog.getDialogId();
+		scratch.clear();
+		try {
+			dialog.writeTo(scratch);
+		} catch (BufferOverflowException ex) {
+			sipStack.getLogWriter().logError(
+					"Dialog " + dialogId + " does not fit in a dialog store slot");
+			remove(dialogId);
+			return;
+		}
+		int slot = usedSlots.nextClearBit(0);
+		if (slot >= slotCount) {
+			// The record left in the store is out of date: better lose the dialog than bring
+			// back a stale one after a restart.
+			sipStack.getLogWriter().logError("Dialog store is full -- dropping " + dialogId);
+			remove(dialogId);
+			return;
+		}
+		int length = scratch.position();
+		scratch.flip();
+		ByteBuffer target = buffer.duplicate();
+		target.position(offset(slot) + SLOT_HEADER_SIZE);
+		target.put(scratch);
+		buffer.putLong(offset(slot) + 4, ++generation);
+		// The length goes last: it is what makes the record valid.
+		buffer.putInt(offset(slot), length);
+		usedSlots.set(slot);
+
+		Integer previous = index.put(dialogId, Integer.valueOf(slot));
+		if (previous != null)
+			free(previous.intValue());
+		dialogCount = index.size();
+	}
+
+	/**
+	 * Forget a dialog (it has terminated).
+	 */
+	public synchronized void remove(String dialogId) {
+		if (buffer == null || dialogId == null)
+			return;
+		Integer slot = index.remove(dialogId);
+		if (slot != null)
+			free(slot.intValue());
+		dialogCount = index.size();
+	}
+
+	public synchronized boolean contains(String dialogId) {
+		return dialogId != null && index.containsKey(dialogId);
+	}
+
+	/**
+	 * @return the ids of the dialogs in the store.
+	 */
+	public synchronized Collection<String> getDialogIds() {
+		return new ArrayList<String>(index.keySet());
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return true if the store holds no dialog. Does not take the lock of the store, so it can
+	 *         be checked before each lookup.
+	 */
+	public boolean isEmpty() {
+		return dialogCount == 0;
+	}
+
+	/**
+	 * Rebuild a dialog from the store. The dialog is not put in the dialog table.
+	 *
+	 * @return the dialog, or null if it is not in the store, its record cannot be read or
+	 *         there is no listening point left for it.
+	 */
+	public synchronized SIPDialog restore(String dialogId) {
+		Integer slot = dialogId == null ? null : index.get(dialogId);
+		if (slot == null)
+			return null;
+		try {
+			return SIPDialog.readFrom(sipStack, record(slot.intValue()));
+		} catch (RuntimeException ex) {
+			sipStack.getLogWriter().logError("Could not restore dialog " + dialogId, ex);
+			remove(dialogId);
+			return null;
+		}
+	}
+
+	/**
+	 * Flush the file to the disk and release it. The records are kept for the next run.
+	 */
+	public synchronized void close() {
+		if (buffer == null)
+			return;
+		buffer.force();
+		buffer = null;
+		try {
+			file.close();
+		} catch (IOException ex) {
+			sipStack.getLogWriter().logException(ex);
+		}
+	}
+
+	// Codec primitives. Strings are written as a short length and UTF-8 bytes, byte arrays as
+	// an int length and the bytes; a length of -1 stands for null.
+
+	static void writeString(ByteBuffer buffer, String value) {
+		if (value == null) {
+			buffer.putShort((short) -1);
+			return;
+		}
+		try {
+			byte[] bytes = value.getBytes("UTF-8");
+			if (bytes.length > Short.MAX_VALUE)
+				throw new BufferOverflowException();
+			buffer.putShort((short) bytes.length);
+			buffer.put(bytes);
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	static String readString(ByteBuffer buffer) {
+		short length = buffer.getShort();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	static void writeBytes(ByteBuffer buffer, byte[] value) {
+		if (value == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(value.length);
+			buffer.put(value);
+		}
+	}
+
+	static byte[] readBytes(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0)
+			return null;
+		if (length > buffer.remaining())
+			throw new BufferUnderflowException();
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,195 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A flow kept alive by the KeepaliveScheduler: the path between one of our listening points
+ * and a remote address, port and transport (RFC 5626 section 3.1), usually a registrar or an
+ * edge proxy. The scheduling fields are only used by the scheduler, under its lock; flows are
+ * linked into the slots of its timer wheel so that scheduling does not allocate.
+ *
+ * @version 1.2
+ *
+ */
+public class KeepaliveFlow {
+
+	// States of the flow.
+	static final int IDLE = 0;
+
+	static final int WAITING = 1;
+
+	static final int FAILED = 2;
+
+	final String key;
+
+	final String transport;
+
+	final InetAddress address;
+
+	final int port;
+
+	final MessageProcessor messageProcessor;
+
+	final boolean stun;
+
+	// Keepalive interval in milliseconds.
+	int interval;
+
+	int state;
+
+	String failureReason;
+
+	// Timer wheel: the tick at which the flow is due and its neighbours in the slot.
+	long deadline;
+
+	KeepaliveFlow next;
+
+	KeepaliveFlow previous;
+
+	boolean scheduled;
+
+	// Next flow in the list of flows the scheduler thread is about to process.
+	KeepaliveFlow nextDue;
+
+	// The tick at which the pending keepalive was first sent, and the current retransmission
+	// interval of a STUN keepalive, in ticks.
+	long sentAt;
+
+	int retransmitTicks;
+
+	// The STUN transaction ID of the pending keepalive, magic cookie included.
+	byte[] transactionId;
+
+	// The last reflexive address reported by the STUN server.
+	byte[] mappedAddress;
+
+	int mappedPort;
+
+	private Object applicationData;
+
+	KeepaliveFlow(MessageProcessor messageProcessor, InetAddress address, int port,
+			boolean stun, int interval) {
+		this.transport = messageProcessor.getTransport().toUpperCase();
+		this.messageProcessor = messageProcessor;
+		this.address = address;
+		this.port = port;
+		this.stun = stun;
+		this.interval = interval;
+		this.key = makeKey(transport, messageProcessor.getPort(), address, port);
+		if (stun)
+			this.transactionId = new byte[16];
+	}
+
+	static String makeKey(String transport, int localPort, InetAddress address, int port) {
+		return transport.toUpperCase() + ":" + localPort + "/" + address.getHostAddress() + ":"
+				+ port;
+	}
+
+	public String getTransport() {
+		return transport;
+	}
+
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the port of the listening point the flow goes through.
+	 */
+	public int getLocalPort() {
+		return messageProcessor.getPort();
+	}
+
+	/**
+	 * @return true for STUN keepalives, false for CRLF ones.
+	 */
+	public boolean isStun() {
+		return stun;
+	}
+
+	/**
+	 * @return the keepalive interval in milliseconds. Each keepalive is sent after a random
+	 *         80% to 100% of it.
+	 */
+	public int getInterval() {
+		return interval;
+	}
+
+	public boolean isFailed() {
+		return state == FAILED;
+	}
+
+	/**
+	 * @return why the flow failed, null if it has not.
+	 */
+	public String getFailureReason() {
+		return failureReason;
+	}
+
+	/**
+	 * @return the port of the last reflexive address reported by the STUN server, -1 if
+	 *         there is none.
+	 */
+	public int getMappedPort() {
+		return mappedAddress == null ? -1 : mappedPort;
+	}
+
+	/**
+	 * @return the last reflexive address reported by the STUN server, null if there is none.
+	 */
+	public InetAddress getMappedAddress() {
+		try {
+			return mappedAddress == null ? null : InetAddress.getByAddress(mappedAddress);
+		} catch (UnknownHostException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Attach an object of the application (typically its registration) to the flow.
+	 */
+	public void setApplicationData(Object applicationData) {
+		this.applicationData = applicationData;
+	}
+
+	public Object getApplicationData() {
+		return applicationData;
+	}
+
+	public String toString() {
+		return key;
+	}
+}
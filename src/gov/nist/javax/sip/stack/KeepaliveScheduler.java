@@ -0,0 +1,470 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import de.javawi.jstun.attribute.MessageAttributeInterface;
+import de.javawi.jstun.header.MessageBuffer;
+import de.javawi.jstun.header.MessageHeaderInterface;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Sends RFC 5626 keepalives on every registered flow and detects the flows that fail, from a
+ * single thread.
+ * <p>
+ * A flow is kept alive either with STUN Binding Requests sent from the SIP socket (UDP; the
+ * server must answer STUN on its SIP port, see gov.nist.javax.sip.STUN_RESPONDER) or with
+ * CRLF pings: a double CRLF on the connection (TCP and TLS), answered by a single CRLF pong, or
+ * a bare double CRLF datagram (UDP, which gets no answer and so cannot detect failures).
+ * Keepalives are sent after a random 80% to 100% of the interval of the flow. A flow fails
+ * when:
+ * <ul>
+ * <li>its STUN keepalive is not answered within 10 seconds (it is retransmitted after 500 ms,
+ * then at doubling intervals), or its CRLF ping gets no pong within 10 seconds (section
+ * 4.4.1);</li>
+ * <li>the reflexive address reported by STUN changes (the NAT binding was lost);</li>
+ * <li>the connection of a TCP or TLS flow is gone, or a keepalive cannot be sent.</li>
+ * </ul>
+ * Failed flows are dropped and the KeepaliveListeners are told, so the registration layer can
+ * register again.
+ * <p>
+ * Flows are kept in a hashed timer wheel of 1024 slots of 100 ms: scheduling or cancelling a
+ * timer links or unlinks the flow in the list of a slot, and each tick only looks at one slot,
+ * whatever the number of flows. A flow due in more than one turn of the wheel stays in its slot
+ * until its deadline comes round. With the default 25 second interval, 100000 UDP flows cost
+ * 4000 keepalives a second.
+ *
+ * @version 1.2
+ *
+ */
+public class KeepaliveScheduler implements Runnable {
+
+	/**
+	 * Default keepalive intervals (RFC 5626 section 4.4.1), in seconds.
+	 */
+	public static final int UDP_INTERVAL = 25;
+
+	public static final int CONNECTION_INTERVAL = 120;
+
+	static final byte[] PING = { '\r', '\n', '\r', '\n' };
+
+	static final byte[] PONG = { '\r', '\n' };
+
+	// Length of a tick, in milliseconds.
+	private static final int TICK = 100;
+
+	private static final int WHEEL_SIZE = 1024;
+
+	private static final int PONG_TIMEOUT = 10000 / TICK;
+
+	private static final int STUN_RTO = 500 / TICK;
+
+	private final SIPTransactionStack sipStack;
+
+	// Heads of the lists of flows of each slot.
+	private final KeepaliveFlow[] wheel = new KeepaliveFlow[WHEEL_SIZE];
+
+	private long tick;
+
+	private final ConcurrentHashMap<String, KeepaliveFlow> flows = new ConcurrentHashMap<String, KeepaliveFlow>();
+
+	private final CopyOnWriteArrayList<KeepaliveListener> listeners = new CopyOnWriteArrayList<KeepaliveListener>();
+
+	// Only used by the scheduler thread, or under the lock for the STUN responses.
+	private final Random random = new Random();
+
+	private final MessageBuffer stunMessage = new MessageBuffer();
+
+	private final ByteBuffer stunBuffer = ByteBuffer.allocate(MessageBuffer.HEADER_LENGTH + 8);
+
+	private final DatagramPacket packet = new DatagramPacket(stunBuffer.array(), 0);
+
+	private final byte[] address = new byte[16];
+
+	private Thread thread;
+
+	private volatile boolean isRunning;
+
+	KeepaliveScheduler(SIPTransactionStack sipStack) {
+		this.sipStack = sipStack;
+	}
+
+	/**
+	 * Start keeping a flow alive. If the flow is already kept alive its interval is updated
+	 * (for example from the Flow-Timer header of a new registration).
+	 *
+	 * @param transport UDP, TCP or TLS.
+	 * @param localPort the port of the listening point to send from.
+	 * @param host the remote address, usually the one a REGISTER was sent to.
+	 * @param stun true for STUN keepalives, false for CRLF ones.
+	 * @param interval the keepalive interval in seconds, 0 for the default of the transport.
+	 * @throws IOException if there is no such listening point or the host is unknown.
+	 */
+	public KeepaliveFlow addFlow(String transport, int localPort, String host, int port,
+			boolean stun, int interval) throws IOException {
+		MessageProcessor messageProcessor = null;
+		MessageProcessor[] processors = sipStack.getMessageProcessors();
+		for (int i = 0; i < processors.length; i++) {
+			if (processors[i].getPort() == localPort
+					&& processors[i].getTransport().equalsIgnoreCase(transport))
+				messageProcessor = processors[i];
+		}
+		if (messageProcessor == null)
+			throw new IOException("No " + transport + " listening point on port " + localPort);
+		if (stun && !(messageProcessor instanceof UDPMessageProcessor))
+			throw new IOException("STUN keepalives are only sent over UDP");
+		if (interval <= 0)
+			interval = messageProcessor instanceof UDPMessageProcessor ? UDP_INTERVAL
+					: CONNECTION_INTERVAL;
+		InetAddress inetAddress = InetAddress.getByName(host);
+
+		KeepaliveFlow flow;
+		synchronized (this) {
+			String key = KeepaliveFlow.makeKey(transport, localPort, inetAddress, port);
+			flow = flows.get(key);
+			if (flow == null) {
+				flow = new KeepaliveFlow(messageProcessor, inetAddress, port, stun,
+						interval * 1000);
+				flows.put(key, flow);
+				scheduleKeepalive(flow);
+			} else {
+				flow.interval = interval * 1000;
+			}
+		}
+		start();
+		if (sipStack.isLoggingEnabled())
+			sipStack.logWriter.logDebug("Keeping flow " + flow + " alive every " + interval
+					+ "s");
+		return flow;
+	}
+
+	/**
+	 * Stop keeping a flow alive (when its registration is removed).
+	 */
+	public synchronized void removeFlow(KeepaliveFlow flow) {
+		if (flows.remove(flow.key) != null)
+			cancel(flow);
+	}
+
+	public KeepaliveFlow getFlow(String transport, int localPort, String host, int port)
+			throws IOException {
+		return flows.get(KeepaliveFlow.makeKey(transport, localPort, InetAddress.getByName(host),
+				port));
+	}
+
+	public Collection<KeepaliveFlow> getFlows() {
+		return flows.values();
+	}
+
+	public int getFlowCount() {
+		return flows.size();
+	}
+
+	public void addKeepaliveListener(KeepaliveListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeKeepaliveListener(KeepaliveListener listener) {
+		listeners.remove(listener);
+	}
+
+	/*
+	 * Timer wheel. All of these are called with the lock held.
+	 */
+
+	private void schedule(KeepaliveFlow flow, long ticks) {
+		cancel(flow);
+		flow.deadline = tick + Math.max(1, ticks);
+		int slot = (int) (flow.deadline & (WHEEL_SIZE - 1));
+		flow.previous = null;
+		flow.next = wheel[slot];
+		if (wheel[slot] != null)
+			wheel[slot].previous = flow;
+		wheel[slot] = flow;
+		flow.scheduled = true;
+	}
+
+	private void cancel(KeepaliveFlow flow) {
+		if (!flow.scheduled)
+			return;
+		if (flow.previous != null)
+			flow.previous.next = flow.next;
+		else
+			wheel[(int) (flow.deadline & (WHEEL_SIZE - 1))] = flow.next;
+		if (flow.next != null)
+			flow.next.previous = flow.previous;
+		flow.next = null;
+		flow.previous = null;
+		flow.scheduled = false;
+	}
+
+	/**
+	 * Schedule the next keepalive after 80% to 100% of the interval.
+	 */
+	private void scheduleKeepalive(KeepaliveFlow flow) {
+		flow.state = KeepaliveFlow.IDLE;
+		int ticks = flow.interval / TICK;
+		schedule(flow, ticks - random.nextInt(ticks / 5 + 1));
+	}
+
+	/**
+	 * Mark the flow failed. The scheduler thread drops it and tells the listeners on its next
+	 * tick.
+	 */
+	private void fail(KeepaliveFlow flow, String reason) {
+		if (flow.state == KeepaliveFlow.FAILED)
+			return;
+		flow.state = KeepaliveFlow.FAILED;
+		flow.failureReason = reason;
+		schedule(flow, 1);
+	}
+
+	/**
+	 * The keepalive of a STUN flow was answered: called by the StunResponder of the UDP
+	 * listening point for every Binding Response it receives.
+	 *
+	 * @return false if the response is not for a pending keepalive.
+	 */
+	boolean stunResponseReceived(UDPMessageProcessor messageProcessor, MessageBuffer response,
+			InetAddress from, int fromPort) {
+		KeepaliveFlow flow = flows.get(KeepaliveFlow.makeKey(messageProcessor.getTransport(),
+				messageProcessor.getPort(), from, fromPort));
+		if (flow == null)
+			return false;
+		synchronized (this) {
+			if (flow.state != KeepaliveFlow.WAITING
+					|| !response.equalTransactionID(flow.transactionId))
+				return false;
+			if (response.getType() == MessageHeaderInterface.BINDINGRESPONSE) {
+				int type = response.hasAttribute(MessageAttributeInterface.XORMAPPEDADDRESS) ? MessageAttributeInterface.XORMAPPEDADDRESS
+						: MessageAttributeInterface.MAPPEDADDRESS;
+				int length = response.getAddress(type, address);
+				int port = response.getPort(type);
+				if (length > 0) {
+					if (flow.mappedAddress == null) {
+						flow.mappedAddress = new byte[length];
+						System.arraycopy(address, 0, flow.mappedAddress, 0, length);
+						flow.mappedPort = port;
+					} else if (port != flow.mappedPort || length != flow.mappedAddress.length
+							|| !regionEquals(address, flow.mappedAddress, length)) {
+						fail(flow, "the reflexive address changed");
+						return true;
+					}
+				}
+			}
+			// An error response came through the NAT all the same.
+			scheduleKeepalive(flow);
+		}
+		return true;
+	}
+
+	private static boolean regionEquals(byte[] a, byte[] b, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[i] != b[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A CRLF pong (or ping) was read on a TCP or TLS connection.
+	 */
+	void pongReceived(MessageChannel channel) {
+		KeepaliveFlow flow = flows.get(KeepaliveFlow.makeKey(channel.getTransport(), channel
+				.getMessageProcessor().getPort(), channel.getPeerInetAddress(), channel
+				.getPeerPort()));
+		if (flow == null)
+			return;
+		synchronized (this) {
+			if (flow.state == KeepaliveFlow.WAITING)
+				scheduleKeepalive(flow);
+		}
+	}
+
+	/**
+	 * Send the keepalive of a flow that is due, retransmit it or give up on it.
+	 */
+	private void process(KeepaliveFlow flow) {
+		boolean failed = false;
+		synchronized (this) {
+			// Removed, or rescheduled by a response since it was found due.
+			if (flows.get(flow.key) != flow || flow.scheduled)
+				return;
+			if (flow.state == KeepaliveFlow.FAILED) {
+				flows.remove(flow.key);
+				failed = true;
+			} else if (flow.state == KeepaliveFlow.IDLE) {
+				flow.state = KeepaliveFlow.WAITING;
+				flow.sentAt = tick;
+				if (flow.stun) {
+					flow.retransmitTicks = STUN_RTO;
+					schedule(flow, STUN_RTO);
+					int word = random.nextInt();
+					for (int i = 0; i < 16; i++) {
+						if ((i & 3) == 0)
+							word = i == 0 ? MessageHeaderInterface.MAGICCOOKIE : random.nextInt();
+						flow.transactionId[i] = (byte) (word >>> (24 - 8 * (i & 3)));
+					}
+				} else if (flow.messageProcessor instanceof UDPMessageProcessor) {
+					// Nothing comes back from a bare CRLF over UDP.
+					scheduleKeepalive(flow);
+				} else {
+					schedule(flow, PONG_TIMEOUT);
+				}
+			} else if (flow.stun && tick - flow.sentAt < PONG_TIMEOUT) {
+				flow.retransmitTicks *= 2;
+				schedule(flow, Math.min(flow.retransmitTicks, flow.sentAt + PONG_TIMEOUT - tick));
+			} else {
+				fail(flow, "no answer to the keepalive");
+				return;
+			}
+		}
+		if (failed) {
+			if (sipStack.isLoggingEnabled())
+				sipStack.logWriter.logDebug("Keepalive flow " + flow + " failed: "
+						+ flow.failureReason);
+			for (KeepaliveListener listener : listeners) {
+				try {
+					listener.flowFailed(flow);
+				} catch (Exception ex) {
+					sipStack.logWriter.logError("Keepalive listener failed", ex);
+				}
+			}
+			return;
+		}
+
+		try {
+			send(flow);
+		} catch (IOException ex) {
+			synchronized (this) {
+				fail(flow, ex.getMessage());
+			}
+		}
+	}
+
+	private void send(KeepaliveFlow flow) throws IOException {
+		if (flow.messageProcessor instanceof UDPMessageProcessor) {
+			if (flow.stun) {
+				stunBuffer.clear();
+				stunMessage.start(stunBuffer, MessageHeaderInterface.BINDINGREQUEST,
+						flow.transactionId);
+				stunMessage.putFingerprint();
+				packet.setData(stunBuffer.array(), 0, stunMessage.finish());
+			} else {
+				packet.setData(PING);
+			}
+			packet.setAddress(flow.address);
+			packet.setPort(flow.port);
+			((UDPMessageProcessor) flow.messageProcessor).sock.send(packet);
+		} else {
+			Socket socket = sipStack.ioHandler.getSocket(IOHandler.makeKey(flow.address,
+					flow.port));
+			if (socket == null || socket.isClosed())
+				throw new IOException("the connection is closed");
+			OutputStream outputStream = socket.getOutputStream();
+			synchronized (outputStream) {
+				outputStream.write(PING);
+			}
+			outputStream.flush();
+		}
+	}
+
+	/**
+	 * Start the scheduler thread, if it is not running yet.
+	 */
+	synchronized void start() {
+		if (thread != null)
+			return;
+		isRunning = true;
+		thread = new Thread(this);
+		thread.setDaemon(true);
+		thread.setName("KeepaliveSchedulerThread");
+		thread.start();
+	}
+
+	void stop() {
+		isRunning = false;
+		synchronized (this) {
+			if (thread != null)
+				thread.interrupt();
+		}
+	}
+
+	public void run() {
+		long nextTick = System.currentTimeMillis();
+		while (isRunning) {
+			nextTick += TICK;
+			long delay = nextTick - System.currentTimeMillis();
+			try {
+				if (delay > 0)
+					Thread.sleep(delay);
+				else if (delay < -1000)
+					// Too far behind (the clock was changed): do not catch up.
+					nextTick = System.currentTimeMillis();
+			} catch (InterruptedException ex) {
+				continue;
+			}
+
+			// Unlink the flows that are due, then process them without the lock.
+			KeepaliveFlow due = null;
+			synchronized (this) {
+				tick++;
+				KeepaliveFlow flow = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+				while (flow != null) {
+					KeepaliveFlow next = flow.next;
+					if (flow.deadline <= tick) {
+						cancel(flow);
+						flow.nextDue = due;
+						due = flow;
+					}
+					flow = next;
+				}
+			}
+			while (due != null) {
+				KeepaliveFlow flow = due;
+				due = flow.nextDue;
+				flow.nextDue = null;
+				try {
+					process(flow);
+				} catch (Exception ex) {
+					sipStack.logWriter.logError("Keepalive of " + flow + " failed", ex);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Breaks down the time an incoming message spends in the stack. The message is stamped (see
+ * SIPMessage.getStageTimes()) when it comes off the socket, when it is parsed, when it has
+ * been matched to a transaction, when its event is queued for the listener and when the
+ * listener is called and returns. When the listener returns, the time between consecutive
+ * stages is recorded in a histogram per stage and, for one message out of every
+ * <code>sampleInterval</code>, the whole breakdown is written to the log.
+ * <p>
+ * Messages that never reach the listener (retransmissions, ACKs absorbed by the transaction
+ * layer, stray responses) are simply not recorded. Stream transports parse in the reader
+ * thread before the channel sees the message, so the parse stage is only measured for UDP. There
+ * it starts when the datagram is read from the socket, and so includes the wait in the queue of
+ * the UDPMessageProcessor.
+ * <p>
+ * This is enabled with gov.nist.javax.sip.LATENCY_TRACING. When it is off the stack keeps no
+ * tracer and messages carry no timestamps.
+ *
+ * @version 1.2
+ *
+ */
+public class LatencyTracer {
+
+	public static final int RECEIVED = 0;
+
+	public static final int PARSED = 1;
+
+	public static final int MATCHED = 2;
+
+	public static final int QUEUED = 3;
+
+	public static final int DISPATCHED = 4;
+
+	public static final int RETURNED = 5;
+
+	private static final int STAGES = 6;
+
+	/*
+	 * Name of the interval that ends with the stage of the same index (there is nothing before
+	 * RECEIVED).
+	 */
+	private static final String[] INTERVALS = { null, "parse", "match", "enqueue", "queue",
+			"listener" };
+
+	private SIPTransactionStack sipStack;
+
+	private final LatencyHistogram[] stageTime = new LatencyHistogram[STAGES];
+
+	private final LatencyHistogram totalTime = new LatencyHistogram();
+
+	private final int sampleInterval;
+
+	private final AtomicLong traced = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sipStack -- the stack.
+	 * @param sampleInterval -- log one message out of this many, 0 to never log.
+	 */
+	public LatencyTracer(SIPTransactionStack sipStack, int sampleInterval) {
+		this.sipStack = sipStack;
+		this.sampleInterval = sampleInterval;
+		for (int i = PARSED; i < STAGES; i++)
+			stageTime[i] = new LatencyHistogram();
+	}
+
+	/**
+	 * Start tracing a freshly parsed message.
+	 *
+	 * @param sipMessage -- the message.
+	 * @param receptionTime -- when the bytes were read (StackMetrics.now()), or 0 if unknown.
+	 */
+	public void start(SIPMessage sipMessage, long receptionTime) {
+		long[] stageTimes = new long[STAGES];
+		stageTimes[RECEIVED] = receptionTime;
+		stageTimes[PARSED] = StackMetrics.now();
+		sipMessage.setStageTimes(stageTimes);
+	}
+
+	/**
+	 * Stamp a message with the current time. Does nothing if the message is not traced.
+	 */
+	public static void mark(SIPMessage sipMessage, int stage) {
+		long[] stageTimes = sipMessage.getStageTimes();
+		if (stageTimes != null)
+			stageTimes[stage] = StackMetrics.now();
+	}
+
+	/**
+	 * The listener has returned: record the stages of this message and stop tracing it.
+	 */
+	public void finish(SIPMessage sipMessage) {
+		long[] stageTimes = sipMessage.getStageTimes();
+		if (stageTimes == null)
+			return;
+		sipMessage.setStageTimes(null);
+		stageTimes[RETURNED] = StackMetrics.now();
+
+		long previous = stageTimes[RECEIVED];
+		for (int i = PARSED; i < STAGES; i++) {
+			if (stageTimes[i] == 0)
+				continue;
+			if (previous != 0)
+				stageTime[i].record(stageTimes[i] - previous);
+			previous = stageTimes[i];
+		}
+		long first = stageTimes[RECEIVED] != 0 ? stageTimes[RECEIVED] : stageTimes[PARSED];
+		totalTime.record(stageTimes[RETURNED] - first);
+
+		if (sampleInterval > 0 && traced.incrementAndGet() % sampleInterval == 0)
+			sipStack.getLogWriter().logInfo(format(sipMessage, stageTimes));
+	}
+
+	private static String format(SIPMessage sipMessage, long[] stageTimes) {
+		StringBuffer buffer = new StringBuffer("latency ");
+		if (sipMessage instanceof SIPRequest)
+			buffer.append(((SIPRequest) sipMessage).getMethod());
+		else
+			buffer.append(((SIPResponse) sipMessage).getStatusCode()).append(" ").append(
+					sipMessage.getCSeq().getMethod());
+		buffer.append(" ").append(sipMessage.getCallId().getCallId());
+		long previous = stageTimes[RECEIVED];
+		for (int i = PARSED; i < STAGES; i++) {
+			if (stageTimes[i] == 0)
+				continue;
+			if (previous != 0)
+				buffer.append(" ").append(INTERVALS[i]).append("=").append(
+						stageTimes[i] - previous).append("us");
+			previous = stageTimes[i];
+		}
+		return buffer.toString();
+	}
+
+	public LatencyHistogram getStageTime(int stage) {
+		return stageTime[stage];
+	}
+
+	public LatencyHistogram getTotalTime() {
+		return totalTime;
+	}
+
+	/**
+	 * Append the stage histograms in the format of StackMetrics.getText().
+	 */
+	public void encode(StringBuffer buffer) {
+		for (int i = PARSED; i < STAGES; i++)
+			stageTime[i].encode("sip_stage_time_us", "stage=\"" + INTERVALS[i] + "\"", buffer);
+		totalTime.encode("sip_stage_time_us", "stage=\"total\"", buffer);
+	}
+}
@@ -211,6 +211,7 @@ public abstract class MessageChannel {
             byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
 
             this.sendMessage(msg, hopAddr, hop.getPort(), sipMessage instanceof SIPRequest);
+            getSIPStack().getMetrics().messageSent(sipMessage);
 
         } catch (IOException ioe) {
             throw ioe;
@@ -235,6 +236,7 @@ public abstract class MessageChannel {
         long time = System.currentTimeMillis();
         byte[] bytes = sipMessage.encodeAsBytes(this.getTransport());
         sendMessage(bytes, receiverAddress, receiverPort, sipMessage instanceof SIPRequest);
+        getSIPStack().getMetrics().messageSent(sipMessage);
         logMessage(sipMessage, receiverAddress, receiverPort, time);
     }
 
@@ -0,0 +1,131 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the stack metrics. The metrics can be registered as a platform MBean
+ * (gov.nist.javax.sip.METRICS_JMX) and/or served as plain text to anybody connecting to a TCP
+ * port (gov.nist.javax.sip.METRICS_PORT). The text is wrapped in a minimal HTTP/1.0 response so
+ * it can be fetched with a browser or curl.
+ * <p>
+ * This class is only loaded when one of these properties is set, so the stack still runs on
+ * platforms without java.lang.management.
+ *
+ * @version 1.2
+ *
+ */
+public class MetricsExporter implements Runnable {
+
+	private StackMetrics metrics;
+
+	private SIPTransactionStack sipStack;
+
+	private ObjectName objectName;
+
+	private ServerSocket serverSocket;
+
+	public MetricsExporter(SIPTransactionStack sipStack) {
+		this.sipStack = sipStack;
+		this.metrics = sipStack.getMetrics();
+	}
+
+	/**
+	 * Register the metrics with the platform MBean server.
+	 */
+	public void registerMBean() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		this.objectName = new ObjectName("gov.nist.javax.sip:type=StackMetrics,name="
+				+ ObjectName.quote(String.valueOf(sipStack.stackName)));
+		server.registerMBean(metrics, objectName);
+	}
+
+	/**
+	 * Serve the plain text exposition on the given loopback port.
+	 */
+	public void startTextEndpoint(int port) throws IOException {
+		this.serverSocket = new ServerSocket(port, 5, InetAddress.getByName("127.0.0.1"));
+		Thread thread = new Thread(this);
+		thread.setDaemon(true);
+		thread.setName("MetricsExporterThread");
+		thread.start();
+	}
+
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			Socket socket = null;
+			try {
+				socket = serverSocket.accept();
+				// The request is not looked at -- every connection gets the metrics.
+				byte[] body = metrics.getText().getBytes();
+				OutputStream out = socket.getOutputStream();
+				out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\nContent-Length: "
+						+ body.length + "\r\n\r\n").getBytes());
+				out.write(body);
+				out.flush();
+			} catch (IOException ex) {
+				if (!serverSocket.isClosed() && sipStack.isLoggingEnabled())
+					sipStack.getLogWriter().logException(ex);
+			} finally {
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException ex) {
+					}
+				}
+			}
+		}
+	}
+
+	public void stop() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception ex) {
+				// Already gone.
+			}
+			objectName = null;
+		}
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loss based overload control, after RFC 7339. The event scanner reports, for every event it
+ * delivers, how long the event waited in its queue and how long the listener took to handle
+ * it. Once a second the averages are compared with the configured limits: while either one
+ * is over its limit, the share of new dialog creating requests to reject is raised by
+ * <code>INCREASE</code> points for every multiple of the limit reached, so that a listener
+ * far behind sheds load quickly; otherwise it is lowered by <code>DECREASE</code> points.
+ * The rejected requests are answered with a 503 (Service Unavailable) carrying a Retry-After
+ * (see DialogFilter) before the listener sees them. Requests within dialogs are never
+ * rejected, so that calls in progress can finish and the queue drains.
+ * <p>
+ * Rejections are spread evenly over the incoming requests rather than drawn at random, and
+ * the evaluation is done by whichever thread happens to report or ask past the end of the
+ * interval, so there is no timer. This is enabled with gov.nist.javax.sip.OVERLOAD_CONTROL.
+ *
+ * @version 1.2
+ *
+ */
+public class OverloadControl {
+
+	private static final long INTERVAL = 1000 * 1000;
+
+	private static final int INCREASE = 10;
+
+	private static final int DECREASE = 5;
+
+	private SIPTransactionStack sipStack;
+
+	// Limits, in microseconds.
+	private final long maxQueueDelay;
+
+	private final long maxServiceTime;
+
+	private final int retryAfter;
+
+	// Samples of the current interval.
+	private final AtomicLong events = new AtomicLong();
+
+	private final AtomicLong totalQueueDelay = new AtomicLong();
+
+	private final AtomicLong totalServiceTime = new AtomicLong();
+
+	private final AtomicLong intervalStart = new AtomicLong(StackMetrics.now());
+
+	// Averages of the last complete interval.
+	private volatile long queueDelay;
+
+	private volatile long serviceTime;
+
+	private volatile int rejectPercent;
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	/**
+	 * @param maxQueueDelay
+	 *            longest average time (ms) events may wait for the listener.
+	 * @param maxServiceTime
+	 *            longest average time (ms) the listener may take per event.
+	 * @param retryAfter
+	 *            seconds to put in the Retry-After of the rejections.
+	 */
+	public OverloadControl(SIPTransactionStack sipStack, int maxQueueDelay,
+			int maxServiceTime, int retryAfter) {
+		this.sipStack = sipStack;
+		this.maxQueueDelay = maxQueueDelay * 1000L;
+		this.maxServiceTime = maxServiceTime * 1000L;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * An event was delivered to the listener.
+	 *
+	 * @param queueDelay
+	 *            time (us) the event waited in the queue, 0 for a re-entrant listener.
+	 * @param serviceTime
+	 *            time (us) the listener took.
+	 */
+	public void eventDelivered(long queueDelay, long serviceTime) {
+		events.incrementAndGet();
+		totalQueueDelay.addAndGet(queueDelay);
+		totalServiceTime.addAndGet(serviceTime);
+		update(StackMetrics.now());
+	}
+
+	/**
+	 * Decide on a new dialog creating request.
+	 *
+	 * @return true if the request must be rejected with a 503.
+	 */
+	public boolean rejectRequest() {
+		update(StackMetrics.now());
+		int percent = rejectPercent;
+		if (percent == 0)
+			return false;
+		// Reject when the running count of rejections owed goes up by one.
+		long n = requests.incrementAndGet() & 0x7fffffff;
+		boolean reject = n * percent / 100 != (n - 1) * percent / 100;
+		if (reject)
+			sipStack.getMetrics().overloadRejected();
+		return reject;
+	}
+
+	private void update(long now) {
+		long start = intervalStart.get();
+		if (now - start < INTERVAL || !intervalStart.compareAndSet(start, now))
+			return;
+		long count = events.getAndSet(0);
+		long queued = totalQueueDelay.getAndSet(0);
+		long served = totalServiceTime.getAndSet(0);
+		queueDelay = count == 0 ? 0 : queued / count;
+		serviceTime = count == 0 ? 0 : served / count;
+		long excess = 0;
+		if (maxQueueDelay > 0)
+			excess = queueDelay / maxQueueDelay;
+		if (maxServiceTime > 0)
+			excess = Math.max(excess, serviceTime / maxServiceTime);
+		int percent = rejectPercent;
+		if (excess > 0)
+			percent = (int) Math.min(100, percent + INCREASE * excess);
+		else
+			percent = Math.max(0, percent - DECREASE);
+		if (percent != rejectPercent && sipStack.isLoggingEnabled())
+			sipStack.getLogWriter().logWarning(
+					"Overload control: rejecting " + percent + "% of new requests (queue delay "
+							+ queueDelay + " us, service time " + serviceTime + " us)");
+		rejectPercent = percent;
+	}
+
+	/**
+	 * Seconds the rejected clients are asked to wait before trying again.
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * Share (0 to 100) of new dialog creating requests currently rejected.
+	 */
+	public int getRejectPercent() {
+		return rejectPercent;
+	}
+
+	/**
+	 * Average time (us) events waited for the listener over the last interval.
+	 */
+	public long getQueueDelay() {
+		return queueDelay;
+	}
+
+	/**
+	 * Average time (us) the listener took per event over the last interval.
+	 */
+	public long getServiceTime() {
+		return serviceTime;
+	}
+
+	public void encode(StringBuffer buffer) {
+		buffer.append("sip_overload_reject_percent ").append(rejectPercent).append("\n");
+		buffer.append("sip_overload_queue_delay_us ").append(queueDelay).append("\n");
+		buffer.append("sip_overload_service_time_us ").append(serviceTime).append("\n");
+	}
+}
@@ -0,0 +1,379 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SIPConstants;
+import gov.nist.javax.sip.Utils;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.sip.message.Request;
+
+/**
+ * Answers retransmitted requests on a UDP listening point with the final response already sent
+ * for them, from the thread that read the datagram, without parsing the request or looking up
+ * its transaction (see gov.nist.javax.sip.RETRANSMISSION_CACHE_SIZE). During a retransmission
+ * storm this keeps the message queue, the parser and the transaction layer free for new
+ * requests.
+ * <p>
+ * A request is fingerprinted by the branch of its top Via (RFC 3261 branches only), its method
+ * and its CSeq number, read in place in the datagram. The encoded final responses to non-INVITE
+ * requests and the 2xx responses to INVITEs are cached under the fingerprint of their request
+ * as they are sent, for as long as the server transaction would absorb retransmissions (Timer
+ * J, 64*T1). Other INVITE responses are left to the transaction, which has to see the ACK. A
+ * retransmission only gets the cached response if it comes from the address and port the
+ * request came from: the rport the stack stamped in the Via, or else the port the response
+ * was sent to. A request sent from another port than its Via says, without rport, is always
+ * left to its transaction.
+ * <p>
+ * The cache is a fixed array of entries indexed by the hash of the fingerprint; an entry
+ * replaces whatever was in its slot, so the cache is bounded and needs no lock. A request
+ * whose entry was replaced simply goes the normal way. Lookups must only be made by the thread
+ * of the UDPMessageProcessor; responses may be cached from any thread.
+ *
+ * @version 1.2
+ *
+ */
+class RetransmissionCache {
+
+	// Timer J: how long a non-INVITE server transaction absorbs retransmissions.
+	private static final long LIFETIME = 64L * SIPTransactionStack.BASE_TIMER_INTERVAL;
+
+	private static final class Entry {
+		final int hash;
+
+		// The branch in lower case.
+		final byte[] branch;
+
+		final byte[] method;
+
+		final long seqNumber;
+
+		final byte[] response;
+
+		final InetAddress address;
+
+		final int port;
+
+		// Port the request came from.
+		final int sourcePort;
+
+		final long expires;
+
+		Entry(int hash, byte[] branch, byte[] method, long seqNumber, byte[] response,
+				InetAddress address, int port, int sourcePort, long expires) {
+			this.hash = hash;
+			this.branch = branch;
+			this.method = method;
+			this.seqNumber = seqNumber;
+			this.response = response;
+			this.address = address;
+			this.port = port;
+			this.sourcePort = sourcePort;
+			this.expires = expires;
+		}
+	}
+
+	private final UDPMessageProcessor messageProcessor;
+
+	private final SIPTransactionStack sipStack;
+
+	private final AtomicReferenceArray<Entry> entries;
+
+	private final int mask;
+
+	private final DatagramPacket responsePacket = new DatagramPacket(new byte[0], 0);
+
+	// Where the fingerprint of the last datagram scanned was found.
+	private int methodStart, methodEnd, branchStart, branchEnd;
+
+	private long seqNumber;
+
+	/**
+	 * @param size -- the number of entries, rounded up to a power of two.
+	 */
+	RetransmissionCache(UDPMessageProcessor messageProcessor, int size) {
+		this.messageProcessor = messageProcessor;
+		this.sipStack = messageProcessor.sipStack;
+		int capacity = 1;
+		while (capacity < size)
+			capacity <<= 1;
+		this.entries = new AtomicReferenceArray<Entry>(capacity);
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Cache a response sent over UDP, if it is a final response a retransmission of its request
+	 * should get again.
+	 *
+	 * @param response -- the response sent.
+	 * @param bytes -- the response as it was sent.
+	 * @param address -- the address it was sent to.
+	 * @param port -- the port it was sent to.
+	 */
+	void responseSent(SIPResponse response, byte[] bytes, InetAddress address, int port) {
+		int statusCode = response.getStatusCode();
+		if (statusCode < 200 || response.getCSeq() == null)
+			return;
+		String method = response.getCSeq().getMethod();
+		if (method.equals(Request.ACK) || method.equals(Request.INVITE) && statusCode / 100 != 2)
+			return;
+		Via via = response.getTopmostVia();
+		String branch = via == null ? null : via.getBranch();
+		if (!Utils.isRfc3261Branch(branch))
+			return;
+
+		byte[] branchBytes = new byte[branch.length()];
+		for (int i = 0; i < branchBytes.length; i++)
+			branchBytes[i] = (byte) toLowerCase(branch.charAt(i));
+		byte[] methodBytes = new byte[method.length()];
+		for (int i = 0; i < methodBytes.length; i++)
+			methodBytes[i] = (byte) method.charAt(i);
+		long seqNumber = response.getCSeq().getSeqNumber();
+		int sourcePort = via.getRPort();
+		if (sourcePort <= 0)
+			sourcePort = port;
+		int hash = hash(branchBytes, 0, branchBytes.length, methodBytes, 0, methodBytes.length,
+				seqNumber, sourcePort);
+		entries.set(hash & mask, new Entry(hash, branchBytes, methodBytes, seqNumber, bytes,
+				address, port, sourcePort, System.currentTimeMillis() + LIFETIME));
+	}
+
+	/**
+	 * Answer a datagram if it is the retransmission of a request with a cached response.
+	 *
+	 * @return true if the datagram was answered and must not be processed further.
+	 */
+	boolean processDatagram(DatagramPacket packet) {
+		byte[] data = packet.getData();
+		if (!scan(data, packet.getOffset(), packet.getOffset() + packet.getLength()))
+			return false;
+		int hash = hash(data, branchStart, branchEnd, data, methodStart, methodEnd, seqNumber,
+				packet.getPort());
+		Entry entry = entries.get(hash & mask);
+		if (entry == null || entry.hash != hash || entry.seqNumber != seqNumber
+				|| entry.sourcePort != packet.getPort()
+				|| !equals(entry.method, data, methodStart, methodEnd)
+				|| !equalsIgnoreCase(entry.branch, data, branchStart, branchEnd)
+				|| !entry.address.equals(packet.getAddress()))
+			return false;
+		if (entry.expires < System.currentTimeMillis()) {
+			entries.compareAndSet(hash & mask, entry, null);
+			return false;
+		}
+
+		try {
+			responsePacket.setData(entry.response);
+			responsePacket.setAddress(entry.address);
+			responsePacket.setPort(entry.port);
+			messageProcessor.sock.send(responsePacket);
+			sipStack.getMetrics().retransmissionAbsorbed();
+			if (sipStack.isLoggingEnabled())
+				sipStack.logWriter.logDebug("Answered a retransmission from "
+						+ packet.getAddress().getHostAddress() + ":" + packet.getPort()
+						+ " with the cached response");
+		} catch (IOException ex) {
+			// The transaction will answer it.
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the method, the top Via branch and the CSeq number of a request in a datagram.
+	 *
+	 * @return false if the datagram is not a request, is an ACK, or has no RFC 3261 branch or
+	 *         no CSeq of its method.
+	 */
+	private boolean scan(byte[] data, int start, int end) {
+		int pos = start;
+		while (pos < end && data[pos] != ' ')
+			pos++;
+		if (pos == start || pos == end || pos - start == 3 && data[start] == 'A'
+				&& data[start + 1] == 'C' && data[start + 2] == 'K'
+				|| pos - start > 3 && data[start] == 'S' && data[start + 1] == 'I'
+				&& data[start + 2] == 'P' && data[start + 3] == '/')
+			return false;
+		methodStart = start;
+		methodEnd = pos;
+		branchStart = -1;
+		seqNumber = -1;
+
+		pos = nextLine(data, pos, end);
+		while (pos < end && data[pos] != '\r' && data[pos] != '\n') {
+			int lineEnd = pos;
+			while (lineEnd < end && data[lineEnd] != '\r' && data[lineEnd] != '\n')
+				lineEnd++;
+			int colon = pos;
+			while (colon < lineEnd && data[colon] != ':')
+				colon++;
+			int nameEnd = colon;
+			while (nameEnd > pos && (data[nameEnd - 1] == ' ' || data[nameEnd - 1] == '\t'))
+				nameEnd--;
+			if (colon < lineEnd) {
+				if (branchStart == -1
+						&& (matches(data, pos, nameEnd, "via") || matches(data, pos, nameEnd, "v"))) {
+					if (!scanBranch(data, colon + 1, lineEnd))
+						return false;
+				} else if (seqNumber == -1 && matches(data, pos, nameEnd, "cseq")) {
+					if (!scanCSeq(data, colon + 1, lineEnd))
+						return false;
+				}
+				if (branchStart != -1 && seqNumber != -1)
+					return true;
+			}
+			pos = nextLine(data, lineEnd, end);
+		}
+		return false;
+	}
+
+	/**
+	 * Find the branch parameter of the first Via of a Via header value.
+	 */
+	private boolean scanBranch(byte[] data, int pos, int end) {
+		while (pos < end && data[pos] != ',') {
+			if (data[pos++] != ';')
+				continue;
+			pos = skipSpaces(data, pos, end);
+			int nameStart = pos;
+			while (pos < end && data[pos] != '=' && data[pos] != ';' && data[pos] != ','
+					&& data[pos] != ' ' && data[pos] != '\t')
+				pos++;
+			if (!matches(data, nameStart, pos, "branch"))
+				continue;
+			pos = skipSpaces(data, pos, end);
+			if (pos == end || data[pos] != '=')
+				return false;
+			pos = skipSpaces(data, pos + 1, end);
+			int valueStart = pos;
+			while (pos < end && data[pos] != ';' && data[pos] != ',' && data[pos] != ' '
+					&& data[pos] != '\t')
+				pos++;
+			String cookie = SIPConstants.BRANCH_MAGIC_COOKIE;
+			if (pos - valueStart <= cookie.length()
+					|| !matches(data, valueStart, valueStart + cookie.length(), cookie))
+				return false;
+			branchStart = valueStart;
+			branchEnd = pos;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Read the number of a CSeq header value, and check that its method is the request method.
+	 */
+	private boolean scanCSeq(byte[] data, int pos, int end) {
+		pos = skipSpaces(data, pos, end);
+		long number = 0;
+		int digits = 0;
+		while (pos < end && data[pos] >= '0' && data[pos] <= '9' && digits < 10) {
+			number = number * 10 + (data[pos++] - '0');
+			digits++;
+		}
+		if (digits == 0)
+			return false;
+		pos = skipSpaces(data, pos, end);
+		int methodLength = methodEnd - methodStart;
+		for (int i = 0; i < methodLength; i++) {
+			if (pos + i >= end || data[pos + i] != data[methodStart + i])
+				return false;
+		}
+		if (skipSpaces(data, pos + methodLength, end) != end)
+			return false;
+		seqNumber = number;
+		return true;
+	}
+
+	private static int nextLine(byte[] data, int pos, int end) {
+		while (pos < end && data[pos] != '\n')
+			pos++;
+		return pos + 1;
+	}
+
+	private static int skipSpaces(byte[] data, int pos, int end) {
+		while (pos < end && (data[pos] == ' ' || data[pos] == '\t'))
+			pos++;
+		return pos;
+	}
+
+	private static int toLowerCase(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	/**
+	 * Compare bytes with an ASCII string, ignoring case.
+	 */
+	private static boolean matches(byte[] data, int start, int end, String s) {
+		if (end - start != s.length())
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (toLowerCase(data[start + i]) != toLowerCase(s.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean equals(byte[] a, byte[] data, int start, int end) {
+		if (a.length != end - start)
+			return false;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != data[start + i])
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean equalsIgnoreCase(byte[] lowerCase, byte[] data, int start, int end) {
+		if (lowerCase.length != end - start)
+			return false;
+		for (int i = 0; i < lowerCase.length; i++) {
+			if (lowerCase[i] != toLowerCase(data[start + i]))
+				return false;
+		}
+		return true;
+	}
+
+	private static int hash(byte[] branch, int branchStart, int branchEnd, byte[] method,
+			int methodStart, int methodEnd, long seqNumber, int port) {
+		int h = 0;
+		for (int i = branchStart; i < branchEnd; i++)
+			h = 31 * h + toLowerCase(branch[i]);
+		for (int i = methodStart; i < methodEnd; i++)
+			h = 31 * h + method[i];
+		h = 31 * h + (int) (seqNumber ^ (seqNumber >>> 32));
+		h = 31 * h + port;
+		return h ^ (h >>> 16);
+	}
+}
@@ -27,7 +27,6 @@ package gov.nist.javax.sip.stack;
 
 import gov.nist.core.InternalErrorHandler;
 import gov.nist.core.NameValueList;
-import gov.nist.javax.sip.SIPConstants;
 import gov.nist.javax.sip.Utils;
 import gov.nist.javax.sip.address.AddressImpl;
 import gov.nist.javax.sip.header.Contact;
@@ -361,12 +360,8 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
         // Flags whether the select message is part of this transaction
         boolean transactionMatches;
         String messageBranch = ((Via) viaHeaders.getFirst()).getBranch();
-        boolean rfc3261Compliant = getBranch() != null
-                && messageBranch != null
-                && getBranch().toLowerCase().startsWith(
-                        SIPConstants.BRANCH_MAGIC_COOKIE_LOWER_CASE)
-                && messageBranch.toLowerCase().startsWith(
-                        SIPConstants.BRANCH_MAGIC_COOKIE_LOWER_CASE);
+        boolean rfc3261Compliant = Utils.isRfc3261Branch(getBranch())
+                && Utils.isRfc3261Branch(messageBranch);
 
         transactionMatches = false;
         if (TransactionState.COMPLETED == this.getState()) {
@@ -532,6 +527,14 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
 
         this.lastResponse = transactionResponse;
 
+        if (transactionResponse.getStatusCode() >= 200
+                && (TransactionState.CALLING == this.getState()
+                        || TransactionState.TRYING == this.getState() || TransactionState.PROCEEDING == this
+                        .getState())) {
+            sipStack.getMetrics().clientTransactionCompleted(getMethod(),
+                    transactionResponse.getStatusCode(), StackMetrics.now() - this.startTime);
+        }
+
         /*
          * JvB: this is now duplicate with code in the other processResponse
          * 
@@ -997,6 +1000,7 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
                         lastRequest.setHeader(timeStamp);
                     }
                     super.sendMessage(lastRequest);
+                    sipStack.getMetrics().requestRetransmitted();
                     if (this.notifyOnRetransmit) {
                         TimeoutEvent txTimeout = new TimeoutEvent(this.getSipProvider(), this,
                                 Timeout.RETRANSMIT);
@@ -1058,6 +1062,7 @@ public class SIPClientTransaction extends SIPTransaction implements ServerRespon
             }
         }
         if (TransactionState.COMPLETED != this.getState()) {
+            sipStack.getMetrics().clientTransactionTimedOut(isInviteTransaction());
             raiseErrorEvent(SIPTransactionErrorEvent.TIMEOUT_ERROR);
             // Got a timeout error on a cancel.
             if (this.getOriginalRequest().getMethod().equalsIgnoreCase(Request.CANCEL)) {
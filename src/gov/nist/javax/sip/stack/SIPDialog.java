@@ -34,6 +34,7 @@ import gov.nist.javax.sip.*;
 import gov.nist.javax.sip.header.*;
 import gov.nist.javax.sip.address.*;
 import gov.nist.javax.sip.message.*;
+import gov.nist.javax.sip.parser.*;
 import gov.nist.core.*;
 
 import javax.sip.header.*;
@@ -43,7 +44,9 @@ import javax.sip.message.*;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 /*
@@ -178,6 +181,14 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
     // Stores the last OK for the INVITE
     // Used in createAck.
     private boolean lastInviteOkReceived;
+
+    // What is kept of the dialog once it has been compacted (see compact()).
+    private CompactState compactState;
+
+    // Set while the messages, transactions and parsed addresses are released.
+    private boolean compacted;
+
+    private transient CompactTimer compactTimer;
     
     // //////////////////////////////////////////////////////
     // Inner classes
@@ -195,6 +206,56 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
     }
 
+    /**
+     * Compacts the dialog once the transactions that touched it are over.
+     */
+    class CompactTimer extends SIPStackTimerTask {
+
+        protected void runTask() {
+            SIPDialog dialog = SIPDialog.this;
+            synchronized (dialog) {
+                if (dialog.compactTimer == this)
+                    dialog.compactTimer = null;
+            }
+            dialog.compact();
+        }
+
+    }
+
+    /**
+     * The state of a compacted dialog. The addresses, the route set and a skeleton of the last
+     * response (status line, top Via, From, To, Call-ID and CSeq) are kept encoded, which is a
+     * small fraction of the size of the parsed objects and of the messages they came from.
+     */
+    static class CompactState implements Serializable {
+
+        private static final long serialVersionUID = 6190463447520264341L;
+
+        byte[] lastResponse;
+
+        byte[] localParty;
+
+        byte[] remoteParty;
+
+        byte[] remoteTarget;
+
+        byte[] routeSet;
+
+        byte[] myContact;
+
+        // Credentials of the INVITE, repeated in the ACKs of later 2xx responses.
+        byte[] authorization;
+
+        byte[] proxyAuthorization;
+
+        // Taken from the first transaction, which is released.
+        boolean secure;
+
+        String transport;
+
+        int localPort;
+    }
+
     class DialogTimerTask extends SIPStackTimerTask implements Serializable {
         int nRetransmissions;
 
@@ -486,6 +547,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
                     }
                 }
             }
+            // The routes are never changed, so every request of the dialog can share them.
+            this.routeList.freeze();
         } finally {
             if (sipStack.getLogWriter().isLoggingEnabled()) {
                 Iterator it = routeList.iterator();
@@ -583,6 +646,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      * @return -- a cloned copy of the dialog route list.
      */
     private synchronized RouteList getRouteList() {
+        this.expand();
         if (sipStack.isLoggingEnabled())
             sipStack.logWriter.logDebug("getRouteList " + this);
         // Find the top via in the route list.
@@ -594,7 +658,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             li = routeList.listIterator();
             while (li.hasNext()) {
                 Route route = (Route) li.next();
-                retval.add((Route) route.clone());
+                retval.add((Route) route.cloneIfMutable());
             }
         }
 
@@ -849,8 +913,12 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
         }
         this.dialogState = state;
+        if (state == CONFIRMED_STATE)
+            this.scheduleCompaction();
         // Dialog is in terminated state set it up for GC.
         if (state == TERMINATED_STATE) {
+            if (sipStack.dialogStore != null)
+                sipStack.dialogStore.remove(this.dialogId);
             if (sipStack.getTimer() != null) { // may be null after shutdown
                 sipStack.getTimer().schedule(new LingerTimer(), DIALOG_LINGER_TIME * 1000);
             }
@@ -916,6 +984,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      *         iterator is returned if route has not been established.
      */
     public Iterator getRouteSet() {
+        this.expand();
         if (this.routeList == null) {
             return new LinkedList().listIterator();
         } else {
@@ -929,6 +998,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      * @param sipRequest
      */
     public synchronized void addRoute(SIPRequest sipRequest) {
+        this.expand();
         if (sipStack.isLoggingEnabled()) {
             sipStack.logWriter.logDebug("setContact: dialogState: " + this + "state = "
                     + this.getState());
@@ -1056,15 +1126,35 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
         SIPRequest sipRequest = (SIPRequest) transaction.getOriginalRequest();
 
+        // The transaction that created a compacted dialog has been released.
+        boolean wasCompacted = firstTransaction == null && compactState != null;
+        this.expand();
+
         // Proessing a re-invite.
         if (firstTransaction != null && firstTransaction != transaction
                 && transaction.getMethod().equals(firstTransaction.getMethod())) {
             this.reInviteFlag = true;
+        } else if (wasCompacted && transaction.getMethod().equals(this.method)) {
+            this.reInviteFlag = true;
         }
 
        
 
-        if (firstTransaction == null) {
+        if (wasCompacted) {
+            if (transaction.getMethod().equals(this.method)) {
+                // Re-invite of a compacted dialog: it stands in for the released transaction
+                // (reliable provisional responses and PRACKs are handled through it).
+                boolean otherSide = (transaction instanceof SIPServerTransaction)
+                        != this.serverTransactionFlag;
+                firstTransaction = transaction;
+                if (otherSide) {
+                    this.setLocalParty(sipRequest);
+                    this.setRemoteParty(sipRequest);
+                    this.setCallId(sipRequest);
+                }
+                this.originalRequest = sipRequest;
+            }
+        } else if (firstTransaction == null) {
             // Record the local and remote sequenc
             // numbers and the from and to tags for future
             // use on this dialog.
@@ -1345,6 +1435,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      */
 
     public javax.sip.address.Address getLocalParty() {
+        this.expand();
         return this.localParty;
     }
 
@@ -1366,6 +1457,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      * @return the address object of the remote party.
      */
     public javax.sip.address.Address getRemoteParty() {
+        this.expand();
 
         if (sipStack.getLogWriter().isLoggingEnabled()) {
             sipStack.getLogWriter().logDebug("gettingRemoteParty " + this.remoteParty);
@@ -1380,6 +1472,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      * @see javax.sip.Dialog#getRemoteTarget()
      */
     public javax.sip.address.Address getRemoteTarget() {
+        this.expand();
 
         return this.remoteTarget;
     }
@@ -1403,6 +1496,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      *         <code>false</code> otherwise.
      */
     public boolean isSecure() {
+        if (this.firstTransaction == null && this.compactState != null)
+            return this.compactState.secure;
         return this.getFirstTransaction().getRequest().getRequestURI().getScheme()
                 .equalsIgnoreCase("sips");
     }
@@ -1426,6 +1521,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         if (method.equals(Request.ACK) || method.equals(Request.PRACK)) {
             throw new SipException("Invalid method specified for createRequest:" + method);
         }
+        this.expand();
         if (lastResponse != null)
             return this.createRequest(method, this.lastResponse);
         else
@@ -1452,6 +1548,8 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         if (method == null || sipResponse == null)
             throw new NullPointerException("null argument");
 
+        this.expand();
+
         if (method.equals(Request.CANCEL))
             throw new SipException("Dialog.createRequest(): Invalid request");
 
@@ -1667,7 +1765,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
 
             MessageChannel messageChannel = sipStack.createRawMessageChannel(this
                     .getSipProvider().getListeningPoint(hop.getTransport()).getIPAddress(),
-                    this.firstTransaction.getPort(), hop);
+                    this.getLocalPort(), hop);
             if (((SIPClientTransaction) clientTransactionId).getMessageChannel() instanceof TCPMessageChannel) {
                 // Remove this from the connection cache if it is in the
                 // connection
@@ -1727,7 +1825,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
                     throw new SipException("No route found! hop=" + hop);
                 messageChannel = sipStack.createRawMessageChannel(this.getSipProvider()
                         .getListeningPoint(outboundProxy.getTransport()).getIPAddress(),
-                        this.firstTransaction.getPort(), outboundProxy);
+                        this.getLocalPort(), outboundProxy);
                 if (messageChannel != null)
                     ((SIPClientTransaction) clientTransactionId)
                             .setEncapsulatedChannel(messageChannel);
@@ -1963,6 +2061,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         else if (cseqno > ((((long) 1) << 32) - 1))
             throw new InvalidArgumentException("bad cseq > " + ((((long) 1) << 32) - 1));
 
+        this.expand();
         if (this.remoteTarget == null) {
             throw new SipException("Cannot create ACK - no remote Target!");
         }
@@ -2032,11 +2131,25 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             sipRequest.setTo(to);
             sipRequest.setMaxForwards(new MaxForwards(70));
 
+            // The ACK carries the credentials of the INVITE (RFC 3261 section 13.2.2.4).
+            Header authorization = null;
+            Header proxyAuthorization = null;
             if (this.originalRequest != null) {
-                Authorization authorization = this.originalRequest.getAuthorization();
-                if (authorization != null)
-                    sipRequest.setHeader(authorization);
+                authorization = this.originalRequest.getAuthorization();
+                proxyAuthorization = this.originalRequest.getHeader(ProxyAuthorizationHeader.NAME);
             }
+            if (authorization == null && this.compactState != null
+                    && this.compactState.authorization != null)
+                authorization = new StringMsgParser()
+                        .parseSIPHeader(decode(this.compactState.authorization));
+            if (proxyAuthorization == null && this.compactState != null
+                    && this.compactState.proxyAuthorization != null)
+                proxyAuthorization = new StringMsgParser()
+                        .parseSIPHeader(decode(this.compactState.proxyAuthorization));
+            if (authorization != null)
+                sipRequest.setHeader(authorization);
+            if (proxyAuthorization != null)
+                sipRequest.setHeader(proxyAuthorization);
 
             // ACKs for 2xx responses
             // use the Route values learned from the Record-Route of the 2xx
@@ -2105,6 +2218,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
             return;
         }
 
+        this.expand();
         this.lastResponse = sipResponse;
         this.setAssigned();
         // Adjust state of the Dialog state machine.
@@ -2326,7 +2440,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      * @return -- the last response associated with the dialog.
      */
     public SIPResponse getLastResponse() {
-
+        this.expand();
         return lastResponse;
     }
 
@@ -2462,6 +2576,12 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         }
         SIPServerTransaction sipServerTransaction = (SIPServerTransaction) this
                 .getFirstTransaction();
+        if (sipServerTransaction == null) {
+            // Compacted dialog: there is no INVITE in progress to acknowledge.
+            if (sipStack.isLoggingEnabled())
+                sipStack.logWriter.logDebug("Dropping Prack -- no INVITE transaction");
+            return false;
+        }
         SIPResponse sipResponse = sipServerTransaction.getReliableProvisionalResponse();
 
         if (sipResponse == null) {
@@ -2601,7 +2721,18 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      * @return contact header belonging to the dialog.
      */
     public Contact getMyContactHeader() {
-        if (this.isServer()) {
+        if (this.firstTransaction == null && this.compactState != null) {
+            if (this.compactState.myContact == null)
+                return null;
+            try {
+                ContactList contactList = (ContactList) new StringMsgParser()
+                        .parseSIPHeader(decode(this.compactState.myContact));
+                return (Contact) contactList.getFirst();
+            } catch (ParseException ex) {
+                InternalErrorHandler.handleException(ex);
+                return null;
+            }
+        } else if (this.isServer()) {
             SIPServerTransaction st = (SIPServerTransaction) this.getFirstTransaction();
             SIPResponse response = st.getLastResponse();
             return response != null ? response.getContactHeader() : null;
@@ -2704,6 +2835,252 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
         }
     }
 
+    /**
+     * The local port of the transaction that created this dialog.
+     */
+    private int getLocalPort() {
+        if (this.firstTransaction == null && this.compactState != null)
+            return this.compactState.localPort;
+        return this.firstTransaction.getPort();
+    }
+
+    /**
+     * Arrange for this dialog to be compacted once the transactions in progress are over. The
+     * delay is 64*T1, after which neither a 2xx nor its ACK can be retransmitted.
+     */
+    private synchronized void scheduleCompaction() {
+        if (!sipStack.compactConfirmedDialogs || this.compactTimer != null
+                || sipStack.getTimer() == null)
+            return;
+        this.compactTimer = new CompactTimer();
+        sipStack.getTimer().schedule(this.compactTimer,
+                SIPTransaction.TIMER_H * SIPTransactionStack.BASE_TIMER_INTERVAL);
+    }
+
+    /**
+     * Release the messages, the transactions and the parsed addresses held by a confirmed dialog.
+     * What is needed to create requests within the dialog is kept encoded and parsed again by
+     * expand() when the dialog is next used. Tags, sequence numbers, the Call-ID and the dialog
+     * id are not touched.
+     */
+    protected synchronized void compact() {
+        if (this.compacted || this.dialogState != CONFIRMED_STATE || this.lastResponse == null
+                || (this.firstTransaction == null && this.compactState == null))
+            return;
+        if (this.timerTask != null
+                || (Request.INVITE.equals(this.method) && !this.ackSeen)
+                || (this.lastTransaction != null
+                        && this.lastTransaction.getState() != TransactionState.TERMINATED)
+                || (this.firstTransaction != null
+                        && (this.firstTransaction.getState() == TransactionState.TRYING
+                                || this.firstTransaction.getState() == TransactionState.PROCEEDING))) {
+            // Still in use -- try again later. A re-invite that has no final response yet may
+            // still send reliable provisional responses and get their PRACKs.
+            this.scheduleCompaction();
+            return;
+        }
+        if (this.firstTransaction != null) {
+            CompactState state = new CompactState();
+            state.secure = this.isSecure();
+            state.transport = this.lastResponse.getTopmostVia().getTransport();
+            state.localPort = this.firstTransaction.getPort();
+            Contact contact = this.getMyContactHeader();
+            state.myContact = contact == null ? null : encode(contact.encode());
+            this.serverTransactionFlag = this.isServer();
+            if (this.compactState != null) {
+                state.authorization = this.compactState.authorization;
+                state.proxyAuthorization = this.compactState.proxyAuthorization;
+            }
+            this.compactState = state;
+        }
+        if (this.originalRequest != null) {
+            Authorization authorization = this.originalRequest.getAuthorization();
+            if (authorization != null)
+                compactState.authorization = encode(authorization.encode());
+            SIPHeader proxyAuthorization = (SIPHeader) this.originalRequest
+                    .getHeader(ProxyAuthorizationHeader.NAME);
+            if (proxyAuthorization != null)
+                compactState.proxyAuthorization = encode(proxyAuthorization.encode());
+        }
+
+        StringBuffer skeleton = new StringBuffer(this.lastResponse.getStatusLine().encode());
+        skeleton.append(this.lastResponse.getTopmostVia().encode());
+        skeleton.append(((SIPHeader) this.lastResponse.getFrom()).encode());
+        skeleton.append(((SIPHeader) this.lastResponse.getTo()).encode());
+        skeleton.append(((SIPHeader) this.lastResponse.getCallId()).encode());
+        skeleton.append(((SIPHeader) this.lastResponse.getCSeq()).encode());
+        skeleton.append(ContentLengthHeader.NAME).append(": 0\r\n\r\n");
+        compactState.lastResponse = encode(skeleton.toString());
+        compactState.localParty = this.localParty == null ? null
+                : encode(((AddressImpl) this.localParty).encode());
+        compactState.remoteParty = this.remoteParty == null ? null
+                : encode(((AddressImpl) this.remoteParty).encode());
+        compactState.remoteTarget = this.remoteTarget == null ? null
+                : encode(((AddressImpl) this.remoteTarget).encode());
+        compactState.routeSet = this.routeList == null || this.routeList.isEmpty() ? null
+                : encode(this.routeList.encode());
+
+        this.originalRequest = null;
+        this.lastResponse = null;
+        this.lastAck = null;
+        this.firstTransaction = null;
+        this.lastTransaction = null;
+        this.routeList = null;
+        this.localParty = null;
+        this.remoteParty = null;
+        this.remoteTarget = null;
+        this.compacted = true;
+        if (sipStack.isLoggingEnabled())
+            sipStack.getLogWriter().logDebug("Compacted dialog " + this.dialogId);
+        if (sipStack.dialogStore != null)
+            sipStack.dialogStore.put(this);
+    }
+
+    /**
+     * Parse the state of a compacted dialog again. The dialog is compacted again when it has
+     * not been used for a while.
+     */
+    private synchronized void expand() {
+        if (!this.compacted)
+            return;
+        try {
+            StringMsgParser parser = new StringMsgParser();
+            this.lastResponse = (SIPResponse) parser.parseSIPMessage(compactState.lastResponse);
+            if (compactState.localParty != null)
+                this.localParty = new AddressParser(decode(compactState.localParty)).address();
+            if (compactState.remoteParty != null)
+                this.remoteParty = new AddressParser(decode(compactState.remoteParty)).address();
+            if (compactState.remoteTarget != null)
+                this.remoteTarget = new AddressParser(decode(compactState.remoteTarget))
+                        .address();
+            this.routeList = compactState.routeSet == null ? new RouteList()
+                    : (RouteList) parser.parseSIPHeader(decode(compactState.routeSet));
+            this.routeList.freeze();
+        } catch (ParseException ex) {
+            // We encoded it ourselves.
+            InternalErrorHandler.handleException(ex);
+        }
+        compactState.lastResponse = null;
+        compactState.localParty = null;
+        compactState.remoteParty = null;
+        compactState.remoteTarget = null;
+        compactState.routeSet = null;
+        this.compacted = false;
+        this.scheduleCompaction();
+    }
+
+    /**
+     * Write the state of a compacted dialog for the dialog store.
+     * 
+     * @throws java.nio.BufferOverflowException if the buffer is too small.
+     */
+    synchronized void writeTo(ByteBuffer buffer) {
+        // The dialog id comes first: the store reads it back to index the records.
+        DialogStore.writeString(buffer, this.dialogId);
+        buffer.put((byte) 2); // Version of the record
+        DialogStore.writeString(buffer, this.callIdHeader.getCallId());
+        DialogStore.writeString(buffer, this.method);
+        DialogStore.writeString(buffer, this.myTag);
+        DialogStore.writeString(buffer, this.hisTag);
+        buffer.putLong(this.localSequenceNumber);
+        buffer.putLong(this.remoteSequenceNumber);
+        buffer.putLong(this.originalLocalSequenceNumber);
+        int flags = (this.serverTransactionFlag ? 1 : 0) | (this.terminateOnBye ? 2 : 0)
+                | (this.compactState.secure ? 4 : 0) | (this.ackSeen ? 8 : 0)
+                | (this.lastInviteOkReceived ? 16 : 0);
+        buffer.put((byte) flags);
+        DialogStore.writeString(buffer, this.compactState.transport);
+        buffer.putInt(this.compactState.localPort);
+        DialogStore.writeBytes(buffer, this.compactState.lastResponse);
+        DialogStore.writeBytes(buffer, this.compactState.localParty);
+        DialogStore.writeBytes(buffer, this.compactState.remoteParty);
+        DialogStore.writeBytes(buffer, this.compactState.remoteTarget);
+        DialogStore.writeBytes(buffer, this.compactState.routeSet);
+        DialogStore.writeBytes(buffer, this.compactState.myContact);
+        DialogStore.writeBytes(buffer, this.eventHeader == null ? null
+                : encode(((SIPHeader) this.eventHeader).encode()));
+        DialogStore.writeBytes(buffer, this.compactState.authorization);
+        DialogStore.writeBytes(buffer, this.compactState.proxyAuthorization);
+    }
+
+    /**
+     * Rebuild a compacted, confirmed dialog from a record written by writeTo().
+     * 
+     * @return the dialog or null if none of the listening points of the stack matches the one
+     *         the dialog was bound to.
+     */
+    static SIPDialog readFrom(SIPTransactionStack sipStack, ByteBuffer buffer) {
+        SIPDialog dialog = new SIPDialog();
+        dialog.dialogId = DialogStore.readString(buffer);
+        int version = buffer.get();
+        if (version != 1 && version != 2)
+            throw new IllegalArgumentException("Unknown dialog record version");
+        dialog.callIdHeader = new CallID(DialogStore.readString(buffer));
+        dialog.method = DialogStore.readString(buffer);
+        dialog.myTag = DialogStore.readString(buffer);
+        dialog.hisTag = DialogStore.readString(buffer);
+        dialog.localSequenceNumber = buffer.getLong();
+        dialog.remoteSequenceNumber = buffer.getLong();
+        dialog.originalLocalSequenceNumber = buffer.getLong();
+        int flags = buffer.get();
+        dialog.serverTransactionFlag = (flags & 1) != 0;
+        dialog.terminateOnBye = (flags & 2) != 0;
+        dialog.ackSeen = (flags & 8) != 0;
+        dialog.lastInviteOkReceived = (flags & 16) != 0;
+        CompactState state = new CompactState();
+        state.secure = (flags & 4) != 0;
+        state.transport = DialogStore.readString(buffer);
+        state.localPort = buffer.getInt();
+        state.lastResponse = DialogStore.readBytes(buffer);
+        state.localParty = DialogStore.readBytes(buffer);
+        state.remoteParty = DialogStore.readBytes(buffer);
+        state.remoteTarget = DialogStore.readBytes(buffer);
+        state.routeSet = DialogStore.readBytes(buffer);
+        state.myContact = DialogStore.readBytes(buffer);
+        byte[] event = DialogStore.readBytes(buffer);
+        if (version >= 2) {
+            state.authorization = DialogStore.readBytes(buffer);
+            state.proxyAuthorization = DialogStore.readBytes(buffer);
+        }
+        if (event != null) {
+            try {
+                dialog.eventHeader = (EventHeader) new StringMsgParser()
+                        .parseSIPHeader(decode(event));
+            } catch (ParseException ex) {
+                throw new IllegalArgumentException(ex.getMessage());
+            }
+        }
+
+        SipProviderImpl sipProvider = sipStack.getSipProvider(state.transport, state.localPort);
+        if (sipProvider == null)
+            return null;
+        dialog.sipStack = sipStack;
+        dialog.sipProvider = sipProvider;
+        dialog.compactState = state;
+        dialog.routeList = null;
+        dialog.compacted = true;
+        dialog.dialogState = CONFIRMED_STATE;
+        return dialog;
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            InternalErrorHandler.handleException(ex);
+            return null;
+        }
+    }
+
+    private static String decode(byte[] value) {
+        try {
+            return new String(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            InternalErrorHandler.handleException(ex);
+            return null;
+        }
+    }
+
     void setEarlyDialogId(String earlyDialogId) {
         this.earlyDialogId = earlyDialogId;
     }
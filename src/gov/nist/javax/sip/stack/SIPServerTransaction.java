@@ -874,19 +874,40 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
             transactionResponse = (SIPResponse) messageToSend;
             statusCode = transactionResponse.getStatusCode();
 
+            if (statusCode >= 200
+                    && (TransactionState.TRYING == this.getRealState() || TransactionState.PROCEEDING == this
+                            .getRealState())) {
+                sipStack.getMetrics().serverTransactionCompleted(getMethod(), statusCode,
+                        StackMetrics.now() - this.startTime);
+            }
+
             try {
                 // Provided we have set the banch id for this we set the BID for
                 // the
                 // outgoing via.
-                if (this.getOriginalRequest().getTopmostVia().getBranch() != null)
-                    transactionResponse.getTopmostVia().setBranch(this.getBranch());
-                else
-                    transactionResponse.getTopmostVia().removeParameter(ParameterNames.BRANCH);
+                Via requestVia = this.getOriginalRequest().getTopmostVia();
+                Via responseVia = transactionResponse.getTopmostVia();
+                String branch = requestVia.getBranch() != null ? this.getBranch() : null;
+                boolean removePort = !requestVia.hasPort() && responseVia.hasPort();
+                if (removePort || (branch == null ? responseVia.getBranch() != null
+                        : !branch.equals(responseVia.getBranch()))) {
+                    // The Via of a response is usually the frozen Via of the
+                    // request, which already matches: only a Via that does not
+                    // is replaced by a clone and changed.
+                    if (responseVia.isFrozen()) {
+                        responseVia = (Via) responseVia.clone();
+                        transactionResponse.getViaHeaders().set(0, responseVia);
+                    }
+                    if (branch != null)
+                        responseVia.setBranch(branch);
+                    else
+                        responseVia.removeParameter(ParameterNames.BRANCH);
 
-                // Make the topmost via headers match identically for the
-                // transaction rsponse.
-                if (!this.getOriginalRequest().getTopmostVia().hasPort())
-                    transactionResponse.getTopmostVia().removePort();
+                    // Make the topmost via headers match identically for the
+                    // transaction rsponse.
+                    if (removePort)
+                        responseVia.removePort();
+                }
             } catch (ParseException ex) {
                 ex.printStackTrace();
             }
@@ -1114,8 +1135,10 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
                 // null can happen if this is terminating when the timer fires.
                 if (!this.retransmissionAlertEnabled) {
                     // Retransmit last response until ack.
-                    if (lastResponse.getStatusCode() / 100 > 2)
+                    if (lastResponse.getStatusCode() / 100 > 2) {
                         super.sendMessage(lastResponse);
+                        sipStack.getMetrics().responseRetransmitted();
+                    }
                 } else {
                     // alert the application to retransmit the last response
                     SipProviderImpl sipProvider = (SipProviderImpl) this.getSipProvider();
@@ -1170,6 +1193,7 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
         }
 
         if (TransactionState.COMPLETED == this.getRealState() && isInviteTransaction()) {
+            sipStack.getMetrics().serverTransactionTimedOut();
             raiseErrorEvent(SIPTransactionErrorEvent.TIMEOUT_ERROR);
             this.setState(TransactionState.TERMINATED);
             sipStack.removeTransaction(this);
@@ -1334,7 +1358,8 @@ public class SIPServerTransaction extends SIPTransaction implements ServerReques
                     && !sipResponse.getFromTag().equals(fromTag)) {
                 throw new SipException("From tag of request does not match response from tag");
             } else if (fromTag != null) {
-                sipResponse.getFrom().setTag(fromTag);
+                if (sipResponse.getFromTag() == null)
+                    sipResponse.setFromTag(fromTag);
             } else {
                 if (sipStack.isLoggingEnabled())
                     sipStack.logWriter.logDebug("WARNING -- Null From tag in request!!");
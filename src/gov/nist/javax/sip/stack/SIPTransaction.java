@@ -219,6 +219,9 @@ public abstract class SIPTransaction extends MessageChannel implements
 	// Current transaction state
 	private TransactionState currentState;
 
+	// Creation time in microseconds (see StackMetrics.now())
+	protected long startTime;
+
 	// Number of ticks the retransmission timer was set to last
 	private transient int retransmissionTimerLastTickCount;
 
@@ -340,6 +343,7 @@ public abstract class SIPTransaction extends MessageChannel implements
 
 		sipStack = newParentStack;
 		this.semaphore = new Semaphore(1,true);
+		this.startTime = StackMetrics.now();
 
 		encapsulatedChannel = newEncapsulatedChannel;
 		// Record this to check if the address has changed before sending
@@ -36,6 +36,7 @@ import gov.nist.javax.sip.DefaultAddressResolver;
 import gov.nist.javax.sip.ListeningPointImpl;
 import gov.nist.javax.sip.LogRecordFactory;
 import gov.nist.javax.sip.SIPConstants;
+import gov.nist.javax.sip.Utils;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.header.Contact;
 import gov.nist.javax.sip.header.Event;
@@ -132,6 +133,9 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
     // hashtable for fast lookup
     private ConcurrentHashMap<String, SIPClientTransaction> clientTransactionTable;
 
+    // The client transactions with RFC 3261 branches again, for matching responses by branch.
+    private BranchTable clientBranchTable;
+
     // Set to false if you want hiwat and lowat to be consulted.
     private boolean unlimitedServerTransactionTableSize = false;
 
@@ -345,6 +349,42 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
     // Set to true to delegate some dialog validation to the application.
     protected boolean looseDialogValidation = false;
 
+    // Stateless forwarding engine -- null unless the stack runs as a stateless proxy.
+    protected StatelessProxy statelessProxy;
+
+    // Counters and histograms for the whole stack.
+    protected StackMetrics metrics = new StackMetrics(this);
+
+    // Publishes the metrics over JMX and/or plain text (null if not configured).
+    protected MetricsExporter metricsExporter;
+
+    // Per stage latency of incoming messages (null unless tracing is enabled).
+    protected LatencyTracer latencyTracer;
+
+    // Rejects new requests when the listener falls behind (null unless enabled).
+    protected OverloadControl overloadControl;
+
+    // Token buckets of the sources of incoming messages (null unless a rate is set).
+    protected SourceRateLimiter sourceRateLimiter;
+
+    // Release the messages held by confirmed dialogs once their transactions are over.
+    protected boolean compactConfirmedDialogs = false;
+
+    // Off heap copy of the compacted dialogs, for restarts (null if not configured).
+    protected DialogStore dialogStore;
+
+    // Answer STUN Binding Requests received on the UDP listening points.
+    protected boolean stunResponder = false;
+
+    // Freeze the headers of received requests that their responses share.
+    protected boolean freezeReceivedHeaders = false;
+
+    // Entries of the cache of final responses replayed to UDP retransmissions (0 to disable).
+    protected int retransmissionCacheSize = 0;
+
+    // Sends the NAT keepalives of registered flows (null until the first flow is added).
+    protected KeepaliveScheduler keepaliveScheduler;
+
     // / Timer to regularly ping the thread auditor (on behalf of the timer
     // thread)
     class PingTimer extends SIPStackTimerTask {
@@ -424,6 +464,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         this.earlyDialogTable = new ConcurrentHashMap<String, SIPDialog>();
 
         clientTransactionTable = new ConcurrentHashMap<String, SIPClientTransaction>();
+        clientBranchTable = new BranchTable();
         serverTransactionTable = new ConcurrentHashMap<String, SIPServerTransaction>();
         mergeTable = new ConcurrentHashMap<String, SIPServerTransaction>();
         retransmissionAlertTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
@@ -454,6 +495,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         // serverTransactions = new ConcurrentLinkedQueue();
         pendingTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
         clientTransactionTable = new ConcurrentHashMap<String, SIPClientTransaction>();
+        clientBranchTable = new BranchTable();
         serverTransactionTable = new ConcurrentHashMap<String, SIPServerTransaction>();
         retransmissionAlertTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
         mergeTable = new ConcurrentHashMap<String, SIPServerTransaction>();
@@ -671,6 +713,11 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
     public SIPDialog getDialog(String dialogId) {
 
         SIPDialog sipDialog = (SIPDialog) dialogTable.get(dialogId);
+        if (sipDialog == null && dialogStore != null && !dialogStore.isEmpty()
+                && dialogStore.contains(dialogId)) {
+            // A dialog of a previous run of the stack.
+            sipDialog = this.restoreDialog(dialogId);
+        }
         if (logWriter.isLoggingEnabled()) {
             logWriter.logDebug("getDialog(" + dialogId + ") : returning " + sipDialog);
         }
@@ -678,6 +725,73 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
     }
 
+    /**
+     * Bring a dialog back from the dialog store into the dialog table.
+     * 
+     * @return the dialog or null if it could not be restored.
+     */
+    private SIPDialog restoreDialog(String dialogId) {
+        synchronized (dialogStore) {
+            SIPDialog sipDialog = dialogTable.get(dialogId);
+            if (sipDialog != null)
+                return sipDialog;
+            sipDialog = dialogStore.restore(dialogId);
+            if (sipDialog != null) {
+                dialogTable.put(dialogId, sipDialog);
+                if (logWriter.isLoggingEnabled())
+                    logWriter.logDebug("Restored dialog " + dialogId);
+            }
+            return sipDialog;
+        }
+    }
+
+    /**
+     * Restore all the dialogs saved in the dialog store (see
+     * gov.nist.javax.sip.DIALOG_STORE_FILE) by a previous run of the stack. Dialogs are also
+     * restored one by one when a request for them comes in, but an application that wants to
+     * know about all the calls that survived a restart calls this once its listening points
+     * and providers are created.
+     * 
+     * @return the restored dialogs.
+     */
+    public Collection<Dialog> restoreDialogs() {
+        ArrayList<Dialog> dialogs = new ArrayList<Dialog>();
+        if (dialogStore == null)
+            return dialogs;
+        for (String dialogId : dialogStore.getDialogIds()) {
+            SIPDialog sipDialog = this.getDialog(dialogId);
+            if (sipDialog != null)
+                dialogs.add(sipDialog);
+        }
+        return dialogs;
+    }
+
+    /**
+     * Get the dialog store.
+     * 
+     * @return the store, or null if gov.nist.javax.sip.DIALOG_STORE_FILE is not set.
+     */
+    public DialogStore getDialogStore() {
+        return this.dialogStore;
+    }
+
+    /**
+     * Find the provider of the listening point with the given transport and port.
+     * 
+     * @return the provider or null if there is none.
+     */
+    public SipProviderImpl getSipProvider(String transport, int port) {
+        MessageProcessor[] processors = getMessageProcessors();
+        for (int i = 0; i < processors.length; i++) {
+            if (processors[i].getPort() == port
+                    && processors[i].getTransport().equalsIgnoreCase(transport)) {
+                ListeningPointImpl listeningPoint = processors[i].getListeningPoint();
+                return listeningPoint == null ? null : listeningPoint.getProvider();
+            }
+        }
+        return null;
+    }
+
     /**
      * Remove the dialog given its dialog id. This is used for dialog id re-assignment only.
      * 
@@ -802,6 +916,9 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
         } else {
             Via via = sipMessage.getTopmostVia();
+            retval = findClientTransactionByBranch(sipMessage);
+            if (retval != null)
+                return retval;
             if (via.getBranch() != null) {
                 String key = sipMessage.getTransactionId();
                 if (logWriter.isLoggingEnabled())
@@ -826,6 +943,22 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
     }
 
+    /**
+     * Find the client transaction of a response (or of a request that was sent back to us) in
+     * the branch table, if its top Via has an RFC 3261 branch.
+     * 
+     * @return the transaction of the branch or null, in which case the message may still match
+     *         a transaction of the client transaction table.
+     */
+    private SIPClientTransaction findClientTransactionByBranch(SIPMessage sipMessage) {
+        Via via = sipMessage.getTopmostVia();
+        String branch = via == null ? null : via.getBranch();
+        if (!Utils.isRfc3261Branch(branch) || sipMessage.getCSeq() == null)
+            return null;
+        return clientBranchTable.get(branch, Request.CANCEL.equals(sipMessage.getCSeq()
+                .getMethod()));
+    }
+
     /**
      * Get the transaction to cancel. Search the server transaction table for a transaction that
      * matches the given transaction.
@@ -986,6 +1119,11 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         // Transaction to handle this request
         SIPServerTransaction currentTransaction;
 
+        metrics.messageReceived(requestReceived);
+
+        if (freezeReceivedHeaders)
+            requestReceived.freezeHeaders();
+
         String key = requestReceived.getTransactionId();
 
         requestReceived.setMessageChannel(requestMessageChannel);
@@ -1091,16 +1229,24 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         // Transaction to handle this request
         SIPClientTransaction currentTransaction;
 
-        String key = responseReceived.getTransactionId();
+        metrics.messageReceived(responseReceived);
 
-        // Note that for RFC 3261 compliant operation, this lookup will
-        // return a tx if one exists and hence no need to search through
-        // the table.
-        currentTransaction = (SIPClientTransaction) clientTransactionTable.get(key);
+        // Responses to our RFC 3261 requests are matched by branch without
+        // building their transaction id.
+        currentTransaction = findClientTransactionByBranch(responseReceived);
+        if (currentTransaction == null
+                || !currentTransaction.isMessagePartOfTransaction(responseReceived)) {
+            String key = responseReceived.getTransactionId();
+
+            // Note that for RFC 3261 compliant operation, this lookup will
+            // return a tx if one exists and hence no need to search through
+            // the table.
+            currentTransaction = (SIPClientTransaction) clientTransactionTable.get(key);
+        }
 
         if (currentTransaction == null
-                || (!currentTransaction.isMessagePartOfTransaction(responseReceived) && !key
-                        .startsWith(SIPConstants.BRANCH_MAGIC_COOKIE_LOWER_CASE))) {
+                || (!currentTransaction.isMessagePartOfTransaction(responseReceived) && !Utils
+                        .isRfc3261Branch(responseReceived.getTopmostVia().getBranch()))) {
             // Loop through all client transactions
 
             transactionIterator = clientTransactionTable.values().iterator();
@@ -1255,6 +1401,15 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         return this.clientTransactionTable.size();
     }
 
+    /**
+     * Get the size of the server transaction table.
+     * 
+     * @return -- size of the st table.
+     */
+    public int getServerTransactionTableSize() {
+        return this.serverTransactionTable.size();
+    }
+
     /**
      * Add a new client transaction to the set of existing transactions. Add it to the top of the
      * list so an incoming response has less work to do in order to find the transaction.
@@ -1300,6 +1455,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
 
             String key = sipTransaction.getTransactionId();
             Object removed = clientTransactionTable.remove(key);
+            clientBranchTable.remove(key);
 
             if (logWriter.isLoggingEnabled()) {
                 logWriter.logDebug("REMOVED client tx " + removed + " KEY = " + key);
@@ -1358,6 +1514,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
             }
             String key = sipRequest.getTransactionId();
             clientTransactionTable.put(key, (SIPClientTransaction) sipTransaction);
+            clientBranchTable.put(key, (SIPClientTransaction) sipTransaction);
             if (logWriter.isLoggingEnabled()) {
                 logWriter.logDebug(" putTransactionHash : " + " key = " + key);
             }
@@ -1403,6 +1560,7 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
                 logWriter.logDebug("removing client Tx : " + key);
             }
             clientTransactionTable.remove(key);
+            clientBranchTable.remove(key);
 
         } else if (sipTransaction instanceof SIPServerTransaction) {
             String key = sipTransaction.getTransactionId();
@@ -1474,10 +1632,17 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         } catch (InterruptedException ex) {
         }
         this.clientTransactionTable.clear();
+        this.clientBranchTable.clear();
         this.serverTransactionTable.clear();
 
         this.dialogTable.clear();
         this.serverLog.closeLogFile();
+        if (this.metricsExporter != null)
+            this.metricsExporter.stop();
+        if (this.keepaliveScheduler != null)
+            this.keepaliveScheduler.stop();
+        if (this.dialogStore != null)
+            this.dialogStore.close();
 
     }
 
@@ -1599,6 +1764,45 @@ public abstract class SIPTransactionStack implements SIPTransactionEventListener
         }
     }
 
+    /**
+     * Get the stack metrics (message counters, timeouts, latency histograms...).
+     * 
+     * @return the metrics of this stack.
+     */
+    public StackMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Get the scheduler that sends the NAT keepalives (RFC 5626) of the flows the registration
+     * layer adds to it. Its thread is started with the first flow.
+     * 
+     * @return the keepalive scheduler of this stack.
+     */
+    public synchronized KeepaliveScheduler getKeepaliveScheduler() {
+        if (this.keepaliveScheduler == null)
+            this.keepaliveScheduler = new KeepaliveScheduler(this);
+        return this.keepaliveScheduler;
+    }
+
+    /**
+     * Get the latency tracer.
+     * 
+     * @return the tracer, or null if gov.nist.javax.sip.LATENCY_TRACING is off.
+     */
+    public LatencyTracer getLatencyTracer() {
+        return this.latencyTracer;
+    }
+
+    /**
+     * Get the overload control of the stack.
+     * 
+     * @return the overload control, or null if gov.nist.javax.sip.OVERLOAD_CONTROL is off.
+     */
+    public OverloadControl getOverloadControl() {
+        return this.overloadControl;
+    }
+
     /**
      * Set the descriptive name of the stack.
      * 
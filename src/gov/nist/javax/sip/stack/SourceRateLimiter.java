@@ -0,0 +1,219 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * Per source address token buckets, checked on the raw bytes of incoming messages before they
+ * are parsed (see gov.nist.javax.sip.SOURCE_RATE_LIMIT_INVITE and the properties that follow
+ * it), so that one flooding peer cannot take the message queue, the parser and the listener
+ * away from everybody else. Every source gets a bucket per class of message: INVITE, REGISTER
+ * and everything else, responses included. A bucket holds one second worth of its rate and a
+ * message that finds its bucket empty is dropped.
+ * <p>
+ * The buckets live in a fixed table of primitive arrays, so the limiter takes the same memory
+ * however many peers there are. The table is four way set associative, indexed by the hash of
+ * the address, and every set has its own lock. A source that is not in its set replaces the
+ * one that was seen the longest time ago, which starts again with full buckets if it comes
+ * back; a busy source therefore keeps its entry while idle ones make room for new ones,
+ * without any sweeping thread.
+ *
+ * @version 1.2
+ *
+ */
+public class SourceRateLimiter {
+
+	public static final int INVITE = 0;
+
+	public static final int REGISTER = 1;
+
+	public static final int OTHER = 2;
+
+	static final String[] CLASSES = { "invite", "register", "other" };
+
+	private static final int WAYS = 4;
+
+	// An entry is the key of the source, when it was last seen and its tokens per class.
+	private static final int LAST_SEEN = 1;
+
+	private static final int TOKENS = 2;
+
+	private static final int STRIDE = TOKENS + CLASSES.length;
+
+	// Tokens are counted in millionths so that they can be refilled every microsecond.
+	private static final long TOKEN = 1000000;
+
+	private static final byte[] INVITE_BYTES = { 'I', 'N', 'V', 'I', 'T', 'E', ' ' };
+
+	private static final byte[] REGISTER_BYTES = { 'R', 'E', 'G', 'I', 'S', 'T', 'E', 'R', ' ' };
+
+	private SIPTransactionStack sipStack;
+
+	private final long[] table;
+
+	private final Object[] locks;
+
+	private final int mask;
+
+	// Tokens per second of every class, 0 for no limit.
+	private final long[] rates;
+
+	private final long start = StackMetrics.now();
+
+	/**
+	 * @param size
+	 *            the number of sources tracked, rounded up to a power of two.
+	 * @param rates
+	 *            messages per second allowed from a source for every class, 0 for no limit.
+	 */
+	public SourceRateLimiter(SIPTransactionStack sipStack, int size, int[] rates) {
+		this.sipStack = sipStack;
+		int sets = 1;
+		while (sets * WAYS < size)
+			sets <<= 1;
+		this.mask = sets - 1;
+		this.table = new long[sets * WAYS * STRIDE];
+		this.locks = new Object[sets];
+		for (int i = 0; i < sets; i++)
+			locks[i] = new Object();
+		this.rates = new long[CLASSES.length];
+		for (int i = 0; i < CLASSES.length; i++)
+			this.rates[i] = rates[i];
+	}
+
+	/**
+	 * Class of a message from its first bytes.
+	 */
+	public static int classOf(byte[] data, int offset, int length) {
+		if (startsWith(data, offset, length, INVITE_BYTES))
+			return INVITE;
+		if (startsWith(data, offset, length, REGISTER_BYTES))
+			return REGISTER;
+		return OTHER;
+	}
+
+	/**
+	 * Class of a message from its first line.
+	 */
+	public static int classOf(String firstLine) {
+		if (firstLine.startsWith("INVITE "))
+			return INVITE;
+		if (firstLine.startsWith("REGISTER "))
+			return REGISTER;
+		return OTHER;
+	}
+
+	private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+		if (length < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[offset + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * IPv4 addresses are their own key (Inet4Address.hashCode() is the address and does not
+	 * copy it); IPv6 addresses are hashed to 64 bits, with the top bit set.
+	 */
+	private static long keyOf(InetAddress address) {
+		if (address instanceof Inet4Address)
+			return address.hashCode() & 0xffffffffL;
+		byte[] bytes = address.getAddress();
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < bytes.length; i++) {
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash | Long.MIN_VALUE;
+	}
+
+	/**
+	 * Take a token for a message from a source.
+	 *
+	 * @param address
+	 *            where the message comes from.
+	 * @param messageClass
+	 *            INVITE, REGISTER or OTHER.
+	 * @return false if the source is over its rate and the message must be dropped.
+	 */
+	public boolean acquire(InetAddress address, int messageClass) {
+		long rate = rates[messageClass];
+		if (rate == 0)
+			return true;
+		long key = keyOf(address);
+		int hash = (int) (key ^ (key >>> 32));
+		hash ^= (hash >>> 16);
+		int set = hash & mask;
+		// Never 0, which marks an empty entry.
+		long now = StackMetrics.now() - start + 1;
+		boolean accepted;
+		synchronized (locks[set]) {
+			int base = set * WAYS * STRIDE;
+			int entry = -1;
+			int oldest = base;
+			for (int i = base; i < base + WAYS * STRIDE; i += STRIDE) {
+				if (table[i] == key && table[i + LAST_SEEN] != 0) {
+					entry = i;
+					break;
+				}
+				if (table[i + LAST_SEEN] < table[oldest + LAST_SEEN])
+					oldest = i;
+			}
+			if (entry == -1) {
+				entry = oldest;
+				table[entry] = key;
+				for (int c = 0; c < CLASSES.length; c++)
+					table[entry + TOKENS + c] = rates[c] * TOKEN;
+			} else {
+				// Refill, up to one second worth of every rate.
+				long elapsed = Math.min(now - table[entry + LAST_SEEN], TOKEN);
+				for (int c = 0; c < CLASSES.length; c++) {
+					long tokens = table[entry + TOKENS + c] + elapsed * rates[c];
+					table[entry + TOKENS + c] = Math.min(rates[c] * TOKEN, tokens);
+				}
+			}
+			table[entry + LAST_SEEN] = now;
+			accepted = table[entry + TOKENS + messageClass] >= TOKEN;
+			if (accepted)
+				table[entry + TOKENS + messageClass] -= TOKEN;
+		}
+		if (!accepted) {
+			sipStack.getMetrics().rateLimited(messageClass);
+			if (sipStack.isLoggingEnabled())
+				sipStack.getLogWriter().logDebug(
+						"Dropping message -- " + address.getHostAddress() + " over its "
+								+ CLASSES[messageClass] + " rate");
+		}
+		return accepted;
+	}
+}
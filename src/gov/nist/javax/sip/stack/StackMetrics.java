@@ -0,0 +1,526 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.InternCache;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.sip.message.Request;
+
+/**
+ * Stack wide counters and latency histograms. Every SIPTransactionStack owns one of these
+ * (see SIPTransactionStack.getMetrics()). Counters are plain atomics so they can be updated
+ * from the transport and timer threads without taking a lock; gauges such as table sizes and
+ * queue depths are sampled when the metrics are read. Transaction times are kept overall, by
+ * method and by status class of the final response; the histograms by method and status class
+ * are only created when a transaction of their kind completes.
+ *
+ * @version 1.2
+ *
+ */
+public class StackMetrics implements StackMetricsMBean {
+
+	/**
+	 * Methods that get their own counter. Anything else is counted as "OTHER".
+	 */
+	private static final String[] METHODS = { Request.INVITE, Request.ACK, Request.BYE,
+			Request.CANCEL, Request.OPTIONS, Request.REGISTER, Request.PRACK, Request.SUBSCRIBE,
+			Request.NOTIFY, Request.MESSAGE, Request.INFO, Request.UPDATE, Request.REFER,
+			Request.PUBLISH };
+
+	private static final int OTHER = METHODS.length;
+
+	private SIPTransactionStack sipStack;
+
+	private final AtomicLongArray requestsReceived = new AtomicLongArray(METHODS.length + 1);
+
+	private final AtomicLongArray requestsSent = new AtomicLongArray(METHODS.length + 1);
+
+	// Indexed by status class (1 to 6).
+	private final AtomicLongArray responsesReceived = new AtomicLongArray(7);
+
+	private final AtomicLongArray responsesSent = new AtomicLongArray(7);
+
+	private final AtomicLong requestRetransmissions = new AtomicLong();
+
+	private final AtomicLong responseRetransmissions = new AtomicLong();
+
+	private final AtomicLong timerBTimeouts = new AtomicLong();
+
+	private final AtomicLong timerFTimeouts = new AtomicLong();
+
+	private final AtomicLong timerHTimeouts = new AtomicLong();
+
+	private final AtomicLong parseFailures = new AtomicLong();
+
+	private final AtomicLong statelessRelayed = new AtomicLong();
+
+	private final AtomicLong retransmissionsAbsorbed = new AtomicLong();
+
+	private final AtomicLong overloadRejections = new AtomicLong();
+
+	// Indexed by SourceRateLimiter class.
+	private final AtomicLongArray rateLimited = new AtomicLongArray(
+			SourceRateLimiter.CLASSES.length);
+
+	private final AtomicLong stunBindingResponses = new AtomicLong();
+
+	private final AtomicLong stunBindingErrors = new AtomicLong();
+
+	private final AtomicInteger eventQueueDepth = new AtomicInteger();
+
+	/*
+	 * Time from the creation of a client transaction to its final response.
+	 */
+	private final LatencyHistogram clientTransactionTime = new LatencyHistogram();
+
+	/*
+	 * Time from the creation of a server transaction to the final response sent by the
+	 * application.
+	 */
+	private final LatencyHistogram serverTransactionTime = new LatencyHistogram();
+
+	// Indexed by method.
+	private final AtomicReferenceArray<LatencyHistogram> clientTimeByMethod =
+			new AtomicReferenceArray<LatencyHistogram>(METHODS.length + 1);
+
+	private final AtomicReferenceArray<LatencyHistogram> serverTimeByMethod =
+			new AtomicReferenceArray<LatencyHistogram>(METHODS.length + 1);
+
+	// Indexed by status class (1 to 6).
+	private final AtomicReferenceArray<LatencyHistogram> clientTimeByStatus =
+			new AtomicReferenceArray<LatencyHistogram>(7);
+
+	private final AtomicReferenceArray<LatencyHistogram> serverTimeByStatus =
+			new AtomicReferenceArray<LatencyHistogram>(7);
+
+	public StackMetrics(SIPTransactionStack sipStack) {
+		this.sipStack = sipStack;
+	}
+
+	private static int methodIndex(String method) {
+		for (int i = 0; i < METHODS.length; i++) {
+			if (METHODS[i] == method || METHODS[i].equals(method))
+				return i;
+		}
+		return OTHER;
+	}
+
+	private static int statusClass(int statusCode) {
+		int statusClass = statusCode / 100;
+		return statusClass < 1 || statusClass > 6 ? 0 : statusClass;
+	}
+
+	private static long sum(AtomicLongArray array) {
+		long total = 0;
+		for (int i = 0; i < array.length(); i++)
+			total += array.get(i);
+		return total;
+	}
+
+	private static void record(AtomicReferenceArray<LatencyHistogram> histograms, int index,
+			long value) {
+		LatencyHistogram histogram = histograms.get(index);
+		if (histogram == null) {
+			histograms.compareAndSet(index, null, new LatencyHistogram());
+			histogram = histograms.get(index);
+		}
+		histogram.record(value);
+	}
+
+	private static long getValueAtQuantile(AtomicReferenceArray<LatencyHistogram> histograms,
+			int index, double quantile) {
+		LatencyHistogram histogram = histograms.get(index);
+		return histogram == null ? 0 : histogram.getValueAtQuantile(quantile);
+	}
+
+	/**
+	 * Current time for latency measurements, in microseconds.
+	 */
+	public static long now() {
+		return System.nanoTime() / 1000;
+	}
+
+	public void messageReceived(SIPMessage sipMessage) {
+		if (sipMessage instanceof SIPRequest)
+			requestsReceived.incrementAndGet(methodIndex(((SIPRequest) sipMessage).getMethod()));
+		else
+			responsesReceived.incrementAndGet(statusClass(((SIPResponse) sipMessage)
+					.getStatusCode()));
+	}
+
+	public void messageSent(SIPMessage sipMessage) {
+		if (sipMessage instanceof SIPRequest)
+			requestsSent.incrementAndGet(methodIndex(((SIPRequest) sipMessage).getMethod()));
+		else
+			responsesSent.incrementAndGet(statusClass(((SIPResponse) sipMessage)
+					.getStatusCode()));
+	}
+
+	public void requestRetransmitted() {
+		requestRetransmissions.incrementAndGet();
+	}
+
+	public void responseRetransmitted() {
+		responseRetransmissions.incrementAndGet();
+	}
+
+	/**
+	 * A client transaction timed out: Timer B for INVITE, Timer F otherwise.
+	 */
+	public void clientTransactionTimedOut(boolean invite) {
+		if (invite)
+			timerBTimeouts.incrementAndGet();
+		else
+			timerFTimeouts.incrementAndGet();
+	}
+
+	/**
+	 * An INVITE server transaction never got its ACK (Timer H).
+	 */
+	public void serverTransactionTimedOut() {
+		timerHTimeouts.incrementAndGet();
+	}
+
+	public void parseFailed() {
+		parseFailures.incrementAndGet();
+	}
+
+	public void statelesslyRelayed() {
+		statelessRelayed.incrementAndGet();
+	}
+
+	/**
+	 * A retransmitted request was answered from the RetransmissionCache of a UDP listening
+	 * point, without being parsed.
+	 */
+	public void retransmissionAbsorbed() {
+		retransmissionsAbsorbed.incrementAndGet();
+	}
+
+	/**
+	 * A new request was rejected with a 503 by the OverloadControl.
+	 */
+	public void overloadRejected() {
+		overloadRejections.incrementAndGet();
+	}
+
+	/**
+	 * A message was dropped by the SourceRateLimiter.
+	 */
+	public void rateLimited(int messageClass) {
+		rateLimited.incrementAndGet(messageClass);
+	}
+
+	/**
+	 * A STUN Binding Request was answered on a SIP listening point (see
+	 * gov.nist.javax.sip.STUN_RESPONDER), with a success or an error response.
+	 */
+	public void stunBindingAnswered(boolean success) {
+		if (success)
+			stunBindingResponses.incrementAndGet();
+		else
+			stunBindingErrors.incrementAndGet();
+	}
+
+	/**
+	 * A client transaction got its final response.
+	 *
+	 * @param time -- microseconds since the transaction was created.
+	 */
+	public void clientTransactionCompleted(String method, int statusCode, long time) {
+		clientTransactionTime.record(time);
+		record(clientTimeByMethod, methodIndex(method), time);
+		record(clientTimeByStatus, statusClass(statusCode), time);
+	}
+
+	/**
+	 * The application sent the final response of a server transaction.
+	 *
+	 * @param time -- microseconds since the transaction was created.
+	 */
+	public void serverTransactionCompleted(String method, int statusCode, long time) {
+		serverTransactionTime.record(time);
+		record(serverTimeByMethod, methodIndex(method), time);
+		record(serverTimeByStatus, statusClass(statusCode), time);
+	}
+
+	public void eventQueued() {
+		eventQueueDepth.incrementAndGet();
+	}
+
+	public void eventDequeued() {
+		eventQueueDepth.decrementAndGet();
+	}
+
+	public LatencyHistogram getClientTransactionTime() {
+		return clientTransactionTime;
+	}
+
+	public LatencyHistogram getServerTransactionTime() {
+		return serverTransactionTime;
+	}
+
+	/**
+	 * @return the client transaction time of a method at a quantile, in microseconds, or 0 if
+	 *         no transaction of the method has completed.
+	 */
+	public long getClientTransactionTimeByMethod(String method, double quantile) {
+		return getValueAtQuantile(clientTimeByMethod, methodIndex(method), quantile);
+	}
+
+	/**
+	 * @param statusClass -- 2 for 2xx responses and so on.
+	 */
+	public long getClientTransactionTimeByStatus(int statusClass, double quantile) {
+		return getValueAtQuantile(clientTimeByStatus, statusClass(statusClass * 100), quantile);
+	}
+
+	public long getServerTransactionTimeByMethod(String method, double quantile) {
+		return getValueAtQuantile(serverTimeByMethod, methodIndex(method), quantile);
+	}
+
+	public long getServerTransactionTimeByStatus(int statusClass, double quantile) {
+		return getValueAtQuantile(serverTimeByStatus, statusClass(statusClass * 100), quantile);
+	}
+
+	public long getRequestsReceived() {
+		return sum(requestsReceived);
+	}
+
+	public long getRequestsReceived(String method) {
+		return requestsReceived.get(methodIndex(method));
+	}
+
+	public long getResponsesReceived() {
+		return sum(responsesReceived);
+	}
+
+	public long getRequestsSent() {
+		return sum(requestsSent);
+	}
+
+	public long getRequestsSent(String method) {
+		return requestsSent.get(methodIndex(method));
+	}
+
+	public long getResponsesSent() {
+		return sum(responsesSent);
+	}
+
+	public long getRequestRetransmissions() {
+		return requestRetransmissions.get();
+	}
+
+	public long getResponseRetransmissions() {
+		return responseRetransmissions.get();
+	}
+
+	public long getTimerBTimeouts() {
+		return timerBTimeouts.get();
+	}
+
+	public long getTimerFTimeouts() {
+		return timerFTimeouts.get();
+	}
+
+	public long getTimerHTimeouts() {
+		return timerHTimeouts.get();
+	}
+
+	public long getParseFailures() {
+		return parseFailures.get();
+	}
+
+	public long getStatelessRelayed() {
+		return statelessRelayed.get();
+	}
+
+	public long getRetransmissionsAbsorbed() {
+		return retransmissionsAbsorbed.get();
+	}
+
+	public long getOverloadRejections() {
+		return overloadRejections.get();
+	}
+
+	public int getOverloadRejectPercent() {
+		return sipStack.overloadControl == null ? 0 : sipStack.overloadControl
+				.getRejectPercent();
+	}
+
+	public long getRateLimited() {
+		return sum(rateLimited);
+	}
+
+	public long getStunBindingResponses() {
+		return stunBindingResponses.get();
+	}
+
+	public long getStunBindingErrors() {
+		return stunBindingErrors.get();
+	}
+
+	public int getUdpQueueDepth() {
+		int depth = 0;
+		MessageProcessor[] processors = sipStack.getMessageProcessors();
+		for (int i = 0; i < processors.length; i++) {
+			if (processors[i] instanceof UDPMessageProcessor)
+				depth += ((UDPMessageProcessor) processors[i]).messageQueue.size();
+		}
+		return depth;
+	}
+
+	public int getEventQueueDepth() {
+		return eventQueueDepth.get();
+	}
+
+	public int getServerTransactionCount() {
+		return sipStack.getServerTransactionTableSize();
+	}
+
+	public int getClientTransactionCount() {
+		return sipStack.getClientTransactionTableSize();
+	}
+
+	public int getDialogCount() {
+		return sipStack.dialogTable.size();
+	}
+
+	public int getEarlyDialogCount() {
+		return sipStack.earlyDialogTable.size();
+	}
+
+	/**
+	 * Lookups answered by the parser intern cache. The cache is shared by all the stacks of
+	 * the VM, and so are these counts. They are only kept once a stack of the VM exports its
+	 * metrics (see InternCache.setCounting()).
+	 */
+	public long getInternCacheHits() {
+		return InternCache.getHits();
+	}
+
+	public long getInternCacheMisses() {
+		return InternCache.getMisses();
+	}
+
+	/**
+	 * Plain text exposition: one "name{labels} value" sample per line.
+	 */
+	public String getText() {
+		StringBuffer buffer = new StringBuffer();
+		for (int i = 0; i <= OTHER; i++) {
+			String method = i == OTHER ? "OTHER" : METHODS[i];
+			buffer.append("sip_requests_received_total{method=\"").append(method).append(
+					"\"} ").append(requestsReceived.get(i)).append("\n");
+			buffer.append("sip_requests_sent_total{method=\"").append(method).append("\"} ")
+					.append(requestsSent.get(i)).append("\n");
+		}
+		for (int i = 1; i <= 6; i++) {
+			buffer.append("sip_responses_received_total{class=\"").append(i).append("xx\"} ")
+					.append(responsesReceived.get(i)).append("\n");
+			buffer.append("sip_responses_sent_total{class=\"").append(i).append("xx\"} ")
+					.append(responsesSent.get(i)).append("\n");
+		}
+		buffer.append("sip_request_retransmissions_total ").append(getRequestRetransmissions())
+				.append("\n");
+		buffer.append("sip_response_retransmissions_total ").append(
+				getResponseRetransmissions()).append("\n");
+		buffer.append("sip_transaction_timeouts_total{timer=\"B\"} ").append(
+				getTimerBTimeouts()).append("\n");
+		buffer.append("sip_transaction_timeouts_total{timer=\"F\"} ").append(
+				getTimerFTimeouts()).append("\n");
+		buffer.append("sip_transaction_timeouts_total{timer=\"H\"} ").append(
+				getTimerHTimeouts()).append("\n");
+		buffer.append("sip_parse_failures_total ").append(getParseFailures()).append("\n");
+		buffer.append("sip_stateless_relayed_total ").append(getStatelessRelayed()).append("\n");
+		buffer.append("sip_retransmissions_absorbed_total ").append(getRetransmissionsAbsorbed())
+				.append("\n");
+		buffer.append("sip_overload_rejections_total ").append(getOverloadRejections()).append(
+				"\n");
+		for (int i = 0; i < SourceRateLimiter.CLASSES.length; i++)
+			buffer.append("sip_rate_limited_total{class=\"").append(
+					SourceRateLimiter.CLASSES[i]).append("\"} ").append(rateLimited.get(i))
+					.append("\n");
+		buffer.append("sip_stun_binding_responses_total{result=\"success\"} ").append(
+				getStunBindingResponses()).append("\n");
+		buffer.append("sip_stun_binding_responses_total{result=\"error\"} ").append(
+				getStunBindingErrors()).append("\n");
+		buffer.append("sip_queue_depth{queue=\"udp\"} ").append(getUdpQueueDepth()).append("\n");
+		buffer.append("sip_queue_depth{queue=\"event\"} ").append(getEventQueueDepth()).append(
+				"\n");
+		buffer.append("sip_table_size{table=\"serverTransactions\"} ").append(
+				getServerTransactionCount()).append("\n");
+		buffer.append("sip_table_size{table=\"clientTransactions\"} ").append(
+				getClientTransactionCount()).append("\n");
+		buffer.append("sip_table_size{table=\"dialogs\"} ").append(getDialogCount()).append("\n");
+		buffer.append("sip_table_size{table=\"earlyDialogs\"} ").append(getEarlyDialogCount())
+				.append("\n");
+		buffer.append("sip_intern_cache_lookups_total{result=\"hit\"} ").append(
+				getInternCacheHits()).append("\n");
+		buffer.append("sip_intern_cache_lookups_total{result=\"miss\"} ").append(
+				getInternCacheMisses()).append("\n");
+		clientTransactionTime.encode("sip_client_transaction_time_us", null, buffer);
+		serverTransactionTime.encode("sip_server_transaction_time_us", null, buffer);
+		for (int i = 0; i <= OTHER; i++) {
+			String labels = "method=\"" + (i == OTHER ? "OTHER" : METHODS[i]) + "\"";
+			if (clientTimeByMethod.get(i) != null)
+				clientTimeByMethod.get(i).encode("sip_client_transaction_method_time_us", labels,
+						buffer);
+			if (serverTimeByMethod.get(i) != null)
+				serverTimeByMethod.get(i).encode("sip_server_transaction_method_time_us", labels,
+						buffer);
+		}
+		for (int i = 1; i <= 6; i++) {
+			String labels = "class=\"" + i + "xx\"";
+			if (clientTimeByStatus.get(i) != null)
+				clientTimeByStatus.get(i).encode("sip_client_transaction_status_time_us", labels,
+						buffer);
+			if (serverTimeByStatus.get(i) != null)
+				serverTimeByStatus.get(i).encode("sip_server_transaction_status_time_us", labels,
+						buffer);
+		}
+		if (sipStack.latencyTracer != null)
+			sipStack.latencyTracer.encode(buffer);
+		if (sipStack.overloadControl != null)
+			sipStack.overloadControl.encode(buffer);
+		return buffer.toString();
+	}
+
+	public String toString() {
+		return getText();
+	}
+}
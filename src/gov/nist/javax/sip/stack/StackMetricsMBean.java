@@ -0,0 +1,108 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+/**
+ * Management interface of the stack metrics. This is a standard MBean interface; see
+ * gov.nist.javax.sip.METRICS_JMX.
+ *
+ * @version 1.2
+ *
+ */
+public interface StackMetricsMBean {
+
+	public long getRequestsReceived();
+
+	public long getResponsesReceived();
+
+	public long getRequestsSent();
+
+	public long getResponsesSent();
+
+	public long getRequestRetransmissions();
+
+	public long getResponseRetransmissions();
+
+	public long getTimerBTimeouts();
+
+	public long getTimerFTimeouts();
+
+	public long getTimerHTimeouts();
+
+	public long getParseFailures();
+
+	public long getStatelessRelayed();
+
+	public long getRetransmissionsAbsorbed();
+
+	public long getOverloadRejections();
+
+	public int getOverloadRejectPercent();
+
+	public long getRateLimited();
+
+	public long getStunBindingResponses();
+
+	public long getStunBindingErrors();
+
+	public int getUdpQueueDepth();
+
+	public int getEventQueueDepth();
+
+	public int getServerTransactionCount();
+
+	public int getClientTransactionCount();
+
+	public int getDialogCount();
+
+	public long getInternCacheHits();
+
+	public long getInternCacheMisses();
+
+	/**
+	 * @return the time from the creation of a client transaction of this method to its final
+	 *         response at a quantile (such as 0.99), in microseconds.
+	 */
+	public long getClientTransactionTimeByMethod(String method, double quantile);
+
+	/**
+	 * @return the same for the client transactions whose final response is of this status
+	 *         class (2 for 2xx and so on).
+	 */
+	public long getClientTransactionTimeByStatus(int statusClass, double quantile);
+
+	public long getServerTransactionTimeByMethod(String method, double quantile);
+
+	public long getServerTransactionTimeByStatus(int statusClass, double quantile);
+
+	/**
+	 * @return every metric in plain text, one sample per line.
+	 */
+	public String getText();
+}
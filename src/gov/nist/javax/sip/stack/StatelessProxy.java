@@ -0,0 +1,721 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SIPConstants;
+import gov.nist.javax.sip.address.SipUri;
+import gov.nist.javax.sip.header.MaxForwards;
+import gov.nist.javax.sip.header.RequestLine;
+import gov.nist.javax.sip.header.Route;
+import gov.nist.javax.sip.header.RouteList;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.header.ViaList;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.URLParser;
+import gov.nist.javax.sip.parser.RouteParser;
+import gov.nist.javax.sip.parser.ViaParser;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.text.ParseException;
+
+import javax.sip.InvalidArgumentException;
+import javax.sip.address.Hop;
+import javax.sip.header.RouteHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+/**
+ * Stateless forwarding engine (RFC 3261 section 16.11). This is enabled with
+ * the gov.nist.javax.sip.STATELESS_PROXY stack property.
+ * <p>
+ * Requests arriving over UDP are relayed without building a SIPMessage: the
+ * datagram is scanned for the header lines a proxy has to touch (request
+ * line, Via, Max-Forwards and Route) and the outgoing datagram is spliced
+ * together from the original bytes with a new Via pushed on top,
+ * Max-Forwards decremented and the top Route removed when it points at this
+ * proxy. Only the request line, the top Via value and the top Route value are
+ * handed to the parsers so that the router can pick the next hop. Responses
+ * carrying one of our stateless branches are relayed by popping the top Via.
+ * <p>
+ * Whenever the fast path cannot deal with a message (folded header lines,
+ * strict routing, an exhausted Max-Forwards, a non-UDP next hop ...) it gives
+ * up and the message is fully parsed. The parsed message is then offered to
+ * {@link #forwardMessage(SIPMessage, MessageChannel)} which applies the same
+ * rules on the message object, as do the messages read from TCP and TLS
+ * connections. Messages addressed to this stack, and messages that could not
+ * be forwarded, reach the transaction layer as usual.
+ *
+ * @version 1.2
+ *
+ */
+public class StatelessProxy {
+
+	/**
+	 * Prefix of the branch parameters that are generated by this proxy. The
+	 * suffix is a hash of the incoming top Via so retransmissions (and the
+	 * CANCEL for an INVITE) are forwarded with the same branch.
+	 */
+	public static final String BRANCH_PREFIX = SIPConstants.BRANCH_MAGIC_COOKIE
+			+ "-sl";
+
+	private static final byte[] MAX_FORWARDS_LINE = "Max-Forwards: 70\r\n"
+			.getBytes();
+
+	private static final int DEFAULT_MAX_FORWARDS = 70;
+
+	private SIPTransactionStack sipStack;
+
+	public StatelessProxy(SIPTransactionStack sipStack) {
+		this.sipStack = sipStack;
+	}
+
+	/**
+	 * Offsets of the header lines that the fast path rewrites. End offsets
+	 * include the terminating line feed.
+	 */
+	private static final class RawMessage {
+		int firstLineEnd;
+
+		int bodyStart = -1;
+
+		int via1Start = -1, via1ValueStart, via1End;
+
+		int via2Start = -1, via2ValueStart, via2End;
+
+		int maxForwardsValueStart = -1, maxForwardsValueEnd;
+
+		int route1Start = -1, route1ValueStart, route1End;
+
+		int route2Start = -1, route2ValueStart, route2End;
+	}
+
+	/**
+	 * A list of byte ranges of the original datagram to be replaced. At most
+	 * a handful of edits are ever made so a plain array is kept in offset
+	 * order.
+	 */
+	private static final class Splice {
+		private int[] start = new int[6];
+
+		private int[] end = new int[6];
+
+		private byte[][] data = new byte[6][];
+
+		private int count;
+
+		void replace(int s, int e, byte[] d) {
+			int i = count++;
+			while (i > 0 && start[i - 1] > s) {
+				start[i] = start[i - 1];
+				end[i] = end[i - 1];
+				data[i] = data[i - 1];
+				i--;
+			}
+			start[i] = s;
+			end[i] = e;
+			data[i] = d;
+		}
+
+		void insert(int at, byte[] d) {
+			replace(at, at, d);
+		}
+
+		void remove(int s, int e) {
+			replace(s, e, null);
+		}
+
+		byte[] apply(byte[] msg) {
+			int length = msg.length;
+			for (int i = 0; i < count; i++) {
+				length += (data[i] == null ? 0 : data[i].length)
+						- (end[i] - start[i]);
+			}
+			byte[] out = new byte[length];
+			int src = 0;
+			int dst = 0;
+			for (int i = 0; i < count; i++) {
+				System.arraycopy(msg, src, out, dst, start[i] - src);
+				dst += start[i] - src;
+				if (data[i] != null) {
+					System.arraycopy(data[i], 0, out, dst, data[i].length);
+					dst += data[i].length;
+				}
+				src = end[i];
+			}
+			System.arraycopy(msg, src, out, dst, msg.length - src);
+			return out;
+		}
+	}
+
+	/**
+	 * Try to relay a datagram without parsing it.
+	 *
+	 * @param msg --
+	 *            the datagram payload.
+	 * @param channel --
+	 *            the channel on which the datagram arrived.
+	 * @param srcAddress --
+	 *            source address of the datagram.
+	 * @param srcPort --
+	 *            source port of the datagram.
+	 * @return true if the datagram was consumed, false if it should go
+	 *         through the regular parsing path.
+	 */
+	public boolean relay(byte[] msg, UDPMessageChannel channel,
+			InetAddress srcAddress, int srcPort) {
+		RawMessage raw = scan(msg);
+		if (raw == null)
+			return false;
+		try {
+			if (startsWith(msg, 0, "SIP/"))
+				return relayResponse(msg, raw, channel);
+			else
+				return relayRequest(msg, raw, channel, srcAddress, srcPort);
+		} catch (Exception ex) {
+			// Anything unusual is left to the full parser.
+			if (sipStack.isLoggingEnabled())
+				sipStack.logWriter.logDebug("stateless relay gave up : "
+						+ ex.getMessage());
+			return false;
+		}
+	}
+
+	private boolean relayRequest(byte[] msg, RawMessage raw,
+			UDPMessageChannel channel, InetAddress srcAddress, int srcPort)
+			throws Exception {
+		if (raw.via1Start == -1)
+			return false;
+		MessageProcessor messageProcessor = channel.getMessageProcessor();
+		Splice splice = new Splice();
+
+		// Method SP Request-URI SP SIP-Version
+		int firstLineEnd = lineEnd(msg, raw.firstLineEnd);
+		int uriStart = indexOf(msg, ' ', 0) + 1;
+		int uriEnd = firstLineEnd;
+		while (uriEnd > uriStart && msg[uriEnd - 1] != ' ')
+			uriEnd--;
+		if (uriStart == 0 || uriEnd <= uriStart + 1)
+			return false;
+		RequestLine requestLine = new RequestLine(new URLParser(new String(
+				msg, uriStart, uriEnd - 1 - uriStart)).parse(), new String(msg,
+				0, uriStart - 1));
+
+		// Max-Forwards of zero needs a 483 which is built on the parsed path.
+		int maxForwards = DEFAULT_MAX_FORWARDS;
+		if (raw.maxForwardsValueStart != -1) {
+			maxForwards = parseDigits(msg, raw.maxForwardsValueStart,
+					raw.maxForwardsValueEnd);
+			if (maxForwards <= 0)
+				return false;
+		}
+
+		// The top Via gets received/rport just as the UDP channel would do.
+		int via1ValueEnd = valueEnd(msg, raw.via1ValueStart, lineEnd(msg,
+				raw.via1End));
+		Via topVia = parseVia(msg, raw.via1ValueStart, via1ValueEnd);
+		boolean hasRPort = topVia.hasParameter(Via.RPORT);
+		String srcHost = srcAddress.getHostAddress();
+		if (hasRPort || !srcHost.equals(topVia.getHost())) {
+			topVia.setParameter(Via.RECEIVED, srcHost);
+			if (hasRPort)
+				topVia.setParameter(Via.RPORT, Integer.toString(srcPort));
+			splice.replace(raw.via1ValueStart, via1ValueEnd, topVia
+					.getHeaderValue().getBytes());
+		}
+
+		// Strip the top Route if it is us (RFC 3261 16.4).
+		Route topRoute = null;
+		if (raw.route1Start != -1) {
+			RouteList routes = parseRoutes(msg, raw.route1ValueStart,
+					lineEnd(msg, raw.route1End));
+			topRoute = (Route) routes.getFirst();
+			if (isOwnUri(topRoute.getAddress().getURI())) {
+				routes.removeFirst();
+				if (routes.isEmpty()) {
+					splice.remove(raw.route1Start, raw.route1End);
+					topRoute = null;
+					if (raw.route2Start != -1) {
+						topRoute = (Route) parseRoutes(msg,
+								raw.route2ValueStart,
+								lineEnd(msg, raw.route2End)).getFirst();
+					}
+				} else {
+					splice.replace(raw.route1Start, raw.route1End, routes
+							.encode().getBytes());
+					topRoute = (Route) routes.getFirst();
+				}
+			}
+		}
+
+		if (topRoute != null) {
+			// Strict routers need the request URI rewritten.
+			if (!topRoute.getAddress().getURI().isSipURI()
+					|| !((SipUri) topRoute.getAddress().getURI())
+							.hasLrParam())
+				return false;
+		} else {
+			if (!requestLine.getUri().isSipURI())
+				return false;
+			SipUri requestURI = (SipUri) requestLine.getUri();
+			if (isOwnUri(requestURI) || requestURI.getMAddrParam() != null)
+				return false;
+		}
+
+		SIPRequest skeleton = new SIPRequest();
+		skeleton.setRequestLine(requestLine);
+		skeleton.setHeader(topVia);
+		if (topRoute != null)
+			skeleton.setHeader(topRoute);
+		Hop hop = sipStack.getNextHop(skeleton);
+		if (hop == null
+				|| !hop.getTransport().equalsIgnoreCase(
+						messageProcessor.getTransport())
+				|| isOwnAddress(hop.getHost(), hop.getPort()))
+			return false;
+
+		// Push our Via and account for the hop.
+		String branch = createBranch(topVia);
+		splice.insert(raw.via1Start, ("Via: SIP/2.0/"
+				+ messageProcessor.getTransport().toUpperCase() + " "
+				+ messageProcessor.getSentBy() + ";branch=" + branch + "\r\n")
+				.getBytes());
+		if (raw.maxForwardsValueStart != -1)
+			splice.replace(raw.maxForwardsValueStart,
+					raw.maxForwardsValueEnd, Integer.toString(maxForwards - 1)
+							.getBytes());
+		else
+			splice.insert(raw.via1Start, MAX_FORWARDS_LINE);
+
+		send(splice.apply(msg), channel, hop.getHost(), hop.getPort());
+		sipStack.getMetrics().statelesslyRelayed();
+		if (sipStack.isLoggingEnabled())
+			sipStack.logWriter.logDebug("statelessly relayed "
+					+ requestLine.getMethod() + " to " + hop);
+		return true;
+	}
+
+	private boolean relayResponse(byte[] msg, RawMessage raw,
+			UDPMessageChannel channel) throws Exception {
+		if (raw.via1Start == -1)
+			return false;
+		int lineEnd = lineEnd(msg, raw.via1End);
+		int via1ValueEnd = valueEnd(msg, raw.via1ValueStart, lineEnd);
+		Via topVia = parseVia(msg, raw.via1ValueStart, via1ValueEnd);
+		if (!isOwnBranch(topVia))
+			return false;
+
+		Splice splice = new Splice();
+		Via nextVia;
+		if (via1ValueEnd < lineEnd) {
+			// More values on the same line: drop the first one and the comma.
+			int next = skipSpace(msg, via1ValueEnd + 1, lineEnd);
+			splice.remove(raw.via1ValueStart, next);
+			nextVia = parseVia(msg, next, valueEnd(msg, next, lineEnd));
+		} else if (raw.via2Start != -1) {
+			splice.remove(raw.via1Start, raw.via1End);
+			int end = lineEnd(msg, raw.via2End);
+			nextVia = parseVia(msg, raw.via2ValueStart, valueEnd(msg,
+					raw.via2ValueStart, end));
+		} else {
+			return false;
+		}
+		if (!nextVia.getTransport().equalsIgnoreCase(
+				channel.getMessageProcessor().getTransport()))
+			return false;
+
+		String host = nextVia.getReceived() != null ? nextVia.getReceived()
+				: nextVia.getHost();
+		int port = nextVia.getRPort() > 0 ? nextVia.getRPort() : nextVia
+				.getPort();
+		if (port == -1)
+			port = MessageProcessor.getDefaultPort(nextVia.getTransport());
+		send(splice.apply(msg), channel, host, port);
+		sipStack.getMetrics().statelesslyRelayed();
+		return true;
+	}
+
+	/**
+	 * Forward an already parsed message. This is the slow path taken when the
+	 * datagram could not be relayed as raw bytes.
+	 *
+	 * @param sipMessage --
+	 *            the parsed message (the top Via of requests already carries
+	 *            received/rport).
+	 * @param incomingChannel --
+	 *            the channel on which the message arrived.
+	 * @return true if the message was consumed by the proxy.
+	 */
+	public boolean forwardMessage(SIPMessage sipMessage,
+			MessageChannel incomingChannel) {
+		try {
+			if (sipMessage instanceof SIPRequest)
+				return forwardRequest((SIPRequest) sipMessage, incomingChannel);
+			else
+				return forwardResponse((SIPResponse) sipMessage);
+		} catch (Exception ex) {
+			sipStack.logWriter.logError("Could not forward "
+					+ sipMessage.getFirstLine().trim(), ex);
+			// Let the stack process the message as usual.
+			return false;
+		}
+	}
+
+	private boolean forwardRequest(SIPRequest sipRequest,
+			MessageChannel incomingChannel) throws Exception {
+		RouteList routes = sipRequest.getRouteHeaders();
+		if (routes != null
+				&& isOwnUri(((Route) routes.getFirst()).getAddress().getURI())) {
+			routes.removeFirst();
+			if (routes.isEmpty())
+				sipRequest.removeHeader(RouteHeader.NAME);
+		}
+		if (sipRequest.getRouteHeaders() == null
+				&& isOwnUri(sipRequest.getRequestURI()))
+			return false;
+
+		MaxForwards maxForwards = (MaxForwards) sipRequest.getMaxForwards();
+		if (maxForwards == null) {
+			sipRequest.setHeader(new MaxForwards(DEFAULT_MAX_FORWARDS));
+		} else if (maxForwards.getMaxForwards() <= 0) {
+			if (!sipRequest.getMethod().equals(Request.ACK)) {
+				SIPResponse response = sipRequest
+						.createResponse(Response.TOO_MANY_HOPS);
+				incomingChannel.sendMessage(response);
+			}
+			return true;
+		} else {
+			maxForwards.decrementMaxForwards();
+		}
+
+		Via topVia = sipRequest.getTopmostVia();
+		Hop hop = sipStack.getNextHop(sipRequest);
+		if (hop == null || isOwnAddress(hop.getHost(), hop.getPort())) {
+			if (sipStack.isLoggingEnabled())
+				sipStack.logWriter.logDebug("no next hop -- dropping "
+						+ sipRequest.getFirstLine());
+			return true;
+		}
+		MessageProcessor messageProcessor = findMessageProcessor(hop
+				.getTransport());
+		if (messageProcessor == null) {
+			if (sipStack.isLoggingEnabled())
+				sipStack.logWriter.logDebug("no listening point for "
+						+ hop.getTransport() + " -- dropping "
+						+ sipRequest.getFirstLine());
+			return true;
+		}
+		Via via = messageProcessor.getViaHeader();
+		via.setBranch(createBranch(topVia));
+		sipRequest.addFirst(via);
+
+		MessageChannel channel = messageProcessor.createMessageChannel(
+				InetAddress.getByName(hop.getHost()), hop.getPort());
+		channel.sendMessage(sipRequest);
+		sipStack.getMetrics().statelesslyRelayed();
+		return true;
+	}
+
+	private boolean forwardResponse(SIPResponse sipResponse) throws Exception {
+		ViaList vias = sipResponse.getViaHeaders();
+		if (vias == null || !isOwnBranch((Via) vias.getFirst()))
+			return false;
+		vias.removeFirst();
+		if (vias.isEmpty())
+			return true;
+		Via nextVia = (Via) vias.getFirst();
+		MessageProcessor messageProcessor = findMessageProcessor(nextVia
+				.getTransport());
+		if (messageProcessor == null)
+			return true;
+		String host = nextVia.getReceived() != null ? nextVia.getReceived()
+				: nextVia.getHost();
+		int port = nextVia.getRPort() > 0 ? nextVia.getRPort() : nextVia
+				.getPort();
+		if (port == -1)
+			port = MessageProcessor.getDefaultPort(nextVia.getTransport());
+		MessageChannel channel = messageProcessor.createMessageChannel(
+				InetAddress.getByName(host), port);
+		channel.sendMessage(sipResponse);
+		sipStack.getMetrics().statelesslyRelayed();
+		return true;
+	}
+
+	/**
+	 * Compute the branch for a forwarded request. RFC 3261 compliant
+	 * requests are keyed on their own branch, older ones on the whole top
+	 * Via.
+	 */
+	private String createBranch(Via topVia) {
+		String branch = topVia.getBranch();
+		String key = branch != null
+				&& branch.startsWith(SIPConstants.BRANCH_MAGIC_COOKIE) ? branch
+				: topVia.getHeaderValue();
+		// 64 bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return BRANCH_PREFIX + Long.toHexString(hash);
+	}
+
+	private boolean isOwnBranch(Via via) {
+		String branch = via.getBranch();
+		return branch != null && branch.startsWith(BRANCH_PREFIX)
+				&& isOwnAddress(via.getHost(), via.getPort());
+	}
+
+	private boolean isOwnUri(javax.sip.address.URI uri) {
+		if (!uri.isSipURI())
+			return false;
+		SipUri sipUri = (SipUri) uri;
+		return isOwnAddress(sipUri.getHost(), sipUri.getPort());
+	}
+
+	/**
+	 * Check whether host:port designates one of our listening points.
+	 */
+	private boolean isOwnAddress(String host, int port) {
+		if (host == null)
+			return false;
+		for (MessageProcessor messageProcessor : sipStack
+				.getMessageProcessors()) {
+			int myPort = messageProcessor.getPort();
+			if (port != -1 ? port != myPort : myPort != MessageProcessor
+					.getDefaultPort(messageProcessor.getTransport()))
+				continue;
+			if (host.equalsIgnoreCase(messageProcessor.getIpAddress()
+					.getHostAddress())
+					|| host.equalsIgnoreCase(messageProcessor
+							.getSavedIpAddress()))
+				return true;
+			String sentBy = messageProcessor.getSentBy();
+			if (sentBy != null
+					&& (sentBy.equalsIgnoreCase(host) || sentBy
+							.regionMatches(true, 0, host + ":", 0, host
+									.length() + 1)))
+				return true;
+		}
+		return false;
+	}
+
+	private MessageProcessor findMessageProcessor(String transport) {
+		for (MessageProcessor messageProcessor : sipStack
+				.getMessageProcessors()) {
+			if (messageProcessor.getTransport().equalsIgnoreCase(transport))
+				return messageProcessor;
+		}
+		return null;
+	}
+
+	private void send(byte[] msg, UDPMessageChannel channel, String host,
+			int port) throws Exception {
+		DatagramPacket packet = new DatagramPacket(msg, msg.length,
+				InetAddress.getByName(host), port);
+		((UDPMessageProcessor) channel.getMessageProcessor()).sock
+				.send(packet);
+	}
+
+	private Via parseVia(byte[] msg, int start, int end) throws ParseException {
+		ViaParser parser = new ViaParser("Via: "
+				+ new String(msg, start, end - start) + "\n");
+		return (Via) ((ViaList) parser.parse()).getFirst();
+	}
+
+	private RouteList parseRoutes(byte[] msg, int start, int end)
+			throws ParseException {
+		RouteParser parser = new RouteParser("Route: "
+				+ new String(msg, start, end - start) + "\n");
+		return (RouteList) parser.parse();
+	}
+
+	/**
+	 * Locate the interesting header lines. Returns null if the message uses
+	 * line folding or has no end of headers.
+	 */
+	private static RawMessage scan(byte[] msg) {
+		RawMessage raw = new RawMessage();
+		int pos = indexOf(msg, '\n', 0);
+		if (pos == -1)
+			return null;
+		raw.firstLineEnd = pos + 1;
+		pos = raw.firstLineEnd;
+		while (pos < msg.length) {
+			int nl = indexOf(msg, '\n', pos);
+			if (nl == -1)
+				return null;
+			int end = nl + 1;
+			int contentEnd = lineEnd(msg, end);
+			if (contentEnd == pos) {
+				raw.bodyStart = end;
+				return raw;
+			}
+			byte first = msg[pos];
+			if (first == ' ' || first == '\t')
+				return null;
+			int colon = indexOf(msg, ':', pos);
+			if (colon == -1 || colon > contentEnd)
+				return null;
+			int nameEnd = colon;
+			while (nameEnd > pos
+					&& (msg[nameEnd - 1] == ' ' || msg[nameEnd - 1] == '\t'))
+				nameEnd--;
+			int valueStart = skipSpace(msg, colon + 1, contentEnd);
+
+			if (nameIs(msg, pos, nameEnd, "via") || nameIs(msg, pos, nameEnd, "v")) {
+				if (raw.via1Start == -1) {
+					raw.via1Start = pos;
+					raw.via1ValueStart = valueStart;
+					raw.via1End = end;
+				} else if (raw.via2Start == -1) {
+					raw.via2Start = pos;
+					raw.via2ValueStart = valueStart;
+					raw.via2End = end;
+				}
+			} else if (nameIs(msg, pos, nameEnd, "max-forwards")) {
+				raw.maxForwardsValueStart = valueStart;
+				int valueEnd = contentEnd;
+				while (valueEnd > valueStart
+						&& (msg[valueEnd - 1] == ' ' || msg[valueEnd - 1] == '\t'))
+					valueEnd--;
+				raw.maxForwardsValueEnd = valueEnd;
+			} else if (nameIs(msg, pos, nameEnd, "route")) {
+				if (raw.route1Start == -1) {
+					raw.route1Start = pos;
+					raw.route1ValueStart = valueStart;
+					raw.route1End = end;
+				} else if (raw.route2Start == -1) {
+					raw.route2Start = pos;
+					raw.route2ValueStart = valueStart;
+					raw.route2End = end;
+				}
+			}
+			pos = end;
+		}
+		return null;
+	}
+
+	private static boolean nameIs(byte[] msg, int start, int end, String name) {
+		if (end - start != name.length())
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (Character.toLowerCase((char) msg[start + i]) != name.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean startsWith(byte[] msg, int start, String prefix) {
+		if (msg.length - start < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (msg[start + i] != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] msg, char c, int from) {
+		for (int i = from; i < msg.length; i++) {
+			if (msg[i] == c)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Offset of the line content end (before CRLF) given the offset just
+	 * past the line feed.
+	 */
+	private static int lineEnd(byte[] msg, int end) {
+		int i = end - 1;
+		if (i >= 0 && msg[i] == '\n')
+			i--;
+		if (i >= 0 && msg[i] == '\r')
+			i--;
+		return i + 1;
+	}
+
+	/**
+	 * End of the first value of a comma separated header, skipping commas
+	 * inside quotes and angle brackets.
+	 */
+	private static int valueEnd(byte[] msg, int start, int end) {
+		boolean quoted = false;
+		boolean bracketed = false;
+		for (int i = start; i < end; i++) {
+			byte b = msg[i];
+			if (quoted) {
+				if (b == '\\')
+					i++;
+				else if (b == '"')
+					quoted = false;
+			} else if (b == '"') {
+				quoted = true;
+			} else if (b == '<') {
+				bracketed = true;
+			} else if (b == '>') {
+				bracketed = false;
+			} else if (b == ',' && !bracketed) {
+				int e = i;
+				while (e > start && (msg[e - 1] == ' ' || msg[e - 1] == '\t'))
+					e--;
+				return e;
+			}
+		}
+		int e = end;
+		while (e > start && (msg[e - 1] == ' ' || msg[e - 1] == '\t'))
+			e--;
+		return e;
+	}
+
+	private static int skipSpace(byte[] msg, int start, int end) {
+		while (start < end
+				&& (msg[start] == ' ' || msg[start] == '\t' || msg[start] == ','))
+			start++;
+		return start;
+	}
+
+	private static int parseDigits(byte[] msg, int start, int end)
+			throws InvalidArgumentException {
+		if (start == end)
+			throw new InvalidArgumentException("empty Max-Forwards");
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = msg[i] - '0';
+			if (digit < 0 || digit > 9 || value > 255)
+				throw new InvalidArgumentException("bad Max-Forwards");
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,180 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+/*******************************************************************************
+ *   Product of NIST/ITL Advanced Networking Technologies Division (ANTD).     *
+ *******************************************************************************/
+package gov.nist.javax.sip.stack;
+
+import de.javawi.jstun.attribute.MessageAttributeInterface;
+import de.javawi.jstun.header.MessageBuffer;
+import de.javawi.jstun.header.MessageHeaderInterface;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Answers STUN Binding Requests that arrive on a SIP UDP listening point, so that user agents
+ * behind a NAT can discover their public address and keep their NAT bindings open (RFC 5626)
+ * against the SIP port itself instead of a separate STUN server. Requests carrying the RFC 5389
+ * magic cookie get an XOR-MAPPED-ADDRESS as well as a MAPPED-ADDRESS; older RFC 3489 requests
+ * get MAPPED-ADDRESS, SOURCE-ADDRESS and CHANGED-ADDRESS. A CHANGE-REQUEST asking for another
+ * address or port cannot be honoured from the SIP socket and is answered with a 420 error.
+ * Requests are only answered if gov.nist.javax.sip.STUN_RESPONDER is set; Binding Responses
+ * are always passed on to the KeepaliveScheduler, whose STUN keepalives they answer.
+ * <p>
+ * STUN and SIP are told apart by the first byte of the datagram: a STUN message starts with two
+ * zero bits, a SIP message with a letter. CRLF keepalives and SIP messages with leading white
+ * space start with two zero bits too, so a datagram that does not parse as STUN is handed to
+ * the SIP stack rather than dropped. The UDPMessageProcessor only creates a responder, and
+ * only consults it, while STUN_RESPONDER is set or keepalive flows are registered.
+ * <p>
+ * Requests are answered from the thread that read them, without going through the message
+ * queue. The request is read in place in the datagram and the response built in a buffer
+ * owned by the responder (see MessageBuffer), so an instance must only be used by the thread
+ * of its UDPMessageProcessor.
+ *
+ * @version 1.2
+ *
+ */
+class StunResponder {
+
+	private static final int MAX_RESPONSE_LENGTH = 256;
+
+	private final UDPMessageProcessor messageProcessor;
+
+	private final SIPTransactionStack sipStack;
+
+	// Answer Binding Requests, or only take the responses to our keepalives.
+	private final boolean answerRequests;
+
+	private final MessageBuffer request = new MessageBuffer();
+
+	private final MessageBuffer response = new MessageBuffer();
+
+	// Wraps the receive buffer of the processor, which is reused from one datagram to the next.
+	private ByteBuffer requestBuffer;
+
+	private final ByteBuffer responseBuffer = ByteBuffer.allocate(MAX_RESPONSE_LENGTH);
+
+	private final DatagramPacket responsePacket = new DatagramPacket(responseBuffer.array(),
+			MAX_RESPONSE_LENGTH);
+
+	private final int[] unknownAttributes = new int[MessageBuffer.MAX_UNKNOWN_ATTRIBUTES];
+
+	StunResponder(UDPMessageProcessor messageProcessor, boolean answerRequests) {
+		this.messageProcessor = messageProcessor;
+		this.sipStack = messageProcessor.sipStack;
+		this.answerRequests = answerRequests;
+	}
+
+	/**
+	 * Process a datagram read from the listening point if it is a STUN message.
+	 *
+	 * @return false if the datagram is not a well formed STUN message and must be handed to
+	 *         the SIP stack, true if it was consumed (answered or dropped).
+	 */
+	public boolean processDatagram(DatagramPacket packet) {
+		byte[] data = packet.getData();
+		int length = packet.getLength();
+		if (length == 0 || !MessageBuffer.isStunMessage(data[packet.getOffset()]))
+			return false;
+
+		if (requestBuffer == null || requestBuffer.array() != data)
+			requestBuffer = ByteBuffer.wrap(data);
+		requestBuffer.limit(packet.getOffset() + length).position(packet.getOffset());
+		if (!request.wrap(requestBuffer) || !request.checkFingerprint()) {
+			// Most likely a CRLF keepalive or a SIP message with leading white space.
+			return false;
+		}
+		int type = request.getType();
+		// Responses to the keepalives of the KeepaliveScheduler.
+		if (type == MessageHeaderInterface.BINDINGRESPONSE
+				|| type == MessageHeaderInterface.BINDINGERRORRESPONSE) {
+			if (sipStack.keepaliveScheduler != null)
+				sipStack.keepaliveScheduler.stunResponseReceived(messageProcessor, request,
+						packet.getAddress(), packet.getPort());
+			return true;
+		}
+		// Indications (RFC 5389 keepalives) need no answer.
+		if (type != MessageHeaderInterface.BINDINGREQUEST || !answerRequests)
+			return true;
+
+		// RESPONSE-ADDRESS is refused too: it would turn us into a reflector. USERNAME and
+		// MESSAGE-INTEGRITY are ignored, bindings are not authenticated.
+		int unknownCount = 0;
+		for (int i = 0; i < request.getUnknownAttributeCount(); i++)
+			unknownAttributes[unknownCount++] = request.getUnknownAttribute(i);
+		if (request.hasAttribute(MessageAttributeInterface.RESPONSEADDRESS)
+				&& unknownCount < unknownAttributes.length)
+			unknownAttributes[unknownCount++] = MessageAttributeInterface.RESPONSEADDRESS;
+		// We can only answer from the address and port the request was sent to.
+		if ((request.getChangeRequest() & 0x06) != 0 && unknownCount < unknownAttributes.length)
+			unknownAttributes[unknownCount++] = MessageAttributeInterface.CHANGEREQUEST;
+
+		InetAddress address = packet.getAddress();
+		int port = packet.getPort();
+		boolean rfc5389 = request.hasMagicCookie();
+		responseBuffer.clear();
+		if (unknownCount == 0) {
+			byte[] rawAddress = address.getAddress();
+			response.start(responseBuffer, MessageHeaderInterface.BINDINGRESPONSE, request);
+			if (rfc5389)
+				response.putAddress(MessageAttributeInterface.XORMAPPEDADDRESS, rawAddress, port);
+			response.putAddress(MessageAttributeInterface.MAPPEDADDRESS, rawAddress, port);
+			InetAddress localAddress = messageProcessor.getIpAddress();
+			if (!rfc5389 && localAddress instanceof Inet4Address) {
+				// Mandatory in RFC 3489 responses. We have no alternate address to offer.
+				byte[] rawLocalAddress = localAddress.getAddress();
+				response.putAddress(MessageAttributeInterface.SOURCEADDRESS, rawLocalAddress,
+						messageProcessor.getPort());
+				response.putAddress(MessageAttributeInterface.CHANGEDADDRESS, rawLocalAddress,
+						messageProcessor.getPort());
+			}
+		} else {
+			response.start(responseBuffer, MessageHeaderInterface.BINDINGERRORRESPONSE, request);
+			response.putErrorCode(420, "Unknown Attribute");
+			response.putUnknownAttributes(unknownAttributes, unknownCount);
+		}
+		if (request.hasAttribute(MessageAttributeInterface.FINGERPRINT))
+			response.putFingerprint();
+
+		try {
+			responsePacket.setData(responseBuffer.array(), 0, response.finish());
+			responsePacket.setAddress(address);
+			responsePacket.setPort(port);
+			messageProcessor.sock.send(responsePacket);
+			sipStack.getMetrics().stunBindingAnswered(unknownCount == 0);
+		} catch (IOException ex) {
+			if (sipStack.isLoggingEnabled())
+				sipStack.logWriter.logDebug("Could not send STUN response to "
+						+ address.getHostAddress() + ":" + port + " " + ex.getMessage());
+		}
+		return true;
+	}
+}
@@ -63,7 +63,7 @@ import javax.sip.message.Response;
  * @version 1.2 $Revision: 1.52 $ $Date: 2009/02/23 20:57:45 $
  */
 public class TCPMessageChannel extends MessageChannel implements SIPMessageListener, Runnable,
-        RawMessageChannel {
+        RawMessageChannel, CRLFListener, MessageAcceptor {
 
     private Socket mySock;
 
@@ -290,6 +290,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
         // JvB: also retry for responses, if the connection is gone we should
         // try to reconnect
         this.sendMessage(msg, /* sipMessage instanceof SIPRequest */true);
+        sipStack.getMetrics().messageSent(sipMessage);
 
         if (this.sipStack.logWriter.isLoggingEnabled(ServerLog.TRACE_MESSAGES))
             logMessage(sipMessage, peerAddress, peerPort, time);
@@ -384,6 +385,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
                         || hdrClass.equals(CSeq.class) || hdrClass.equals(Via.class)
                         || hdrClass.equals(CallID.class) || hdrClass.equals(RequestLine.class) || hdrClass
                         .equals(StatusLine.class))) {
+            sipStack.getMetrics().parseFailed();
             if (sipStack.isLoggingEnabled()) {
                 this.getSIPStack().getLogWriter().logDebug(
                         "Encountered Bad Message \n" + sipMessage.toString());
@@ -420,6 +422,36 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
         }
     }
 
+    /**
+     * Answer a CRLF keepalive ping with a pong, on this connection only, and let the keepalive
+     * scheduler know the flow is alive (RFC 5626).
+     */
+    public void crlfReceived(boolean ping) {
+        if (ping && mySock != null) {
+            try {
+                OutputStream outputStream = mySock.getOutputStream();
+                synchronized (outputStream) {
+                    outputStream.write(KeepaliveScheduler.PONG);
+                }
+                outputStream.flush();
+            } catch (IOException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.logWriter.logDebug("Could not send pong " + ex.getMessage());
+            }
+        }
+        if (sipStack.keepaliveScheduler != null)
+            sipStack.keepaliveScheduler.pongReceived(this);
+    }
+
+    /**
+     * Drop the messages of a peer over its rate before they are parsed.
+     */
+    public boolean acceptMessage(String firstLine) {
+        return sipStack.sourceRateLimiter == null || peerAddress == null
+                || sipStack.sourceRateLimiter.acquire(peerAddress, SourceRateLimiter
+                        .classOf(firstLine));
+    }
+
     /**
      * Gets invoked by the parser as a callback on successful message parsing (i.e. no parser
      * errors).
@@ -428,6 +460,9 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
      *        message).
      */
     public void processMessage(SIPMessage sipMessage) throws Exception {
+        // The reader thread has already parsed the message.
+        if (sipStack.latencyTracer != null)
+            sipStack.latencyTracer.start(sipMessage, 0);
         try {
             if (sipMessage.getFrom() == null
                     || // sipMessage.getFrom().getTag()
@@ -486,6 +521,11 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
                 }
             }
 
+            // A stateless proxy relays the messages not addressed to the stack.
+            if (sipStack.statelessProxy != null
+                    && sipStack.statelessProxy.forwardMessage(sipMessage, this))
+                return;
+
             // System.out.println("receiver address = " + receiverAddress);
 
             // Foreach part of the request header, fetch it and process it
@@ -525,6 +565,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
 
                 ServerRequestInterface sipServerRequest = sipStack.newSIPServerRequest(
                         sipRequest, this);
+                LatencyTracer.mark(sipRequest, LatencyTracer.MATCHED);
 
                 if (sipServerRequest != null) {
                     try {
@@ -570,6 +611,7 @@ public class TCPMessageChannel extends MessageChannel implements SIPMessageListe
                 }
                 ServerResponseInterface sipServerResponse = sipStack.newSIPServerResponse(
                         sipResponse, this);
+                LatencyTracer.mark(sipResponse, LatencyTracer.MATCHED);
                 if (sipServerResponse != null) {
                     try {
                         if (sipServerResponse instanceof SIPClientTransaction
@@ -67,7 +67,7 @@ import javax.sip.message.Response;
  * @version 1.2 $Revision: 1.18 $ $Date: 2009/02/24 03:39:45 $
  */
 public final class TLSMessageChannel extends MessageChannel implements SIPMessageListener,
-        Runnable, RawMessageChannel {
+        Runnable, RawMessageChannel, CRLFListener, MessageAcceptor {
 
     private Socket mySock;
 
@@ -272,6 +272,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
         long time = System.currentTimeMillis();
 
         this.sendMessage(msg, sipMessage instanceof SIPRequest);
+        sipStack.getMetrics().messageSent(sipMessage);
 
         if (this.sipStack.logWriter.isLoggingEnabled(ServerLog.TRACE_MESSAGES))
             logMessage(sipMessage, peerAddress, peerPort, time);
@@ -332,6 +333,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
                         || hdrClass.equals(CSeq.class) || hdrClass.equals(Via.class)
                         || hdrClass.equals(CallID.class) || hdrClass.equals(RequestLine.class) || hdrClass
                         .equals(StatusLine.class))) {
+            sipStack.getMetrics().parseFailed();
             sipStack.getLogWriter().logDebug("Encountered bad message \n" + message);
             // JvB: send a 400 response for requests (except ACK)
             String msgString = sipMessage.toString();
@@ -362,6 +364,36 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
         }
     }
 
+    /**
+     * Answer a CRLF keepalive ping with a pong, on this connection only, and let the keepalive
+     * scheduler know the flow is alive (RFC 5626).
+     */
+    public void crlfReceived(boolean ping) {
+        if (ping && mySock != null) {
+            try {
+                OutputStream outputStream = mySock.getOutputStream();
+                synchronized (outputStream) {
+                    outputStream.write(KeepaliveScheduler.PONG);
+                }
+                outputStream.flush();
+            } catch (IOException ex) {
+                if (sipStack.isLoggingEnabled())
+                    sipStack.logWriter.logDebug("Could not send pong " + ex.getMessage());
+            }
+        }
+        if (sipStack.keepaliveScheduler != null)
+            sipStack.keepaliveScheduler.pongReceived(this);
+    }
+
+    /**
+     * Drop the messages of a peer over its rate before they are parsed.
+     */
+    public boolean acceptMessage(String firstLine) {
+        return sipStack.sourceRateLimiter == null || peerAddress == null
+                || sipStack.sourceRateLimiter.acquire(peerAddress, SourceRateLimiter
+                        .classOf(firstLine));
+    }
+
     /**
      * Gets invoked by the parser as a callback on successful message parsing (i.e. no parser
      * errors).
@@ -372,6 +404,9 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
      * Jvb: note that this code is identical to TCPMessageChannel, refactor some day
      */
     public void processMessage(SIPMessage sipMessage) throws Exception {
+        // The reader thread has already parsed the message.
+        if (sipStack.latencyTracer != null)
+            sipStack.latencyTracer.start(sipMessage, 0);
         try {
             if (sipMessage.getFrom() == null || sipMessage.getTo() == null
                     || sipMessage.getCallId() == null || sipMessage.getCSeq() == null
@@ -424,6 +459,11 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
                 }
             }
 
+            // A stateless proxy relays the messages not addressed to the stack.
+            if (sipStack.statelessProxy != null
+                    && sipStack.statelessProxy.forwardMessage(sipMessage, this))
+                return;
+
             // Foreach part of the request header, fetch it and process it
 
             long receptionTime = System.currentTimeMillis();
@@ -463,6 +503,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
                 // maybe not enough resources.
                 ServerRequestInterface sipServerRequest = sipStack.newSIPServerRequest(
                         sipRequest, this);
+                LatencyTracer.mark(sipRequest, LatencyTracer.MATCHED);
                 if (sipServerRequest != null) {
                     try {
                         sipServerRequest.processRequest(sipRequest, this);
@@ -519,6 +560,7 @@ public final class TLSMessageChannel extends MessageChannel implements SIPMessag
                 }
                 ServerResponseInterface sipServerResponse = sipStack.newSIPServerResponse(
                         sipResponse, this);
+                LatencyTracer.mark(sipResponse, LatencyTracer.MATCHED);
                 if (sipServerResponse != null) {
                     try {
                         if (sipServerResponse instanceof SIPClientTransaction
@@ -121,6 +121,9 @@ public class UDPMessageChannel extends MessageChannel implements
 
 	private long receptionTime;
 
+	// When the incoming packet was read from the socket, for the latency tracer.
+	private long receiveTime;
+
 	/**
 	 * Constructor - takes a datagram packet and a stack structure Extracts the
 	 * address of the other from the datagram packet and stashes away the
@@ -157,11 +160,15 @@ public class UDPMessageChannel extends MessageChannel implements
 	 *            is the creating message processor.
 	 * @param packet
 	 *            is the incoming datagram packet.
+	 * @param receiveTime
+	 *            when the packet was read (StackMetrics.now()), or 0 if unknown.
 	 */
 	protected UDPMessageChannel(SIPTransactionStack stack,
-			UDPMessageProcessor messageProcessor, DatagramPacket packet) {
+			UDPMessageProcessor messageProcessor, DatagramPacket packet,
+			long receiveTime) {
 
 		this.incomingPacket = packet;
+		this.receiveTime = receiveTime;
 		super.messageProcessor = messageProcessor;
 		this.sipStack = stack;
 
@@ -244,8 +251,15 @@ public class UDPMessageChannel extends MessageChannel implements
 								return;
 						}
 					}
-					packet = (DatagramPacket) ((UDPMessageProcessor) messageProcessor).messageQueue
+					Object incoming = ((UDPMessageProcessor) messageProcessor).messageQueue
 							.removeFirst();
+					if (incoming instanceof UDPMessageProcessor.IncomingPacket) {
+						packet = ((UDPMessageProcessor.IncomingPacket) incoming).packet;
+						this.receiveTime = ((UDPMessageProcessor.IncomingPacket) incoming).receiveTime;
+					} else {
+						packet = (DatagramPacket) incoming;
+						this.receiveTime = 0;
+					}
 
 				}
 				this.incomingPacket = packet;
@@ -292,13 +306,22 @@ public class UDPMessageChannel extends MessageChannel implements
 			
 		}
 
+		// A stateless proxy relays most datagrams without parsing them.
+		if (sipStack.statelessProxy != null
+				&& sipStack.statelessProxy.relay(msgBytes, this, packet
+						.getAddress(), packet.getPort()))
+			return;
+
 		SIPMessage sipMessage = null;
 		try {
 			this.receptionTime = System.currentTimeMillis();
 			sipMessage = myParser.parseSIPMessage(msgBytes);
 			myParser = null;
+			if (sipStack.latencyTracer != null && sipMessage != null)
+				sipStack.latencyTracer.start(sipMessage, receiveTime);
 		} catch (ParseException ex) {
 			myParser = null; // let go of the parser reference.
+			sipStack.getMetrics().parseFailed();
 			if (sipStack.isLoggingEnabled()) {
 				this.sipStack.logWriter.logDebug("Rejecting message !  "
 						+ new String(msgBytes));
@@ -411,6 +434,10 @@ public class UDPMessageChannel extends MessageChannel implements
 			this.peerProtocol = ((Via) viaList.getFirst()).getTransport();
 		}
 
+		if (sipStack.statelessProxy != null
+				&& sipStack.statelessProxy.forwardMessage(sipMessage, this))
+			return;
+
 		this.processMessage(sipMessage);
 
 	}
@@ -438,6 +465,7 @@ public class UDPMessageChannel extends MessageChannel implements
 			}
 			ServerRequestInterface sipServerRequest = sipStack
 					.newSIPServerRequest(sipRequest, this);
+			LatencyTracer.mark(sipRequest, LatencyTracer.MATCHED);
 			// Drop it if there is no request returned
 			if (sipServerRequest == null) {
 				if (sipStack.isLoggingEnabled()) {
@@ -482,6 +510,7 @@ public class UDPMessageChannel extends MessageChannel implements
 			}
 			ServerResponseInterface sipServerResponse = sipStack
 					.newSIPServerResponse(sipResponse, this);
+			LatencyTracer.mark(sipResponse, LatencyTracer.MATCHED);
 			if (sipServerResponse != null) {
 				try {
 					if (sipServerResponse instanceof SIPClientTransaction
@@ -607,6 +636,12 @@ public class UDPMessageChannel extends MessageChannel implements
 
 			sendMessage(msg, peerAddress, peerPort, peerProtocol,
 					sipMessage instanceof SIPRequest);
+			sipStack.getMetrics().messageSent(sipMessage);
+			RetransmissionCache retransmissionCache = ((UDPMessageProcessor) messageProcessor)
+					.retransmissionCache;
+			if (retransmissionCache != null && sipMessage instanceof SIPResponse)
+				retransmissionCache.responseSent((SIPResponse) sipMessage, msg,
+						peerAddress, peerPort);
 
 		} catch (IOException ex) {
 			throw ex;
@@ -67,7 +67,8 @@ public class UDPMessageProcessor extends MessageProcessor {
 	private int port;
 
 	/**
-	 * Incoming messages are queued here.
+	 * Incoming messages are queued here: DatagramPackets, or IncomingPackets while the latency
+	 * tracer is on.
 	 */
 	protected LinkedList messageQueue;
 
@@ -100,6 +101,17 @@ public class UDPMessageProcessor extends MessageProcessor {
 	 */
 	protected boolean isRunning;
 
+	/**
+	 * Takes the STUN messages received on our socket. Created by the first datagram read
+	 * while STUN is in use on the stack.
+	 */
+	private StunResponder stunResponder;
+
+	/**
+	 * Answers retransmitted requests with their cached final response (null if disabled).
+	 */
+	RetransmissionCache retransmissionCache;
+
 	/**
 	 * Constructor.
 	 * 
@@ -140,6 +152,10 @@ public class UDPMessageProcessor extends MessageProcessor {
 		} catch (SocketException ex) {
 			throw new IOException(ex.getMessage());
 		}
+		// A stateless proxy sends no responses of its own to replay.
+		if (sipStack.retransmissionCacheSize > 0 && sipStack.statelessProxy == null)
+			this.retransmissionCache = new RetransmissionCache(this,
+					sipStack.retransmissionCacheSize);
 	}
 
 	
@@ -169,6 +185,16 @@ public class UDPMessageProcessor extends MessageProcessor {
 		thread.start();
 	}
 
+	/**
+	 * Whether datagrams may be STUN: we answer Binding Requests, or expect the responses to
+	 * the keepalives of registered flows.
+	 */
+	private boolean isStunInUse() {
+		return sipStack.stunResponder
+				|| (sipStack.keepaliveScheduler != null && sipStack.keepaliveScheduler
+						.getFlowCount() > 0);
+	}
+
 	/**
 	 * Thread main routine.
 	 */
@@ -189,6 +215,9 @@ public class UDPMessageProcessor extends MessageProcessor {
 		// Ask the auditor to monitor this thread
 		ThreadAuditor.ThreadHandle threadHandle = sipStack.getThreadAuditor().addCurrentThread();
 
+		// The buffer is reused until a SIP message is handed off with it.
+		DatagramPacket packet = null;
+
 		// Somebody asked us to exit. if isRunnning is set to false.
 		while (this.isRunning) {
 			
@@ -197,9 +226,35 @@ public class UDPMessageProcessor extends MessageProcessor {
 				threadHandle.ping();
 
 				int bufsize = sock.getReceiveBufferSize();
-				byte message[] = new byte[bufsize];
-				DatagramPacket packet = new DatagramPacket(message, bufsize);
+				if (packet == null || packet.getData().length != bufsize) {
+					byte message[] = new byte[bufsize];
+					packet = new DatagramPacket(message, bufsize);
+				} else {
+					packet.setLength(bufsize);
+				}
 				sock.receive(packet);
+				long receiveTime = sipStack.latencyTracer != null ? StackMetrics.now() : 0;
+
+				// Sources over their rate are dropped before anything is done with their
+				// datagrams.
+				if (sipStack.sourceRateLimiter != null
+						&& !sipStack.sourceRateLimiter.acquire(packet.getAddress(),
+								SourceRateLimiter.classOf(packet.getData(), packet.getOffset(),
+										packet.getLength())))
+					continue;
+
+				// STUN is handled right away and does not count against the queue.
+				if (isStunInUse()) {
+					if (stunResponder == null)
+						stunResponder = new StunResponder(this, sipStack.stunResponder);
+					if (stunResponder.processDatagram(packet))
+						continue;
+				}
+
+				// So are retransmissions of requests already answered.
+				if (retransmissionCache != null
+						&& retransmissionCache.processDatagram(packet))
+					continue;
 
 			 // This is a simplistic congestion control algorithm.
 			 // It accepts packets if queuesize is < LOWAT. It drops
@@ -207,8 +262,7 @@ public class UDPMessageProcessor extends MessageProcessor {
 			 // requests with probability p proportional to the difference
 			 // between current queue size and LOWAT in the range
 			 // of queue sizes between HIGHWAT and LOWAT.
-			 // TODO -- penalize spammers by looking at the source
-			 // port and IP address.
+			 // Spammers are penalized by the SourceRateLimiter above.
 			 if ( this.messageQueue.size() >= HIGHWAT) {
 					if (sipStack.logWriter.isLoggingEnabled()) {
 						sipStack.logWriter.logDebug("Dropping message -- queue length exceeded");
@@ -241,12 +295,15 @@ public class UDPMessageProcessor extends MessageProcessor {
 
 					synchronized (this.messageQueue) {
 					    // was addLast
-						this.messageQueue.add(packet);
+						// Only wrapped when there is a receive time to carry.
+						this.messageQueue.add(receiveTime != 0
+								? new IncomingPacket(packet, receiveTime) : (Object) packet);
 						this.messageQueue.notify();
 					}
 				} else {
-					new UDPMessageChannel(sipStack, this, packet);
+					new UDPMessageChannel(sipStack, this, packet, receiveTime);
 				}
+				packet = null;
 			} catch (SocketTimeoutException ex) {
 			  // This socket timeout alows us to ping the thread auditor periodically
 			} catch (SocketException ex) {
@@ -351,4 +408,20 @@ public class UDPMessageProcessor extends MessageProcessor {
 		}
 	}
 
+	/**
+	 * A datagram waiting in the message queue, with the time it was read from the socket for
+	 * the latency tracer. Only queued while tracing is on; plain DatagramPackets are queued
+	 * otherwise.
+	 */
+	static final class IncomingPacket {
+
+		final DatagramPacket packet;
+
+		final long receiveTime;
+
+		IncomingPacket(DatagramPacket packet, long receiveTime) {
+			this.packet = packet;
+			this.receiveTime = receiveTime;
+		}
+	}
 }